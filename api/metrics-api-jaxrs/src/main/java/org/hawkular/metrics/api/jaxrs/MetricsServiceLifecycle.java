@@ -37,11 +37,19 @@ import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.CASSANDRA_R
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.CASSANDRA_RESETDB;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.CASSANDRA_SCHEMA_REFRESH_INTERVAL;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.CASSANDRA_USESSL;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.COMPRESSION_INTEGER_CODECS;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.COMPRESSION_JOB_ENABLED;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.COMPRESSION_QUERY_PAGE_SIZE;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.DEFAULT_TTL;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.DEFINITIONS_CACHE_EXPIRATION;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.INGEST_BATCH_FLUSH_DELAY;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.INGEST_BATCH_LATENCY_TARGET;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.INGEST_BATCH_MAX_IN_FLIGHT;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.INGEST_MAX_RETRIES;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.INGEST_MAX_RETRY_DELAY;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.INGEST_WRITE_AHEAD_LOG;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.INGEST_WRITE_AHEAD_LOG_FLUSH_DELAY;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.INGEST_WRITE_AHEAD_LOG_MAX_POINTS;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.JMX_REPORTING_ENABLED;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.METRICS_EXPIRATION_DELAY;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.METRICS_EXPIRATION_JOB_ENABLED;
@@ -50,6 +58,9 @@ import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.METRICS_REP
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.METRICS_REPORTING_ENABLED;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.METRICS_REPORTING_HOSTNAME;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.PAGE_SIZE;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.QUERY_FETCH_CONCURRENCY;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.TAG_INDEX_REFRESH_INTERVAL;
+import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.TAG_STATISTICS_REFRESH_INTERVAL;
 import static org.hawkular.metrics.api.jaxrs.config.ConfigurationKey.WAIT_FOR_SERVICE;
 
 import java.lang.management.ManagementFactory;
@@ -266,6 +277,56 @@ public class MetricsServiceLifecycle {
     @ConfigurationProperty(INGEST_MAX_RETRY_DELAY)
     private String ingestMaxRetryDelay;
 
+    @Inject
+    @Configurable
+    @ConfigurationProperty(INGEST_WRITE_AHEAD_LOG)
+    private String ingestWriteAheadLog;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(INGEST_WRITE_AHEAD_LOG_FLUSH_DELAY)
+    private String ingestWriteAheadLogFlushDelay;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(INGEST_WRITE_AHEAD_LOG_MAX_POINTS)
+    private String ingestWriteAheadLogMaxPoints;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(INGEST_BATCH_MAX_IN_FLIGHT)
+    private String ingestBatchMaxInFlight;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(INGEST_BATCH_FLUSH_DELAY)
+    private String ingestBatchFlushDelay;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(INGEST_BATCH_LATENCY_TARGET)
+    private String ingestBatchLatencyTarget;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(QUERY_FETCH_CONCURRENCY)
+    private String queryFetchConcurrency;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(TAG_INDEX_REFRESH_INTERVAL)
+    private String tagIndexRefreshInterval;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(TAG_STATISTICS_REFRESH_INTERVAL)
+    private String tagStatisticsRefreshInterval;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(DEFINITIONS_CACHE_EXPIRATION)
+    private String definitionsCacheExpiration;
+
     @Inject
     @Configurable
     @ConfigurationProperty(PAGE_SIZE)
@@ -281,6 +342,11 @@ public class MetricsServiceLifecycle {
     @ConfigurationProperty(COMPRESSION_JOB_ENABLED)
     private String compressionJobEnabled;
 
+    @Inject
+    @Configurable
+    @ConfigurationProperty(COMPRESSION_INTEGER_CODECS)
+    private String compressionIntegerCodecs;
+
     @Inject
     @Configurable
     @ConfigurationProperty(METRICS_REPORTING_HOSTNAME)
@@ -424,6 +490,7 @@ public class MetricsServiceLifecycle {
 
             persistAdminToken();
             updateIngestionConfiguration();
+            updateQueryConfiguration();
             updateCompressionJobConfiguration();
 
             metricsService = new MetricsServiceImpl();
@@ -719,6 +786,7 @@ public class MetricsServiceLifecycle {
         jobsService.setMetricsService(metricsService);
         jobsService.setConfigurationService(configurationService);
         jobsService.setSession(rxSession);
+        jobsService.setMetricRegistry(MetricRegistryProvider.INSTANCE.getMetricRegistry());
         scheduler = new JobSchedulerFactory().getJobScheduler(rxSession);
         jobsService.setScheduler(scheduler);
 
@@ -766,12 +834,118 @@ public class MetricsServiceLifecycle {
                 log.warnInvalidIngestMaxRetryDelay(ingestMaxRetryDelay);
             }
         }
+        properties.put("ingestion.write-ahead-log", String.valueOf(Boolean.parseBoolean(ingestWriteAheadLog)));
+        if (ingestWriteAheadLogFlushDelay != null) {
+            try {
+                Long.parseLong(ingestWriteAheadLogFlushDelay);
+                properties.put("ingestion.write-ahead-log.flush-delay", ingestWriteAheadLogFlushDelay);
+            } catch (NumberFormatException e) {
+                log.warnInvalidWriteAheadLogFlushDelay(ingestWriteAheadLogFlushDelay);
+            }
+        }
+        if (ingestWriteAheadLogMaxPoints != null) {
+            try {
+                Integer.parseInt(ingestWriteAheadLogMaxPoints);
+                properties.put("ingestion.write-ahead-log.max-points", ingestWriteAheadLogMaxPoints);
+            } catch (NumberFormatException e) {
+                log.warnInvalidWriteAheadLogMaxPoints(ingestWriteAheadLogMaxPoints);
+            }
+        }
+        if (ingestBatchMaxInFlight != null) {
+            try {
+                Integer.parseInt(ingestBatchMaxInFlight);
+                properties.put("ingestion.batch.max-in-flight", ingestBatchMaxInFlight);
+            } catch (NumberFormatException e) {
+                log.warnInvalidIngestionSetting("batch.max-in-flight", ingestBatchMaxInFlight);
+            }
+        }
+        if (ingestBatchFlushDelay != null) {
+            try {
+                Long.parseLong(ingestBatchFlushDelay);
+                properties.put("ingestion.batch.flush-delay", ingestBatchFlushDelay);
+            } catch (NumberFormatException e) {
+                log.warnInvalidIngestionSetting("batch.flush-delay", ingestBatchFlushDelay);
+            }
+        }
+        if (ingestBatchLatencyTarget != null) {
+            try {
+                Long.parseLong(ingestBatchLatencyTarget);
+                properties.put("ingestion.batch.latency-target", ingestBatchLatencyTarget);
+            } catch (NumberFormatException e) {
+                log.warnInvalidIngestionSetting("batch.latency-target", ingestBatchLatencyTarget);
+            }
+        }
         if (!properties.isEmpty()) {
             Configuration config = new Configuration("org.hawkular.metrics", properties);
             configurationService.save(config).toCompletable().await(10, SECONDS);
         }
     }
 
+    private void updateQueryConfiguration() {
+        if (queryFetchConcurrency != null) {
+            int concurrency = 0;
+            try {
+                concurrency = Integer.parseInt(queryFetchConcurrency);
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            if (concurrency > 0) {
+                configurationService.save("org.hawkular.metrics", "query.fetch-concurrency", queryFetchConcurrency)
+                        .toCompletable()
+                        .await(10, SECONDS);
+            } else {
+                log.warnInvalidQuerySetting("fetch-concurrency", queryFetchConcurrency);
+            }
+        }
+        if (tagIndexRefreshInterval != null) {
+            long refreshInterval = -1;
+            try {
+                refreshInterval = Long.parseLong(tagIndexRefreshInterval);
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            if (refreshInterval >= 0) {
+                configurationService.save("org.hawkular.metrics", "tags.index-refresh", tagIndexRefreshInterval)
+                        .toCompletable()
+                        .await(10, SECONDS);
+            } else {
+                log.warnInvalidQuerySetting("tags.index-refresh", tagIndexRefreshInterval);
+            }
+        }
+        if (tagStatisticsRefreshInterval != null) {
+            long refreshInterval = -1;
+            try {
+                refreshInterval = Long.parseLong(tagStatisticsRefreshInterval);
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            if (refreshInterval >= 0) {
+                configurationService.save("org.hawkular.metrics", "tags.statistics-refresh",
+                        tagStatisticsRefreshInterval)
+                        .toCompletable()
+                        .await(10, SECONDS);
+            } else {
+                log.warnInvalidQuerySetting("tags.statistics-refresh", tagStatisticsRefreshInterval);
+            }
+        }
+        if (definitionsCacheExpiration != null) {
+            long expiration = -1;
+            try {
+                expiration = Long.parseLong(definitionsCacheExpiration);
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            if (expiration >= 0) {
+                configurationService.save("org.hawkular.metrics", "definitions.cache-expiration",
+                        definitionsCacheExpiration)
+                        .toCompletable()
+                        .await(10, SECONDS);
+            } else {
+                log.warnInvalidQuerySetting("definitions.cache-expiration", definitionsCacheExpiration);
+            }
+        }
+    }
+
     private void updateCompressionJobConfiguration() {
         if (compressionPageSize != null) {
             configurationService.save(CompressData.CONFIG_ID, "page-size", compressionPageSize)
@@ -791,6 +965,12 @@ public class MetricsServiceLifecycle {
         if (compressionJobEnabled != null) {
             configurationService.save(CompressData.CONFIG_ID, "enabled", compressionJobEnabled);
         }
+
+        // Blocks written with the integer codecs stay readable after the flag is turned off again
+        configurationService.save("org.hawkular.metrics", "compression.integer-codecs",
+                String.valueOf(Boolean.parseBoolean(compressionIntegerCodecs)))
+                .toCompletable()
+                .await(10, SECONDS);
     }
 
     /**
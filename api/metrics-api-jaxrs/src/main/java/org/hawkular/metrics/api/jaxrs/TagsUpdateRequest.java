@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.api.jaxrs;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Metrics selected with either a tag query or ids and the tag changes applied to them.
+ */
+public class TagsUpdateRequest {
+
+    private String tags;
+
+    private String type;
+
+    private List<String> ids;
+
+    private Map<String, String> add;
+
+    private List<String> delete;
+
+    public String getTags() {
+        return tags;
+    }
+
+    public void setTags(String tags) {
+        this.tags = tags;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public void setIds(List<String> ids) {
+        this.ids = ids;
+    }
+
+    public Map<String, String> getAdd() {
+        return add;
+    }
+
+    public void setAdd(Map<String, String> add) {
+        this.add = add;
+    }
+
+    public List<String> getDelete() {
+        return delete;
+    }
+
+    public void setDelete(List<String> delete) {
+        this.delete = delete;
+    }
+
+    @Override public String toString() {
+        return "TagsUpdateRequest{" +
+                "tags=" + tags +
+                ", type=" + type +
+                ", ids=" + ids +
+                ", add=" + add +
+                ", delete=" + delete +
+                '}';
+    }
+}
@@ -17,6 +17,7 @@
 package org.hawkular.metrics.api.jaxrs.handler;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static javax.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
 
 import static org.hawkular.metrics.api.jaxrs.util.ApiUtils.badRequest;
 import static org.hawkular.metrics.api.jaxrs.util.ApiUtils.noContent;
@@ -25,10 +26,10 @@ import static org.hawkular.metrics.model.MetricType.COUNTER;
 import static org.hawkular.metrics.model.MetricType.COUNTER_RATE;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.PatternSyntaxException;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.ws.rs.Consumes;
@@ -148,30 +149,13 @@ public class CounterHandler extends MetricsServiceHandler implements IMetricsHan
             @Suspended AsyncResponse asyncResponse,
             @ApiParam(value = "List of tags filters", required = false) @QueryParam("tags") String tags,
             @ApiParam(value = "Fetch min and max timestamps of available datapoints") @DefaultValue("false")
-            @QueryParam("timestamps") Boolean fetchTimestamps) {
-
-        Observable<Metric<Long>> metricObservable = null;
-        if (tags != null) {
-            metricObservable = metricsService.findMetricsWithFilters(getTenant(), COUNTER, tags);
-        } else {
-            metricObservable = metricsService.findMetrics(getTenant(), COUNTER);
-        }
-
-        if(fetchTimestamps) {
-            metricObservable = metricObservable
-                    .compose(new MinMaxTimestampTransformer<>(metricsService));
-        }
-
-        metricObservable
-                .toList()
-                .map(ApiUtils::collectionToResponse)
-                .subscribe(asyncResponse::resume, t -> {
-                    if (t instanceof PatternSyntaxException) {
-                        asyncResponse.resume(badRequest(t));
-                    } else {
-                        asyncResponse.resume(serverError(t));
-                    }
-                });
+            @QueryParam("timestamps") Boolean fetchTimestamps,
+            @ApiParam(value = "Maximum amount of metric definitions in the response, the Link header refers to the "
+                    + "next page") @QueryParam("limit") Integer limit,
+            @ApiParam(value = "Cursor of the page, given in the Link header of the previous page")
+            @QueryParam("cursor") String cursor,
+            @Context UriInfo uriInfo) {
+        findMetrics(asyncResponse, COUNTER, tags, fetchTimestamps, limit, cursor, uriInfo);
     }
 
     @GET
@@ -212,14 +196,19 @@ public class CounterHandler extends MetricsServiceHandler implements IMetricsHan
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Tags successfully retrieved."),
             @ApiResponse(code = 204, message = "No matching tags were found"),
+            @ApiResponse(code = 400, message = "Invalid paging parameters.", response = ApiError.class),
             @ApiResponse(code = 500, message = "Unexpected error occurred while fetching tags.",
                     response = ApiError.class)
     })
     public void getTags(@Suspended final AsyncResponse asyncResponse,
-                        @ApiParam("Tag query") @PathParam("tags") Tags tags) {
-        metricsService.getTagValues(getTenant(), COUNTER, tags.getTags())
-                .map(ApiUtils::mapToResponse)
-                .subscribe(asyncResponse::resume, t -> asyncResponse.resume(ApiUtils.serverError(t)));
+                        @ApiParam("Tag query") @PathParam("tags") Tags tags,
+                        @ApiParam(value = "Maximum amount of tag values in the response, the Link header refers " +
+                                "to the next page. Requires a query of a single tag.")
+                        @QueryParam("limit") Integer limit,
+                        @ApiParam(value = "Cursor of the page, given in the Link header of the previous page")
+                        @QueryParam("cursor") String cursor,
+                        @Context UriInfo uriInfo) {
+        findTagValues(asyncResponse, COUNTER, tags, limit, cursor, uriInfo);
     }
 
     @GET
@@ -389,6 +378,37 @@ public class CounterHandler extends MetricsServiceHandler implements IMetricsHan
         addMetricData(asyncResponse, id, data);
     }
 
+    @POST
+    @Path("/{id}/raw/compressed")
+    @Consumes(APPLICATION_OCTET_STREAM)
+    @ApiOperation(value = "Add a compressed block of data points for a single counter.",
+            notes = "The payload is a complete two hour block in the storage format: the compressor header byte " +
+                    "followed by the stream of that codec. Supported headers are 0x10 (plain Gorilla), 0x30 " +
+                    "(delta-of-delta) and 0x40 (run-length), without any settings bits. Counter values must be " +
+                    "integers with every codec. The block start is read from the stream header. Data points are " +
+                    "merged with the data already stored for the block. This endpoint is experimental and may " +
+                    "undergo non-backwards compatible changes in future releases.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Adding data succeeded."),
+            @ApiResponse(code = 400, message = "Missing or invalid compressed block", response = ApiError.class),
+            @ApiResponse(code = 500, message = "Unexpected error happened while storing the data",
+                    response = ApiError.class),
+    })
+    public void addCompressedMetricData(
+            @Suspended final AsyncResponse asyncResponse,
+            @PathParam("id") String id,
+            @ApiParam(value = "Compressed block of data points", required = true) byte[] block
+    ) {
+        if (block == null || block.length == 0) {
+            asyncResponse.resume(badRequest(new ApiError("Compressed block is missing")));
+            return;
+        }
+        MetricId<Long> metricId = new MetricId<>(getTenant(), COUNTER, id);
+        Observable<Void> observable = metricsService.addCompressedDataPoints(metricId, ByteBuffer.wrap(block))
+                .map(i -> null);
+        observable.subscribe(new ResultSetObserver(asyncResponse));
+    }
+
     @Deprecated
     @GET
     @Path("/{id}/data")
@@ -17,6 +17,7 @@
 package org.hawkular.metrics.api.jaxrs.handler;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static javax.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM;
 
 import static org.hawkular.metrics.api.jaxrs.util.ApiUtils.badRequest;
 import static org.hawkular.metrics.api.jaxrs.util.ApiUtils.serverError;
@@ -25,11 +26,11 @@ import static org.hawkular.metrics.model.MetricType.GAUGE_RATE;
 import static org.hawkular.metrics.model.MetricType.UNDEFINED;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Predicate;
-import java.util.regex.PatternSyntaxException;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.ws.rs.Consumes;
@@ -145,30 +146,13 @@ public class GaugeHandler extends MetricsServiceHandler implements IMetricsHandl
             @Suspended AsyncResponse asyncResponse,
             @ApiParam(value = "List of tags filters") @QueryParam("tags") String tags,
             @ApiParam(value = "Fetch min and max timestamps of available datapoints") @DefaultValue("false")
-            @QueryParam("timestamps") Boolean fetchTimestamps) {
-
-        Observable<Metric<Double>> metricObservable = null;
-        if (tags != null) {
-            metricObservable = metricsService.findMetricsWithFilters(getTenant(), GAUGE, tags);
-        } else {
-            metricObservable = metricsService.findMetrics(getTenant(), GAUGE);
-        }
-
-        if(fetchTimestamps) {
-            metricObservable = metricObservable
-                    .compose(new MinMaxTimestampTransformer<>(metricsService));
-        }
-
-        metricObservable
-                .toList()
-                .map(ApiUtils::collectionToResponse)
-                .subscribe(asyncResponse::resume, t -> {
-                    if (t instanceof PatternSyntaxException) {
-                        asyncResponse.resume(badRequest(t));
-                    } else {
-                        asyncResponse.resume(serverError(t));
-                    }
-                });
+            @QueryParam("timestamps") Boolean fetchTimestamps,
+            @ApiParam(value = "Maximum amount of metric definitions in the response, the Link header refers to the "
+                    + "next page") @QueryParam("limit") Integer limit,
+            @ApiParam(value = "Cursor of the page, given in the Link header of the previous page")
+            @QueryParam("cursor") String cursor,
+            @Context UriInfo uriInfo) {
+        findMetrics(asyncResponse, GAUGE, tags, fetchTimestamps, limit, cursor, uriInfo);
     }
 
     @GET
@@ -208,14 +192,19 @@ public class GaugeHandler extends MetricsServiceHandler implements IMetricsHandl
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Tags successfully retrieved."),
             @ApiResponse(code = 204, message = "No matching tags were found"),
+            @ApiResponse(code = 400, message = "Invalid paging parameters.", response = ApiError.class),
             @ApiResponse(code = 500, message = "Unexpected error occurred while fetching tags.",
                     response = ApiError.class)
     })
     public void getTags(@Suspended final AsyncResponse asyncResponse,
-                        @ApiParam("Tag query") @PathParam("tags") Tags tags) {
-        metricsService.getTagValues(getTenant(), GAUGE, tags.getTags())
-                .map(ApiUtils::mapToResponse)
-                .subscribe(asyncResponse::resume, t -> asyncResponse.resume(ApiUtils.serverError(t)));
+                        @ApiParam("Tag query") @PathParam("tags") Tags tags,
+                        @ApiParam(value = "Maximum amount of tag values in the response, the Link header refers " +
+                                "to the next page. Requires a query of a single tag.")
+                        @QueryParam("limit") Integer limit,
+                        @ApiParam(value = "Cursor of the page, given in the Link header of the previous page")
+                        @QueryParam("cursor") String cursor,
+                        @Context UriInfo uriInfo) {
+        findTagValues(asyncResponse, GAUGE, tags, limit, cursor, uriInfo);
     }
 
     @GET
@@ -302,6 +291,37 @@ public class GaugeHandler extends MetricsServiceHandler implements IMetricsHandl
         addMetricData(asyncResponse, id, data);
     }
 
+    @POST
+    @Path("/{id}/raw/compressed")
+    @Consumes(APPLICATION_OCTET_STREAM)
+    @ApiOperation(value = "Add a compressed block of data points for a single gauge.",
+            notes = "The payload is a complete two hour block in the storage format: the compressor header byte " +
+                    "followed by the stream of that codec. Supported headers are 0x10 (plain Gorilla), 0x30 " +
+                    "(delta-of-delta) and 0x40 (run-length), without any settings bits. The integer codecs " +
+                    "accept only integer values. The block start is read from the stream header. Data points are " +
+                    "merged with the data already stored for the block. This endpoint is experimental and may " +
+                    "undergo non-backwards compatible changes in future releases.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Adding data succeeded."),
+            @ApiResponse(code = 400, message = "Missing or invalid compressed block", response = ApiError.class),
+            @ApiResponse(code = 500, message = "Unexpected error happened while storing the data",
+                    response = ApiError.class),
+    })
+    public void addCompressedMetricData(
+            @Suspended final AsyncResponse asyncResponse,
+            @PathParam("id") String id,
+            @ApiParam(value = "Compressed block of data points", required = true) byte[] block
+    ) {
+        if (block == null || block.length == 0) {
+            asyncResponse.resume(badRequest(new ApiError("Compressed block is missing")));
+            return;
+        }
+        MetricId<Double> metricId = new MetricId<>(getTenant(), GAUGE, id);
+        Observable<Void> observable = metricsService.addCompressedDataPoints(metricId, ByteBuffer.wrap(block))
+                .map(i -> null);
+        observable.subscribe(new ResultSetObserver(asyncResponse));
+    }
+
     @POST
     @Path("/raw")
     @ApiOperation(value = "Add data for multiple gauge metrics in a single call.")
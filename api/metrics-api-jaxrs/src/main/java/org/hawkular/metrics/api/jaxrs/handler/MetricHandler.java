@@ -18,6 +18,7 @@ package org.hawkular.metrics.api.jaxrs.handler;
 
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
@@ -34,9 +35,10 @@ import static org.hawkular.metrics.model.MetricType.STRING;
 
 import java.net.URI;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.PatternSyntaxException;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -45,6 +47,7 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
@@ -57,12 +60,15 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 
 import org.hawkular.metrics.api.jaxrs.StatsQueryRequest;
+import org.hawkular.metrics.api.jaxrs.TagsUpdateRequest;
 import org.hawkular.metrics.api.jaxrs.handler.observer.MetricCreatedObserver;
+import org.hawkular.metrics.api.jaxrs.handler.observer.StreamingArrayObserver;
 import org.hawkular.metrics.api.jaxrs.param.DurationConverter;
 import org.hawkular.metrics.api.jaxrs.param.PercentilesConverter;
 import org.hawkular.metrics.api.jaxrs.util.ApiUtils;
 import org.hawkular.metrics.api.jaxrs.util.Logged;
 import org.hawkular.metrics.api.jaxrs.util.MetricTypeTextConverter;
+import org.hawkular.metrics.core.jobs.JobsService;
 import org.hawkular.metrics.core.service.Functions;
 import org.hawkular.metrics.core.service.MetricsService;
 import org.hawkular.metrics.core.service.transformers.MinMaxTimestampTransformer;
@@ -80,6 +86,7 @@ import org.hawkular.metrics.model.param.Tags;
 import org.hawkular.metrics.model.param.TimeRange;
 import org.jboss.resteasy.annotations.GZIP;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
 
@@ -107,6 +114,12 @@ public class MetricHandler {
     @Inject
     private MetricsService metricsService;
 
+    @Inject
+    private ObjectMapper mapper;
+
+    @Inject
+    private JobsService jobsService;
+
     @Context
     private HttpHeaders httpHeaders;
 
@@ -158,9 +171,62 @@ public class MetricHandler {
                             @ApiParam(value = "Tags applied to defined metric type", allowableValues = "gauge, " +
                                     "availability, counter, string") @QueryParam("type") MetricType<T> metricType) {
         metricsService.getTagNames(getTenant(), metricType, tagNameFilter)
-                .toList()
-                .map(ApiUtils::collectionToResponse)
-                .subscribe(asyncResponse::resume, t -> asyncResponse.resume(ApiUtils.serverError(t)));
+                .subscribe(new StreamingArrayObserver<>(asyncResponse, mapper));
+    }
+
+    @GET
+    @Path("/tags/autocomplete/names")
+    @ApiOperation(value = "Autocomplete tag names", notes = "Returns the tenant's tag names starting with the prefix "
+            + "in ascending order.", response = String.class, responseContainer = "List")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Tag names successfully retrieved."),
+            @ApiResponse(code = 400, message = "Invalid limit.", response = ApiError.class),
+            @ApiResponse(code = 500, message = "Unexpected error occurred while fetching tag names.",
+                    response = ApiError.class)
+    })
+    public <T> void completeTagNames(@Suspended final AsyncResponse asyncResponse,
+                                     @ApiParam(value = "Prefix of the tag names") @QueryParam("prefix") String prefix,
+                                     @ApiParam(value = "Tags applied to defined metric type", allowableValues =
+                                             "gauge, availability, counter, string")
+                                     @QueryParam("type") MetricType<T> metricType,
+                                     @ApiParam(value = "Maximum amount of tag names, defaults to all")
+                                     @QueryParam("limit") Integer limit) {
+        Response invalidLimit = ApiUtils.checkPaging(limit, null);
+        if (invalidLimit != null) {
+            asyncResponse.resume(invalidLimit);
+            return;
+        }
+        metricsService.completeTagNames(getTenant(), metricType, prefix, limit == null ? 0 : limit)
+                .subscribe(new StreamingArrayObserver<>(asyncResponse, mapper));
+    }
+
+    @GET
+    @Path("/tags/autocomplete/values/{tagName}")
+    @ApiOperation(value = "Autocomplete tag values", notes = "Returns the values of the tag starting with the prefix "
+            + "in ascending order.", response = String.class, responseContainer = "List")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Tag values successfully retrieved."),
+            @ApiResponse(code = 400, message = "Invalid limit.", response = ApiError.class),
+            @ApiResponse(code = 500, message = "Unexpected error occurred while fetching tag values.",
+                    response = ApiError.class)
+    })
+    public <T> void completeTagValues(@Suspended final AsyncResponse asyncResponse,
+                                      @ApiParam(value = "Tag name", required = true) @PathParam("tagName")
+                                              String tagName,
+                                      @ApiParam(value = "Prefix of the tag values") @QueryParam("prefix")
+                                              String prefix,
+                                      @ApiParam(value = "Values of the defined metric type", allowableValues =
+                                              "gauge, availability, counter, string")
+                                      @QueryParam("type") MetricType<T> metricType,
+                                      @ApiParam(value = "Maximum amount of tag values, defaults to all")
+                                      @QueryParam("limit") Integer limit) {
+        Response invalidLimit = ApiUtils.checkPaging(limit, null);
+        if (invalidLimit != null) {
+            asyncResponse.resume(invalidLimit);
+            return;
+        }
+        metricsService.completeTagValues(getTenant(), metricType, tagName, prefix, limit == null ? 0 : limit)
+                .subscribe(new StreamingArrayObserver<>(asyncResponse, mapper));
     }
 
     @GET
@@ -169,6 +235,7 @@ public class MetricHandler {
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Tags successfully retrieved."),
             @ApiResponse(code = 204, message = "No matching tags were found"),
+            @ApiResponse(code = 400, message = "Invalid paging parameters.", response = ApiError.class),
             @ApiResponse(code = 500, message = "Unexpected error occurred while fetching tags.",
                     response = ApiError.class)
     })
@@ -176,12 +243,93 @@ public class MetricHandler {
                             @ApiParam(value = "Queried metric type", allowableValues = "gauge, availability, counter," +
                                     " string")
                             @QueryParam("type") MetricType<T> metricType,
-                            @ApiParam("Tag query") @PathParam("tags") Tags tags) {
+                            @ApiParam("Tag query") @PathParam("tags") Tags tags,
+                            @ApiParam(value = "Maximum amount of tag values in the response, the Link header refers " +
+                                    "to the next page. Requires a query of a single tag.")
+                            @QueryParam("limit") Integer limit,
+                            @ApiParam(value = "Cursor of the page, given in the Link header of the previous page")
+                            @QueryParam("cursor") String cursor,
+                            @Context UriInfo uriInfo) {
+        Response invalidPaging = ApiUtils.checkPaging(limit, cursor);
+        if (invalidPaging != null) {
+            asyncResponse.resume(invalidPaging);
+            return;
+        }
+        if (limit != null) {
+            if (tags.getTags().size() != 1) {
+                asyncResponse.resume(badRequest(new ApiError("Paging requires a query of a single tag")));
+                return;
+            }
+            Map.Entry<String, String> tag = tags.getTags().entrySet().iterator().next();
+            metricsService.getTagValuesPage(getTenant(), metricType, tag.getKey(), tag.getValue(), limit, cursor)
+                    .map(page -> ApiUtils.pageToResponse(page, ImmutableMap.of(tag.getKey(), page.getItems()),
+                            uriInfo))
+                    .subscribe(asyncResponse::resume,
+                            t -> asyncResponse.resume(MetricsServiceHandler.tagQueryError(t)));
+            return;
+        }
         metricsService.getTagValues(getTenant(), metricType, tags.getTags())
                 .map(ApiUtils::mapToResponse)
                 .subscribe(asyncResponse::resume, t -> asyncResponse.resume(ApiUtils.serverError(t)));
     }
 
+    @PUT
+    @Path("/tags")
+    @ApiOperation(value = "Asynchronously adds and deletes tags of the metrics selected with a tag query or ids.",
+            notes = "A response is returned as soon as a job to update the tags gets created and scheduled. The "
+                    + "job is resumed after a restart and the response returns its id. Tags of a single metric are "
+                    + "updated together, but the update of all the metrics is not atomic.")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Tag update job gets scheduled. The job id is returned."),
+            @ApiResponse(code = 400, message = "Missing or invalid payload", response = ApiError.class),
+            @ApiResponse(code = 500, message = "Unexpected error occurred trying to schedule the tag update job.",
+                    response = ApiError.class)
+    })
+    public void updateTags(@Suspended final AsyncResponse asyncResponse,
+                           @ApiParam(required = true) TagsUpdateRequest request) {
+        if (request == null) {
+            asyncResponse.resume(emptyPayload());
+            return;
+        }
+        if ((request.getTags() == null) == (request.getIds() == null)) {
+            asyncResponse.resume(badRequest(new ApiError("Either tags or ids is required")));
+            return;
+        }
+        Map<String, String> addTags = request.getAdd() == null ? emptyMap() : request.getAdd();
+        Set<String> deleteTags = request.getDelete() == null ? emptySet() : new HashSet<>(request.getDelete());
+        if (addTags.isEmpty() && deleteTags.isEmpty()) {
+            asyncResponse.resume(badRequest(new ApiError("At least one tag to add or delete is required")));
+            return;
+        }
+        MetricType<?> type;
+        try {
+            type = request.getType() == null ? null : MetricType.fromTextCode(request.getType());
+        } catch (IllegalArgumentException e) {
+            asyncResponse.resume(badRequest(new ApiError(e.getMessage())));
+            return;
+        }
+        if (type != null && !type.isUserType()) {
+            asyncResponse.resume(badRequest(new ApiError("Metric type is invalid")));
+            return;
+        }
+        if (request.getIds() != null && type == null) {
+            asyncResponse.resume(badRequest(new ApiError("Metric type is required with ids")));
+            return;
+        }
+        String tenantId = getTenant();
+        jobsService.submitUpdateTagsJob(tenantId, type, request.getTags(), request.getIds(), addTags, deleteTags,
+                "UpdateTags" + tenantId).subscribe(
+                jobDetails -> asyncResponse.resume(Response.ok(ImmutableMap.of("jobId",
+                        jobDetails.getJobId().toString())).build()),
+                t -> {
+                    if (t instanceof IllegalArgumentException) {
+                        asyncResponse.resume(badRequest(new ApiError(t.getMessage())));
+                    } else {
+                        asyncResponse.resume(serverError(t));
+                    }
+                });
+    }
+
     @GET
     @Path("/")
     @ApiOperation(value = "Find tenant's metric definitions.", notes = "Does not include any metric values. ",
@@ -203,12 +351,39 @@ public class MetricHandler {
             @QueryParam("timestamps") Boolean fetchTimestamps,
             @ApiParam(value = "List of tags filters", required = false) @QueryParam("tags") String tags,
             @ApiParam(value = "Regexp to match metricId if tags filtering is used, otherwise exact matching",
-                    required = false) @QueryParam("id") String id) {
+                    required = false) @QueryParam("id") String id,
+            @ApiParam(value = "Maximum amount of metric definitions in the response, the Link header refers to the " +
+                    "next page") @QueryParam("limit") Integer limit,
+            @ApiParam(value = "Cursor of the page, given in the Link header of the previous page")
+            @QueryParam("cursor") String cursor,
+            @Context UriInfo uriInfo) {
         if (metricType != null && !metricType.isUserType()) {
             asyncResponse.resume(badRequest(new ApiError("Incorrect type param " + metricType.toString())));
             return;
         }
 
+        Response invalidPaging = ApiUtils.checkPaging(limit, cursor);
+        if (invalidPaging != null) {
+            asyncResponse.resume(invalidPaging);
+            return;
+        }
+        if (limit != null) {
+            if (tags != null || !Strings.isNullOrEmpty(id)) {
+                asyncResponse.resume(badRequest(new ApiError("Paging can't be used with tags or id filtering")));
+                return;
+            }
+            metricsService.findMetricsPage(getTenant(), metricType, limit, cursor)
+                    .flatMap(page -> {
+                        Observable<Metric<T>> metrics = Observable.from(page.getItems());
+                        if (fetchTimestamps) {
+                            metrics = metrics.compose(new MinMaxTimestampTransformer<>(metricsService));
+                        }
+                        return metrics.toList().map(list -> ApiUtils.pageToResponse(page, list, uriInfo));
+                    })
+                    .subscribe(asyncResponse::resume, t -> asyncResponse.resume(ApiUtils.error(t)));
+            return;
+        }
+
         Observable<Metric<T>> metricObservable;
 
         if (tags != null) {
@@ -237,16 +412,7 @@ public class MetricHandler {
                     .compose(new MinMaxTimestampTransformer<>(metricsService));
         }
 
-        metricObservable
-                .toList()
-                .map(ApiUtils::collectionToResponse)
-                .subscribe(asyncResponse::resume, t -> {
-                    if (t instanceof PatternSyntaxException) {
-                        asyncResponse.resume(badRequest(t));
-                    } else {
-                        asyncResponse.resume(serverError(t));
-                    }
-                });
+        metricObservable.subscribe(new StreamingArrayObserver<>(asyncResponse, mapper));
     }
 
     @Deprecated
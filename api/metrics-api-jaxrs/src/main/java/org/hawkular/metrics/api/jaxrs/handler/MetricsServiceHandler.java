@@ -20,22 +20,32 @@ import static org.hawkular.metrics.api.jaxrs.filter.TenantFilter.TENANT_HEADER_N
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.regex.PatternSyntaxException;
 
 import javax.inject.Inject;
 import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 
 import org.hawkular.metrics.api.jaxrs.handler.observer.NamedDataPointObserver;
+import org.hawkular.metrics.api.jaxrs.handler.observer.StreamingArrayObserver;
+import org.hawkular.metrics.api.jaxrs.util.ApiUtils;
 import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.core.service.transformers.MinMaxTimestampTransformer;
+import org.hawkular.metrics.model.ApiError;
 import org.hawkular.metrics.model.Metric;
 import org.hawkular.metrics.model.MetricId;
 import org.hawkular.metrics.model.MetricType;
 import org.hawkular.metrics.model.exception.RuntimeApiError;
+import org.hawkular.metrics.model.param.Tags;
 import org.hawkular.metrics.model.param.TimeRange;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
 
 import rx.Observable;
 
@@ -61,6 +71,74 @@ abstract class MetricsServiceHandler {
         return new NamedDataPointObserver<>(response, mapper, type);
     }
 
+    /**
+     * Streams the metric definitions or, when the page size is given, returns one page of them with a link to the
+     * next page.
+     */
+    <T> void findMetrics(AsyncResponse asyncResponse, MetricType<T> type, String tags, boolean fetchTimestamps,
+            Integer limit, String cursor, UriInfo uriInfo) {
+        Response invalidPaging = ApiUtils.checkPaging(limit, cursor);
+        if (invalidPaging != null) {
+            asyncResponse.resume(invalidPaging);
+            return;
+        }
+
+        if (limit != null) {
+            if (tags != null) {
+                asyncResponse.resume(ApiUtils.badRequest(new ApiError("Paging can't be used with tags filtering")));
+                return;
+            }
+            metricsService.findMetricsPage(getTenant(), type, limit, cursor)
+                    .flatMap(page -> withTimestamps(Observable.from(page.getItems()), fetchTimestamps)
+                            .toList()
+                            .map(metrics -> ApiUtils.pageToResponse(page, metrics, uriInfo)))
+                    .subscribe(asyncResponse::resume, t -> asyncResponse.resume(ApiUtils.error(t)));
+            return;
+        }
+
+        Observable<Metric<T>> metrics = tags != null ? metricsService.findMetricsWithFilters(getTenant(), type, tags)
+                : metricsService.findMetrics(getTenant(), type);
+        withTimestamps(metrics, fetchTimestamps).subscribe(new StreamingArrayObserver<>(asyncResponse, mapper));
+    }
+
+    /**
+     * Returns the tag values matching the tag query or, when the page size is given, one page of the values of a
+     * single tag with a link to the next page.
+     */
+    <T> void findTagValues(AsyncResponse asyncResponse, MetricType<T> type, Tags tags, Integer limit, String cursor,
+            UriInfo uriInfo) {
+        Response invalidPaging = ApiUtils.checkPaging(limit, cursor);
+        if (invalidPaging != null) {
+            asyncResponse.resume(invalidPaging);
+            return;
+        }
+
+        if (limit != null) {
+            if (tags.getTags().size() != 1) {
+                asyncResponse.resume(ApiUtils.badRequest(new ApiError("Paging requires a query of a single tag")));
+                return;
+            }
+            Map.Entry<String, String> tag = tags.getTags().entrySet().iterator().next();
+            metricsService.getTagValuesPage(getTenant(), type, tag.getKey(), tag.getValue(), limit, cursor)
+                    .map(page -> ApiUtils.pageToResponse(page, ImmutableMap.of(tag.getKey(), page.getItems()),
+                            uriInfo))
+                    .subscribe(asyncResponse::resume, t -> asyncResponse.resume(tagQueryError(t)));
+            return;
+        }
+
+        metricsService.getTagValues(getTenant(), type, tags.getTags())
+                .map(ApiUtils::mapToResponse)
+                .subscribe(asyncResponse::resume, t -> asyncResponse.resume(ApiUtils.serverError(t)));
+    }
+
+    static Response tagQueryError(Throwable t) {
+        return t instanceof PatternSyntaxException ? ApiUtils.badRequest(t) : ApiUtils.error(t);
+    }
+
+    private <T> Observable<Metric<T>> withTimestamps(Observable<Metric<T>> metrics, boolean fetchTimestamps) {
+        return fetchTimestamps ? metrics.compose(new MinMaxTimestampTransformer<>(metricsService)) : metrics;
+    }
+
     <T> Observable<MetricId<T>> findMetricsByNameOrTag(List<String> metricNames, String tags, MetricType<T> type) {
         if ((metricNames == null || metricNames.isEmpty()) && tags == null) {
             return Observable.error(new RuntimeApiError("Either metrics or tags query parameters must be used"));
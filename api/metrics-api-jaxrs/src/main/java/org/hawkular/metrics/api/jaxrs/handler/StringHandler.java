@@ -26,7 +26,6 @@ import static org.hawkular.metrics.model.MetricType.UNDEFINED;
 import java.net.URI;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.PatternSyntaxException;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.ws.rs.Consumes;
@@ -131,30 +130,13 @@ public class StringHandler extends MetricsServiceHandler implements IMetricsHand
             @Suspended AsyncResponse asyncResponse,
             @ApiParam(value = "List of tags filters") @QueryParam("tags") String tags,
             @ApiParam(value = "Fetch min and max timestamps of available datapoints") @DefaultValue("false")
-            @QueryParam("timestamps") Boolean fetchTimestamps) {
-
-        Observable<Metric<String>> metricObservable = null;
-        if (tags != null) {
-            metricObservable = metricsService.findMetricsWithFilters(getTenant(), STRING, tags);
-        } else {
-            metricObservable = metricsService.findMetrics(getTenant(), STRING);
-        }
-
-        if(fetchTimestamps) {
-            metricObservable = metricObservable
-                    .compose(new MinMaxTimestampTransformer<>(metricsService));
-        }
-
-        metricObservable
-                .toList()
-                .map(ApiUtils::collectionToResponse)
-                .subscribe(asyncResponse::resume, t -> {
-                    if (t instanceof PatternSyntaxException) {
-                        asyncResponse.resume(badRequest(t));
-                    } else {
-                        asyncResponse.resume(serverError(t));
-                    }
-                });
+            @QueryParam("timestamps") Boolean fetchTimestamps,
+            @ApiParam(value = "Maximum amount of metric definitions in the response, the Link header refers to the "
+                    + "next page") @QueryParam("limit") Integer limit,
+            @ApiParam(value = "Cursor of the page, given in the Link header of the previous page")
+            @QueryParam("cursor") String cursor,
+            @Context UriInfo uriInfo) {
+        findMetrics(asyncResponse, STRING, tags, fetchTimestamps, limit, cursor, uriInfo);
     }
 
     @GET
@@ -193,13 +175,18 @@ public class StringHandler extends MetricsServiceHandler implements IMetricsHand
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Tags successfully retrieved."),
             @ApiResponse(code = 204, message = "No matching tags were found"),
+            @ApiResponse(code = 400, message = "Invalid paging parameters.", response = ApiError.class),
             @ApiResponse(code = 500, message = "Unexpected error occurred while fetching tags.", response = ApiError.class)
     })
     public void getTags(@Suspended final AsyncResponse asyncResponse,
-            @ApiParam("Tag query") @PathParam("tags") Tags tags) {
-        metricsService.getTagValues(getTenant(), STRING, tags.getTags())
-                .map(ApiUtils::mapToResponse)
-                .subscribe(asyncResponse::resume, t -> asyncResponse.resume(ApiUtils.serverError(t)));
+            @ApiParam("Tag query") @PathParam("tags") Tags tags,
+                        @ApiParam(value = "Maximum amount of tag values in the response, the Link header refers " +
+                                "to the next page. Requires a query of a single tag.")
+                        @QueryParam("limit") Integer limit,
+                        @ApiParam(value = "Cursor of the page, given in the Link header of the previous page")
+                        @QueryParam("cursor") String cursor,
+                        @Context UriInfo uriInfo) {
+        findTagValues(asyncResponse, STRING, tags, limit, cursor, uriInfo);
     }
 
     @GET
@@ -46,6 +46,7 @@ import org.hawkular.metrics.api.jaxrs.util.Logged;
 import org.hawkular.metrics.core.jobs.JobsService;
 import org.hawkular.metrics.core.service.MetricsService;
 import org.hawkular.metrics.model.ApiError;
+import org.hawkular.metrics.model.TagCardinality;
 import org.hawkular.metrics.model.TenantDefinition;
 import org.jboss.logging.Logger;
 import org.jboss.resteasy.annotations.GZIP;
@@ -120,6 +121,37 @@ public class TenantsHandler {
         );
     }
 
+    @GET
+    @Path("/{id}/tags/statistics")
+    @ApiOperation(value = "Returns the cardinality statistics of the tenant's tag names, ordered by the amount of "
+            + "metrics having the tag. Tags with many metrics or many distinct values make the tag queries using "
+            + "them expensive.", response = TagCardinality.class, responseContainer = "List")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Returned the tag statistics successfully."),
+            @ApiResponse(code = 204, message = "The tenant has no tags."),
+            @ApiResponse(code = 400, message = "Invalid limit.", response = ApiError.class),
+            @ApiResponse(code = 500, message = "Unexpected error occurred while fetching the tag statistics.",
+                    response = ApiError.class)
+    })
+    public void getTagStatistics(
+            @Suspended AsyncResponse asyncResponse,
+            @PathParam("id") String id,
+            @ApiParam(value = "Maximum amount of tags to return, defaults to all") @QueryParam("limit") Integer limit
+    ) {
+        if (limit != null && limit <= 0) {
+            asyncResponse.resume(badRequest(new ApiError("Limit must be positive")));
+            return;
+        }
+        metricsService.getTagCardinalities(id)
+                .toSortedList((a, b) -> Long.compare(b.getMetrics(), a.getMetrics()))
+                .map(cardinalities -> limit == null || cardinalities.size() <= limit ? cardinalities
+                        : cardinalities.subList(0, limit))
+                .subscribe(
+                        cardinalities -> asyncResponse.resume(collectionToResponse(cardinalities)),
+                        error -> asyncResponse.resume(serverError(error))
+                );
+    }
+
     @DELETE
     @Path("/{id}")
     @ApiOperation(value = "Asynchronously deletes a tenant. All metrics and their data points will be deleted. " +
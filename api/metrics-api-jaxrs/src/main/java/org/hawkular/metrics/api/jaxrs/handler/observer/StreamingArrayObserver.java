@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.api.jaxrs.handler.observer;
+
+import java.io.IOException;
+import java.util.regex.PatternSyntaxException;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+import org.hawkular.metrics.api.jaxrs.util.ApiUtils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Streams the items to the client as a JSON array while they are fetched. A failure before the first item is a 400
+ * for invalid queries and a 500 otherwise.
+ */
+public class StreamingArrayObserver<T> extends StreamingObserver<T> {
+
+    private final ObjectWriter writer;
+
+    public StreamingArrayObserver(AsyncResponse response, ObjectMapper mapper) {
+        super(response, mapper);
+        // Flushing after every item would defeat the output buffering
+        this.writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    @Override
+    protected void writeItem(JsonGenerator generator, T item) throws IOException {
+        writer.writeValue(generator, item);
+    }
+
+    @Override
+    protected Response errorResponse(Throwable e) {
+        if (e instanceof PatternSyntaxException) {
+            return ApiUtils.badRequest(e);
+        }
+        return ApiUtils.error(e);
+    }
+}
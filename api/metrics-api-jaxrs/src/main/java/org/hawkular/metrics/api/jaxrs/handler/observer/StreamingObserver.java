@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.api.jaxrs.handler.observer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.hawkular.metrics.api.jaxrs.util.ApiUtils;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.schedulers.Schedulers;
+
+/**
+ * Streams the items to the client as they are fetched. The response is resumed with a {@link StreamingOutput} once
+ * the first item has arrived, an empty result is a 204 and a failure before the first item is mapped with
+ * {@link #errorResponse(Throwable)}. The output writer runs on an IO thread and requests more items only after it has
+ * written the previous ones, so at most {@link #BUFFER_SIZE} items are held in memory regardless of the size of the
+ * result.
+ */
+public abstract class StreamingObserver<T> extends Subscriber<T> {
+    private static final Logger log = Logger.getLogger(StreamingObserver.class);
+
+    static final int BUFFER_SIZE = 256;
+
+    private static final Object COMPLETED = new Object();
+
+    private static class Failure {
+        private final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private final AsyncResponse response;
+    private final ObjectMapper mapper;
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+    // Only accessed from the serialized onNext/onError/onCompleted calls
+    private boolean streaming;
+
+    protected StreamingObserver(AsyncResponse response, ObjectMapper mapper) {
+        this.response = response;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Writes a single item, called on the writer thread only
+     */
+    protected abstract void writeItem(JsonGenerator generator, T item) throws IOException;
+
+    /**
+     * Closes the document after the last item, called on the writer thread only
+     */
+    protected void writeEnd(JsonGenerator generator) throws IOException {
+        generator.writeEndArray();
+    }
+
+    protected Response errorResponse(Throwable e) {
+        return ApiUtils.serverError(e);
+    }
+
+    @Override
+    public void onStart() {
+        // The first item decides the response status, the writer requests the rest
+        request(1);
+    }
+
+    @Override
+    public void onNext(T item) {
+        queue.add(item);
+        if (!streaming) {
+            streaming = true;
+            // The container may write the entity on the resuming thread, which must not be the one delivering the
+            // items to the writer
+            Scheduler.Worker worker = Schedulers.io().createWorker();
+            worker.schedule(() -> {
+                try {
+                    response.resume(Response.ok((StreamingOutput) this::write, MediaType.APPLICATION_JSON_TYPE)
+                            .build());
+                } finally {
+                    // The cached IO thread is returned to the pool only when its worker is unsubscribed
+                    worker.unsubscribe();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        log.trace("Fetching items failed", e);
+        if (streaming) {
+            queue.add(new Failure(e));
+        } else {
+            response.resume(errorResponse(e));
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        if (streaming) {
+            queue.add(COMPLETED);
+        } else {
+            response.resume(ApiUtils.noContent());
+        }
+    }
+
+    private void write(OutputStream output) throws IOException {
+        boolean completed = false;
+        try {
+            JsonGenerator generator = mapper.getFactory().createGenerator(output, JsonEncoding.UTF8);
+            generator.writeStartArray();
+            request(BUFFER_SIZE);
+
+            int written = 0;
+            while (true) {
+                Object next = queue.take();
+                if (next == COMPLETED) {
+                    break;
+                }
+                if (next instanceof Failure) {
+                    // Abort without closing the document, the client must not see a truncated result as valid
+                    throw new IOException("Fetching items failed", ((Failure) next).cause);
+                }
+
+                @SuppressWarnings("unchecked")
+                T item = (T) next;
+                writeItem(generator, item);
+
+                if (++written == BUFFER_SIZE / 2) {
+                    written = 0;
+                    request(BUFFER_SIZE / 2);
+                }
+                if (queue.isEmpty()) {
+                    // Waiting for more items, send what we have
+                    generator.flush();
+                }
+            }
+
+            writeEnd(generator);
+            generator.close();
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Streaming items to client was interrupted");
+        } finally {
+            if (!completed) {
+                // Client went away or fetching failed, stop fetching
+                unsubscribe();
+            }
+        }
+    }
+}
@@ -35,7 +35,8 @@ import org.hawkular.metrics.model.param.Tags;
 public interface IMetricsHandler<T> {
 
     //Metric
-    void getMetrics(AsyncResponse asyncResponse, String tags, Boolean fetchTimestamps);
+    void getMetrics(AsyncResponse asyncResponse, String tags, Boolean fetchTimestamps, Integer limit, String cursor,
+            UriInfo uriInfo);
 
     void createMetric(AsyncResponse asyncResponse, Metric<T> metric, Boolean overwrite, UriInfo uriInfo);
 
@@ -44,7 +45,7 @@ public interface IMetricsHandler<T> {
     void deleteMetric(AsyncResponse asyncResponse, String id);
 
     //Tags
-    void getTags(AsyncResponse asyncResponse, Tags tags);
+    void getTags(AsyncResponse asyncResponse, Tags tags, Integer limit, String cursor, UriInfo uriInfo);
 
     void getMetricTags(AsyncResponse asyncResponse, String id);
 
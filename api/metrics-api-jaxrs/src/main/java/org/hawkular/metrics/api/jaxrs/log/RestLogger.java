@@ -114,4 +114,24 @@ public interface RestLogger extends BasicLogger {
     @Message(id = 200018, value = "Invalid value [%s] for ingestion max retry delay. The ingestion configuration " +
             "setting will not be updated")
     void warnInvalidIngestMaxRetryDelay(String maxRetries);
+
+    @LogMessage(level = WARN)
+    @Message(id = 200019, value = "Invalid value [%s] for write-ahead log flush delay. The ingestion configuration " +
+            "setting will not be updated")
+    void warnInvalidWriteAheadLogFlushDelay(String flushDelay);
+
+    @LogMessage(level = WARN)
+    @Message(id = 200020, value = "Invalid value [%s] for write-ahead log max buffered points. The ingestion " +
+            "configuration setting will not be updated")
+    void warnInvalidWriteAheadLogMaxPoints(String maxPoints);
+
+    @LogMessage(level = WARN)
+    @Message(id = 200021, value = "Invalid value [%2$s] for ingestion setting [%1$s]. The ingestion configuration " +
+            "setting will not be updated")
+    void warnInvalidIngestionSetting(String setting, String value);
+
+    @LogMessage(level = WARN)
+    @Message(id = 200022, value = "Invalid value [%2$s] for query setting [%1$s]. The query configuration setting " +
+            "will not be updated")
+    void warnInvalidQuerySetting(String setting, String value);
 }
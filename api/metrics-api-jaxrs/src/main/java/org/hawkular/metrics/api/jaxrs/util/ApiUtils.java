@@ -19,11 +19,14 @@ package org.hawkular.metrics.api.jaxrs.util;
 import java.util.Collection;
 import java.util.Map;
 
+import javax.ws.rs.core.Link;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 
 import org.hawkular.metrics.api.jaxrs.log.RestLogger;
 import org.hawkular.metrics.api.jaxrs.log.RestLogging;
+import org.hawkular.metrics.core.service.Page;
 import org.hawkular.metrics.model.ApiError;
 import org.hawkular.metrics.model.exception.RuntimeApiError;
 
@@ -35,6 +38,8 @@ import com.google.common.base.Throwables;
 public class ApiUtils {
     private static final RestLogger log = RestLogging.getRestLogger(ApiUtils.class);
 
+    public static final int MAX_PAGE_SIZE = 10000;
+
     public static Response collectionToResponse(Collection<?> collection) {
         return collection.isEmpty() ? noContent() : Response.ok(collection).type(MediaType.APPLICATION_JSON).build();
     }
@@ -43,6 +48,40 @@ public class ApiUtils {
         return map.isEmpty() ? noContent() : Response.ok(map).type(MediaType.APPLICATION_JSON).build();
     }
 
+    /**
+     * The link to the next page is the request URI with the cursor query parameter replaced.
+     *
+     * @param entity Response entity built from the page items
+     */
+    public static Response pageToResponse(Page<?> page, Object entity, UriInfo uriInfo) {
+        if (page.getNext() == null) {
+            return page.getItems().isEmpty() ? noContent()
+                    : Response.ok(entity).type(MediaType.APPLICATION_JSON).build();
+        }
+        Link next = Link.fromUriBuilder(uriInfo.getRequestUriBuilder().replaceQueryParam("cursor", page.getNext()))
+                .rel("next")
+                .build();
+        return Response.ok(entity).type(MediaType.APPLICATION_JSON).links(next).build();
+    }
+
+    public static Response pageToResponse(Page<?> page, UriInfo uriInfo) {
+        return pageToResponse(page, page.getItems(), uriInfo);
+    }
+
+    /**
+     * @return Bad request if the page size is out of range or the cursor is given without it, null if the paging
+     * parameters are valid or paging is not used
+     */
+    public static Response checkPaging(Integer limit, String cursor) {
+        if (limit == null) {
+            return cursor == null ? null : badRequest(new ApiError("The cursor parameter requires limit"));
+        }
+        if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+            return badRequest(new ApiError("Page size must be between 1 and " + MAX_PAGE_SIZE));
+        }
+        return null;
+    }
+
     public static Response error(Throwable t) {
         if(t instanceof RuntimeApiError) {
             return badRequest(t);
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.api.jaxrs.handler.observer;
+
+import static java.util.Collections.emptyMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.hawkular.metrics.model.MetricType;
+import org.hawkular.metrics.model.NamedDataPoint;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import rx.Observable;
+import rx.subjects.PublishSubject;
+
+/**
+ * Tests the responses of the streamed multi-metric raw data queries
+ */
+public class NamedDataPointObserverTest {
+
+    private ObjectMapper mapper;
+    private AsyncResponse response;
+    private NamedDataPointObserver<Double> observer;
+
+    @Before
+    public void setUp() {
+        mapper = new ObjectMapper();
+        response = mock(AsyncResponse.class);
+        observer = new NamedDataPointObserver<>(response, mapper, MetricType.GAUGE);
+    }
+
+    @Test
+    public void emptyResultIsNoContent() {
+        Observable.<NamedDataPoint<Double>> empty().subscribe(observer);
+
+        assertEquals(204, getResponse().getStatus());
+    }
+
+    @Test
+    public void errorBeforeFirstDataPointIsServerError() {
+        Observable.<NamedDataPoint<Double>> error(new RuntimeException("Fetching failed")).subscribe(observer);
+
+        assertEquals(500, getResponse().getStatus());
+    }
+
+    @Test
+    public void streamDataPointsGroupedByMetric() throws Exception {
+        Observable.just(dataPoint("G1", 2, 2.2), dataPoint("G1", 1, 1.1), dataPoint("G2", 1, 3.3))
+                .subscribe(observer);
+
+        Response resumed = getResponse();
+        assertEquals(200, resumed.getStatus());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) resumed.getEntity()).write(output);
+
+        List<Map<String, Object>> metrics = mapper.readValue(output.toByteArray(),
+                new TypeReference<List<Map<String, Object>>>() {});
+        assertEquals(2, metrics.size());
+        assertEquals("G1", metrics.get(0).get("id"));
+        assertEquals(2, ((List<?>) metrics.get(0).get("data")).size());
+        assertEquals("G2", metrics.get(1).get("id"));
+        assertEquals(1, ((List<?>) metrics.get(1).get("data")).size());
+    }
+
+    @Test
+    public void errorAfterFirstDataPointAbortsResponse() throws Exception {
+        PublishSubject<NamedDataPoint<Double>> dataPoints = PublishSubject.create();
+        dataPoints.subscribe(observer);
+        dataPoints.onNext(dataPoint("G1", 1, 1.1));
+        dataPoints.onError(new RuntimeException("Fetching failed"));
+
+        Response resumed = getResponse();
+        assertEquals(200, resumed.getStatus());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            ((StreamingOutput) resumed.getEntity()).write(output);
+            fail("Expected the response to be aborted");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse("Expected the aborted document to be left open", output.toString("UTF-8").endsWith("]"));
+    }
+
+    @Test
+    public void clientDisconnectUnsubscribesFromFetch() throws Exception {
+        PublishSubject<NamedDataPoint<Double>> dataPoints = PublishSubject.create();
+        dataPoints.subscribe(observer);
+        dataPoints.onNext(dataPoint("G1", 1, 1.1));
+
+        Response resumed = getResponse();
+        OutputStream closed = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Connection reset by peer");
+            }
+        };
+        try {
+            ((StreamingOutput) resumed.getEntity()).write(closed);
+            fail("Expected writing to the closed connection to fail");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        assertTrue(observer.isUnsubscribed());
+        assertFalse(dataPoints.hasObservers());
+    }
+
+    private Response getResponse() {
+        ArgumentCaptor<Response> captor = ArgumentCaptor.forClass(Response.class);
+        // The streaming response is resumed from an IO thread
+        verify(response, timeout(5000)).resume(captor.capture());
+        return captor.getValue();
+    }
+
+    private static NamedDataPoint<Double> dataPoint(String name, long timestamp, double value) {
+        return new NamedDataPoint<>(name, timestamp, value, emptyMap());
+    }
+}
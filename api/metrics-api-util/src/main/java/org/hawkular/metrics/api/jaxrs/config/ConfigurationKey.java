@@ -57,6 +57,8 @@ public enum ConfigurationKey {
     PAGE_SIZE("hawkular.metrics.page-size", "1000", "PAGE_SIZE", false),
     COMPRESSION_QUERY_PAGE_SIZE("hawkular.metrics.compression.page-size", "1000", "COMPRESSION_PAGE_SIZE", false),
     COMPRESSION_JOB_ENABLED("hawkular.metrics.jobs.compression.enabled", null, "COMPRESSION_JOB_ENABLED", false),
+    COMPRESSION_INTEGER_CODECS("hawkular.metrics.compression.integer-codecs", null, "COMPRESSION_INTEGER_CODECS",
+            true),
     WAIT_FOR_SERVICE("hawkular.metrics.waitForService", null, null, true),
     DEFAULT_TTL("hawkular.metrics.default-ttl", "7", "DEFAULT_TTL", false),
     JMX_REPORTING_ENABLED("hawkular.metrics.jmx-reporting-enabled", null, "JMX_REPORTING_ENABLED", true),
@@ -84,6 +86,23 @@ public enum ConfigurationKey {
 
     INGEST_MAX_RETRIES("hawkular.metrics.ingestion.retry.max-retries", null, "INGEST_MAX_RETRIES", false),
     INGEST_MAX_RETRY_DELAY("hawkular.metrics.ingestion.retry.max-delay", null, "INGEST_MAX_RETRY_DELAY", false),
+    INGEST_WRITE_AHEAD_LOG("hawkular.metrics.ingestion.write-ahead-log", null, "INGEST_WRITE_AHEAD_LOG", true),
+    INGEST_WRITE_AHEAD_LOG_FLUSH_DELAY("hawkular.metrics.ingestion.write-ahead-log.flush-delay", null,
+            "INGEST_WRITE_AHEAD_LOG_FLUSH_DELAY", false),
+    INGEST_WRITE_AHEAD_LOG_MAX_POINTS("hawkular.metrics.ingestion.write-ahead-log.max-points", null,
+            "INGEST_WRITE_AHEAD_LOG_MAX_POINTS", false),
+    INGEST_BATCH_MAX_IN_FLIGHT("hawkular.metrics.ingestion.batch.max-in-flight", null,
+            "INGEST_BATCH_MAX_IN_FLIGHT", false),
+    INGEST_BATCH_FLUSH_DELAY("hawkular.metrics.ingestion.batch.flush-delay", null, "INGEST_BATCH_FLUSH_DELAY",
+            false),
+    INGEST_BATCH_LATENCY_TARGET("hawkular.metrics.ingestion.batch.latency-target", null,
+            "INGEST_BATCH_LATENCY_TARGET", false),
+    QUERY_FETCH_CONCURRENCY("hawkular.metrics.query.fetch-concurrency", null, "QUERY_FETCH_CONCURRENCY", false),
+    TAG_INDEX_REFRESH_INTERVAL("hawkular.metrics.tags.index-refresh", null, "TAG_INDEX_REFRESH_INTERVAL", false),
+    TAG_STATISTICS_REFRESH_INTERVAL("hawkular.metrics.tags.statistics-refresh", null,
+            "TAG_STATISTICS_REFRESH_INTERVAL", false),
+    DEFINITIONS_CACHE_EXPIRATION("hawkular.metrics.definitions.cache-expiration", null,
+            "DEFINITIONS_CACHE_EXPIRATION", false),
 
     //Alerting
     METRICS_PUBLISH_BUFFER_SIZE("hawkular.metrics.publish-buffer-size", "100", "METRICS_PUBLISH_BUFFER_SIZE", false),
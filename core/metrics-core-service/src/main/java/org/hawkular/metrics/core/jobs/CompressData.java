@@ -16,16 +16,10 @@
  */
 package org.hawkular.metrics.core.jobs;
 
-import static org.hawkular.metrics.model.MetricType.AVAILABILITY;
-import static org.hawkular.metrics.model.MetricType.COUNTER;
-import static org.hawkular.metrics.model.MetricType.GAUGE;
-
 import java.util.concurrent.TimeUnit;
 
 import org.hawkular.metrics.core.service.MetricsService;
 import org.hawkular.metrics.datetime.DateTimeService;
-import org.hawkular.metrics.model.Metric;
-import org.hawkular.metrics.model.MetricId;
 import org.hawkular.metrics.scheduler.api.JobDetails;
 import org.hawkular.metrics.scheduler.api.RepeatingTrigger;
 import org.hawkular.metrics.scheduler.api.Trigger;
@@ -39,11 +33,13 @@ import org.joda.time.Duration;
 import com.google.common.base.Stopwatch;
 
 import rx.Completable;
-import rx.Observable;
 import rx.functions.Func1;
-import rx.subjects.PublishSubject;
 
 /**
+ * Compresses a block with parallel token range workers, see {@link MetricsService#compressBlock(long, int, int)}.
+ * The amount of concurrently processed token ranges is configured with
+ * {@link TempDataCompressor#CONFIG_MAX_READ_CONCURRENCY}.
+ *
  * @author Michael Burman
  */
 public class CompressData implements Func1<JobDetails, Completable> {
@@ -63,6 +59,7 @@ public class CompressData implements Func1<JobDetails, Completable> {
     private int pageSize;
     private boolean enabled;
     private Duration blockSize;
+    private int maxReadConcurrency = TempDataCompressor.DEFAULT_READ_CONCURRENCY;
 
     public CompressData(MetricsService service, ConfigurationService configurationService) {
         metricsService = service;
@@ -80,6 +77,10 @@ public class CompressData implements Func1<JobDetails, Completable> {
             blockSize = DEFAULT_BLOCK_SIZE;
         }
 
+        if (configuration.get(TempDataCompressor.CONFIG_MAX_READ_CONCURRENCY) != null) {
+            maxReadConcurrency = Integer.parseInt(configuration.get(TempDataCompressor.CONFIG_MAX_READ_CONCURRENCY));
+        }
+
         String enabledConfig = configuration.get("enabled", "true");
         enabled = Boolean.parseBoolean(enabledConfig);
         logger.debugf("Job enabled? %b", enabled);
@@ -113,37 +114,23 @@ public class CompressData implements Func1<JobDetails, Completable> {
             }
         }
 
+        // The data is compressed from the temporary tables, which always hold blocks of the default size
+        if (!DEFAULT_BLOCK_SIZE.equals(runtimeBlockSize)) {
+            logger.warnf("Ignoring block size %s, compressing the %s block of the temporary tables", runtimeBlockSize,
+                    DEFAULT_BLOCK_SIZE);
+        }
+
         // Rewind to previous timeslice
-        DateTime timeSliceStart = DateTimeService.getTimeSlice(timeSliceInclusive, runtimeBlockSize);
+        DateTime timeSliceStart = DateTimeService.getTimeSlice(timeSliceInclusive, DEFAULT_BLOCK_SIZE);
         long startOfSlice = timeSliceStart.getMillis();
-        long endOfSlice = timeSliceStart.plus(runtimeBlockSize).getMillis() - 1;
 
         Stopwatch stopwatch = Stopwatch.createStarted();
-        logger.info("Starting compression of timestamps (UTC) between " + startOfSlice + " - " + endOfSlice);
-
-        Observable<? extends MetricId<?>> metricIds = metricsService.findAllMetrics()
-                .map(Metric::getMetricId)
-                .filter(m -> (m.getType() == GAUGE || m.getType() == COUNTER || m.getType() == AVAILABILITY));
-
-        PublishSubject<Metric<?>> subject = PublishSubject.create();
-        subject.subscribe(metric -> {
-            try {
-                this.metricsService.updateMetricExpiration(metric.getMetricId());
-            } catch (Exception e) {
-                logger.error("Could not update the metric expiration index for metric " + metric.getId()
-                        + " of tenant " + metric.getTenantId());
-            }
-        });
-
-        // Fetch all partition keys and compress the previous timeSlice
-        // TODO Optimization - new worker per token - use parallelism in Cassandra (with configured parallelism)
-        return metricsService.compressBlock(metricIds, startOfSlice, endOfSlice, pageSize, subject)
-                .doOnError(t -> {
-                    subject.onCompleted();
-                    logger.warn("Failed to compress data", t);
-                })
+        logger.infof("Starting compression of the block starting at %s with %d concurrent token ranges",
+                timeSliceStart, maxReadConcurrency);
+
+        return metricsService.compressBlock(startOfSlice, pageSize, maxReadConcurrency)
+                .doOnError(t -> logger.warn("Failed to compress data", t))
                 .doOnCompleted(() -> {
-                    subject.onCompleted();
                     stopwatch.stop();
                     logger.info("Finished compressing data in " + stopwatch.elapsed(TimeUnit.MILLISECONDS) +
                             " ms");
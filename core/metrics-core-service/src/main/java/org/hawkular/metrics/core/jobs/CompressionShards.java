@@ -0,0 +1,268 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.jobs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.hawkular.metrics.core.dropwizard.HawkularMetricRegistry;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.core.service.compress.CompressionPhase;
+import org.hawkular.metrics.scheduler.impl.LockManager;
+import org.hawkular.metrics.sysconfig.Configuration;
+import org.hawkular.metrics.sysconfig.ConfigurationService;
+import org.hawkular.rx.cassandra.driver.RxSession;
+import org.jboss.logging.Logger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.datastax.driver.core.TokenRange;
+
+import rx.Completable;
+import rx.Observable;
+import rx.Subscription;
+
+/**
+ * Shares the compression of a block between all the nodes. The sorted token ranges of the ring are split to shards,
+ * a shard is claimed with a lock from {@link LockManager} and its ranges are compressed by the node holding the lock.
+ * The node executing the compression job publishes the block's phase in sys_config, every node polls for the
+ * published phases and claims the shards that have uncompressed ranges, one shard at a time.
+ *
+ * The shards are rebalanced by claiming: a node that joins starts claiming the remaining shards on its next poll and
+ * the locks of a node that leaves expire, after which its unfinished ranges are claimed by the other nodes. The node
+ * that published the phase compresses shards as well and finishes the phase once all of the ranges are completed.
+ */
+public class CompressionShards {
+
+    private static Logger logger = Logger.getLogger(CompressionShards.class);
+
+    /**
+     * Published phases, the names are the blocks' start times and the values the phases
+     */
+    public static final String CONFIG_ID = JobsServiceImpl.CONFIG_PREFIX + "COMPRESSION_SHARDS";
+    public static final String CONFIG_SHARDS = "compression.shards";
+
+    public static final int DEFAULT_SHARDS = 32;
+
+    private static final String LOCK_PREFIX = "org.hawkular.metrics.compression.";
+    private static final int LOCK_TIMEOUT = 60;
+    private static final long POLL_INTERVAL = 30;
+
+    private final MetricsService metricsService;
+    private final ConfigurationService configurationService;
+    private final LockManager lockManager;
+
+    // Lock owner, unique per node
+    private final String owner = UUID.randomUUID().toString();
+
+    private final int lockTimeout;
+    private final long pollInterval;
+    private final int shards;
+    private final int pageSize;
+    private final int maxReadConcurrency;
+
+    private final Map<Integer, Meter> throughputs = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> lags = new ConcurrentHashMap<>();
+
+    private Subscription polling;
+
+    public CompressionShards(RxSession session, MetricsService metricsService,
+            ConfigurationService configurationService) {
+        this(session, metricsService, configurationService, LOCK_TIMEOUT, POLL_INTERVAL);
+    }
+
+    /**
+     * @param lockTimeout  time in seconds after which the lock of a shard expires unless it's renewed
+     * @param pollInterval time in seconds between the polls for published phases
+     */
+    CompressionShards(RxSession session, MetricsService metricsService, ConfigurationService configurationService,
+            int lockTimeout, long pollInterval) {
+        this.metricsService = metricsService;
+        this.lockTimeout = lockTimeout;
+        this.pollInterval = pollInterval;
+        this.configurationService = configurationService;
+        this.lockManager = new LockManager(session);
+
+        Configuration configuration = configurationService.load(TempDataCompressor.CONFIG_ID).toSingle().toBlocking()
+                .value();
+        shards = Integer.parseInt(configuration.get(CONFIG_SHARDS, Integer.toString(DEFAULT_SHARDS)));
+        pageSize = Integer.parseInt(configuration.get(TempDataCompressor.CONFIG_PAGE_SIZE,
+                Integer.toString(TempDataCompressor.DEFAULT_PAGE_SIZE)));
+        maxReadConcurrency = Integer.parseInt(configuration.get(TempDataCompressor.CONFIG_MAX_READ_CONCURRENCY,
+                Integer.toString(TempDataCompressor.DEFAULT_READ_CONCURRENCY)));
+
+        for (int shard = 0; shard < shards; shard++) {
+            throughputs.put(shard, new Meter());
+            lags.put(shard, new AtomicLong());
+        }
+    }
+
+    /**
+     * Exposes each shard's throughput as compressed metrics and lag as the time between the end of the block and the
+     * completion of the shard on this node.
+     */
+    public void initMetrics(HawkularMetricRegistry metricRegistry) {
+        for (int shard = 0; shard < shards; shard++) {
+            String throughput = "CompressionShard" + shard + "Throughput";
+            String lag = "CompressionShard" + shard + "Lag";
+            metricRegistry.remove(throughput);
+            metricRegistry.remove(lag);
+            throughputs.put(shard, metricRegistry.register(throughput, "Core", "Compression", throughputs.get(shard)));
+            metricRegistry.register(lag, "Core", "Compression", (Gauge<Long>) lags.get(shard)::get);
+        }
+    }
+
+    /**
+     * Starts polling for the published phases
+     */
+    public void start() {
+        polling = Observable.interval(pollInterval, TimeUnit.SECONDS)
+                .onBackpressureDrop()
+                .concatMap(i -> configurationService.load(CONFIG_ID)
+                        .flatMap(configuration -> Observable.from(configuration.getProperties().entrySet()))
+                        .concatMap(entry -> claimShards(Long.parseLong(entry.getKey()),
+                                CompressionPhase.valueOf(entry.getValue())))
+                        .onErrorResumeNext(t -> {
+                            logger.warn("Failed to compress the published shards", t);
+                            return Observable.empty();
+                        }))
+                .subscribe();
+    }
+
+    public void shutdown() {
+        if (polling != null) {
+            polling.unsubscribe();
+        }
+        lockManager.shutdown();
+    }
+
+    /**
+     * Compresses the block with the other nodes, completes when all of the block's phases are done. The published
+     * phase is replaced or deleted before the previous phase is finished, the other nodes check it before
+     * compressing a shard.
+     */
+    public Completable compress(long startTimeSlice) {
+        return compress(startTimeSlice, CompressionPhase.TEMP)
+                .andThen(Completable.defer(() -> metricsService.finishCompression(startTimeSlice,
+                        CompressionPhase.TEMP)))
+                .andThen(compress(startTimeSlice, CompressionPhase.WAL))
+                .andThen(Completable.fromObservable(Observable.defer(() -> configurationService.delete(CONFIG_ID,
+                        Long.toString(startTimeSlice)))))
+                .andThen(Completable.defer(() -> metricsService.finishCompression(startTimeSlice,
+                        CompressionPhase.WAL)));
+    }
+
+    private Completable compress(long startTimeSlice, CompressionPhase phase) {
+        return Completable.fromObservable(configurationService.save(CONFIG_ID, Long.toString(startTimeSlice),
+                phase.name()))
+                .andThen(Completable.fromObservable(Observable.defer(() -> claimShards(startTimeSlice, phase)
+                        .toCompletable()
+                        .andThen(Observable.defer(() -> isCompleted(startTimeSlice, phase))))
+                        // Other nodes are still compressing shards, check again after they've had time to progress
+                        .repeatWhen(completed -> completed.delay(pollInterval, TimeUnit.SECONDS))
+                        .takeFirst(completed -> completed)));
+    }
+
+    /**
+     * Compresses the shards of the phase that have uncompressed ranges and are not claimed by another node
+     */
+    Observable<Integer> claimShards(long startTimeSlice, CompressionPhase phase) {
+        List<List<TokenRange>> shardRanges = getShardRanges();
+        return metricsService.findCompressedRanges(startTimeSlice, phase)
+                .toList()
+                .flatMap(completed -> {
+                    // Nodes start from different shards to avoid contending for the same locks
+                    List<Integer> order = IntStream.range(0, shardRanges.size()).boxed().collect(Collectors.toList());
+                    Collections.shuffle(order);
+                    return Observable.from(order)
+                            .filter(shard -> shardRanges.get(shard).stream()
+                                    .anyMatch(range -> !completed.contains(range)));
+                })
+                .concatMap(shard -> lockManager.acquireLock(getLockName(startTimeSlice, phase, shard), owner,
+                        lockTimeout, true)
+                        .filter(lock -> lock.isLocked())
+                        // The lock is renewed while compressing, it has to be released on failures as well
+                        .concatMap(lock -> isPublished(startTimeSlice, phase)
+                                .concatMap(published -> published
+                                        ? compressShard(startTimeSlice, phase, shard, shardRanges.get(shard))
+                                        : Observable.<Integer>empty())
+                                .concatWith(releaseLock(lock.getName()))
+                                .onErrorResumeNext(t -> releaseLock(lock.getName())
+                                        .concatWith(Observable.error(t)))));
+    }
+
+    /**
+     * The shards might have been listed before the phase was finished and its completed ranges were forgotten, they
+     * are compressed only if the phase is still published once the lock is held
+     */
+    private Observable<Boolean> isPublished(long startTimeSlice, CompressionPhase phase) {
+        return configurationService.load(CONFIG_ID, Long.toString(startTimeSlice))
+                .map(phase.name()::equals)
+                .defaultIfEmpty(false);
+    }
+
+    private Observable<Integer> releaseLock(String name) {
+        return Observable.defer(() -> lockManager.releaseLock(name, owner))
+                .ignoreElements()
+                .map(released -> 0);
+    }
+
+    private Observable<Integer> compressShard(long startTimeSlice, CompressionPhase phase, int shard,
+            List<TokenRange> ranges) {
+        logger.debugf("Compressing %s shard %d of block %d", phase, shard, startTimeSlice);
+        return metricsService.compressRanges(startTimeSlice, phase, ranges, pageSize, maxReadConcurrency)
+                .doOnNext(throughputs.get(shard)::mark)
+                .doOnCompleted(() -> lags.get(shard).set(System.currentTimeMillis() - startTimeSlice
+                        - CompressData.DEFAULT_BLOCK_SIZE.getMillis()));
+    }
+
+    private Observable<Boolean> isCompleted(long startTimeSlice, CompressionPhase phase) {
+        Set<TokenRange> ranges = metricsService.getTokenRanges();
+        return metricsService.findCompressedRanges(startTimeSlice, phase)
+                .toList()
+                .map(completed -> completed.containsAll(ranges));
+    }
+
+    /**
+     * Every node splits the ring in the same way, the sorted token ranges are dealt to the shards in turn
+     */
+    List<List<TokenRange>> getShardRanges() {
+        List<TokenRange> ranges = new ArrayList<>(metricsService.getTokenRanges());
+        Collections.sort(ranges);
+        List<List<TokenRange>> shardRanges = new ArrayList<>();
+        for (int shard = 0; shard < Math.min(shards, ranges.size()); shard++) {
+            shardRanges.add(new ArrayList<>());
+        }
+        for (int i = 0; i < ranges.size(); i++) {
+            shardRanges.get(i % shardRanges.size()).add(ranges.get(i));
+        }
+        return shardRanges;
+    }
+
+    static String getLockName(long startTimeSlice, CompressionPhase phase, int shard) {
+        return LOCK_PREFIX + startTimeSlice + "." + phase + "." + shard;
+    }
+}
@@ -16,18 +16,34 @@
  */
 package org.hawkular.metrics.core.jobs;
 
+import static org.hawkular.metrics.core.service.DataAccessImpl.EXPIRATION_BUCKET_SHARDS;
+import static org.hawkular.metrics.core.service.DataAccessImpl.EXPIRATION_BUCKET_SIZE;
+import static org.hawkular.metrics.core.service.DataAccessImpl.getExpirationBucket;
+import static org.hawkular.metrics.core.service.DataAccessImpl.getExpirationShard;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.hawkular.metrics.core.service.MetricsService;
 import org.hawkular.metrics.datetime.DateTimeService;
 import org.hawkular.metrics.model.MetricId;
 import org.hawkular.metrics.model.MetricType;
 import org.hawkular.metrics.scheduler.api.JobDetails;
+import org.hawkular.metrics.scheduler.api.JobParameters;
 import org.hawkular.metrics.sysconfig.ConfigurationService;
 import org.hawkular.rx.cassandra.driver.RxSession;
 import org.jboss.logging.Logger;
 
+import com.datastax.driver.core.PagingState;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.PagingStateException;
 import com.google.common.base.Stopwatch;
 
 import rx.Completable;
@@ -35,6 +51,14 @@ import rx.Observable;
 import rx.functions.Func1;
 
 /**
+ * Deletes the metrics whose expiration time has passed. The candidates are read from the expiration buckets of the
+ * elapsed days, each bucket shard is range scanned page by page. The expiration times of a page's candidates and, when
+ * the compression job is disabled, the existence of their data are checked with one query per tenant and type. The
+ * position of the sweep is saved to the job parameters after each page, so a restarted job continues from there.
+ *
+ * Fully swept buckets are deleted and the last of them is stored as the sweep watermark. Without a watermark the
+ * whole expiration index is scanned once, which also adds the unexpired metrics of older versions to the buckets.
+ *
  * @author Stefan Negrea
  */
 public class DeleteExpiredMetrics implements Func1<JobDetails, Completable> {
@@ -43,28 +67,62 @@ public class DeleteExpiredMetrics implements Func1<JobDetails, Completable> {
 
     public static final String JOB_NAME = "DELETE_EXPIRED_METRICS";
 
+    public static final String CONFIG_ID = "org.hawkular.metrics.jobs." + JOB_NAME;
+    public static final String SWEPT_BUCKET = "sweptBucket";
+
+    public static final String BUCKET = "bucket";
+    public static final String SHARD = "shard";
+    public static final String PAGING_STATE = "pagingState";
+    public static final String MIN_EXPIRATION = "minExpiration";
+
+    private static final int PAGE_SIZE = 1000;
+    private static final int QUERY_BATCH_SIZE = 100;
+    private static final int DELETE_CONCURRENCY = 16;
+
     private MetricsService metricsService;
     private RxSession session;
     private ConfigurationService configurationService;
-    private PreparedStatement findEligibleTenants;
-    private PreparedStatement findEligibleMetrics;
-    private PreparedStatement findUnexpiredDataPoints;
+    private PreparedStatement findAllExpirations;
+    private PreparedStatement findBucketMetrics;
+    private PreparedStatement findExpirations;
+    private PreparedStatement findDataPartitions;
+    private PreparedStatement insertBucketMetric;
+    private PreparedStatement deleteBucket;
     private long metricExpirationDelay;
+    private int pageSize;
 
     public DeleteExpiredMetrics(MetricsService metricsService, RxSession session,
             ConfigurationService configurationService, int metricExpirationDelayInDays) {
+        this(metricsService, session, configurationService, metricExpirationDelayInDays, PAGE_SIZE);
+    }
+
+    DeleteExpiredMetrics(MetricsService metricsService, RxSession session, ConfigurationService configurationService,
+            int metricExpirationDelayInDays, int pageSize) {
         this.metricsService = metricsService;
         this.session = session;
         this.configurationService = configurationService;
+        this.pageSize = pageSize;
 
-        findEligibleTenants = session.getSession()
-                .prepare("SELECT DISTINCT tenant_id, type FROM metrics_expiration_idx");
-        findEligibleMetrics = session.getSession()
+        findAllExpirations = session.getSession()
+                .prepare("SELECT tenant_id, type, metric, time FROM metrics_expiration_idx");
+        findBucketMetrics = session.getSession()
+                .prepare(
+                        "SELECT tenant_id, type, metric FROM metrics_expiration_buckets WHERE bucket = ? " +
+                        "AND shard = ?");
+        findExpirations = session.getSession()
+                .prepare(
+                        "SELECT metric, time FROM metrics_expiration_idx WHERE tenant_id = ? AND type = ? " +
+                        "AND metric IN ?");
+        findDataPartitions = session.getSession()
                 .prepare(
-                        "SELECT tenant_id, type, metric, time FROM metrics_expiration_idx WHERE tenant_id = ? AND type = ?");
-        findUnexpiredDataPoints = session.getSession()
+                        "SELECT DISTINCT tenant_id, type, metric, dpart FROM data WHERE tenant_id = ? AND type = ? " +
+                        "AND metric IN ? AND dpart = 0");
+        insertBucketMetric = session.getSession()
                 .prepare(
-                        "SELECT * FROM data WHERE tenant_id = ? AND type = ? AND metric = ? AND dpart = 0 LIMIT 1;");
+                        "INSERT INTO metrics_expiration_buckets (bucket, shard, tenant_id, type, metric) " +
+                        "VALUES (?, ?, ?, ?, ?)");
+        deleteBucket = session.getSession()
+                .prepare("DELETE FROM metrics_expiration_buckets WHERE bucket = ? AND shard = ?");
 
         this.metricExpirationDelay = metricExpirationDelayInDays * 24 * 3600 * 1000L;
     }
@@ -73,8 +131,9 @@ public class DeleteExpiredMetrics implements Func1<JobDetails, Completable> {
     public Completable call(JobDetails jobDetails) {
         logger.info("Starting delete expired metrics job");
         Stopwatch stopwatch = Stopwatch.createStarted();
+        JobParameters parameters = jobDetails.getParameters();
 
-        String unparsedConfigExpirationTime = jobDetails.getParameters().get("expirationTimestamp");
+        String unparsedConfigExpirationTime = parameters.get("expirationTimestamp");
         Long configuredExpirationTime = null;
         if (unparsedConfigExpirationTime != null && !unparsedConfigExpirationTime.isEmpty()) {
             try {
@@ -87,13 +146,6 @@ public class DeleteExpiredMetrics implements Func1<JobDetails, Completable> {
         long expirationTime = (configuredExpirationTime != null ? configuredExpirationTime
                 : DateTimeService.now.get().getMillis()) - metricExpirationDelay;
 
-        Observable<MetricId<?>> expirationIndexResults = session.execute(findEligibleTenants.bind())
-                .flatMap(Observable::from)
-                .flatMap(row -> session.execute(findEligibleMetrics.bind(row.getString(0), row.getByte(1))))
-                .flatMap(Observable::from)
-                .filter(row -> row.getTimestamp(3).getTime() < expirationTime)
-                .map(row -> new MetricId<>(row.getString(0), MetricType.fromCode(row.getByte(1)), row.getString(2)));
-
         //If the compression job is disabled then check the data point table for data
         String compressJobEnabledConfig = configurationService.load(CompressData.CONFIG_ID, "enabled").toBlocking()
                 .firstOrDefault(null);
@@ -106,19 +158,30 @@ public class DeleteExpiredMetrics implements Func1<JobDetails, Completable> {
                 //do nothing, assume the compression job is disabled
             }
         }
-        if (!compressJobEnabled) {
-            expirationIndexResults = expirationIndexResults
-                    .flatMap(r -> session
-                            .execute(findUnexpiredDataPoints.bind(r.getTenantId(), r.getType().getCode(), r.getName()))
-                            .flatMap(Observable::from)
-                            .isEmpty()
-                            .filter(empty -> empty)
-                            .map(empty -> r));
+
+        Sweep sweep = new Sweep(parameters, expirationTime, !compressJobEnabled);
+        String sweptBucket = configurationService.load(CONFIG_ID, SWEPT_BUCKET).toBlocking().firstOrDefault(null);
+
+        Observable<Void> deleted;
+        if (sweptBucket == null) {
+            deleted = sweep.scanIndex();
+        } else {
+            long bucket = parameters.containsKey(BUCKET) ? Long.parseLong(parameters.get(BUCKET))
+                    : Long.parseLong(sweptBucket) + EXPIRATION_BUCKET_SIZE;
+            int shard = parameters.containsKey(SHARD) ? Integer.parseInt(parameters.get(SHARD)) : 0;
+            deleted = sweep.scanBuckets(bucket, shard);
         }
 
-        return expirationIndexResults
-                .concatMap(metricId -> metricsService.deleteMetric(metricId))
+        return deleted
+                .concatWith(Observable.defer(() -> {
+                    parameters.remove(BUCKET);
+                    parameters.remove(SHARD);
+                    parameters.remove(PAGING_STATE);
+                    parameters.remove(MIN_EXPIRATION);
+                    return parameters.save().toObservable();
+                }))
                 .onErrorResumeNext(e -> {
+                    // The saved position is kept, the next execution continues from it
                     logger.error("Failed to delete metric data", e);
                     return Observable.empty();
                 })
@@ -129,9 +192,206 @@ public class DeleteExpiredMetrics implements Func1<JobDetails, Completable> {
                 })
                 .doOnCompleted(() -> {
                     stopwatch.stop();
-                    logger.info("The job for deleting expired metrics finished. Total run time "
-                            + stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+                    logger.info("The job for deleting expired metrics finished, " + sweep.deleted.get()
+                            + " metrics deleted. Total run time " + stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
                 })
                 .toCompletable();
     }
+
+    /**
+     * State of a single execution of the job
+     */
+    private class Sweep {
+        private final JobParameters parameters;
+        private final long expirationTime;
+        private final boolean checkData;
+        private final AtomicInteger deleted = new AtomicInteger();
+
+        Sweep(JobParameters parameters, long expirationTime, boolean checkData) {
+            this.parameters = parameters;
+            this.expirationTime = expirationTime;
+            this.checkData = checkData;
+        }
+
+        /**
+         * Scans the whole expiration index, deletes the expired metrics and adds the rest to their buckets. The
+         * watermark is set to the last bucket that has fully expired or, if it's later, to the bucket preceding all
+         * the added metrics and the metrics written from now on.
+         */
+        Observable<Void> scanIndex() {
+            logger.info("No expiration buckets have been swept, scanning the whole metric expiration index");
+            long now = DateTimeService.now.get().getMillis();
+            if (!parameters.containsKey(MIN_EXPIRATION)) {
+                parameters.put(MIN_EXPIRATION, Long.toString(now));
+            }
+            return scan(findAllExpirations.bind(), getPagingState(), rows -> {
+                List<MetricId<?>> expired = new ArrayList<>();
+                List<MetricId<?>> unexpired = new ArrayList<>();
+                List<Long> expirations = new ArrayList<>();
+                for (Row row : rows) {
+                    MetricId<?> id = toMetricId(row);
+                    long expiration = row.getTimestamp(3).getTime();
+                    if (expiration < expirationTime) {
+                        expired.add(id);
+                    } else {
+                        unexpired.add(id);
+                        expirations.add(expiration);
+                    }
+                }
+                expirations.stream()
+                        .filter(expiration -> expiration < Long.parseLong(parameters.get(MIN_EXPIRATION)))
+                        .min(Long::compare)
+                        .ifPresent(expiration -> parameters.put(MIN_EXPIRATION, Long.toString(expiration)));
+                return Observable.range(0, unexpired.size())
+                        .flatMap(i -> session.execute(insertBucketMetric.bind(
+                                new Date(getExpirationBucket(expirations.get(i))),
+                                getExpirationShard(unexpired.get(i)), unexpired.get(i).getTenantId(),
+                                unexpired.get(i).getType().getCode(), unexpired.get(i).getName())),
+                                DELETE_CONCURRENCY)
+                        .map(r -> (Void) null)
+                        .concatWith(delete(Observable.from(expired)));
+            }).concatWith(Observable.defer(() -> {
+                long lastBucket = Math.max(getExpirationBucket(expirationTime),
+                        getExpirationBucket(Long.parseLong(parameters.get(MIN_EXPIRATION)))) - EXPIRATION_BUCKET_SIZE;
+                return configurationService.save(CONFIG_ID, SWEPT_BUCKET, Long.toString(lastBucket));
+            }));
+        }
+
+        /**
+         * Sweeps the buckets starting from the given bucket and shard until the bucket of the expiration time. A
+         * bucket is deleted and recorded as swept only when all of it has expired.
+         */
+        Observable<Void> scanBuckets(long bucket, int shard) {
+            if (bucket > expirationTime) {
+                return Observable.empty();
+            }
+            boolean expired = bucket + EXPIRATION_BUCKET_SIZE <= expirationTime;
+            PagingState pagingState = getPagingState();
+            Observable<Void> scanned = scan(findBucketMetrics.bind(new Date(bucket), shard), pagingState,
+                    rows -> delete(findExpired(rows.stream().map(this::toMetricId).collect(Collectors.toList()))));
+            if (expired) {
+                scanned = scanned.concatWith(Observable.defer(() -> session.execute(
+                        deleteBucket.bind(new Date(bucket), shard)).map(r -> null)));
+            }
+
+            int nextShard = (shard + 1) % EXPIRATION_BUCKET_SHARDS;
+            long nextBucket = nextShard == 0 ? bucket + EXPIRATION_BUCKET_SIZE : bucket;
+            if (nextShard == 0 && expired) {
+                scanned = scanned.concatWith(Observable.defer(() -> configurationService.save(CONFIG_ID,
+                        SWEPT_BUCKET, Long.toString(bucket))));
+            }
+            return scanned
+                    .concatWith(Observable.defer(() -> {
+                        parameters.put(BUCKET, Long.toString(nextBucket));
+                        parameters.put(SHARD, Integer.toString(nextShard));
+                        return checkpoint(null);
+                    }))
+                    .concatWith(Observable.defer(() -> scanBuckets(nextBucket, nextShard)));
+        }
+
+        /**
+         * Reads the statement page by page starting from the paging state, the position is saved after each page
+         * has been handled.
+         */
+        private Observable<Void> scan(Statement statement, PagingState pagingState,
+                Func1<List<Row>, Observable<Void>> pageHandler) {
+            statement.setFetchSize(pageSize).setPagingState(pagingState);
+            return session.execute(statement)
+                    .onErrorResumeNext(t -> {
+                        if (t instanceof PagingStateException) {
+                            // The candidates are checked again, start from the beginning
+                            logger.warn("Ignoring invalid paging state of the expired metrics sweep");
+                            return session.execute(statement.setPagingState(null));
+                        }
+                        return Observable.error(t);
+                    })
+                    .concatMap(resultSet -> {
+                        PagingState next = resultSet.getExecutionInfo().getPagingState();
+                        Observable<Void> page = pageHandler.call(fetchPage(resultSet))
+                                .concatWith(Observable.defer(() -> checkpoint(next)));
+                        if (next == null) {
+                            return page;
+                        }
+                        return page.concatWith(Observable.defer(() -> scan(statement, next, pageHandler)));
+                    });
+        }
+
+        /**
+         * @return The candidates whose expiration time has passed, queried with one statement per tenant and type
+         */
+        private Observable<MetricId<?>> findExpired(List<MetricId<?>> candidates) {
+            return groupByPartition(candidates)
+                    .flatMap(ids -> {
+                        MetricId<?> first = ids.get(0);
+                        return session.execute(findExpirations.bind(first.getTenantId(), first.getType().getCode(),
+                                getNames(ids)))
+                                .flatMap(Observable::from)
+                                .filter(row -> row.getTimestamp(1).getTime() < expirationTime)
+                                .map(row -> new MetricId<>(first.getTenantId(), first.getType(), row.getString(0)));
+                    }, DELETE_CONCURRENCY);
+        }
+
+        /**
+         * @return The metrics without data points in the data table, queried with one statement per tenant and type
+         */
+        private Observable<MetricId<?>> findWithoutData(Observable<MetricId<?>> candidates) {
+            return candidates.toList()
+                    .flatMap(this::groupByPartition)
+                    .flatMap(ids -> {
+                        MetricId<?> first = ids.get(0);
+                        return session.execute(findDataPartitions.bind(first.getTenantId(), first.getType().getCode(),
+                                getNames(ids)))
+                                .flatMap(Observable::from)
+                                .map(row -> row.getString(2))
+                                .toList()
+                                .flatMap(withData -> Observable.from(ids)
+                                        .filter(id -> !withData.contains(id.getName())));
+                    }, DELETE_CONCURRENCY);
+        }
+
+        private Observable<Void> delete(Observable<MetricId<?>> expired) {
+            if (checkData) {
+                expired = findWithoutData(expired);
+            }
+            return expired
+                    .flatMap(id -> metricsService.deleteMetric(id).doOnCompleted(deleted::incrementAndGet),
+                            DELETE_CONCURRENCY);
+        }
+
+        private Observable<List<MetricId<?>>> groupByPartition(List<MetricId<?>> ids) {
+            return Observable.from(ids)
+                    .groupBy(MetricId::getTenantId)
+                    .flatMap(tenant -> tenant.groupBy(MetricId::getType))
+                    .flatMap(type -> type.buffer(QUERY_BATCH_SIZE));
+        }
+
+        private Observable<Void> checkpoint(PagingState pagingState) {
+            if (pagingState == null) {
+                parameters.remove(PAGING_STATE);
+            } else {
+                parameters.put(PAGING_STATE, pagingState.toString());
+            }
+            return parameters.save().toObservable();
+        }
+
+        private PagingState getPagingState() {
+            return parameters.containsKey(PAGING_STATE) ? PagingState.fromString(parameters.get(PAGING_STATE)) : null;
+        }
+
+        private List<Row> fetchPage(ResultSet resultSet) {
+            List<Row> rows = new ArrayList<>();
+            for (int available = resultSet.getAvailableWithoutFetching(); available > 0; available--) {
+                rows.add(resultSet.one());
+            }
+            return rows;
+        }
+
+        private List<String> getNames(List<MetricId<?>> ids) {
+            return ids.stream().map(MetricId::getName).collect(Collectors.toList());
+        }
+
+        private MetricId<?> toMetricId(Row row) {
+            return new MetricId<>(row.getString(0), MetricType.fromCode(row.getByte(1)), row.getString(2));
+        }
+    }
 }
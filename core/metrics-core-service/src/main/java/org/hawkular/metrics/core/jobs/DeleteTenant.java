@@ -16,19 +16,43 @@
  */
 package org.hawkular.metrics.core.jobs;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.model.MetricId;
 import org.hawkular.metrics.model.MetricType;
 import org.hawkular.metrics.scheduler.api.JobDetails;
+import org.hawkular.metrics.scheduler.api.JobParameters;
 import org.hawkular.rx.cassandra.driver.RxSession;
 import org.jboss.logging.Logger;
 
+import com.datastax.driver.core.PagingState;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.PagingStateException;
 
 import rx.Completable;
 import rx.Observable;
 import rx.functions.Func1;
 
 /**
+ * Deletes a tenant by reading only the tenant's own partitions. The metrics are listed page by page from the
+ * tenant's metrics_idx and metrics_expiration_idx partitions, the data partitions of each page and the
+ * metrics_tags_idx partitions of their tag names are deleted with bounded concurrency, and the position of the
+ * scan is saved to the job parameters after each page. A restarted job continues from the last saved page, the
+ * index partitions that are scanned are deleted as a whole only after all the metrics are done.
+ *
+ * String metrics that have data but were never created are not in either index. Finding them would need a scan of
+ * the whole data table, their data is left to expire with its TTL instead.
+ *
  * @author jsanda
  */
 public class DeleteTenant implements Func1<JobDetails, Completable> {
@@ -37,62 +61,193 @@ public class DeleteTenant implements Func1<JobDetails, Completable> {
 
     public static final String JOB_NAME = "DELETE_TENANT";
 
+    public static final String TENANT_ID = "tenantId";
+    public static final String SOURCE = "source";
+    public static final String PAGING_STATE = "pagingState";
+    public static final String DELETED = "deleted";
+
+    private static final int PAGE_SIZE = 1000;
+    private static final int DELETE_CONCURRENCY = 16;
+
     private RxSession session;
 
     private PreparedStatement deleteTenant;
+    private PreparedStatement findMetricsInMetricsIndex;
+    private PreparedStatement findMetricsInExpirationIndex;
     private PreparedStatement deleteFromMetricsIndex;
-    private PreparedStatement findTags;
+    private PreparedStatement deleteFromExpirationIndex;
     private PreparedStatement deleteTag;
     private PreparedStatement deleteRetentions;
+    private PreparedStatement findCompletionNames;
+    private PreparedStatement deleteCompletionValues;
+    private PreparedStatement deleteCompletionNames;
 
     private MetricsService metricsService;
 
+    private int pageSize;
+
     public DeleteTenant(RxSession session, MetricsService metricsService) {
+        this(session, metricsService, PAGE_SIZE);
+    }
+
+    DeleteTenant(RxSession session, MetricsService metricsService, int pageSize) {
         this.session = session;
         this.metricsService = metricsService;
+        this.pageSize = pageSize;
         deleteTenant = session.getSession().prepare("DELETE FROM tenants WHERE id = ?");
+        findMetricsInMetricsIndex = session.getSession().prepare(
+                "SELECT metric, tags FROM metrics_idx WHERE tenant_id = ? AND type = ?");
+        findMetricsInExpirationIndex = session.getSession().prepare(
+                "SELECT metric FROM metrics_expiration_idx WHERE tenant_id = ? AND type = ?");
         deleteFromMetricsIndex = session.getSession().prepare(
                 "DELETE FROM metrics_idx WHERE tenant_id = ? AND type = ?");
-        findTags = session.getSession().prepare("SELECT DISTINCT tenant_id, tname FROM metrics_tags_idx");
+        deleteFromExpirationIndex = session.getSession().prepare(
+                "DELETE FROM metrics_expiration_idx WHERE tenant_id = ? AND type = ?");
         deleteTag = session.getSession().prepare("DELETE FROM metrics_tags_idx WHERE tenant_id = ? AND tname = ?");
         deleteRetentions = session.getSession().prepare("DELETE FROM retentions_idx WHERE tenant_id = ? AND type = ?");
+        findCompletionNames = session.getSession().prepare("SELECT tname FROM tag_names_idx WHERE tenant_id = ?");
+        deleteCompletionValues = session.getSession().prepare(
+                "DELETE FROM tag_values_idx WHERE tenant_id = ? AND tname = ?");
+        deleteCompletionNames = session.getSession().prepare("DELETE FROM tag_names_idx WHERE tenant_id = ?");
     }
 
     @Override
     public Completable call(JobDetails details) {
-        String tenantId = details.getParameters().get("tenantId");
+        JobParameters parameters = details.getParameters();
+        String tenantId = parameters.get(TENANT_ID);
+        List<Source> sources = getSources(tenantId);
+        int source = parameters.containsKey(SOURCE) ? Integer.parseInt(parameters.get(SOURCE)) : 0;
+        PagingState pagingState = parameters.containsKey(PAGING_STATE)
+                ? PagingState.fromString(parameters.get(PAGING_STATE)) : null;
 
+        logger.infof("Deleting tenant %s, continuing from source %d of %d", tenantId, source, sources.size());
 
-        // The concat operator is used instead of merge to ensure things execute in order. The deleteMetricData
-        // method queries the metrics index, so we want to update the index only after we have finished deleting
-        // data.
+        // The index partitions are deleted only after the metrics they list are deleted
         return Completable.fromObservable(
-                deleteMetricData(tenantId)
+                deleteMetrics(parameters, sources, source, pagingState, new HashSet<>())
                         .concatWith(deleteTenant(tenantId))
                         .concatWith(deleteRetentions(tenantId))
-                        .concatWith(deleteMetricsIndex(tenantId))
-                        .concatWith(deleteTags(tenantId))
+                        .concatWith(deleteIndexes(tenantId))
+                        .concatWith(deleteTagCompletion(tenantId))
         )
-                .doOnCompleted(() -> logger.infof("Finished deleting " + tenantId));
+                .doOnCompleted(() -> {
+                    metricsService.invalidateTenant(tenantId);
+                    logger.infof("Finished deleting %s, data of %s metrics deleted", tenantId,
+                            parameters.get(DELETED));
+                });
     }
 
-    private Observable<Void> deleteMetricData(String tenantId) {
-        return Observable.from(MetricType.all())
-                .flatMap(type -> metricsService.findMetrics(tenantId, type))
-                .flatMap(metric -> metricsService.deleteMetric(metric.getMetricId()));
+    /**
+     * Sources of the tenant's metrics in the order they're scanned. The order must not change, the saved position
+     * refers to it.
+     */
+    private List<Source> getSources(String tenantId) {
+        List<Source> sources = new ArrayList<>();
+        for (MetricType<?> type : MetricType.userTypes()) {
+            sources.add(new Source(findMetricsInMetricsIndex.bind(tenantId, type.getCode()),
+                    row -> new MetricId<>(tenantId, type, row.getString(0)),
+                    row -> row.getMap(1, String.class, String.class)));
+        }
+        for (MetricType<?> type : MetricType.userTypes()) {
+            sources.add(new Source(findMetricsInExpirationIndex.bind(tenantId, type.getCode()),
+                    row -> new MetricId<>(tenantId, type, row.getString(0)), null));
+        }
+        return sources;
+    }
+
+    private Observable<Void> deleteMetrics(JobParameters parameters, List<Source> sources, int first,
+            PagingState firstPage, Set<String> deletedTags) {
+        return Observable.range(first, Math.max(0, sources.size() - first))
+                .concatMap(source -> deleteSource(parameters, sources.get(source), source,
+                        source == first ? firstPage : null, deletedTags));
+    }
+
+    /**
+     * Deletes the metrics of the source page by page, each page is fetched once the previous one is deleted and the
+     * position after it is saved
+     */
+    private Observable<Void> deleteSource(JobParameters parameters, Source source, int index, PagingState start,
+            Set<String> deletedTags) {
+        AtomicReference<PagingState> position = new AtomicReference<>(start);
+        AtomicBoolean done = new AtomicBoolean();
+        return Observable.defer(() -> fetchPage(parameters, source, position.get()))
+                .concatMap(resultSet -> {
+                    PagingState next = resultSet.getExecutionInfo().getPagingState();
+                    return deletePage(parameters, source, resultSet, deletedTags)
+                            .concatWith(checkpoint(parameters, next == null ? index + 1 : index, next))
+                            .doOnCompleted(() -> {
+                                position.set(next);
+                                done.set(next == null);
+                            });
+                })
+                .repeatWhen(pages -> pages.takeWhile(page -> !done.get()));
+    }
+
+    private Observable<ResultSet> fetchPage(JobParameters parameters, Source source, PagingState pagingState) {
+        return session.execute(source.statement.setFetchSize(pageSize).setPagingState(pagingState))
+                .onErrorResumeNext(t -> {
+                    if (t instanceof PagingStateException) {
+                        // Deleting the same metrics again is harmless, start the source from the beginning
+                        logger.warnf("Ignoring invalid paging state of tenant %s deletion", parameters.get(TENANT_ID));
+                        return session.execute(source.statement.setPagingState(null));
+                    }
+                    return Observable.error(t);
+                });
+    }
+
+    /**
+     * Deletes the data of the metrics on the fetched page and the tag index partitions of their tag names
+     */
+    private Observable<Void> deletePage(JobParameters parameters, Source source, ResultSet resultSet,
+            Set<String> deletedTags) {
+        String tenantId = parameters.get(TENANT_ID);
+        List<MetricId<?>> ids = new ArrayList<>();
+        Set<String> tagNames = new HashSet<>();
+        for (int available = resultSet.getAvailableWithoutFetching(); available > 0; available--) {
+            Row row = resultSet.one();
+            ids.add(source.ids.call(row));
+            if (source.tags != null) {
+                source.tags.call(row).keySet().stream()
+                        .filter(deletedTags::add)
+                        .forEach(tagNames::add);
+            }
+        }
+        return Observable.from(ids)
+                .flatMap(id -> metricsService.deleteMetricData(id), DELETE_CONCURRENCY)
+                .concatWith(Observable.from(tagNames)
+                        .flatMap(tagName -> session.execute(deleteTag.bind(tenantId, tagName)), DELETE_CONCURRENCY)
+                        .map(r -> null))
+                .doOnCompleted(() -> parameters.put(DELETED, Integer.toString(getDeleted(parameters) + ids.size())));
+    }
+
+    private Observable<Void> checkpoint(JobParameters parameters, int source, PagingState pagingState) {
+        return Observable.defer(() -> {
+            parameters.put(SOURCE, Integer.toString(source));
+            if (pagingState == null) {
+                parameters.remove(PAGING_STATE);
+            } else {
+                parameters.put(PAGING_STATE, pagingState.toString());
+            }
+            return parameters.save().toObservable();
+        });
     }
 
-    private Observable<Void> deleteMetricsIndex(String tenantId) {
+    private Observable<Void> deleteIndexes(String tenantId) {
         return Observable.from(MetricType.all())
-                .flatMap(type -> session.execute(deleteFromMetricsIndex.bind(tenantId, type.getCode())))
+                .flatMap(type -> session.execute(deleteFromMetricsIndex.bind(tenantId, type.getCode()))
+                        .concatWith(session.execute(deleteFromExpirationIndex.bind(tenantId, type.getCode()))))
                 .map(r -> null);
     }
 
-    private Observable<Void> deleteTags(String tenantId) {
-        return session.execute(findTags.bind())
+    private Observable<Void> deleteTagCompletion(String tenantId) {
+        return session.execute(findCompletionNames.bind(tenantId))
                 .flatMap(Observable::from)
-                .filter(row -> row.getString(0).equals(tenantId))
-                .flatMap(row -> session.execute(deleteTag.bind(row.getString(0), row.getString(1))))
+                .map(row -> row.getString(0))
+                .distinct()
+                .flatMap(tagName -> session.execute(deleteTag.bind(tenantId, tagName))
+                        .concatWith(session.execute(deleteCompletionValues.bind(tenantId, tagName))),
+                        DELETE_CONCURRENCY)
+                .concatWith(Observable.defer(() -> session.execute(deleteCompletionNames.bind(tenantId))))
                 .map(r -> null);
     }
 
@@ -105,4 +260,24 @@ public class DeleteTenant implements Func1<JobDetails, Completable> {
     private Observable<Void> deleteTenant(String tenantId) {
         return session.execute(deleteTenant.bind(tenantId)).map(r -> null);
     }
+
+    private static int getDeleted(JobParameters parameters) {
+        String deleted = parameters.get(DELETED);
+        return deleted == null ? 0 : Integer.parseInt(deleted);
+    }
+
+    /**
+     * Scanned statement with the functions returning the metric id and the tags of a row
+     */
+    private static class Source {
+        private final Statement statement;
+        private final Func1<Row, MetricId<?>> ids;
+        private final Func1<Row, Map<String, String>> tags;
+
+        Source(Statement statement, Func1<Row, MetricId<?>> ids, Func1<Row, Map<String, String>> tags) {
+            this.statement = statement;
+            this.ids = ids;
+            this.tags = tags;
+        }
+    }
 }
@@ -17,7 +17,10 @@
 package org.hawkular.metrics.core.jobs;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.hawkular.metrics.model.MetricType;
 import org.hawkular.metrics.scheduler.api.JobDetails;
 
 import rx.Single;
@@ -34,4 +37,13 @@ public interface JobsService {
     Single<? extends JobDetails> submitDeleteTenantJob(String tenantId, String jobName);
 
     Single<? extends JobDetails> submitDeleteExpiredMetricsJob(long expiration, String jobName);
+
+    /**
+     * Schedules a job that adds and deletes the tags of the metrics selected with either the tag query or the ids.
+     * The job parameters hold the progress of the job.
+     *
+     * @param type Type of the metrics, required with ids
+     */
+    Single<? extends JobDetails> submitUpdateTagsJob(String tenantId, MetricType<?> type, String tagQuery,
+            List<String> ids, Map<String, String> addTags, Set<String> deleteTags, String jobName);
 }
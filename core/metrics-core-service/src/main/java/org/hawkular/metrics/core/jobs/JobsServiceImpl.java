@@ -23,10 +23,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import org.hawkular.metrics.core.dropwizard.HawkularMetricRegistry;
 import org.hawkular.metrics.core.service.MetricsService;
 import org.hawkular.metrics.datetime.DateTimeService;
+import org.hawkular.metrics.model.MetricType;
 import org.hawkular.metrics.scheduler.api.JobDetails;
 import org.hawkular.metrics.scheduler.api.RepeatingTrigger;
 import org.hawkular.metrics.scheduler.api.RetryPolicy;
@@ -67,6 +70,10 @@ public class JobsServiceImpl implements JobsService, JobsServiceImplMBean {
 
     private ConfigurationService configurationService;
 
+    private CompressionShards compressionShards;
+
+    private HawkularMetricRegistry metricRegistry;
+
     public JobsServiceImpl() {
         this(1, 7, true);
     }
@@ -90,6 +97,13 @@ public class JobsServiceImpl implements JobsService, JobsServiceImplMBean {
         this.configurationService = configurationService;
     }
 
+    /**
+     * Optional, the throughput and lag of the compression shards are reported when set.
+     */
+    public void setMetricRegistry(HawkularMetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
     /**
      * Ideally I think the scheduler should be an implementation detail of this service. This method is here though as
      * a test hook.
@@ -114,17 +128,32 @@ public class JobsServiceImpl implements JobsService, JobsServiceImplMBean {
                 };
         scheduler.register(DeleteTenant.JOB_NAME, deleteTenant, deleteTenantRetryPolicy);
 
+        // Updated metrics are checkpointed, so a retried tag update continues where the failed execution stopped
+        scheduler.register(UpdateTags.JOB_NAME, new UpdateTags(metricsService), deleteTenantRetryPolicy);
+
         TempTableCreator tempCreator = new TempTableCreator(metricsService, configurationService);
         scheduler.register(TempTableCreator.JOB_NAME, tempCreator);
         maybeScheduleTableCreator(backgroundJobs);
 
-        TempDataCompressor tempJob = new TempDataCompressor(metricsService, configurationService);
+        // Every node compresses the shards of the blocks published by the compression job
+        compressionShards = new CompressionShards(session, metricsService, configurationService);
+        if (metricRegistry != null) {
+            compressionShards.initMetrics(metricRegistry);
+        }
+        compressionShards.start();
+
+        TempDataCompressor tempJob = new TempDataCompressor(compressionShards, configurationService);
         scheduler.register(TempDataCompressor.JOB_NAME, tempJob);
 
-//        CompressData compressDataJob = new CompressData(metricsService, configurationService);
-//        scheduler.register(CompressData.JOB_NAME, compressDataJob);
+        // Manually submitted compression of a given block
+        CompressData compressDataJob = new CompressData(metricsService, configurationService);
+        scheduler.register(CompressData.JOB_NAME, compressDataJob);
         maybeScheduleCompressData(backgroundJobs);
 
+        MergeLateData mergeLateData = new MergeLateData(metricsService, configurationService);
+        scheduler.register(MergeLateData.JOB_NAME, mergeLateData);
+        maybeScheduleMergeLateData(backgroundJobs);
+
         deleteExpiredMetrics = new DeleteExpiredMetrics(metricsService, session, configurationService,
                 this.metricExpirationDelay);
         scheduler.register(DeleteExpiredMetrics.JOB_NAME, deleteExpiredMetrics);
@@ -138,6 +167,9 @@ public class JobsServiceImpl implements JobsService, JobsServiceImplMBean {
     @Override
     public void shutdown() {
         scheduler.shutdown();
+        if (compressionShards != null) {
+            compressionShards.shutdown();
+        }
     }
 
     @Override
@@ -153,6 +185,14 @@ public class JobsServiceImpl implements JobsService, JobsServiceImplMBean {
                 new SingleExecutionTrigger.Builder().withDelay(1, TimeUnit.MINUTES).build());
     }
 
+    @Override
+    public Single<? extends JobDetails> submitUpdateTagsJob(String tenantId, MetricType<?> type, String tagQuery,
+            List<String> ids, Map<String, String> addTags, Set<String> deleteTags, String jobName) {
+        return scheduler.scheduleJob(UpdateTags.JOB_NAME, jobName,
+                UpdateTags.parameters(tenantId, type, tagQuery, ids, addTags, deleteTags),
+                new SingleExecutionTrigger.Builder().withDelay(1, TimeUnit.MINUTES).build());
+    }
+
     private void maybeScheduleTableCreator(List<JobDetails> backgroundJobs) {
         String configId = TempTableCreator.CONFIG_ID;
         Configuration config = configurationService.load(configId).toBlocking()
@@ -201,11 +241,32 @@ public class JobsServiceImpl implements JobsService, JobsServiceImplMBean {
         }
     }
 
+    private void maybeScheduleMergeLateData(List<JobDetails> backgroundJobs) {
+        String configId = MergeLateData.CONFIG_ID;
+        Configuration config = configurationService.load(configId).toBlocking()
+                .firstOrDefault(new Configuration(configId, new HashMap<>()));
+        if (config.get("jobId") == null) {
+            // Between the compression runs, which start at odd hours
+            long nextStart = LocalDateTime.now(ZoneOffset.UTC)
+                    .with(DateTimeService.startOfNextOddHour())
+                    .plusHours(1)
+                    .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+            JobDetails jobDetails = scheduler.scheduleJob(MergeLateData.JOB_NAME, MergeLateData.JOB_NAME,
+                    ImmutableMap.of(), new RepeatingTrigger.Builder().withTriggerTime(nextStart)
+                            .withInterval(2, TimeUnit.HOURS).build()).toBlocking().value();
+            backgroundJobs.add(jobDetails);
+            configurationService.save(configId, "jobId", jobDetails.getJobId().toString()).toBlocking();
+
+            logger.info("Created and scheduled " + jobDetails);
+        }
+    }
+
     private void maybeScheduleMetricExpirationJob(List<JobDetails> backgroundJobs) {
         String jobIdConfigKey = "jobId";
         String jobFrequencyKey = "jobFrequency";
 
-        String configId = "org.hawkular.metrics.jobs." + DeleteExpiredMetrics.JOB_NAME;
+        String configId = DeleteExpiredMetrics.CONFIG_ID;
         Configuration config = configurationService.load(configId).toBlocking()
                 .firstOrDefault(new Configuration(configId, new HashMap<>()));
 
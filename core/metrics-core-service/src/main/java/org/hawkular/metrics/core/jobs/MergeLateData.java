@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.jobs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.scheduler.api.JobDetails;
+import org.hawkular.metrics.sysconfig.Configuration;
+import org.hawkular.metrics.sysconfig.ConfigurationService;
+import org.jboss.logging.Logger;
+
+import com.google.common.base.Stopwatch;
+
+import rx.Completable;
+import rx.functions.Func1;
+
+/**
+ * Merges the data points that were written after their block had been compressed, and thus were stored to the
+ * out-of-order table, to the compressed blocks.
+ */
+public class MergeLateData implements Func1<JobDetails, Completable> {
+
+    private static Logger logger = Logger.getLogger(MergeLateData.class);
+
+    public static final String JOB_NAME = "MERGE_LATE_DATA";
+    public static final String CONFIG_ID = JobsServiceImpl.CONFIG_PREFIX + JOB_NAME;
+
+    private MetricsService metricsService;
+
+    private int pageSize;
+    private int maxReadConcurrency;
+
+    public MergeLateData(MetricsService metricsService, ConfigurationService configurationService) {
+        this.metricsService = metricsService;
+        Configuration configuration = configurationService.load(CONFIG_ID).toSingle().toBlocking().value();
+
+        pageSize = Integer.parseInt(configuration.get(TempDataCompressor.CONFIG_PAGE_SIZE,
+                Integer.toString(TempDataCompressor.DEFAULT_PAGE_SIZE)));
+        maxReadConcurrency = Integer.parseInt(configuration.get(TempDataCompressor.CONFIG_MAX_READ_CONCURRENCY,
+                Integer.toString(TempDataCompressor.DEFAULT_READ_CONCURRENCY)));
+    }
+
+    @Override
+    public Completable call(JobDetails jobDetails) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        logger.info("Starting to merge late data points");
+
+        return metricsService.mergeLateDataPoints(pageSize, maxReadConcurrency)
+                .reduce(0L, (merged, points) -> merged + points)
+                .doOnNext(merged -> logger.infof("Merged %d late data points in %d ms", merged,
+                        stopwatch.elapsed(TimeUnit.MILLISECONDS)))
+                .toCompletable();
+    }
+}
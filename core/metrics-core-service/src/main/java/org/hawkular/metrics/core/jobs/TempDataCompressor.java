@@ -18,7 +18,6 @@ package org.hawkular.metrics.core.jobs;
 
 import java.util.concurrent.TimeUnit;
 
-import org.hawkular.metrics.core.service.MetricsService;
 import org.hawkular.metrics.datetime.DateTimeService;
 import org.hawkular.metrics.scheduler.api.JobDetails;
 import org.hawkular.metrics.scheduler.api.Trigger;
@@ -46,27 +45,20 @@ public class TempDataCompressor implements Func1<JobDetails, Completable> {
     public static final String CONFIG_PAGE_SIZE = "page-size";
     public static final String CONFIG_MAX_READ_CONCURRENCY = "concurrency.read.max";
 
-    private static final int DEFAULT_PAGE_SIZE = 1000;
-    private static final int DEFAULT_READ_CONCURRENCY = 2;
+    static final int DEFAULT_PAGE_SIZE = 1000;
+    static final int DEFAULT_READ_CONCURRENCY = 8;
 
-    private MetricsService metricsService;
+    private CompressionShards compressionShards;
 
-    private int pageSize;
     private boolean enabled;
-    private int maxReadConcurrency = DEFAULT_READ_CONCURRENCY;
 
-    public TempDataCompressor(MetricsService service, ConfigurationService configurationService) {
-        metricsService = service;
+    /**
+     * The page size and read concurrency are read by {@link CompressionShards}, as every node compresses its shards
+     * with them.
+     */
+    public TempDataCompressor(CompressionShards compressionShards, ConfigurationService configurationService) {
+        this.compressionShards = compressionShards;
         Configuration configuration = configurationService.load(CONFIG_ID).toSingle().toBlocking().value();
-        if (configuration.get(CONFIG_PAGE_SIZE) == null) {
-            pageSize = DEFAULT_PAGE_SIZE;
-        } else {
-            pageSize = Integer.parseInt(configuration.get(CONFIG_PAGE_SIZE));
-        }
-
-        if(configuration.get(CONFIG_MAX_READ_CONCURRENCY) != null) {
-            maxReadConcurrency = Integer.parseInt(configuration.get(CONFIG_MAX_READ_CONCURRENCY));
-        }
 
         String enabledConfig = configuration.get("enabled", "true");
         enabled = Boolean.parseBoolean(enabledConfig);
@@ -87,8 +79,8 @@ public class TempDataCompressor implements Func1<JobDetails, Completable> {
         Stopwatch stopwatch = Stopwatch.createStarted();
         logger.infof("Starting to process temp table for starting time of %s", timeSliceStart.toString());
 
-        // TODO Optimization - new worker per token - use parallelism in Cassandra (with configured parallelism)
-        return metricsService.compressBlock(startOfSlice, pageSize, maxReadConcurrency)
+        // The shards of the block are compressed by all the nodes, a restarted execution skips the completed ranges
+        return compressionShards.compress(startOfSlice)
                 .doOnCompleted(() -> {
                     stopwatch.stop();
                     logger.info("Finished processing data in " + stopwatch.elapsed(TimeUnit.MILLISECONDS) +
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.jobs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+import org.hawkular.metrics.scheduler.api.JobDetails;
+import org.hawkular.metrics.scheduler.api.JobParameters;
+import org.jboss.logging.Logger;
+
+import rx.Completable;
+import rx.Observable;
+import rx.functions.Func1;
+
+/**
+ * Adds and deletes the tags of the metrics selected with a tag query or an id list. The metrics are updated in chunks
+ * and the progress is saved to the job parameters after each chunk, so a restarted job continues from the last
+ * checkpoint. With a tag query the query is executed again on restart, which is cheap as the already updated metrics
+ * no longer have any changes to write.
+ */
+public class UpdateTags implements Func1<JobDetails, Completable> {
+
+    private static Logger logger = Logger.getLogger(UpdateTags.class);
+
+    public static final String JOB_NAME = "UPDATE_TAGS";
+
+    public static final String TENANT_ID = "tenantId";
+    public static final String METRIC_TYPE = "type";
+    public static final String TAG_QUERY = "tags";
+    public static final String ID_COUNT = "idCount";
+    public static final String PROCESSED = "processed";
+    public static final String UPDATED = "updated";
+    public static final String OFFSET = "offset";
+
+    private static final String ID_PREFIX = "id.";
+    private static final String ADD_TAG_PREFIX = "addTag.";
+    private static final String DELETE_TAG_PREFIX = "deleteTag.";
+
+    static final int CHUNK_SIZE = 1000;
+    private static final int LOOKUP_CONCURRENCY = 8;
+
+    private MetricsService metricsService;
+
+    public UpdateTags(MetricsService metricsService) {
+        this.metricsService = metricsService;
+    }
+
+    /**
+     * Encodes the job parameters. Either the tag query or the ids must be given, the ids require the metric type.
+     */
+    public static Map<String, String> parameters(String tenantId, MetricType<?> type, String tagQuery,
+            List<String> ids, Map<String, String> addTags, Set<String> deleteTags) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(TENANT_ID, tenantId);
+        if (type != null) {
+            parameters.put(METRIC_TYPE, type.getText());
+        }
+        if (tagQuery != null) {
+            parameters.put(TAG_QUERY, tagQuery);
+        } else {
+            parameters.put(ID_COUNT, Integer.toString(ids.size()));
+            for (int i = 0; i < ids.size(); i++) {
+                parameters.put(ID_PREFIX + i, ids.get(i));
+            }
+        }
+        addTags.forEach((name, value) -> parameters.put(ADD_TAG_PREFIX + name, value));
+        deleteTags.forEach(name -> parameters.put(DELETE_TAG_PREFIX + name, ""));
+        return parameters;
+    }
+
+    @Override
+    public Completable call(JobDetails details) {
+        JobParameters parameters = details.getParameters();
+        String tenantId = parameters.get(TENANT_ID);
+        MetricType<?> type = parameters.containsKey(METRIC_TYPE)
+                ? MetricType.fromTextCode(parameters.get(METRIC_TYPE)) : null;
+        Map<String, String> addTags = withPrefix(parameters, ADD_TAG_PREFIX);
+        Set<String> deleteTags = withPrefix(parameters, DELETE_TAG_PREFIX).keySet();
+
+        logger.infof("Updating tags of tenant %s metrics, adding %s and deleting %s", tenantId, addTags, deleteTags);
+        Observable<Void> updates;
+        if (parameters.containsKey(TAG_QUERY)) {
+            updates = metricsService.findMetricsWithFilters(tenantId, type, parameters.get(TAG_QUERY))
+                    .<Metric<?>>map(metric -> metric)
+                    .buffer(CHUNK_SIZE)
+                    .concatMap(metrics -> update(parameters, metrics, addTags, deleteTags, 0));
+        } else {
+            int idCount = Integer.parseInt(parameters.get(ID_COUNT));
+            List<String> ids = new ArrayList<>();
+            for (int i = getCount(parameters, OFFSET); i < idCount; i++) {
+                ids.add(parameters.get(ID_PREFIX + i));
+            }
+            updates = Observable.from(ids)
+                    .buffer(CHUNK_SIZE)
+                    .concatMap(names -> Observable.from(names)
+                            .flatMap(name -> metricsService.findMetric(new MetricId<>(tenantId, type, name)),
+                                    LOOKUP_CONCURRENCY)
+                            .<Metric<?>>map(metric -> metric)
+                            .toList()
+                            .concatMap(metrics -> update(parameters, metrics, addTags, deleteTags, names.size())));
+        }
+
+        return updates.toCompletable()
+                .doOnCompleted(() -> logger.infof("Finished updating tags of %s metrics of tenant %s",
+                        getCount(parameters, UPDATED), tenantId));
+    }
+
+    /**
+     * Updates a chunk of metrics and saves the progress as a checkpoint
+     *
+     * @param consumedIds Amount of ids of the id list the chunk was read from
+     */
+    private Observable<Void> update(JobParameters parameters, List<Metric<?>> metrics, Map<String, String> addTags,
+            Set<String> deleteTags, int consumedIds) {
+        return metricsService.updateTags(Observable.from(metrics), addTags, deleteTags)
+                .flatMap(updated -> {
+                    parameters.put(PROCESSED, Integer.toString(getCount(parameters, PROCESSED) + metrics.size()));
+                    parameters.put(UPDATED, Integer.toString(getCount(parameters, UPDATED) + updated));
+                    if (consumedIds > 0) {
+                        parameters.put(OFFSET, Integer.toString(getCount(parameters, OFFSET) + consumedIds));
+                    }
+                    logger.debugf("Updated tags of %s metrics of tenant %s, %s processed",
+                            parameters.get(UPDATED), parameters.get(TENANT_ID), parameters.get(PROCESSED));
+                    return parameters.save().toObservable();
+                });
+    }
+
+    private static int getCount(JobParameters parameters, String key) {
+        String count = parameters.get(key);
+        return count == null ? 0 : Integer.parseInt(count);
+    }
+
+    private static Map<String, String> withPrefix(JobParameters parameters, String prefix) {
+        Map<String, String> values = new HashMap<>();
+        parameters.getMap().forEach((key, value) -> {
+            if (key.startsWith(prefix)) {
+                values.put(key.substring(prefix.length()), value);
+            }
+        });
+        return values;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import static com.datastax.driver.core.BatchStatement.Type.UNLOGGED;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hawkular.metrics.core.dropwizard.HawkularMetricRegistry;
+import org.hawkular.metrics.core.service.transformers.BoundBatchStatementTransformer;
+import org.hawkular.rx.cassandra.driver.RxSession;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSet;
+import com.google.common.collect.Lists;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Func1;
+import rx.observers.SerializedSubscriber;
+import rx.schedulers.Schedulers;
+
+/**
+ * Shared writer stage for the data point statements. Statements of all the concurrent writes are collected by their
+ * replica set to unlogged batches, which are flushed when they're full or when the flush delay has passed, so
+ * small writes arriving at the same time end up in the same batch. The batches are executed with a limited amount of
+ * in-flight requests per host, the host being the primary replica of the batch's replica set. Batches waiting for a
+ * free slot are queued instead of being sent to the driver, which would otherwise reject them once its own request
+ * queue is full.
+ *
+ * The batch size is adapted to the observed 99th percentile write latency: it is decreased multiplicatively when the
+ * latency exceeds the target and increased additively when the latency is well below it.
+ */
+public class BatchWriter {
+
+    public static final int MIN_BATCH_SIZE = 5;
+    public static final int MAX_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    public static final long DEFAULT_FLUSH_DELAY = 10;
+    public static final long DEFAULT_LATENCY_TARGET = 100;
+
+    private static final int BATCH_SIZE_STEP = 5;
+    private static final long ADJUST_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Limiter key of the groups without a known host, for example before the driver has fetched the token metadata
+     */
+    private static final Object UNKNOWN_HOST = new Object();
+
+    private final RxSession rxSession;
+    private final int maxInFlight;
+    private final long flushDelay;
+    private final long latencyTargetNanos;
+    private final Scheduler scheduler;
+
+    private volatile Observable.Transformer<ResultSet, ResultSet> retryPolicy = resultSets -> resultSets;
+    private volatile int batchSize = BoundBatchStatementTransformer.DEFAULT_BATCH_SIZE;
+    private final AtomicLong lastAdjustment = new AtomicLong(System.nanoTime());
+
+    private final Map<Integer, Accumulator> accumulators = new ConcurrentHashMap<>();
+    private final Map<Object, InFlightLimiter> limiters = new ConcurrentHashMap<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private Timer writeLatency = new Timer(new SlidingTimeWindowReservoir(10, TimeUnit.SECONDS));
+    private Meter sizeFlushes = new Meter();
+    private Meter timeFlushes = new Meter();
+
+    public BatchWriter(RxSession rxSession) {
+        this(rxSession, DEFAULT_MAX_IN_FLIGHT, DEFAULT_FLUSH_DELAY, DEFAULT_LATENCY_TARGET);
+    }
+
+    public BatchWriter(RxSession rxSession, int maxInFlight, long flushDelay, long latencyTarget) {
+        this(rxSession, maxInFlight, flushDelay, latencyTarget, Schedulers.computation());
+    }
+
+    /**
+     * @param maxInFlight   maximum amount of concurrently executing batches per host
+     * @param flushDelay    maximum time in milliseconds a statement waits for the batch to fill up
+     * @param latencyTarget target 99th percentile batch write latency in milliseconds
+     * @param scheduler     scheduler of the delayed flushes
+     */
+    public BatchWriter(RxSession rxSession, int maxInFlight, long flushDelay, long latencyTarget,
+            Scheduler scheduler) {
+        this.rxSession = rxSession;
+        this.maxInFlight = maxInFlight;
+        this.flushDelay = flushDelay;
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTarget);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Exposes the queue depth, current batch size, batch write latency and the flush reasons.
+     */
+    public void initMetrics(HawkularMetricRegistry metricRegistry) {
+        // Registered metrics are bound to this instance, replace the ones from a previous startup
+        metricRegistry.remove("WriteBatchLatency");
+        metricRegistry.remove("WriteBatchQueueDepth");
+        metricRegistry.remove("WriteBatchSize");
+
+        writeLatency = metricRegistry.register("WriteBatchLatency", "Core", "Write", writeLatency);
+        sizeFlushes = metricRegistry.meter("WriteBatchSizeFlushes", "Core", "Write");
+        timeFlushes = metricRegistry.meter("WriteBatchTimeFlushes", "Core", "Write");
+        metricRegistry.register("WriteBatchQueueDepth", "Core", "Write", (Gauge<Integer>) queueDepth::get);
+        metricRegistry.register("WriteBatchSize", "Core", "Write", (Gauge<Integer>) () -> batchSize);
+    }
+
+    /**
+     * @param retryPolicy applied to every batch execution, the batch keeps its in-flight slot while retrying
+     */
+    public void setRetryPolicy(Observable.Transformer<ResultSet, ResultSet> retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @param grouping function returning the group (replica set) of the statement
+     * @param hosts    function returning the host the writes of the group are limited by
+     * @return Transformer emitting the amount of the statements written with each batch
+     */
+    public Observable.Transformer<BoundStatement, Integer> write(Func1<BoundStatement, Integer> grouping,
+            Func1<Integer, Object> hosts) {
+        return statements -> Observable.create(subscriber -> {
+            Request request = new Request(new SerializedSubscriber<>(subscriber));
+            subscriber.add(statements.subscribe(
+                    statement -> {
+                        Integer group = grouping.call(statement);
+                        Object host = hosts.call(group);
+                        request.pending.incrementAndGet();
+                        getAccumulator(group).add(new Entry(statement, request, host == null ? UNKNOWN_HOST : host));
+                    },
+                    request::failed,
+                    request::received));
+        });
+    }
+
+    /**
+     * Flushes the statements waiting for their batch to fill up
+     */
+    public void flush() {
+        accumulators.values().forEach(Accumulator::flush);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    private Observable<ResultSet> executeTimed(BatchStatement batch) {
+        Timer.Context context = writeLatency.time();
+        return rxSession.execute(batch)
+                .doOnTerminate(() -> {
+                    context.stop();
+                    adjustBatchSize();
+                });
+    }
+
+    void adjustBatchSize() {
+        long last = lastAdjustment.get();
+        long now = System.nanoTime();
+        if (now - last < ADJUST_INTERVAL || !lastAdjustment.compareAndSet(last, now)) {
+            return;
+        }
+
+        double p99 = writeLatency.getSnapshot().get99thPercentile();
+        if (p99 > latencyTargetNanos) {
+            batchSize = Math.max(MIN_BATCH_SIZE, batchSize * 3 / 4);
+        } else if (p99 < latencyTargetNanos / 2) {
+            batchSize = Math.min(MAX_BATCH_SIZE, batchSize + BATCH_SIZE_STEP);
+        }
+    }
+
+    private Accumulator getAccumulator(Integer group) {
+        return accumulators.computeIfAbsent(group, g -> new Accumulator());
+    }
+
+    private InFlightLimiter getLimiter(Object host) {
+        return limiters.computeIfAbsent(host, h -> new InFlightLimiter());
+    }
+
+    /**
+     * A single write, which is acknowledged batch by batch and completes once all of its statements are written
+     */
+    private static class Request {
+        private final Subscriber<? super Integer> subscriber;
+        // Statements not yet written, plus one until the statements have all been received
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final AtomicBoolean terminated = new AtomicBoolean();
+
+        Request(Subscriber<? super Integer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void received() {
+            complete(pending.decrementAndGet());
+        }
+
+        void written(int statements) {
+            if (!terminated.get()) {
+                subscriber.onNext(statements);
+            }
+            complete(pending.addAndGet(-statements));
+        }
+
+        private void complete(int remaining) {
+            if (remaining == 0 && terminated.compareAndSet(false, true)) {
+                subscriber.onCompleted();
+            }
+        }
+
+        void failed(Throwable t) {
+            if (terminated.compareAndSet(false, true)) {
+                subscriber.onError(t);
+            }
+        }
+
+        boolean isCancelled() {
+            return terminated.get() || subscriber.isUnsubscribed();
+        }
+    }
+
+    private static class Entry {
+        private final BoundStatement statement;
+        private final Request request;
+        private final Object host;
+
+        Entry(BoundStatement statement, Request request, Object host) {
+            this.statement = statement;
+            this.request = request;
+            this.host = host;
+        }
+    }
+
+    /**
+     * Statements of a single group waiting for their batch to fill up or for the flush delay to pass
+     */
+    private class Accumulator {
+        private List<Entry> entries = new ArrayList<>();
+        private Subscription scheduledFlush;
+
+        void add(Entry entry) {
+            List<Entry> full = null;
+            synchronized (this) {
+                entries.add(entry);
+                if (entries.size() >= batchSize) {
+                    full = take();
+                } else if (scheduledFlush == null) {
+                    scheduledFlush = Observable.timer(flushDelay, TimeUnit.MILLISECONDS, scheduler)
+                            .subscribe(l -> flush());
+                }
+            }
+            if (full != null) {
+                sizeFlushes.mark();
+                submit(full);
+            }
+        }
+
+        void flush() {
+            List<Entry> taken;
+            synchronized (this) {
+                taken = take();
+            }
+            if (!taken.isEmpty()) {
+                timeFlushes.mark();
+                submit(taken);
+            }
+        }
+
+        private List<Entry> take() {
+            List<Entry> taken = entries;
+            entries = new ArrayList<>();
+            if (scheduledFlush != null) {
+                scheduledFlush.unsubscribe();
+                scheduledFlush = null;
+            }
+            return taken;
+        }
+
+        private void submit(List<Entry> taken) {
+            // Batch size might have been decreased while the statements were collected
+            for (List<Entry> batch : Lists.partition(taken, batchSize)) {
+                getLimiter(batch.get(0).host).submit(batch);
+            }
+        }
+    }
+
+    /**
+     * Asynchronous semaphore, executes a batch only when there's a free slot and queues it otherwise. Statements of
+     * writes that have been unsubscribed while they were waiting are not executed.
+     */
+    private class InFlightLimiter {
+        private final AtomicInteger permits = new AtomicInteger(maxInFlight);
+        private final Queue<List<Entry>> waiting = new ConcurrentLinkedQueue<>();
+
+        void submit(List<Entry> batch) {
+            queueDepth.addAndGet(batch.size());
+            waiting.add(batch);
+            drain();
+        }
+
+        private void execute(List<Entry> entries) {
+            BatchStatement batch = new BatchStatement(UNLOGGED);
+            Map<Request, Integer> requests = new LinkedHashMap<>();
+            for (Entry entry : entries) {
+                if (!entry.request.isCancelled()) {
+                    batch.add(entry.statement);
+                    requests.merge(entry.request, 1, Integer::sum);
+                }
+            }
+            if (requests.isEmpty()) {
+                release();
+                return;
+            }
+
+            Observable.defer(() -> executeTimed(batch))
+                    .compose(retryPolicy)
+                    .subscribe(
+                            resultSet -> {},
+                            t -> {
+                                release();
+                                requests.keySet().forEach(request -> request.failed(t));
+                            },
+                            () -> {
+                                release();
+                                requests.forEach(Request::written);
+                            });
+        }
+
+        private boolean tryAcquire() {
+            int available;
+            do {
+                available = permits.get();
+                if (available <= 0) {
+                    return false;
+                }
+            } while (!permits.compareAndSet(available, available - 1));
+            return true;
+        }
+
+        private void release() {
+            permits.incrementAndGet();
+            drain();
+        }
+
+        private void drain() {
+            while (!waiting.isEmpty() && tryAcquire()) {
+                List<Entry> batch = waiting.poll();
+                if (batch == null) {
+                    permits.incrementAndGet();
+                } else {
+                    queueDepth.addAndGet(-batch.size());
+                    execute(batch);
+                }
+            }
+        }
+    }
+}
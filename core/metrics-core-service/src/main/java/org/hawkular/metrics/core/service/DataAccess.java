@@ -16,19 +16,26 @@
  */
 package org.hawkular.metrics.core.service;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.function.Function;
 
 import org.hawkular.metrics.core.service.compress.CompressedPointContainer;
+import org.hawkular.metrics.core.service.compress.PointColumns;
+import org.hawkular.metrics.core.service.rollup.RollupPoint;
+import org.hawkular.metrics.core.service.rollup.RollupResolution;
 import org.hawkular.metrics.model.Metric;
 import org.hawkular.metrics.model.MetricId;
 import org.hawkular.metrics.model.MetricType;
 import org.hawkular.metrics.model.Tenant;
 
+import com.datastax.driver.core.PagingState;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
+import com.datastax.driver.core.TokenRange;
 
 import rx.Observable;
 
@@ -39,6 +46,8 @@ public interface DataAccess {
 
     Observable<ResultSet> createTempTablesIfNotExists(Set<Long> timestamps);
 
+    Observable<ResultSet> createWalTablesIfNotExists(Set<Long> timestamps);
+
     Observable<ResultSet> insertTenant(Tenant tenant, boolean overwrite);
 
     Observable<Row> findAllTenantIds();
@@ -61,12 +70,30 @@ public interface DataAccess {
 
     <T> Observable<ResultSet> deleteTags(Metric<T> metric, Map<String, String> tags);
 
+    /**
+     * Writes the tag changes of many metrics with unlogged batches. The statements are grouped by their partition,
+     * so a batch writes to a single partition of metrics_idx or metrics_tags_idx.
+     *
+     * @param maxConcurrency Maximum amount of batches executed concurrently
+     * @return Emits the amount of statements in each written batch
+     */
+    Observable<Integer> updateTags(Observable<TagsUpdate> updates, int maxConcurrency);
+
     <T> Observable<ResultSet> deleteFromMetricsIndexAndTags(MetricId<T> id, Map<String, String> tags);
 
     <T> Observable<Integer> updateMetricsIndex(Observable<Metric<T>> metrics);
 
     <T> Observable<Row> findMetricsInMetricsIndex(String tenantId, MetricType<T> type);
 
+    /**
+     * Reads a single page of the metrics_idx partition. Only the rows of the first page are available without
+     * fetching from the returned ResultSet, the execution info carries the paging state of the next page.
+     *
+     * @param pagingState Where to continue from or null to start from the beginning of the partition
+     */
+    <T> Observable<ResultSet> findMetricsInMetricsIndex(String tenantId, MetricType<T> type, int fetchSize,
+            PagingState pagingState);
+
     /*
     https://issues.apache.org/jira/browse/CASSANDRA-11143
     https://issues.apache.org/jira/browse/CASSANDRA-10699
@@ -76,12 +103,65 @@ public interface DataAccess {
 
     Observable<Observable<Row>> findAllDataFromBucket(long timestamp, int pageSize, int maxConcurrency);
 
+    /**
+     * @return Rows of the temporary table of the block in the token range
+     */
+    Observable<Row> findDataFromBucket(long timestamp, TokenRange range, int pageSize);
+
     Observable<ResultSet> dropTempTable(long timestamp);
 
+    /**
+     * @return Start of the oldest block that still has a temporary or a write-ahead log table, that is, the start of
+     * the data that has not been compressed and rolled up yet. Long.MAX_VALUE if there are no such tables.
+     */
+    long getUncompressedDataStart();
+
+    Observable<Observable<Row>> findAllWalDataFromBucket(long timestamp, int pageSize, int maxConcurrency);
+
+    /**
+     * @return Write-ahead log rows of the block in the token range
+     */
+    Observable<Row> findWalDataFromBucket(long timestamp, TokenRange range, int pageSize);
+
+    /**
+     * @return Unwrapped token ranges of the ring, the compression job processes each range separately
+     */
+    Set<TokenRange> getTokenRanges();
+
+    /**
+     * @return The token ranges of the block's compression phase that have been completed
+     */
+    Observable<TokenRange> findCompressedRanges(long timeslice, byte phase);
+
+    Observable<ResultSet> insertCompressedRange(long timeslice, byte phase, TokenRange range);
+
+    Observable<ResultSet> deleteCompressedRanges(long timeslice);
+
+    /**
+     * @return Rows of the out-of-order table in the token range, the columns of the temporary table scan followed by
+     * the write times of the n_value, availability and l_value columns
+     */
+    Observable<Row> findOutOfOrderData(TokenRange range, int pageSize);
+
+    /**
+     * Deletes the point from the out-of-order table unless it has been written again after writeTime
+     *
+     * @param writeTime Write time of the point in microseconds, as returned by {@link #findOutOfOrderData}
+     */
+    <T> Observable<ResultSet> deleteOutOfOrderData(MetricId<T> id, long timestamp, long writeTime);
+
+    Observable<ResultSet> dropWalTable(long timestamp);
+
     Observable<Row> findAllMetricsInData();
 
     <T> Observable<Integer> insertData(Observable<Metric<T>> metrics);
 
+    /**
+     * Appends one write-ahead log row per metric to the block starting at timeslice. If there's no log table for the
+     * block, the points are written to the temporary tables instead.
+     */
+    Observable<Integer> insertWalData(long timeslice, Map<MetricId<?>, PointColumns> columns);
+
     Observable<Integer> insertStringDatas(Observable<Metric<String>> strings,
             Function<MetricId<String>, Integer> ttlFetcher, int maxSize);
 
@@ -95,6 +175,8 @@ public interface DataAccess {
     <T> Observable<Row> findTempData(MetricId<T> id, long startTime, long endTime, int limit, Order order,
                                      int pageSize);
 
+    <T> Observable<Row> findWalData(MetricId<T> id, long startTime, long endTime);
+
 //    <T> Observable<Row> findOldData(MetricId<T> id, long startTime, long endTime, int limit, Order order,
 //                                    int pageSize);
 
@@ -116,22 +198,105 @@ public interface DataAccess {
 
     Observable<Row> findMetricsByTagName(String tenantId, String tag);
 
+    /**
+     * Paged version of {@link #findMetricsByTagName(String, String)}, see
+     * {@link #findMetricsInMetricsIndex(String, MetricType, int, PagingState)}.
+     */
+    Observable<ResultSet> findMetricsByTagName(String tenantId, String tag, int fetchSize, PagingState pagingState);
+
     Observable<Row> findMetricsByTagNameValue(String tenantId, String tag, String tvalue);
 
+    /**
+     * Finds the metrics having the tag with a value in range [from, to). Same row format as
+     * {@link #findMetricsByTagName(String, String)}, ordered by the tag value.
+     */
+    Observable<Row> findMetricsByTagNameValueRange(String tenantId, String tag, String from, String to);
+
+    /**
+     * @return true if a metric of the type has the tag value in metrics_tags_idx
+     */
+    Observable<Boolean> hasTagValue(String tenantId, MetricType<?> type, String tag, String tvalue);
+
+    /**
+     * @return Rows of the tenant's tag_names_idx partition in order tname, type
+     */
+    Observable<Row> findTagCompletionNames(String tenantId);
+
+    /**
+     * @return Rows of the tag's tag_values_idx partition in order tvalue, type
+     */
+    Observable<Row> findTagCompletionValues(String tenantId, String tag);
+
+    Observable<ResultSet> insertTagCompletionName(String tenantId, MetricType<?> type, String tag);
+
+    Observable<ResultSet> insertTagCompletionValue(String tenantId, MetricType<?> type, String tag, String tvalue);
+
+    /**
+     * @param timestamp Write time of the deletion in microseconds, inserts done after it are kept
+     */
+    Observable<ResultSet> deleteTagCompletionName(String tenantId, MetricType<?> type, String tag, long timestamp);
+
+    /**
+     * @param timestamp Write time of the deletion in microseconds, inserts done after it are kept
+     */
+    Observable<ResultSet> deleteTagCompletionValue(String tenantId, MetricType<?> type, String tag, String tvalue,
+            long timestamp);
+
     Observable<Row> findAllMetricsFromTagsIndex();
 
     <T> Observable<ResultSet> insertCompressedData(MetricId<T> id, long timeslice,
                                                    CompressedPointContainer cpc, int ttl);
 
+    /**
+     * @return The block's data_compressed row with the columns c_value, tags and version, if there is one
+     */
+    Observable<Row> findCompressedBlock(MetricId<?> id, long timeslice);
+
+    /**
+     * Replaces the block's data_compressed row with a lightweight transaction that checks the version read with
+     * {@link #findCompressedBlock(MetricId, long)}. The result is not applied if the row was changed in between.
+     *
+     * @param version version of the row that was read, null if there was no row or it was written without a version
+     */
+    <T> Observable<ResultSet> updateCompressedData(MetricId<T> id, long timeslice, CompressedPointContainer cpc,
+                                                   int ttl, Integer version);
+
+    /**
+     * Writes one row per rollup to the table of each resolution
+     */
+    <T> Observable<Integer> insertRollups(MetricId<T> id, Map<RollupResolution, List<RollupPoint>> rollups, int ttl);
+
+    <T> Observable<Row> findRollups(MetricId<T> id, RollupResolution resolution, long startTime, long endTime);
+
+    /**
+     * Announces a change in the metric definitions of a tenant and metric type to the other nodes.
+     */
+    Observable<ResultSet> insertMetricDefinitionChange(long bucket, UUID time, String tenantId, MetricType<?> type,
+            UUID source);
+
+    /**
+     * @return Changes of the bucket after the given time, rows in order time, tenant_id, type, source
+     */
+    Observable<Row> findMetricDefinitionChanges(long bucket, UUID after);
+
     <T> Observable<ResultSet> deleteAndInsertCompressedGauge(MetricId<T> id, long timeslice,
                                                              CompressedPointContainer cpc,
                                                              long sliceStart, long sliceEnd, int ttl);
 
+    /**
+     * Stores the expiration time of the metric and adds the metric to the expiration bucket of the time, the metric
+     * expiration job range scans the buckets instead of the whole index.
+     */
     <T> Observable<ResultSet> updateMetricExpirationIndex(MetricId<T> id, long expirationTime);
 
     <T> Observable<ResultSet> deleteFromMetricExpirationIndex(MetricId<T> id);
 
     <T> Observable<Row> findMetricExpiration(MetricId<T> id);
 
+    /**
+     * Sets the writer used for the batched data point inserts. It is set once, before the first insert.
+     */
+    void setBatchWriter(BatchWriter batchWriter);
+
     void shutdown();
 }
@@ -30,14 +30,19 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
@@ -45,8 +50,11 @@ import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.hawkular.metrics.core.service.compress.CompressedPointContainer;
+import org.hawkular.metrics.core.service.compress.PointColumns;
 import org.hawkular.metrics.core.service.log.CoreLogger;
 import org.hawkular.metrics.core.service.log.CoreLogging;
+import org.hawkular.metrics.core.service.rollup.RollupPoint;
+import org.hawkular.metrics.core.service.rollup.RollupResolution;
 import org.hawkular.metrics.core.service.transformers.BatchStatementTransformer;
 import org.hawkular.metrics.core.service.transformers.BoundBatchStatementTransformer;
 import org.hawkular.metrics.datetime.DateTimeService;
@@ -66,9 +74,11 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.CodecRegistry;
 import com.datastax.driver.core.FunctionMetadata;
+import com.datastax.driver.core.Host;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.MaterializedViewMetadata;
 import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PagingState;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ProtocolVersion;
 import com.datastax.driver.core.ResultSet;
@@ -83,6 +93,7 @@ import com.datastax.driver.core.TokenRange;
 import com.datastax.driver.core.UserType;
 import com.datastax.driver.core.exceptions.DriverException;
 import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.utils.UUIDs;
 
 import rx.Observable;
 import rx.exceptions.Exceptions;
@@ -99,8 +110,18 @@ public class DataAccessImpl implements DataAccess {
     public static final String OUT_OF_ORDER_TABLE_NAME = "data_0";
     public static final String TEMP_TABLE_NAME_PROTOTYPE = "data_temp_";
     public static final String TEMP_TABLE_NAME_FORMAT_STRING = TEMP_TABLE_NAME_PROTOTYPE + "%s";
+    public static final String WAL_TABLE_NAME_PROTOTYPE = "data_wal_";
+    public static final String WAL_TABLE_NAME_FORMAT_STRING = WAL_TABLE_NAME_PROTOTYPE + "%s";
 
     public static final long DPART = 0;
+
+    /**
+     * Metrics are added to the expiration bucket of their expiration time, a bucket is split to shards by the metric
+     * id to keep the partitions small.
+     */
+    public static final long EXPIRATION_BUCKET_SIZE = TimeUnit.DAYS.toMillis(1);
+    public static final int EXPIRATION_BUCKET_SHARDS = 16;
+
     private Session session;
 
     private RxSession rxSession;
@@ -111,11 +132,20 @@ public class DataAccessImpl implements DataAccess {
     // See getMapKey(byte, int)
     private NavigableMap<Long, Map<Integer, PreparedStatement>> prepMap;
 
+    // Write-ahead log tables are MetricType agnostic, one map of statements per block
+    private NavigableMap<Long, Map<WalStatement, PreparedStatement>> walPrepMap;
+
     // TODO Move all of these to a new class (Cassandra specific temp table) to allow multiple implementations (such
     // as in-memory + WAL in Cassandra)
 
     private TemporaryTableStatementCreator tableCreator = null;
 
+    private volatile TokenRingIndex tokenRingIndex = null;
+
+    private TokenRingListener tokenRingListener = null;
+
+    private volatile BatchWriter batchWriter;
+
     private enum StatementType {
         READ, WRITE, SCAN, CREATE, DELETE
     }
@@ -132,7 +162,6 @@ public class DataAccessImpl implements DataAccess {
         INSERT_DATA(data, StatementType.WRITE),
         INSERT_DATA_WITH_TAGS(dataWithTags, StatementType.WRITE),
         CREATE_TABLE(TEMP_TABLE_BASE_CREATE, StatementType.CREATE),
-//        CREATE_WAL(TEMP_TABLE_WAL_CREATE, StatementType.CREATE);
         DELETE_DATA(DELETE_FROM_DATA_BASE, StatementType.DELETE);
 
         private final String statement;
@@ -152,6 +181,25 @@ public class DataAccessImpl implements DataAccess {
         }
     }
 
+    private enum WalStatement {
+        READ_DATA(walDataByMetricBase),
+        SCAN_WITH_TOKEN_RANGES(scanWalTableBase),
+        CHECK_EXISTENCE_OF_METRIC_IN_TABLE(findMetricInDataBase),
+        LIST_ALL_METRICS_FROM_TABLE(findAllMetricsInDataBases),
+        INSERT_DATA(walData),
+        DELETE_DATA(DELETE_FROM_DATA_BASE);
+
+        private final String statement;
+
+        WalStatement(String st) {
+            statement = st;
+        }
+
+        public String getStatement() {
+            return statement;
+        }
+    }
+
     // Read statement prototypes
 
     private static String byDateRangeExclusiveBase =
@@ -194,20 +242,29 @@ public class DataAccessImpl implements DataAccess {
             "PRIMARY KEY ((tenant_id, type, metric), time)" +
             ") WITH CLUSTERING ORDER BY (time DESC)";
 
-    // For in-memory buffering
-    /*
+    // For in-memory buffering, each row is one flush of the write buffer for a single metric. Rows written at the
+    // same millisecond by different nodes must not overwrite each other, thus timeuuid instead of timestamp.
     private static String TEMP_TABLE_WAL_CREATE = "CREATE TABLE %s (" +
             "tenant_id text, " +
             "type tinyint, " +
             "metric text, " +
-            "dpart bigint, " +
-            "time timestamp, " +
+            "time timeuuid, " +
             "count int, " +
             "value blob, " +
             "tags blob, " +
             "PRIMARY KEY ((tenant_id, type, metric), time) " +
-            ") WITH CLUSTERING ORDER BY (time DESC)";
-    */
+            ") WITH CLUSTERING ORDER BY (time ASC)";
+
+    private static String walDataByMetricBase =
+            "SELECT time, count, value, tags FROM %s " +
+                    "WHERE tenant_id = ? AND type = ? AND metric = ?";
+
+    private static String scanWalTableBase =
+            "SELECT tenant_id, type, metric, time, count, value, tags, token(tenant_id, type, metric) FROM %s " +
+                    "WHERE token(tenant_id, type, metric) > ? AND token(tenant_id, type, metric) <= ?";
+
+    private static String walData = "INSERT INTO %s (tenant_id, type, metric, time, count, value, tags) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
 
     // Insert statement prototypes
 
@@ -269,6 +326,10 @@ public class DataAccessImpl implements DataAccess {
 
     private PreparedStatement insertCompressedDataWithTags;
 
+    private PreparedStatement findCompressedBlock;
+
+    private PreparedStatement updateCompressedData;
+
     private PreparedStatement insertStringData;
 
     private PreparedStatement insertStringDataUsingTTL;
@@ -285,6 +346,15 @@ public class DataAccessImpl implements DataAccess {
 
     private PreparedStatement findCompressedDataByDateRangeExclusiveWithLimitASC;
 
+    private Map<RollupResolution, PreparedStatement> insertRollup = new EnumMap<>(RollupResolution.class);
+
+    private Map<RollupResolution, PreparedStatement> findRollupsByDateRangeExclusiveASC =
+            new EnumMap<>(RollupResolution.class);
+
+    private PreparedStatement insertMetricDefinitionChange;
+
+    private PreparedStatement findMetricDefinitionChanges;
+
     private PreparedStatement findStringDataByDateRangeExclusive;
 
     private PreparedStatement findStringDataByDateRangeExclusiveWithLimit;
@@ -321,12 +391,40 @@ public class DataAccessImpl implements DataAccess {
 
     private PreparedStatement findMetricsByTagNameValue;
 
+    private PreparedStatement findMetricsByTagNameValueRange;
+
+    private PreparedStatement findTagValueType;
+
+    private PreparedStatement findTagCompletionNames;
+
+    private PreparedStatement findTagCompletionValues;
+
+    private PreparedStatement insertTagCompletionName;
+
+    private PreparedStatement insertTagCompletionValue;
+
+    private PreparedStatement deleteTagCompletionName;
+
+    private PreparedStatement deleteTagCompletionValue;
+
     private PreparedStatement updateMetricExpirationIndex;
 
     private PreparedStatement deleteFromMetricExpirationIndex;
 
     private PreparedStatement findMetricExpiration;
 
+    private PreparedStatement insertExpirationBucket;
+
+    private PreparedStatement findCompressedRanges;
+
+    private PreparedStatement insertCompressedRange;
+
+    private PreparedStatement deleteCompressedRanges;
+
+    private PreparedStatement findOutOfOrderData;
+
+    private PreparedStatement deleteOutOfOrderData;
+
     private static DateTimeFormatter TEMP_TABLE_DATEFORMATTER = (new DateTimeFormatterBuilder())
             .appendValue(ChronoField.YEAR, 4)
             .appendValue(ChronoField.MONTH_OF_YEAR, 2)
@@ -345,6 +443,9 @@ public class DataAccessImpl implements DataAccess {
 
         initPreparedStatements();
         initializeTemporaryTableStatements();
+
+        tokenRingListener = new TokenRingListener();
+        session.getCluster().register(tokenRingListener);
     }
 
     /**
@@ -415,6 +516,14 @@ public class DataAccessImpl implements DataAccess {
         prepMap.put(mapKey, statementMap);
     }
 
+    void prepareWalStatements(String tableName, Long mapKey) {
+        Map<WalStatement, PreparedStatement> statementMap = new EnumMap<>(WalStatement.class);
+        for (WalStatement st : WalStatement.values()) {
+            statementMap.put(st, session.prepare(String.format(st.getStatement(), tableName)));
+        }
+        walPrepMap.put(mapKey, statementMap);
+    }
+
     @Override
     public Observable<ResultSet> createTempTablesIfNotExists(final Set<Long> timestamps) {
         return Observable.fromCallable(() -> {
@@ -436,6 +545,25 @@ public class DataAccessImpl implements DataAccess {
                 .concatMap(this::createTemporaryTable);
     }
 
+    @Override
+    public Observable<ResultSet> createWalTablesIfNotExists(final Set<Long> timestamps) {
+        return Observable.fromCallable(() -> {
+            Set<String> tables = timestamps.stream()
+                    .map(this::getWalTableName)
+                    .collect(Collectors.toSet());
+
+            metadata.getKeyspace(session.getLoggedKeyspace()).getTables().stream()
+                    .map(AbstractTableMetadata::getName)
+                    .filter(t -> t.startsWith(WAL_TABLE_NAME_PROTOTYPE))
+                    .forEach(tables::remove);
+
+            return tables;
+        })
+                .flatMapIterable(s -> s)
+                .zipWith(Observable.interval(300, TimeUnit.MILLISECONDS), (st, l) -> st)
+                .concatMap(t -> rxSession.execute(String.format(TEMP_TABLE_WAL_CREATE, t)));
+    }
+
     Observable<ResultSet> createTemporaryTable(String tempTableName) {
         return Observable.just(tempTableName)
                 .map(t -> new SimpleStatement(String.format(TempStatement.CREATE_TABLE.getStatement(), t)))
@@ -444,6 +572,7 @@ public class DataAccessImpl implements DataAccess {
 
     private void initializeTemporaryTableStatements() {
         prepMap = new ConcurrentSkipListMap<>();
+        walPrepMap = new ConcurrentSkipListMap<>();
         setTempTableCreator(new TemporaryTableStatementCreator());
 
         boolean zeroTableExists = false;
@@ -454,6 +583,8 @@ public class DataAccessImpl implements DataAccess {
                 // Proceed to create the preparedStatements against this table
                 Long mapKey = tableToMapKey(table.getName());
                 prepareTempStatements(table.getName(), mapKey);
+            } else if(table.getName().startsWith(WAL_TABLE_NAME_PROTOTYPE)) {
+                prepareWalStatements(table.getName(), tableToMapKey(table.getName()));
             } else if(table.getName().equals(OUT_OF_ORDER_TABLE_NAME)) {
                 zeroTableExists = true;
             }
@@ -473,6 +604,16 @@ public class DataAccessImpl implements DataAccess {
         // Prepare the old fashioned way (data table) as fallback when out-of-order writes happen..
         // These should be transparent in writes
         prepareTempStatements(OUT_OF_ORDER_TABLE_NAME, 0L); // Fall back is always at value 0 (floorKey/floorEntry will hit it)
+
+        // The late data merge job deletes only the versions it has read, a point overwritten meanwhile is kept
+        findOutOfOrderData = session.prepare(String.format(
+                "SELECT tenant_id, type, metric, time, n_value, availability, l_value, tags, token(tenant_id, type, " +
+                        "metric), writetime(n_value), writetime(availability), writetime(l_value) FROM %s " +
+                        "WHERE token(tenant_id, type, metric) > ? AND token(tenant_id, type, metric) <= ?",
+                OUT_OF_ORDER_TABLE_NAME));
+        deleteOutOfOrderData = session.prepare(String.format(
+                "DELETE FROM %s USING TIMESTAMP ? WHERE tenant_id = ? AND type = ? AND metric = ? AND time = ?",
+                OUT_OF_ORDER_TABLE_NAME));
     }
 
     private String metricTypeToColumnName(MetricType<?> type) {
@@ -587,6 +728,17 @@ public class DataAccessImpl implements DataAccess {
                         "SET c_value = ?, tags = ? " +
                         "WHERE tenant_id = ? AND type = ? AND metric = ? AND dpart = ? AND time = ? ");
 
+        findCompressedBlock = session.prepare(
+                "SELECT c_value, tags, version FROM data_compressed " +
+                        "WHERE tenant_id = ? AND type = ? AND metric = ? AND dpart = ? AND time = ?");
+
+        updateCompressedData = session.prepare(
+                "UPDATE data_compressed " +
+                        "USING TTL ? " +
+                        "SET c_value = ?, tags = ?, version = ? " +
+                        "WHERE tenant_id = ? AND type = ? AND metric = ? AND dpart = ? AND time = ? " +
+                        "IF version = ?");
+
         insertStringData = session.prepare(
             "UPDATE data " +
             "SET s_value = ? " +
@@ -629,6 +781,25 @@ public class DataAccessImpl implements DataAccess {
                         " AND time < ? ORDER BY time ASC" +
                         " LIMIT ?");
 
+        for (RollupResolution resolution : RollupResolution.values()) {
+            insertRollup.put(resolution, session.prepare(
+                    "INSERT INTO " + resolution.getTableName() + " " +
+                            "(tenant_id, type, metric, time, min, max, sum, samples, sketch) " +
+                            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+                            "USING TTL ?"));
+
+            findRollupsByDateRangeExclusiveASC.put(resolution, session.prepare(
+                    "SELECT time, min, max, sum, samples, sketch FROM " + resolution.getTableName() +
+                            " WHERE tenant_id = ? AND type = ? AND metric = ? AND time >= ? AND time < ?" +
+                            " ORDER BY time ASC"));
+        }
+
+        insertMetricDefinitionChange = session.prepare(
+                "INSERT INTO metrics_idx_changes (bucket, time, tenant_id, type, source) VALUES (?, ?, ?, ?, ?)");
+
+        findMetricDefinitionChanges = session.prepare(
+                "SELECT time, tenant_id, type, source FROM metrics_idx_changes WHERE bucket = ? AND time > ?");
+
         findStringDataByDateRangeExclusive = session.prepare(
             "SELECT time, s_value, tags FROM data " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND dpart = ? AND time >= ? AND time < ?");
@@ -690,6 +861,37 @@ public class DataAccessImpl implements DataAccess {
                 "FROM metrics_tags_idx " +
                 "WHERE tenant_id = ? AND tname = ? AND tvalue = ?");
 
+        findMetricsByTagNameValueRange = session.prepare(
+                "SELECT tenant_id, type, metric, tvalue " +
+                "FROM metrics_tags_idx " +
+                "WHERE tenant_id = ? AND tname = ? AND tvalue >= ? AND tvalue < ?");
+
+        findTagValueType = session.prepare(
+                "SELECT type " +
+                "FROM metrics_tags_idx " +
+                "WHERE tenant_id = ? AND tname = ? AND tvalue = ? AND type = ? " +
+                "LIMIT 1");
+
+        findTagCompletionNames = session.prepare(
+                "SELECT tname, type FROM tag_names_idx WHERE tenant_id = ?");
+
+        findTagCompletionValues = session.prepare(
+                "SELECT tvalue, type FROM tag_values_idx WHERE tenant_id = ? AND tname = ?");
+
+        insertTagCompletionName = session.prepare(
+                "INSERT INTO tag_names_idx (tenant_id, tname, type) VALUES (?, ?, ?)");
+
+        insertTagCompletionValue = session.prepare(
+                "INSERT INTO tag_values_idx (tenant_id, tname, tvalue, type) VALUES (?, ?, ?, ?)");
+
+        deleteTagCompletionName = session.prepare(
+                "DELETE FROM tag_names_idx USING TIMESTAMP ? " +
+                "WHERE tenant_id = ? AND tname = ? AND type = ?");
+
+        deleteTagCompletionValue = session.prepare(
+                "DELETE FROM tag_values_idx USING TIMESTAMP ? " +
+                "WHERE tenant_id = ? AND tname = ? AND tvalue = ? AND type = ?");
+
         updateMetricExpirationIndex = session.prepare(
                 "INSERT INTO metrics_expiration_idx (tenant_id, type, metric, time) VALUES (?, ?, ?, ?)");
 
@@ -701,6 +903,18 @@ public class DataAccessImpl implements DataAccess {
                 "SELECT time " +
                 "FROM metrics_expiration_idx " +
                 "WHERE tenant_id = ? AND type = ? and metric = ?");
+
+        insertExpirationBucket = session.prepare(
+                "INSERT INTO metrics_expiration_buckets (bucket, shard, tenant_id, type, metric) " +
+                "VALUES (?, ?, ?, ?, ?)");
+
+        findCompressedRanges = session.prepare(
+                "SELECT start_token, end_token FROM compressed_token_ranges WHERE time_slice = ? AND phase = ?");
+
+        insertCompressedRange = session.prepare(
+                "INSERT INTO compressed_token_ranges (time_slice, phase, start_token, end_token) VALUES (?, ?, ?, ?)");
+
+        deleteCompressedRanges = session.prepare("DELETE FROM compressed_token_ranges WHERE time_slice = ?");
     }
 
     @Override
@@ -743,6 +957,7 @@ public class DataAccessImpl implements DataAccess {
     @Override
     public <T> Observable<Row> findMetricInData(MetricId<T> id) {
         return getPrepForAllTempTables(TempStatement.CHECK_EXISTENCE_OF_METRIC_IN_TABLE)
+                .concatWith(getPrepForAllWalTables(WalStatement.CHECK_EXISTENCE_OF_METRIC_IN_TABLE))
                 .map(b -> b.bind(id.getTenantId(), id.getType().getCode(), id.getName()))
                 .flatMap(b -> rxSession.executeAndFetch(b))
                 .concatWith(rxSession.executeAndFetch(findMetricInData
@@ -802,6 +1017,42 @@ public class DataAccessImpl implements DataAccess {
                 .compose(applyWriteRetryPolicy("Failed to delete metric tags for metric id " + metricId));
     }
 
+    @Override
+    public Observable<Integer> updateTags(Observable<TagsUpdate> updates, int maxConcurrency) {
+        return updates
+                .flatMapIterable(this::bindTagsUpdate)
+                .groupBy(b -> Arrays.asList(b.preparedStatement().getVariables().getTable(0),
+                        b.getRoutingKey(ProtocolVersion.NEWEST_SUPPORTED, codecRegistry)))
+                .flatMap(partition -> partition.buffer(BoundBatchStatementTransformer.DEFAULT_BATCH_SIZE))
+                .flatMap(statements -> {
+                    BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+                    batch.addAll(statements);
+                    return rxSession.execute(batch)
+                            .compose(applyWriteRetryPolicy("Failed to write batch of metric tags"))
+                            .map(resultSet -> statements.size());
+                }, maxConcurrency);
+    }
+
+    private List<BoundStatement> bindTagsUpdate(TagsUpdate update) {
+        MetricId<?> id = update.getMetricId();
+        List<BoundStatement> statements = new ArrayList<>();
+        Set<String> removed = new HashSet<>(update.getDeleted().keySet());
+        removed.removeAll(update.getAdded().keySet());
+        if (!removed.isEmpty()) {
+            statements.add(deleteTagsFromMetricsIndex.bind(removed, id.getTenantId(), id.getType().getCode(),
+                    id.getName()));
+        }
+        if (!update.getAdded().isEmpty()) {
+            statements.add(addTagsToMetricsIndex.bind(update.getAdded(), id.getTenantId(), id.getType().getCode(),
+                    id.getName()));
+        }
+        update.getDeleted().forEach((name, value) -> statements.add(deleteMetricsTagsIndex.bind(id.getTenantId(),
+                name, value, id.getType().getCode(), id.getName())));
+        update.getAdded().forEach((name, value) -> statements.add(insertMetricsTagsIndex.bind(id.getTenantId(),
+                name, value, id.getType().getCode(), id.getName())));
+        return statements;
+    }
+
     @Override
     public <T> Observable<ResultSet> deleteFromMetricsIndexAndTags(MetricId<T> id, Map<String, String> tags) {
         BatchStatement batch = new BatchStatement(BatchStatement.Type.LOGGED);
@@ -827,6 +1078,20 @@ public class DataAccessImpl implements DataAccess {
         return rxSession.executeAndFetch(readMetricsIndex.bind(tenantId, type.getCode()));
     }
 
+    @Override
+    public <T> Observable<ResultSet> findMetricsInMetricsIndex(String tenantId, MetricType<T> type, int fetchSize,
+            PagingState pagingState) {
+        return rxSession.execute(paged(readMetricsIndex.bind(tenantId, type.getCode()), fetchSize, pagingState));
+    }
+
+    private static BoundStatement paged(BoundStatement statement, int fetchSize, PagingState pagingState) {
+        statement.setFetchSize(fetchSize);
+        if (pagingState != null) {
+            statement.setPagingState(pagingState);
+        }
+        return statement;
+    }
+
     /**
      * Fetch all the data from a temporary table for the compression job. Using TokenRanges avoids fetching first
      * all the metrics' partition keys and then requesting them.
@@ -850,15 +1115,46 @@ public class DataAccessImpl implements DataAccess {
         }
 
         return Observable.from(getTokenRanges())
-                .map(tr -> rxSession.executeAndFetch(
-                        getTempStatement(MetricType.UNDEFINED, TempStatement.SCAN_WITH_TOKEN_RANGES, timestamp)
-                                .bind()
-                                .setToken(0, tr.getStart())
-                                .setToken(1, tr.getEnd())
-                                .setFetchSize(pageSize)));
+                .map(tr -> findDataFromBucket(timestamp, tr, pageSize));
     }
 
-    private Set<TokenRange> getTokenRanges() {
+    @Override
+    public Observable<Row> findDataFromBucket(long timestamp, TokenRange range, int pageSize) {
+        PreparedStatement ts =
+                getTempStatement(MetricType.UNDEFINED, TempStatement.SCAN_WITH_TOKEN_RANGES, timestamp);
+        if(ts == null || prepMap.floorKey(timestamp) == 0L) {
+            return Observable.empty();
+        }
+
+        return rxSession.executeAndFetch(ts.bind()
+                .setToken(0, range.getStart())
+                .setToken(1, range.getEnd())
+                .setFetchSize(pageSize));
+    }
+
+    private TokenRingIndex getTokenRingIndex() {
+        TokenRingIndex index = tokenRingIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = tokenRingIndex;
+                if (index == null) {
+                    index = TokenRingIndex.build(metadata, session.getLoggedKeyspace());
+                    tokenRingIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Drops the token ring index, it's rebuilt on the next write
+     */
+    void invalidateTokenRingIndex() {
+        tokenRingIndex = null;
+    }
+
+    @Override
+    public Set<TokenRange> getTokenRanges() {
         Set<TokenRange> tokenRanges = new HashSet<>();
         for (TokenRange tokenRange : metadata.getTokenRanges()) {
             tokenRanges.addAll(tokenRange.unwrap());
@@ -873,6 +1169,88 @@ public class DataAccessImpl implements DataAccess {
         return rxSession.execute(dropCQL);
     }
 
+    @Override
+    public long getUncompressedDataStart() {
+        // Key 0 is the out-of-order table, it is never compressed
+        Long tempStart = prepMap.higherKey(0L);
+        Long walStart = walPrepMap.higherKey(0L);
+        return Math.min(tempStart == null ? Long.MAX_VALUE : tempStart, walStart == null ? Long.MAX_VALUE : walStart);
+    }
+
+    /**
+     * Fetch all the write-ahead log rows of a block for the compression job, split by token ranges in the same way
+     * as findAllDataFromBucket.
+     */
+    @Override
+    public Observable<Observable<Row>> findAllWalDataFromBucket(long timestamp, int pageSize, int maxConcurrency) {
+        PreparedStatement ts = getWalStatement(WalStatement.SCAN_WITH_TOKEN_RANGES, timestamp);
+        if(ts == null) {
+            return Observable.empty();
+        }
+
+        return Observable.from(getTokenRanges())
+                .map(tr -> findWalDataFromBucket(timestamp, tr, pageSize));
+    }
+
+    @Override
+    public Observable<Row> findWalDataFromBucket(long timestamp, TokenRange range, int pageSize) {
+        PreparedStatement ts = getWalStatement(WalStatement.SCAN_WITH_TOKEN_RANGES, timestamp);
+        if(ts == null) {
+            return Observable.empty();
+        }
+
+        return rxSession.executeAndFetch(ts.bind()
+                .setToken(0, range.getStart())
+                .setToken(1, range.getEnd())
+                .setFetchSize(pageSize));
+    }
+
+    @Override
+    public Observable<TokenRange> findCompressedRanges(long timeslice, byte phase) {
+        return rxSession.executeAndFetch(findCompressedRanges.bind(new Date(timeslice), phase))
+                .map(row -> metadata.newTokenRange(metadata.newToken(row.getString(0)),
+                        metadata.newToken(row.getString(1))));
+    }
+
+    /**
+     * The tokens are stored in the partitioner's string form, which {@link Metadata#newToken(String)} parses back
+     */
+    @Override
+    public Observable<ResultSet> insertCompressedRange(long timeslice, byte phase, TokenRange range) {
+        return rxSession.execute(insertCompressedRange.bind(new Date(timeslice), phase,
+                range.getStart().toString(), range.getEnd().toString()));
+    }
+
+    @Override
+    public Observable<ResultSet> deleteCompressedRanges(long timeslice) {
+        return rxSession.execute(deleteCompressedRanges.bind(new Date(timeslice)));
+    }
+
+    @Override
+    public Observable<Row> findOutOfOrderData(TokenRange range, int pageSize) {
+        return rxSession.executeAndFetch(findOutOfOrderData.bind()
+                .setToken(0, range.getStart())
+                .setToken(1, range.getEnd())
+                .setFetchSize(pageSize));
+    }
+
+    @Override
+    public <T> Observable<ResultSet> deleteOutOfOrderData(MetricId<T> id, long timestamp, long writeTime) {
+        return rxSession.execute(deleteOutOfOrderData.bind(writeTime, id.getTenantId(), id.getType().getCode(),
+                id.getName(), new Date(timestamp)));
+    }
+
+    @Override
+    public Observable<ResultSet> dropWalTable(long timestamp) {
+        String dropCQL = String.format("DROP TABLE IF EXISTS %s", getWalTableName(timestamp));
+        return rxSession.execute(dropCQL);
+    }
+
+    private Observable<PreparedStatement> getPrepForAllWalTables(WalStatement ws) {
+        return Observable.from(walPrepMap.values())
+                .map(pMap -> pMap.get(ws));
+    }
+
     private Observable<PreparedStatement> getPrepForAllTempTables(TempStatement ts) {
         return Observable.from(prepMap.entrySet())
                 .map(Map.Entry::getValue)
@@ -883,6 +1261,7 @@ public class DataAccessImpl implements DataAccess {
     @Override
     public Observable<Row> findAllMetricsInData() {
         return getPrepForAllTempTables(TempStatement.LIST_ALL_METRICS_FROM_TABLE)
+                .concatWith(getPrepForAllWalTables(WalStatement.LIST_ALL_METRICS_FROM_TABLE))
                 .map(PreparedStatement::bind)
                 .flatMap(b -> rxSession.executeAndFetch(b))
                 .concatWith(
@@ -891,28 +1270,16 @@ public class DataAccessImpl implements DataAccess {
     }
 
     /*
-     * Applies micro-batching capabilities by taking advantage of token ranges in the Cassandra
+     * Applies micro-batching capabilities by taking advantage of token ranges in the Cassandra. Statements are
+     * grouped by the replica set owning their token, so each batch touches only a single set of replicas. The
+     * BatchWriter limits the amount of in-flight batches per host, which is the primary replica of the set.
      */
     private Observable.Transformer<BoundStatement, Integer> applyMicroBatching() {
-        return tObservable -> tObservable
-                .groupBy(b -> {
-                    ByteBuffer routingKey = b.getRoutingKey(ProtocolVersion.NEWEST_SUPPORTED,
-                            codecRegistry);
-                    Token token = metadata.newToken(routingKey);
-                    for (TokenRange tokenRange : session.getCluster().getMetadata().getTokenRanges()) {
-                        if (tokenRange.contains(token)) {
-                            return tokenRange;
-                        }
-                    }
-                    log.warn("Unable to find any Cassandra node to insert token " + token.toString());
-                    return session.getCluster().getMetadata().getTokenRanges().iterator().next();
-                })
-                .flatMap(g -> g.compose(new BoundBatchStatementTransformer()))
-                .flatMap(batch -> rxSession
-                        .execute(batch)
-                        .compose(applyWriteRetryPolicy("Failed to insert batch of data points"))
-                        .map(resultSet -> batch.size())
-                );
+        return getBatchWriter().write(b -> {
+            ByteBuffer routingKey = b.getRoutingKey(ProtocolVersion.NEWEST_SUPPORTED, codecRegistry);
+            Token token = metadata.newToken(routingKey);
+            return getTokenRingIndex().getReplicaGroup(token);
+        }, group -> getTokenRingIndex().getPrimaryReplica(group));
     }
 
     /*
@@ -939,8 +1306,10 @@ public class DataAccessImpl implements DataAccess {
     }
 
     Long tableToMapKey(String tableName) {
+        String prototype = tableName.startsWith(WAL_TABLE_NAME_PROTOTYPE) ? WAL_TABLE_NAME_PROTOTYPE
+                : TEMP_TABLE_NAME_PROTOTYPE;
         LocalDateTime parsed = LocalDateTime
-                .parse(tableName.substring(TEMP_TABLE_NAME_PROTOTYPE.length()),
+                .parse(tableName.substring(prototype.length()),
                         TEMP_TABLE_DATEFORMATTER);
         return Long.valueOf(parsed.toInstant(ZoneOffset.UTC).toEpochMilli());
     }
@@ -952,6 +1321,24 @@ public class DataAccessImpl implements DataAccess {
                 .format(TEMP_TABLE_DATEFORMATTER));
     }
 
+    String getWalTableName(long timestamp) {
+        return String.format(WAL_TABLE_NAME_FORMAT_STRING,
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(timestamp), UTC)
+                        .with(DateTimeService.startOfPreviousEvenHour())
+                        .format(TEMP_TABLE_DATEFORMATTER));
+    }
+
+    /**
+     * WAL tables have no fallback table, the timestamp must be inside an existing block
+     */
+    private PreparedStatement getWalStatement(WalStatement ws, long timestamp) {
+        Map.Entry<Long, Map<WalStatement, PreparedStatement>> floorEntry = walPrepMap.floorEntry(timestamp);
+        if(floorEntry != null && timestamp - floorEntry.getKey() < TimeUnit.HOURS.toMillis(2)) {
+            return floorEntry.getValue().get(ws);
+        }
+        return null;
+    }
+
     PreparedStatement getTempStatement(MetricType type, TempStatement ts, long timestamp) {
         Map.Entry<Long, Map<Integer, PreparedStatement>> floorEntry = prepMap
                 .floorEntry(timestamp);
@@ -971,6 +1358,38 @@ public class DataAccessImpl implements DataAccess {
                 .compose(applyMicroBatching());
     }
 
+    @Override
+    public Observable<Integer> insertWalData(long timeslice, Map<MetricId<?>, PointColumns> columns) {
+        PreparedStatement insert = getWalStatement(WalStatement.INSERT_DATA, timeslice);
+        if(insert == null) {
+            // No log for this block (out-of-order write or the table is not yet created), write to temp tables
+            return insertColumnsToTempTables(columns);
+        }
+
+        return Observable.from(columns.entrySet())
+                .filter(e -> !e.getValue().isEmpty())
+                .map(e -> {
+                    MetricId<?> id = e.getKey();
+                    PointColumns pc = e.getValue().sort();
+                    return insert.bind(id.getTenantId(), id.getType().getCode(), id.getName(), UUIDs.timeBased(),
+                            pc.size(), pc.encodeValues(), pc.encodeTags());
+                })
+                .compose(applyMicroBatching());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Observable<Integer> insertColumnsToTempTables(Map<MetricId<?>, PointColumns> columns) {
+        return Observable.from(columns.entrySet())
+                .flatMap(e -> {
+                    MetricId id = e.getKey();
+                    List<DataPoint> dataPoints = e.getValue().sort()
+                            .toDataPoints(id.getType(), Long.MIN_VALUE, Long.MAX_VALUE, Order.ASC);
+                    return Observable.from(dataPoints)
+                            .compose(mapTempInsertStatement(new Metric(id, dataPoints)));
+                })
+                .compose(applyMicroBatching());
+    }
+
     @SuppressWarnings("unchecked")
     private <T> Observable.Transformer<DataPoint<T>, BoundStatement> mapTempInsertStatement(Metric<T> metric) {
         MetricType<T> type = metric.getMetricId().getType();
@@ -1212,6 +1631,23 @@ public class DataAccessImpl implements DataAccess {
         }
     }
 
+    @Override
+    public <T> Observable<Row> findWalData(MetricId<T> id, long startTime, long endTime) {
+        Long startKey = walPrepMap.floorKey(startTime);
+        if(startKey == null) {
+            startKey = walPrepMap.ceilingKey(startTime);
+        }
+        Long endKey = walPrepMap.floorKey(endTime);
+        if(startKey == null || endKey == null || endKey < startKey) {
+            return Observable.empty();
+        }
+
+        return Observable.from(walPrepMap.subMap(startKey, true, endKey, true).values())
+                .map(m -> m.get(WalStatement.READ_DATA))
+                .concatMap(p -> rxSession.executeAndFetch(p.bind(id.getTenantId(), id.getType().getCode(),
+                        id.getName())));
+    }
+
     @Override
     public Observable<Row> findStringData(MetricId<String> id, long startTime, long endTime, int limit, Order order,
             int pageSize) {
@@ -1245,6 +1681,7 @@ public class DataAccessImpl implements DataAccess {
         }
 
         return getPrepForAllTempTables(TempStatement.DELETE_DATA)
+                .concatWith(getPrepForAllWalTables(WalStatement.DELETE_DATA))
                 .flatMap(p -> rxSession.execute(p.bind(id.getTenantId(), id.getType().getCode(), id.getName())));
     }
 
@@ -1283,11 +1720,68 @@ public class DataAccessImpl implements DataAccess {
         return rxSession.executeAndFetch(findMetricsByTagName.bind(tenantId, tag));
     }
 
+    @Override
+    public Observable<ResultSet> findMetricsByTagName(String tenantId, String tag, int fetchSize,
+            PagingState pagingState) {
+        return rxSession.execute(paged(findMetricsByTagName.bind(tenantId, tag), fetchSize, pagingState));
+    }
+
     @Override
     public Observable<Row> findMetricsByTagNameValue(String tenantId, String tag, String tvalue) {
         return rxSession.executeAndFetch(findMetricsByTagNameValue.bind(tenantId, tag, tvalue));
     }
 
+    @Override
+    public Observable<Row> findMetricsByTagNameValueRange(String tenantId, String tag, String from, String to) {
+        return rxSession.executeAndFetch(findMetricsByTagNameValueRange.bind(tenantId, tag, from, to));
+    }
+
+    @Override
+    public Observable<Boolean> hasTagValue(String tenantId, MetricType<?> type, String tag, String tvalue) {
+        return rxSession.executeAndFetch(findTagValueType.bind(tenantId, tag, tvalue, type.getCode()))
+                .isEmpty()
+                .map(empty -> !empty);
+    }
+
+    @Override
+    public Observable<Row> findTagCompletionNames(String tenantId) {
+        return rxSession.executeAndFetch(findTagCompletionNames.bind(tenantId));
+    }
+
+    @Override
+    public Observable<Row> findTagCompletionValues(String tenantId, String tag) {
+        return rxSession.executeAndFetch(findTagCompletionValues.bind(tenantId, tag));
+    }
+
+    @Override
+    public Observable<ResultSet> insertTagCompletionName(String tenantId, MetricType<?> type, String tag) {
+        return rxSession.execute(insertTagCompletionName.bind(tenantId, tag, type.getCode()))
+                .compose(applyWriteRetryPolicy("Failed to insert tag name " + tag + " of tenant " + tenantId));
+    }
+
+    @Override
+    public Observable<ResultSet> insertTagCompletionValue(String tenantId, MetricType<?> type, String tag,
+            String tvalue) {
+        return rxSession.execute(insertTagCompletionValue.bind(tenantId, tag, tvalue, type.getCode()))
+                .compose(applyWriteRetryPolicy("Failed to insert tag value " + tag + ":" + tvalue + " of tenant "
+                        + tenantId));
+    }
+
+    @Override
+    public Observable<ResultSet> deleteTagCompletionName(String tenantId, MetricType<?> type, String tag,
+            long timestamp) {
+        return rxSession.execute(deleteTagCompletionName.bind(timestamp, tenantId, tag, type.getCode()))
+                .compose(applyWriteRetryPolicy("Failed to delete tag name " + tag + " of tenant " + tenantId));
+    }
+
+    @Override
+    public Observable<ResultSet> deleteTagCompletionValue(String tenantId, MetricType<?> type, String tag,
+            String tvalue, long timestamp) {
+        return rxSession.execute(deleteTagCompletionValue.bind(timestamp, tenantId, tag, tvalue, type.getCode()))
+                .compose(applyWriteRetryPolicy("Failed to delete tag value " + tag + ":" + tvalue + " of tenant "
+                        + tenantId));
+    }
+
     @Override
     public <T> ResultSetFuture updateRetentionsIndex(Metric<T> metric) {
         return session.executeAsync(updateRetentionsIndex.bind(metric.getMetricId().getTenantId(),
@@ -1331,6 +1825,50 @@ public class DataAccessImpl implements DataAccess {
         return rxSession.execute(b);
     }
 
+    @Override
+    public Observable<Row> findCompressedBlock(MetricId<?> id, long timeslice) {
+        return rxSession.executeAndFetch(findCompressedBlock.bind(id.getTenantId(), id.getType().getCode(),
+                id.getName(), DPART, new Date(timeslice)));
+    }
+
+    @Override
+    public <T> Observable<ResultSet> updateCompressedData(MetricId<T> id, long timeslice,
+                                                          CompressedPointContainer cpc, int ttl, Integer version) {
+        return rxSession.execute(updateCompressedData.bind(ttl, cpc.getValueBuffer(), cpc.getTagsBuffer(),
+                version == null ? 1 : version + 1, id.getTenantId(), id.getType().getCode(), id.getName(), DPART,
+                new Date(timeslice), version));
+    }
+
+    @Override
+    public <T> Observable<Integer> insertRollups(MetricId<T> id, Map<RollupResolution, List<RollupPoint>> rollups,
+                                                 int ttl) {
+        return Observable.from(rollups.entrySet())
+                .flatMap(e -> Observable.from(e.getValue())
+                        .map(rollup -> insertRollup.get(e.getKey()).bind(id.getTenantId(), id.getType().getCode(),
+                                id.getName(), new Date(rollup.getStart()), rollup.getMin(), rollup.getMax(),
+                                rollup.getSum(), rollup.getSamples(), rollup.getSketch().serialize(), ttl)))
+                .compose(applyMicroBatching());
+    }
+
+    @Override
+    public <T> Observable<Row> findRollups(MetricId<T> id, RollupResolution resolution, long startTime,
+                                           long endTime) {
+        return rxSession.executeAndFetch(findRollupsByDateRangeExclusiveASC.get(resolution).bind(id.getTenantId(),
+                id.getType().getCode(), id.getName(), new Date(startTime), new Date(endTime)));
+    }
+
+    @Override
+    public Observable<ResultSet> insertMetricDefinitionChange(long bucket, UUID time, String tenantId,
+            MetricType<?> type, UUID source) {
+        return rxSession.execute(insertMetricDefinitionChange.bind(new Date(bucket), time, tenantId, type.getCode(),
+                source));
+    }
+
+    @Override
+    public Observable<Row> findMetricDefinitionChanges(long bucket, UUID after) {
+        return rxSession.executeAndFetch(findMetricDefinitionChanges.bind(new Date(bucket), after));
+    }
+
     @Override
     public <T> Observable<ResultSet> deleteAndInsertCompressedGauge(MetricId<T> id, long timeslice,
                                                                     CompressedPointContainer cpc,
@@ -1354,7 +1892,19 @@ public class DataAccessImpl implements DataAccess {
     @Override
     public <T> Observable<ResultSet> updateMetricExpirationIndex(MetricId<T> id, long expirationTime) {
         return rxSession.execute(updateMetricExpirationIndex.bind(id.getTenantId(),
-                id.getType().getCode(), id.getName(), new Date(expirationTime)));
+                id.getType().getCode(), id.getName(), new Date(expirationTime)))
+                .mergeWith(rxSession.execute(insertExpirationBucket.bind(
+                        new Date(getExpirationBucket(expirationTime)), getExpirationShard(id), id.getTenantId(),
+                        id.getType().getCode(), id.getName())));
+    }
+
+    public static long getExpirationBucket(long expirationTime) {
+        return expirationTime - Math.floorMod(expirationTime, EXPIRATION_BUCKET_SIZE);
+    }
+
+    public static int getExpirationShard(MetricId<?> id) {
+        return Math.floorMod(Objects.hash(id.getTenantId(), id.getType().getCode(), id.getName()),
+                EXPIRATION_BUCKET_SHARDS);
     }
 
     @Override
@@ -1384,6 +1934,14 @@ public class DataAccessImpl implements DataAccess {
                 })
                         .subscribeOn(Schedulers.io())
                         .subscribe();
+            } else if(tableMetadata.getName().startsWith(WAL_TABLE_NAME_PROTOTYPE)) {
+                log.debugf("Registering prepared statements for table %s", tableMetadata.getName());
+                Observable.fromCallable(() -> {
+                    prepareWalStatements(tableMetadata.getName(), tableToMapKey(tableMetadata.getName()));
+                    return null;
+                })
+                        .subscribeOn(Schedulers.io())
+                        .subscribe();
             }
         }
 
@@ -1392,6 +1950,9 @@ public class DataAccessImpl implements DataAccess {
             if(tableMetadata.getName().startsWith(TEMP_TABLE_NAME_PROTOTYPE)) {
                 log.debugf("Removing prepared statements for table %s", tableMetadata.getName());
                 removeTempStatements(tableMetadata.getName());
+            } else if(tableMetadata.getName().startsWith(WAL_TABLE_NAME_PROTOTYPE)) {
+                log.debugf("Removing prepared statements for table %s", tableMetadata.getName());
+                walPrepMap.remove(tableToMapKey(tableMetadata.getName()));
             }
         }
 
@@ -1401,7 +1962,10 @@ public class DataAccessImpl implements DataAccess {
 
         @Override public void onKeyspaceRemoved(KeyspaceMetadata keyspaceMetadata) {}
 
-        @Override public void onKeyspaceChanged(KeyspaceMetadata keyspaceMetadata, KeyspaceMetadata keyspaceMetadata1) {}
+        @Override public void onKeyspaceChanged(KeyspaceMetadata keyspaceMetadata, KeyspaceMetadata keyspaceMetadata1) {
+            // Replication settings might have changed
+            invalidateTokenRingIndex();
+        }
 
 
         @Override public void onTableChanged(TableMetadata tableMetadata, TableMetadata tableMetadata1) {
@@ -1424,6 +1988,25 @@ public class DataAccessImpl implements DataAccess {
         @Override public void onUnregister(Cluster cluster) {}
     }
 
+    /**
+     * Token ownership changes only when nodes join or leave the ring, up/down status does not affect the replica sets
+     */
+    private class TokenRingListener implements Host.StateListener {
+
+        @Override public void onAdd(Host host) {
+            invalidateTokenRingIndex();
+        }
+
+        @Override public void onRemove(Host host) {
+            invalidateTokenRingIndex();
+        }
+
+        @Override public void onUp(Host host) {}
+        @Override public void onDown(Host host) {}
+        @Override public void onRegister(Cluster cluster) {}
+        @Override public void onUnregister(Cluster cluster) {}
+    }
+
     void removeTempStatements(String tableName) {
         // Find the integer key and remove from prepMap
         Long mapKey = tableToMapKey(tableName);
@@ -1433,6 +2016,31 @@ public class DataAccessImpl implements DataAccess {
     @Override public void shutdown() {
         session.getCluster().unregister(tableCreator);
         tableCreator = null;
+        session.getCluster().unregister(tokenRingListener);
+        tokenRingListener = null;
+    }
+
+    @Override
+    public void setBatchWriter(BatchWriter batchWriter) {
+        batchWriter.setRetryPolicy(applyWriteRetryPolicy("Failed to insert batch of data points"));
+        this.batchWriter = batchWriter;
+    }
+
+    /**
+     * The writer is normally set by the metrics service from its configuration before the first insert, only a
+     * DataAccessImpl used on its own falls back to a writer with the default settings.
+     */
+    private BatchWriter getBatchWriter() {
+        BatchWriter writer = batchWriter;
+        if (writer == null) {
+            synchronized (this) {
+                if (batchWriter == null) {
+                    setBatchWriter(new BatchWriter(rxSession));
+                }
+                writer = batchWriter;
+            }
+        }
+        return writer;
     }
 
     public void setTempTableCreator(TemporaryTableStatementCreator creator) {
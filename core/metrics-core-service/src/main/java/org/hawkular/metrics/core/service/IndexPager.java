@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.hawkular.metrics.core.service.transformers.MetricsIndexRowTransformer;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricType;
+import org.hawkular.metrics.model.exception.RuntimeApiError;
+
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.exceptions.PagingStateException;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.UnsignedBytes;
+
+import rx.Observable;
+
+/**
+ * Reads the metrics index and the tags index one page at a time. The Cassandra paging state of the next page is
+ * handed to the client in the page cursor, so nothing is kept on the server between the requests and a request holds
+ * at most one page of rows in memory.
+ */
+class IndexPager {
+
+    private static final byte CURSOR_VERSION = 0x01;
+    private static final byte NO_TYPE = -1;
+
+    /**
+     * Cassandra orders text clustering columns by their UTF-8 bytes
+     */
+    private static final Comparator<byte[]> TEXT_ORDER = UnsignedBytes.lexicographicalComparator();
+
+    private final DataAccess dataAccess;
+    private final int defaultTTL;
+
+    IndexPager(DataAccess dataAccess, int defaultTTL) {
+        this.dataAccess = dataAccess;
+        this.defaultTTL = defaultTTL;
+    }
+
+    /**
+     * Pages through the metrics_idx partitions of the requested types, ordered by type and metric name.
+     */
+    @SuppressWarnings("unchecked")
+    <T> Observable<Page<Metric<T>>> findMetrics(String tenantId, MetricType<T> metricType, int limit, String cursor) {
+        checkArgument(limit > 0, "Page size must be positive");
+        List<MetricType<T>> types = new ArrayList<>();
+        if (metricType == null) {
+            MetricType.userTypes().forEach(type -> types.add((MetricType<T>) type));
+        } else {
+            types.add(metricType);
+        }
+
+        return Observable.defer(() -> {
+            Cursor position = cursor == null ? new Cursor(types.get(0).getCode(), null, null) : Cursor.decode(cursor);
+            for (int i = 0; i < types.size(); i++) {
+                if (types.get(i).getCode() == position.type) {
+                    return readMetrics(tenantId, types, i, position.pagingState, limit, new ArrayList<>());
+                }
+            }
+            return Observable.<Page<Metric<T>>> error(invalidCursor(cursor));
+        }).onErrorResumeNext(t -> Observable.error(t instanceof PagingStateException ? invalidCursor(cursor) : t));
+    }
+
+    private <T> Observable<Page<Metric<T>>> readMetrics(String tenantId, List<MetricType<T>> types, int typeIndex,
+            PagingState pagingState, int limit, List<Metric<T>> metrics) {
+        MetricType<T> type = types.get(typeIndex);
+        return dataAccess.findMetricsInMetricsIndex(tenantId, type, limit - metrics.size(), pagingState)
+                .flatMap(resultSet -> Observable.from(availableRows(resultSet))
+                        .compose(new MetricsIndexRowTransformer<>(tenantId, type, defaultTTL))
+                        .toList()
+                        .flatMap(fetched -> {
+                            metrics.addAll(fetched);
+                            boolean full = metrics.size() >= limit;
+                            PagingState next = resultSet.getExecutionInfo().getPagingState();
+                            if (next != null) {
+                                return full ? Observable.just(page(metrics, type.getCode(), next, null))
+                                        : readMetrics(tenantId, types, typeIndex, next, limit, metrics);
+                            }
+                            if (typeIndex + 1 == types.size()) {
+                                return Observable.just(new Page<>(metrics, null));
+                            }
+                            return full ? Observable.just(page(metrics, types.get(typeIndex + 1).getCode(), null, null))
+                                    : readMetrics(tenantId, types, typeIndex + 1, null, limit, metrics);
+                        }));
+    }
+
+    /**
+     * Pages through the distinct values of the tag. The tags index is ordered by the tag value, so a value that has
+     * already been returned is skipped by comparing it to the last returned one.
+     *
+     * @param filter Regexp the values must match, a leading ! excludes the matching values instead. Null matches all.
+     */
+    Observable<Page<String>> findTagValues(String tenantId, MetricType<?> metricType, String tagName, String filter,
+            int limit, String cursor) {
+        checkArgument(limit > 0, "Page size must be positive");
+        return Observable.defer(() -> {
+            Pattern pattern = filter == null ? null : PatternUtil.filterPattern(filter);
+            boolean positive = filter == null || !filter.startsWith("!");
+            RowFilter rowFilter = row -> {
+                MetricType<?> type = MetricType.fromCode(row.getByte(1));
+                return ((metricType == null && type.isUserType()) || type == metricType)
+                        && (pattern == null || positive == pattern.matcher(row.getString(3)).matches());
+            };
+            Cursor position = cursor == null ? new Cursor(NO_TYPE, null, null) : Cursor.decode(cursor);
+            return readTagValues(tenantId, tagName, rowFilter, limit, position.pagingState, position.lastValue,
+                    new ArrayList<>());
+        }).onErrorResumeNext(t -> Observable.error(t instanceof PagingStateException ? invalidCursor(cursor) : t));
+    }
+
+    private Observable<Page<String>> readTagValues(String tenantId, String tagName, RowFilter rowFilter, int limit,
+            PagingState pagingState, String after, List<String> values) {
+        return dataAccess.findMetricsByTagName(tenantId, tagName, limit, pagingState)
+                .flatMap(resultSet -> {
+                    String previous = after;
+                    byte[] previousBytes = after == null ? null : after.getBytes(UTF_8);
+                    for (Row row : availableRows(resultSet)) {
+                        String value = row.getString(3);
+                        byte[] valueBytes = value.getBytes(UTF_8);
+                        if ((previousBytes != null && TEXT_ORDER.compare(valueBytes, previousBytes) <= 0)
+                                || !rowFilter.matches(row)) {
+                            continue;
+                        }
+                        if (values.size() == limit) {
+                            // The next page starts by reading the rest of these rows again
+                            return Observable.just(page(values, NO_TYPE, pagingState, previous));
+                        }
+                        values.add(value);
+                        previous = value;
+                        previousBytes = valueBytes;
+                    }
+                    PagingState next = resultSet.getExecutionInfo().getPagingState();
+                    if (next == null) {
+                        return Observable.just(new Page<>(values, null));
+                    }
+                    return readTagValues(tenantId, tagName, rowFilter, limit, next, previous, values);
+                });
+    }
+
+    /**
+     * Rows of the fetched page, reading further would block to fetch the next page
+     */
+    private static List<Row> availableRows(ResultSet resultSet) {
+        int available = resultSet.getAvailableWithoutFetching();
+        if (available == 0) {
+            return Collections.emptyList();
+        }
+        List<Row> rows = new ArrayList<>(available);
+        for (int i = 0; i < available; i++) {
+            rows.add(resultSet.one());
+        }
+        return rows;
+    }
+
+    private static <T> Page<T> page(List<T> items, byte type, PagingState pagingState, String lastValue) {
+        return new Page<>(items, new Cursor(type, pagingState, lastValue).encode());
+    }
+
+    private static RuntimeApiError invalidCursor(String cursor) {
+        return new RuntimeApiError("Invalid cursor " + cursor);
+    }
+
+    @FunctionalInterface
+    private interface RowFilter {
+        boolean matches(Row row);
+    }
+
+    /**
+     * Position in the listing: the type of the metrics_idx partition being read, the paging state inside the
+     * partition and the last returned value. Serialized to URL safe base64.
+     */
+    static class Cursor {
+        final byte type;
+        final PagingState pagingState;
+        final String lastValue;
+
+        Cursor(byte type, PagingState pagingState, String lastValue) {
+            this.type = type;
+            this.pagingState = pagingState;
+            this.lastValue = lastValue;
+        }
+
+        String encode() {
+            ByteArrayDataOutput out = ByteStreams.newDataOutput();
+            out.writeByte(CURSOR_VERSION);
+            out.writeByte(type);
+            byte[] state = pagingState == null ? new byte[0] : pagingState.toBytes();
+            out.writeShort(state.length);
+            out.write(state);
+            out.writeBoolean(lastValue != null);
+            if (lastValue != null) {
+                out.writeUTF(lastValue);
+            }
+            return BaseEncoding.base64Url().omitPadding().encode(out.toByteArray());
+        }
+
+        static Cursor decode(String cursor) {
+            try {
+                ByteArrayDataInput in = ByteStreams.newDataInput(BaseEncoding.base64Url().omitPadding()
+                        .decode(cursor));
+                if (in.readByte() != CURSOR_VERSION) {
+                    throw invalidCursor(cursor);
+                }
+                byte type = in.readByte();
+                byte[] state = new byte[in.readUnsignedShort()];
+                in.readFully(state);
+                String lastValue = in.readBoolean() ? in.readUTF() : null;
+                return new Cursor(type, state.length == 0 ? null : PagingState.fromBytes(state), lastValue);
+            } catch (IllegalArgumentException | IllegalStateException | PagingStateException e) {
+                throw invalidCursor(cursor);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Cache of the metric definitions of a tenant and metric type. The definitions of a tenant and type are cached as a
+ * whole, so that listing the metrics and evaluating queries against all the definitions don't need to read
+ * metrics_idx and scan the data table. The size of the cache is bounded by the total amount of cached definitions.
+ *
+ * Definitions are invalidated when they're changed, either on this node or on another node (through the change feed),
+ * and they expire after a while. Metrics created by writing data points are not in metrics_idx, so the cache also
+ * remembers the metrics written on this node and the first write of an unknown metric is announced as a change.
+ */
+public class MetricDefinitionCache {
+
+    public static final long DEFAULT_MAX_SIZE = 100000;
+    public static final long DEFAULT_EXPIRATION = 60;
+
+    private final Cache<Key, Map<String, Metric<?>>> definitions;
+    private final long maxSize;
+
+    /**
+     * Metrics with data points written on this node, as many as the cache size allows
+     */
+    private final Cache<MetricId<?>, Boolean> written;
+
+    /**
+     * Incremented on every invalidation, definitions loaded while it changed might be stale and are not cached
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    public MetricDefinitionCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_EXPIRATION);
+    }
+
+    /**
+     * @param maxSize    maximum amount of cached metric definitions
+     * @param expiration time in seconds after which the cached definitions are loaded again
+     */
+    public MetricDefinitionCache(long maxSize, long expiration) {
+        this.maxSize = maxSize;
+        definitions = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher((Key key, Map<String, Metric<?>> metrics) -> Math.max(1, metrics.size()))
+                .expireAfterWrite(expiration, TimeUnit.SECONDS)
+                .build();
+        written = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+    }
+
+    /**
+     * @return Cached definitions of the tenant's metrics of the type or null if they're not cached
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Collection<Metric<T>> getMetrics(String tenantId, MetricType<T> type) {
+        Map<String, Metric<?>> metrics = definitions.getIfPresent(new Key(tenantId, type));
+        return metrics == null ? null : (Collection<Metric<T>>) (Collection<?>) metrics.values();
+    }
+
+    /**
+     * @return Cached definition or null if the metric's tenant and type are not cached or the metric is not known
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Metric<T> getMetric(MetricId<T> id) {
+        Map<String, Metric<?>> metrics = definitions.getIfPresent(new Key(id.getTenantId(), id.getType()));
+        return metrics == null ? null : (Metric<T>) metrics.get(id.getName());
+    }
+
+    /**
+     * @return Value to pass to {@link #put(String, MetricType, Collection, long)} once the definitions are loaded
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches all the definitions of the tenant's metrics of the type. If there are several definitions of a metric,
+     * the first one is kept.
+     *
+     * @param loadGeneration {@link #getGeneration()} before the definitions were loaded
+     */
+    public void put(String tenantId, MetricType<?> type, Collection<? extends Metric<?>> metrics,
+            long loadGeneration) {
+        Map<String, Metric<?>> loaded = new LinkedHashMap<>();
+        metrics.forEach(metric -> loaded.putIfAbsent(metric.getId(), metric));
+        if (generation.get() == loadGeneration) {
+            definitions.put(new Key(tenantId, type), Collections.unmodifiableMap(loaded));
+        }
+    }
+
+    /**
+     * Records a data point write of the metric.
+     *
+     * @return true if the metric was not known to this node. The write might have created the metric, so the cached
+     * definitions of its tenant and type must be invalidated once the data points are stored.
+     */
+    public boolean dataPointsWritten(MetricId<?> id) {
+        if (written.getIfPresent(id) != null) {
+            return false;
+        }
+        boolean cached = getMetric(id) != null;
+        return written.asMap().putIfAbsent(id, Boolean.TRUE) == null && !cached;
+    }
+
+    /**
+     * Forgets the data point writes of a deleted metric, so that writing it again announces it again
+     */
+    public void forgetWritten(MetricId<?> id) {
+        written.invalidate(id);
+    }
+
+    public void forgetWritten(String tenantId) {
+        written.asMap().keySet().removeIf(id -> tenantId.equals(id.getTenantId()));
+    }
+
+    public void invalidate(String tenantId, MetricType<?> type) {
+        generation.incrementAndGet();
+        definitions.invalidate(new Key(tenantId, type));
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        definitions.invalidateAll();
+        written.invalidateAll();
+    }
+
+    /**
+     * @return Maximum amount of cached definitions, the definitions of a larger tenant and type are never cached
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long size() {
+        return definitions.size();
+    }
+
+    private static final class Key {
+        private final String tenantId;
+        private final MetricType<?> type;
+
+        Key(String tenantId, MetricType<?> type) {
+            this.tenantId = tenantId;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(tenantId, key.tenantId) && Objects.equals(type, key.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tenantId, type);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.metrics.core.service.log.CoreLogger;
+import org.hawkular.metrics.core.service.log.CoreLogging;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.UUIDs;
+
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action2;
+import rx.schedulers.Schedulers;
+
+/**
+ * Lightweight feed of metric definition changes between the nodes. A change only announces the tenant and metric type
+ * whose definitions changed, it's written to the metrics_idx_changes table which is partitioned by minute and kept for
+ * an hour. Every node polls the partitions written since its previous poll and notifies the listener of the changes
+ * made by other nodes.
+ */
+public class MetricDefinitionChanges {
+
+    private static final CoreLogger log = CoreLogging.getCoreLogger(MetricDefinitionChanges.class);
+
+    public static final long DEFAULT_POLL_INTERVAL = 5;
+
+    static final long BUCKET_SIZE = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Changes are read this far before the previous poll, to cover clock differences and writes that were still in
+     * flight during the previous poll
+     */
+    static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private final DataAccess dataAccess;
+    private final Action2<String, MetricType<?>> listener;
+    private final UUID source = UUID.randomUUID();
+
+    /**
+     * Changes already delivered to the listener with their timestamps, kept for as long as they can be read again
+     */
+    private final Map<UUID, Long> seen = new ConcurrentHashMap<>();
+
+    private volatile long lastPoll = System.currentTimeMillis();
+
+    /**
+     * @param listener called with the tenant and metric type of every change made by another node
+     */
+    public MetricDefinitionChanges(DataAccess dataAccess, Action2<String, MetricType<?>> listener) {
+        this.dataAccess = dataAccess;
+        this.listener = listener;
+    }
+
+    public Observable<ResultSet> publish(MetricId<?> id) {
+        UUID time = UUIDs.timeBased();
+        return dataAccess.insertMetricDefinitionChange(bucket(UUIDs.unixTimestamp(time)), time, id.getTenantId(),
+                id.getType(), source);
+    }
+
+    /**
+     * Reads the changes written since the previous poll. Polls must not run concurrently.
+     *
+     * @return Observable emitting the amount of changes delivered to the listener
+     */
+    public Observable<Integer> poll() {
+        long now = System.currentTimeMillis();
+        long from = lastPoll - MAX_DELAY;
+        UUID after = UUIDs.startOf(from);
+        return Observable.range(0, (int) ((bucket(now) - bucket(from)) / BUCKET_SIZE) + 1)
+                .concatMap(i -> dataAccess.findMetricDefinitionChanges(bucket(from) + i * BUCKET_SIZE, after))
+                .filter(row -> !source.equals(row.getUUID(3)))
+                .filter(row -> seen.putIfAbsent(row.getUUID(0), UUIDs.unixTimestamp(row.getUUID(0))) == null)
+                .doOnNext(this::notifyListener)
+                .count()
+                .doOnCompleted(() -> {
+                    lastPoll = now;
+                    expireSeen(now - 2 * MAX_DELAY);
+                });
+    }
+
+    /**
+     * Polls the changes periodically until the returned subscription is unsubscribed.
+     *
+     * @param interval poll interval in seconds
+     */
+    public Subscription start(long interval) {
+        return Observable.interval(interval, interval, TimeUnit.SECONDS, Schedulers.io())
+                .onBackpressureDrop()
+                .concatMap(tick -> poll().onErrorResumeNext(t -> {
+                    log.warnMetricDefinitionChangesPollFailed(t);
+                    return Observable.empty();
+                }))
+                .subscribe();
+    }
+
+    private void notifyListener(Row row) {
+        listener.call(row.getString(1), MetricType.fromCode(row.getByte(2)));
+    }
+
+    private void expireSeen(long before) {
+        Iterator<Long> timestamps = seen.values().iterator();
+        while (timestamps.hasNext()) {
+            if (timestamps.next() < before) {
+                timestamps.remove();
+            }
+        }
+    }
+
+    static long bucket(long timestamp) {
+        return timestamp - timestamp % BUCKET_SIZE;
+    }
+}
@@ -16,12 +16,15 @@
  */
 package org.hawkular.metrics.core.service;
 
+import java.nio.ByteBuffer;
 import java.time.ZonedDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
 
+import org.hawkular.metrics.core.service.compress.CompressionPhase;
 import org.hawkular.metrics.model.AvailabilityBucketPoint;
 import org.hawkular.metrics.model.AvailabilityType;
 import org.hawkular.metrics.model.Buckets;
@@ -32,11 +35,14 @@ import org.hawkular.metrics.model.MetricType;
 import org.hawkular.metrics.model.NamedDataPoint;
 import org.hawkular.metrics.model.NumericBucketPoint;
 import org.hawkular.metrics.model.Percentile;
+import org.hawkular.metrics.model.TagCardinality;
 import org.hawkular.metrics.model.TaggedBucketPoint;
 import org.hawkular.metrics.model.Tenant;
 import org.hawkular.metrics.model.exception.MetricAlreadyExistsException;
 import org.hawkular.metrics.model.param.BucketConfig;
 
+import com.datastax.driver.core.TokenRange;
+
 import rx.Completable;
 import rx.Observable;
 import rx.functions.Func1;
@@ -104,6 +110,18 @@ public interface MetricsService {
 
     <T> Observable<Void> deleteMetric(MetricId<T> id);
 
+    /**
+     * Deletes the data points of the metric and removes it from the expiration index. Unlike
+     * {@link #deleteMetric(MetricId)} the definition, tags and retention of the metric are not touched, this is meant
+     * for deleting a whole tenant where those are deleted per partition.
+     */
+    <T> Observable<Void> deleteMetricData(MetricId<T> id);
+
+    /**
+     * Drops the cached tag indexes and metric definitions of the tenant on this node and the other nodes.
+     */
+    void invalidateTenant(String tenantId);
+
     /**
      * Returns tenant's metric definitions. The results can be filtered using a type.
      *
@@ -111,6 +129,18 @@ public interface MetricsService {
      */
     <T> Observable<Metric<T>> findMetrics(String tenantId, MetricType<T> type);
 
+    /**
+     * Returns one page of tenant's metric definitions ordered by type and name. Only the metrics in the metrics
+     * index are listed, metrics that have data points but were never created or tagged are returned only by
+     * {@link #findMetrics(String, MetricType)}.
+     *
+     * @param type If type is null, all user definable metric definitions are returned.
+     * @param limit Maximum amount of definitions in the page
+     * @param cursor {@link Page#getNext()} of the previous page or null to get the first page. An invalid cursor
+     *               results in a {@link org.hawkular.metrics.model.exception.RuntimeApiError}.
+     */
+    <T> Observable<Page<Metric<T>>> findMetricsPage(String tenantId, MetricType<T> type, int limit, String cursor);
+
     /**
      * Find tenant's metrics with filtering abilities. The filtering can take place at the type level or at the
      * tag level.
@@ -141,14 +171,65 @@ public interface MetricsService {
     Observable<Map<String, Set<String>>> getTagValues(String tenantId, MetricType<?> metricType,
                                                              Map<String, String> tagsQueries);
 
+    /**
+     * Returns one page of the distinct values of a single tag.
+     *
+     * @param metricType If type is null, no type filtering is used (values are merged)
+     * @param filter Regexp filter of the values with the same format as in {@link #getTagValues(String, MetricType,
+     *               Map)}, null returns all the values
+     * @param limit Maximum amount of values in the page
+     * @param cursor {@link Page#getNext()} of the previous page or null to get the first page
+     */
+    Observable<Page<String>> getTagValuesPage(String tenantId, MetricType<?> metricType, String tagName,
+            String filter, int limit, String cursor);
+
     Observable<Map<String, String>> getMetricTags(MetricId<?> id);
 
     Observable<String> getTagNames(String tenantId, MetricType<?> metricType, String filter);
 
+    /**
+     * Autocompletion of the tenant's tag names.
+     *
+     * @param metricType If type is null, the names of all the user types are returned
+     * @param prefix Prefix of the returned names, null or empty for all the names
+     * @param limit Maximum amount of names, 0 for no limit
+     * @return Tag names in ascending order
+     */
+    Observable<String> completeTagNames(String tenantId, MetricType<?> metricType, String prefix, int limit);
+
+    /**
+     * Autocompletion of the values of a tag.
+     *
+     * @param metricType If type is null, the values of all the user types are returned
+     * @param prefix Prefix of the returned values, null or empty for all the values
+     * @param limit Maximum amount of values, 0 for no limit
+     * @return Tag values in ascending order
+     */
+    Observable<String> completeTagValues(String tenantId, MetricType<?> metricType, String tagName, String prefix,
+            int limit);
+
+    /**
+     * @return Cardinality statistics of all the tenant's tag names
+     */
+    Observable<TagCardinality> getTagCardinalities(String tenantId);
+
     Observable<Void> addTags(Metric<?> metric, Map<String, String> tags);
 
     Observable<Void> deleteTags(Metric<?> metric, Set<String> tags);
 
+    /**
+     * Adds and deletes the tags of many metrics at once. Unlike with {@link #addTags(Metric, Map)} the changes of a
+     * single metric are not written atomically, the index writes of all the metrics are grouped by partition into
+     * unlogged batches instead. The metrics are written in chunks, the tag indexes and the tag completion of a chunk
+     * are updated once the chunk is written.
+     *
+     * @param metrics Metrics with their current tags
+     * @param addTags Tags to add or to replace
+     * @param deleteTags Names of the tags to delete
+     * @return Amount of metrics whose tags were changed
+     */
+    Observable<Integer> updateTags(Observable<Metric<?>> metrics, Map<String, String> addTags, Set<String> deleteTags);
+
     /**
      * Insert data points for the specified {@code metrics}.
      *
@@ -160,6 +241,20 @@ public interface MetricsService {
      */
     <T> Observable<Void> addDataPoints(MetricType<T> metricType, Observable<Metric<T>> metrics);
 
+    /**
+     * Insert a block of data points that is already compressed in the data_compressed format, a
+     * {@link org.hawkular.metrics.core.service.compress.CompressorHeader} of a supported codec without settings
+     * followed by the codec's stream. The block start is read from the stream header and must be aligned to the two
+     * hour blocks. Only complete blocks are accepted, the points are merged with the data already stored for the
+     * block.
+     *
+     * @param metricId gauge or counter to which the data points are added
+     * @param compressedValue the compressed block
+     *
+     * @return an {@link Observable} emitting the amount of inserted data points
+     */
+    <T> Observable<Integer> addCompressedDataPoints(MetricId<T> metricId, ByteBuffer compressedValue);
+
     /**
      * Fetch data points for a single metric.
      *
@@ -179,14 +274,51 @@ public interface MetricsService {
     Completable verifyAndCreateTempTables(ZonedDateTime startTime, ZonedDateTime endTime);
 
     /**
+     * Compresses the temporary and write-ahead log tables of the block, processing the token ranges of the ring in
+     * parallel. Completed ranges are recorded, if the compression is interrupted the next call for the same block
+     * continues with the ranges that were not completed.
      *
      * @param startTimeSlice
      * @param pageSize
-     * @param maxConcurrency How many reads are concurrently called from Cassandra
+     * @param maxConcurrency How many token ranges are read concurrently from Cassandra
      * @return
      */
     @SuppressWarnings("unchecked") Completable compressBlock(long startTimeSlice, int pageSize, int maxConcurrency);
 
+    /**
+     * Compresses the given token ranges of the block's phase, skipping the ranges that have already been completed.
+     * Each completed range is recorded, which allows the nodes to share the compression of a block.
+     *
+     * @return The amount of compressed metrics of each completed range
+     */
+    Observable<Integer> compressRanges(long startTimeSlice, CompressionPhase phase, Collection<TokenRange> ranges,
+            int pageSize, int maxConcurrency);
+
+    /**
+     * @return The completed token ranges of the block's phase
+     */
+    Observable<TokenRange> findCompressedRanges(long startTimeSlice, CompressionPhase phase);
+
+    /**
+     * Drops the table of the block's phase, called once all of the phase's token ranges have been compressed. The
+     * recorded ranges of the block are deleted after the last phase.
+     */
+    Completable finishCompression(long startTimeSlice, CompressionPhase phase);
+
+    /**
+     * @return Unwrapped token ranges of the ring
+     */
+    Set<TokenRange> getTokenRanges();
+
+    /**
+     * Merges the data points written after their block was compressed to the block's compressed data, the points
+     * are buffered in the out-of-order table until then.
+     *
+     * @param maxConcurrency How many token ranges are read concurrently from Cassandra
+     * @return The amount of merged data points of each metric's block
+     */
+    Observable<Integer> mergeLateDataPoints(int pageSize, int maxConcurrency);
+
     /**
      * Compresses the given range between timestamps to a single block.
      *
@@ -29,38 +29,60 @@ import static org.hawkular.metrics.model.Utils.isValidTimeRange;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.hawkular.metrics.core.dropwizard.HawkularMetricRegistry;
 import org.hawkular.metrics.core.dropwizard.MetricNameService;
 import org.hawkular.metrics.core.service.compress.CompressedPointContainer;
+import org.hawkular.metrics.core.service.compress.CompressionPhase;
+import org.hawkular.metrics.core.service.compress.PointColumns;
 import org.hawkular.metrics.core.service.log.CoreLogger;
 import org.hawkular.metrics.core.service.log.CoreLogging;
+import org.hawkular.metrics.core.service.rollup.RollupPoint;
+import org.hawkular.metrics.core.service.rollup.RollupResolution;
+import org.hawkular.metrics.core.service.rollup.RollupStatsCollector;
+import org.hawkular.metrics.core.service.rollup.Rollups;
 import org.hawkular.metrics.core.service.tags.ExpressionTagQueryParser;
 import org.hawkular.metrics.core.service.tags.SimpleTagQueryParser;
+import org.hawkular.metrics.core.service.tags.TagIndex;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan;
+import org.hawkular.metrics.core.service.tags.TagQueryPlanCache;
+import org.hawkular.metrics.core.service.tags.TagCompletion;
+import org.hawkular.metrics.core.service.tags.TagStatistics;
 import org.hawkular.metrics.core.service.tags.TagsConverter;
+import org.hawkular.metrics.core.service.transformers.CompressedColumnsTransformer;
 import org.hawkular.metrics.core.service.transformers.DataPointCompressTransformer;
 import org.hawkular.metrics.core.service.transformers.DataPointDecompressTransformer;
 import org.hawkular.metrics.core.service.transformers.MetricFromDataRowTransformer;
 import org.hawkular.metrics.core.service.transformers.MetricFromFullDataRowTransformer;
 import org.hawkular.metrics.core.service.transformers.MetricsIndexRowTransformer;
 import org.hawkular.metrics.core.service.transformers.NumericBucketPointTransformer;
+import org.hawkular.metrics.core.service.transformers.NumericColumnsCollector;
 import org.hawkular.metrics.core.service.transformers.SortedMerge;
 import org.hawkular.metrics.core.service.transformers.TaggedBucketPointTransformer;
 import org.hawkular.metrics.core.service.transformers.TempTableCompressTransformer;
@@ -77,6 +99,7 @@ import org.hawkular.metrics.model.NamedDataPoint;
 import org.hawkular.metrics.model.NumericBucketPoint;
 import org.hawkular.metrics.model.Percentile;
 import org.hawkular.metrics.model.Retention;
+import org.hawkular.metrics.model.TagCardinality;
 import org.hawkular.metrics.model.TaggedBucketPoint;
 import org.hawkular.metrics.model.Tenant;
 import org.hawkular.metrics.model.exception.MetricAlreadyExistsException;
@@ -87,6 +110,7 @@ import org.hawkular.metrics.model.param.Tags;
 import org.hawkular.metrics.model.param.TimeRange;
 import org.hawkular.metrics.sysconfig.Configuration;
 import org.hawkular.metrics.sysconfig.ConfigurationService;
+import org.hawkular.rx.cassandra.driver.RxSessionImpl;
 import org.joda.time.Duration;
 
 import com.codahale.metrics.Meter;
@@ -95,6 +119,7 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TokenRange;
 import com.datastax.driver.core.exceptions.DriverException;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -107,10 +132,10 @@ import com.google.common.util.concurrent.MoreExecutors;
 
 import rx.Completable;
 import rx.Observable;
+import rx.Subscription;
 import rx.functions.Func1;
 import rx.functions.Func6;
 import rx.observable.ListenableFutureObservable;
-import rx.schedulers.Schedulers;
 import rx.subjects.PublishSubject;
 
 /**
@@ -122,6 +147,25 @@ public class MetricsServiceImpl implements MetricsService {
     private static final long DAY_TO_MILLIS = 24 * 3600 * 1000;
     public static final String SYSTEM_TENANT_ID = makeSafe("sysconfig");
 
+    public static final int DEFAULT_QUERY_CONCURRENCY = 8;
+    private static final int EAGER_FETCH_CAPACITY_HINT = 128;
+
+    /**
+     * Maximum amount of concurrently written batches of a bulk tag update
+     */
+    private static final int TAG_UPDATE_CONCURRENCY = 8;
+
+    /**
+     * Maximum amount of metrics whose tag changes are held and written together by a bulk tag update
+     */
+    private static final int TAG_UPDATE_CHUNK_SIZE = 1000;
+
+    /**
+     * Maximum amount of times a compressed block is read and merged again after a concurrent merge changed it
+     */
+    private static final int MAX_MERGE_ATTEMPTS = 10;
+
+
     private static class DataRetentionKey {
         private final MetricId<?> metricId;
 
@@ -179,6 +223,12 @@ public class MetricsServiceImpl implements MetricsService {
      */
     private Meter dataPointsInserted;
 
+    /**
+     * Data points written to blocks that have already been compressed, and the ones of those merged to their blocks
+     */
+    private Meter lateDataPoints;
+    private Meter lateDataPointsMerged;
+
     /**
      * Raw data read metrics
      */
@@ -208,6 +258,28 @@ public class MetricsServiceImpl implements MetricsService {
     private SimpleTagQueryParser tagQueryParser;
     private ExpressionTagQueryParser expresssionTagQueryParser;
 
+    /**
+     * Node local index of the metric tags, null if the tag queries are evaluated with Cassandra queries
+     */
+    private TagIndex tagIndex;
+
+    private TagQueryPlanCache tagQueryPlans = new TagQueryPlanCache();
+
+    /**
+     * Cardinality statistics of the tags used to plan the tag queries, null if the fixed operator costs are used
+     */
+    private TagStatistics tagStatistics;
+
+    private TagCompletion tagCompletion;
+
+    /**
+     * Cached metric definitions and the feed that keeps them coherent with the other nodes, null if the cache is
+     * disabled
+     */
+    private MetricDefinitionCache metricDefinitions;
+    private MetricDefinitionChanges metricDefinitionChanges;
+    private Subscription metricDefinitionChangesPoller;
+
     private int defaultTTL = Duration.standardDays(7).toStandardSeconds().getSeconds();
 
     private int maxStringSize;
@@ -218,6 +290,29 @@ public class MetricsServiceImpl implements MetricsService {
 
     private int defaultPageSize;
 
+    /**
+     * Buffers data points to the write-ahead log tables, null if the temporary tables are used directly
+     */
+    private WriteBuffer writeBuffer;
+
+    private BatchWriter batchWriter;
+
+    /**
+     * Start of the first block that was rolled up by the compression job, Long.MAX_VALUE if not known yet
+     */
+    private volatile long rollupsStart = Long.MAX_VALUE;
+
+    /**
+     * Maximum amount of metrics whose data points are fetched concurrently for a multi-metric query
+     */
+    private volatile int queryConcurrency = DEFAULT_QUERY_CONCURRENCY;
+
+    /**
+     * Whether counter and availability blocks are compressed with the integer codecs instead of Gorilla. Off by
+     * default, servers that do not know the codecs can't read the blocks.
+     */
+    private volatile boolean integerCodecs;
+
     public void startUp(Session session, String keyspace, boolean resetDb, HawkularMetricRegistry metricRegistry) {
         startUp(session, keyspace, resetDb, true, metricRegistry);
     }
@@ -236,17 +331,17 @@ public class MetricsServiceImpl implements MetricsService {
                 .put(GAUGE, metric -> {
                     @SuppressWarnings("unchecked")
                     Observable<Metric<Double>> gauge = (Observable<Metric<Double>>) metric;
-                    return dataAccess.insertData(gauge);
+                    return insertData(gauge);
                 })
                 .put(COUNTER, metric -> {
                     @SuppressWarnings("unchecked")
                     Observable<Metric<Long>> counter = (Observable<Metric<Long>>) metric;
-                    return dataAccess.insertData(counter);
+                    return insertData(counter);
                 })
                 .put(AVAILABILITY, metric -> {
                     @SuppressWarnings("unchecked")
                     Observable<Metric<AvailabilityType>> avail = (Observable<Metric<AvailabilityType>>) metric;
-                    return dataAccess.insertData(avail);
+                    return insertData(avail);
                 })
                 .put(STRING, metric -> {
                     @SuppressWarnings("unchecked")
@@ -284,8 +379,13 @@ public class MetricsServiceImpl implements MetricsService {
 
         verifyAndCreateTempTables();
 
-        tagQueryParser = new SimpleTagQueryParser(this.dataAccess, this);
-        expresssionTagQueryParser = new ExpressionTagQueryParser(this.dataAccess, this);
+        tagQueryParser = new SimpleTagQueryParser(this.dataAccess, this, tagIndex, tagStatistics);
+        expresssionTagQueryParser = new ExpressionTagQueryParser(this.dataAccess, this, tagIndex, tagStatistics);
+
+        if (metricDefinitionChanges != null) {
+            metricDefinitionChangesPoller = metricDefinitionChanges.start(
+                    MetricDefinitionChanges.DEFAULT_POLL_INTERVAL);
+        }
     }
 
     void loadDataRetentions() {
@@ -318,8 +418,12 @@ public class MetricsServiceImpl implements MetricsService {
 
     private void initMetrics() {
         dataPointsInserted = metricRegistry.meter("DataPointsInserted", "Core", "Write");
+        lateDataPoints = metricRegistry.meter("LateDataPoints", "Core", "Write");
+        lateDataPointsMerged = metricRegistry.meter("LateDataPointsMerged", "Core", "Write");
         rawDataReadLatency = metricRegistry.timer("RawDataReadLatency", "Core", "Read");
         metricTagsTimer = metricRegistry.timer("MetricTagsQueryLatency", "Core", "Read");
+        batchWriter.initMetrics(metricRegistry);
+        tagQueryPlans.initMetrics(metricRegistry);
     }
 
     private void initConfiguration(Session session) {
@@ -338,6 +442,67 @@ public class MetricsServiceImpl implements MetricsService {
         log.infoInsertRetryConfig(insertMaxRetries, insertRetryMaxDelay);
 
         defaultPageSize = Integer.parseInt(configuration.get("page-size", "5000"));
+
+        if (Boolean.parseBoolean(configuration.get("ingestion.write-ahead-log", "false"))) {
+            long flushDelay = Long.parseLong(configuration.get("ingestion.write-ahead-log.flush-delay", "100"));
+            int maxBufferedPoints = Integer.parseInt(configuration.get("ingestion.write-ahead-log.max-points",
+                    "10000"));
+            writeBuffer = new WriteBuffer(dataAccess, flushDelay, maxBufferedPoints);
+            log.infoWriteAheadLogConfig(flushDelay, maxBufferedPoints);
+        }
+
+        int batchMaxInFlight = Integer.parseInt(configuration.get("ingestion.batch.max-in-flight",
+                String.valueOf(BatchWriter.DEFAULT_MAX_IN_FLIGHT)));
+        long batchFlushDelay = Long.parseLong(configuration.get("ingestion.batch.flush-delay",
+                String.valueOf(BatchWriter.DEFAULT_FLUSH_DELAY)));
+        long batchLatencyTarget = Long.parseLong(configuration.get("ingestion.batch.latency-target",
+                String.valueOf(BatchWriter.DEFAULT_LATENCY_TARGET)));
+        batchWriter = new BatchWriter(new RxSessionImpl(session), batchMaxInFlight, batchFlushDelay,
+                batchLatencyTarget);
+        dataAccess.setBatchWriter(batchWriter);
+        log.infoBatchWriterConfig(batchMaxInFlight, batchFlushDelay, batchLatencyTarget);
+
+        rollupsStart = Long.parseLong(configuration.get("rollups.start", String.valueOf(Long.MAX_VALUE)));
+
+        String configQueryConcurrency = configuration.get("query.fetch-concurrency",
+                String.valueOf(DEFAULT_QUERY_CONCURRENCY));
+        try {
+            setQueryConcurrency(Integer.parseInt(configQueryConcurrency));
+        } catch (IllegalArgumentException e) {
+            log.warnInvalidQueryConcurrency(configQueryConcurrency, DEFAULT_QUERY_CONCURRENCY);
+            setQueryConcurrency(DEFAULT_QUERY_CONCURRENCY);
+        }
+        log.infoQueryConcurrencyConfig(queryConcurrency);
+
+        integerCodecs = Boolean.parseBoolean(configuration.get("compression.integer-codecs", "false"));
+        log.infoIntegerCodecsConfig(integerCodecs);
+
+        long tagIndexRefresh = Long.parseLong(configuration.get("tags.index-refresh",
+                String.valueOf(TagIndex.DEFAULT_REFRESH_INTERVAL)));
+        tagIndex = tagIndexRefresh > 0 ? new TagIndex(dataAccess, tagIndexRefresh) : null;
+        log.infoTagIndexConfig(tagIndexRefresh);
+
+        long tagStatisticsRefresh = Long.parseLong(configuration.get("tags.statistics-refresh",
+                String.valueOf(TagStatistics.DEFAULT_REFRESH_INTERVAL)));
+        tagStatistics = tagStatisticsRefresh > 0 ? new TagStatistics(dataAccess, tagStatisticsRefresh) : null;
+        log.infoTagStatisticsConfig(tagStatisticsRefresh);
+
+        long tagCompletionRefresh = Long.parseLong(configuration.get("tags.completion-refresh",
+                String.valueOf(TagCompletion.DEFAULT_REFRESH_INTERVAL)));
+        tagCompletion = tagCompletionRefresh > 0 ? new TagCompletion(dataAccess, tagCompletionRefresh) : null;
+        log.infoTagCompletionConfig(tagCompletionRefresh);
+
+        long definitionCacheExpiration = Long.parseLong(configuration.get("definitions.cache-expiration",
+                String.valueOf(MetricDefinitionCache.DEFAULT_EXPIRATION)));
+        if (definitionCacheExpiration > 0) {
+            metricDefinitions = new MetricDefinitionCache(MetricDefinitionCache.DEFAULT_MAX_SIZE,
+                    definitionCacheExpiration);
+            metricDefinitionChanges = new MetricDefinitionChanges(dataAccess, this::metricDefinitionsChanged);
+        } else {
+            metricDefinitions = null;
+            metricDefinitionChanges = null;
+        }
+        log.infoMetricDefinitionCacheConfig(definitionCacheExpiration);
     }
 
     private void setDefaultTTL(Session session, String keyspace) {
@@ -411,6 +576,15 @@ public class MetricsServiceImpl implements MetricsService {
         this.defaultTTL = Duration.standardDays(defaultTTL).toStandardSeconds().getSeconds();
     }
 
+    /**
+     * @param queryConcurrency Maximum amount of metrics whose data points are fetched concurrently for a multi-metric
+     *                         query, at least 1
+     */
+    public void setQueryConcurrency(int queryConcurrency) {
+        checkArgument(queryConcurrency > 0, "Query concurrency must be at least 1");
+        this.queryConcurrency = queryConcurrency;
+    }
+
     @Override
     public Observable<Void> createTenant(final Tenant tenant, boolean overwrite) {
         return Observable.create(subscriber -> {
@@ -479,7 +653,9 @@ public class MetricsServiceImpl implements MetricsService {
                 // eventually want to implement more fine-grained error handling where we can
                 // notify the subscriber of what exactly fails.
                 List<Observable<ResultSet>> updates = new ArrayList<>();
-                updates.add(dataAccess.addTags(metric, metric.getTags()));
+                updates.add(dataAccess.addTags(metric, metric.getTags())
+                        .doOnCompleted(() -> updateMetricDefinition(metric.getMetricId(), metric.getTags(), null))
+                        .concatWith(updateTagCompletion(metric.getMetricId(), metric.getTags(), null)));
 
                 if (metric.getDataRetention() != null) {
                     updates.add(updateRetentionsIndex(metric));
@@ -505,6 +681,12 @@ public class MetricsServiceImpl implements MetricsService {
 
     @Override
     public <T> Observable<Metric<T>> findMetric(final MetricId<T> id) {
+        if (metricDefinitions != null) {
+            Metric<T> cached = metricDefinitions.getMetric(id);
+            if (cached != null) {
+                return Observable.just(cached);
+            }
+        }
         return dataAccess.findMetricInMetricsIndex(id)
                 .compose(new MetricsIndexRowTransformer<>(id.getTenantId(), id.getType(), defaultTTL))
                 .switchIfEmpty(dataAccess.findMetricInData(id)
@@ -514,6 +696,64 @@ public class MetricsServiceImpl implements MetricsService {
     @SuppressWarnings("unchecked")
     @Override
     public <T> Observable<Metric<T>> findMetrics(String tenantId, MetricType<T> metricType) {
+        if (metricDefinitions == null) {
+            return loadMetrics(tenantId, metricType);
+        }
+
+        Collection<MetricType<?>> types = metricType == null ? MetricType.userTypes()
+                : Collections.singleton(metricType);
+        List<Metric<?>> cached = new ArrayList<>();
+        for (MetricType<?> type : types) {
+            Collection<? extends Metric<?>> metrics = metricDefinitions.getMetrics(tenantId, type);
+            if (metrics == null) {
+                cached = null;
+                break;
+            }
+            cached.addAll(metrics);
+        }
+        if (cached != null) {
+            return Observable.from(cached).map(m -> (Metric<T>) m);
+        }
+
+        return Observable.defer(() -> {
+            // Definitions are emitted as they're read. They're collected to the cache only as long as they fit it,
+            // so listing a huge tenant does not hold all of its definitions in memory.
+            long generation = metricDefinitions.getGeneration();
+            AtomicReference<List<Metric<T>>> loaded = new AtomicReference<>(new ArrayList<>());
+            return loadMetrics(tenantId, metricType)
+                    .doOnNext(metric -> {
+                        List<Metric<T>> metrics = loaded.get();
+                        if (metrics != null) {
+                            if (metrics.size() < metricDefinitions.getMaxSize()) {
+                                metrics.add(metric);
+                            } else {
+                                loaded.set(null);
+                            }
+                        }
+                    })
+                    .doOnCompleted(() -> {
+                        List<Metric<T>> metrics = loaded.get();
+                        if (metrics != null) {
+                            Map<MetricType<?>, List<Metric<T>>> byType = metrics.stream()
+                                    .collect(Collectors.groupingBy(m -> m.getMetricId().getType()));
+                            types.forEach(type -> metricDefinitions.put(tenantId, type,
+                                    byType.getOrDefault(type, Collections.emptyList()), generation));
+                        }
+                    });
+        });
+    }
+
+    @Override
+    public <T> Observable<Page<Metric<T>>> findMetricsPage(String tenantId, MetricType<T> metricType, int limit,
+            String cursor) {
+        return new IndexPager(dataAccess, defaultTTL).findMetrics(tenantId, metricType, limit, cursor);
+    }
+
+    /**
+     * Reads the definitions from metrics_idx and the metrics that only have data points from the data table
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Observable<Metric<T>> loadMetrics(String tenantId, MetricType<T> metricType) {
         Observable<Metric<T>> setFromMetricsIndex = null;
         Observable<Metric<T>> setFromData = dataAccess.findAllMetricsInData()
                 .doOnError(Throwable::printStackTrace)
@@ -543,21 +783,28 @@ public class MetricsServiceImpl implements MetricsService {
         Timer.Context context = metricTagsTimer.time();
         Observable<Metric<T>> results;
         try {
-            results = expresssionTagQueryParser
-                    .parse(tenantId, metricType, tags)
-                    .map(tMetric -> tMetric);
-        } catch (Exception e1) {
-            try {
-                Tags parsedSimpleTagQuery = TagsConverter.fromString(tags);
-                results = tagQueryParser.findMetricsWithFilters(tenantId, metricType, parsedSimpleTagQuery.getTags())
+            TagQueryPlan plan = tagQueryPlans.get(tenantId, metricType, tags, this::compileTagQuery);
+            if (plan.getSyntax() == TagQueryPlan.Syntax.EXPRESSION) {
+                results = expresssionTagQueryParser.execute(tenantId, metricType, plan);
+            } else {
+                results = tagQueryParser.execute(tenantId, metricType, plan)
                         .map(tMetric -> (Metric<T>) tMetric);
-            } catch (Exception e2) {
-                results = Observable.error(new RuntimeApiError("Unparseable tag query expression."));
             }
+        } catch (Exception e) {
+            results = Observable.error(new RuntimeApiError("Unparseable tag query expression."));
         }
         return results.doOnCompleted(context::stop);
     }
 
+    private TagQueryPlan compileTagQuery(String tags) {
+        try {
+            return ExpressionTagQueryParser.compile(tags);
+        } catch (Exception e) {
+            Tags parsedSimpleTagQuery = TagsConverter.fromString(tags);
+            return SimpleTagQueryParser.compile(parsedSimpleTagQuery.getTags());
+        }
+    }
+
     public <T> Func1<Metric<T>, Boolean> idFilter(String regexp) {
         boolean positive = (!regexp.startsWith("!"));
         Pattern p = PatternUtil.filterPattern(regexp);
@@ -567,9 +814,35 @@ public class MetricsServiceImpl implements MetricsService {
     @Override
     public Observable<Map<String, Set<String>>> getTagValues(String tenantId, MetricType<?> metricType,
                                     Map<String, String> tagsQueries) {
+        if (tagCompletion != null && tagsQueries.size() == 1) {
+            // The values of a single tag don't depend on the other tags of the metrics
+            Map.Entry<String, String> query = tagsQueries.entrySet().iterator().next();
+            return tagCompletion.completeTagValues(tenantId, metricType, query.getKey(), null, 0)
+                    .filter(SimpleTagQueryParser.tagNameFilter(query.getValue()))
+                    .collect(HashSet<String>::new, HashSet::add)
+                    .map(values -> values.isEmpty() ? new HashMap<>() : ImmutableMap.of(query.getKey(), values));
+        }
         return tagQueryParser.getTagValues(tenantId, metricType, tagsQueries);
     }
 
+    @Override
+    public Observable<Page<String>> getTagValuesPage(String tenantId, MetricType<?> metricType, String tagName,
+            String filter, int limit, String cursor) {
+        return new IndexPager(dataAccess, defaultTTL).findTagValues(tenantId, metricType, tagName, filter, limit,
+                cursor);
+    }
+
+    @Override
+    public Observable<TagCardinality> getTagCardinalities(String tenantId) {
+        // The names are read from the tenant's tag_names_idx partition when the tag completion maintains it
+        Observable<String> tagNames = getTagNames(tenantId, null, null);
+        if (tagStatistics == null) {
+            // Not kept for query planning, read them once for the caller
+            return new TagStatistics(dataAccess, 0).getCardinalities(tenantId, tagNames);
+        }
+        return tagStatistics.getCardinalities(tenantId, tagNames);
+    }
+
     @Override
     public Observable<Map<String, String>> getMetricTags(MetricId<?> id) {
         return dataAccess.getMetricTags(id)
@@ -580,9 +853,39 @@ public class MetricsServiceImpl implements MetricsService {
 
     @Override
     public Observable<String> getTagNames(String tenantId, MetricType<?> metricType, String filter) {
+        if (tagCompletion != null) {
+            return tagCompletion.completeTagNames(tenantId, metricType, null, 0)
+                    .filter(SimpleTagQueryParser.tagNameFilter(filter));
+        }
         return tagQueryParser.getTagNames(tenantId, metricType, filter);
     }
 
+    @Override
+    public Observable<String> completeTagNames(String tenantId, MetricType<?> metricType, String prefix, int limit) {
+        if (tagCompletion != null) {
+            return tagCompletion.completeTagNames(tenantId, metricType, prefix, limit);
+        }
+        return completeFrom(tagQueryParser.getTagNames(tenantId, metricType, null), prefix, limit);
+    }
+
+    @Override
+    public Observable<String> completeTagValues(String tenantId, MetricType<?> metricType, String tagName,
+            String prefix, int limit) {
+        if (tagCompletion != null) {
+            return tagCompletion.completeTagValues(tenantId, metricType, tagName, prefix, limit);
+        }
+        return completeFrom(tagQueryParser.getTagValues(tenantId, metricType, ImmutableMap.of(tagName, "*"))
+                .flatMapIterable(values -> values.getOrDefault(tagName, Collections.emptySet())), prefix, limit);
+    }
+
+    private static Observable<String> completeFrom(Observable<String> candidates, String prefix, int limit) {
+        Observable<String> completions = candidates
+                .filter(candidate -> prefix == null || candidate.startsWith(prefix))
+                .toSortedList()
+                .flatMapIterable(sorted -> sorted);
+        return limit > 0 ? completions.take(limit) : completions;
+    }
+
     // Adding/deleting metric tags currently involves writing to three tables - data,
     // metrics_idx, and metrics_tags_idx. It might make sense to refactor tag related
     // functionality into a separate class.
@@ -597,7 +900,10 @@ public class MetricsServiceImpl implements MetricsService {
 
         this.updateMetricExpiration(metric.getMetricId());
 
-        return dataAccess.addTags(metric, tags).map(l -> null);
+        return dataAccess.addTags(metric, tags)
+                .doOnCompleted(() -> updateMetricDefinition(metric.getMetricId(), tags, null))
+                .concatWith(updateTagCompletion(metric.getMetricId(), tags, null))
+                .map(l -> null);
     }
 
     @Override
@@ -609,21 +915,277 @@ public class MetricsServiceImpl implements MetricsService {
                     }
                     return loadedTags;
                 })
-                .flatMap(tagsToDelete -> dataAccess.deleteTags(metric, tagsToDelete))
+                .flatMap(tagsToDelete -> dataAccess.deleteTags(metric, tagsToDelete)
+                        .doOnCompleted(() -> updateMetricDefinition(metric.getMetricId(), null, tagsToDelete))
+                        .concatWith(updateTagCompletion(metric.getMetricId(), null, tagsToDelete)))
                 .map(r -> null);
     }
 
+    @Override
+    public Observable<Integer> updateTags(Observable<Metric<?>> metrics, Map<String, String> addTags,
+            Set<String> deleteTags) {
+        try {
+            checkArgument(addTags != null && deleteTags != null, "Missing tags");
+            checkArgument(isValidTagMap(addTags), "Invalid tags; tag key is required");
+        } catch (Exception e) {
+            return Observable.error(e);
+        }
+
+        return Observable.defer(() -> {
+            // One change notification per tenant and type is enough for the other nodes
+            Predicate<MetricId<?>> notified = distinctDefinitions();
+            return metrics
+                    .map(metric -> new TagsUpdate(metric, addTags, deleteTags))
+                    .filter(update -> !update.isEmpty())
+                    .buffer(TAG_UPDATE_CHUNK_SIZE)
+                    .concatMap(updates -> updateTags(updates, notified))
+                    .reduce(0, (a, b) -> a + b);
+        });
+    }
+
+    /**
+     * Writes a chunk of tag updates, then updates the tag indexes and the tag completion of the chunk
+     *
+     * @return Amount of updated metrics
+     */
+    private Observable<Integer> updateTags(List<TagsUpdate> updates, Predicate<MetricId<?>> notified) {
+        return dataAccess.updateTags(Observable.from(updates), TAG_UPDATE_CONCURRENCY)
+                .toCompletable()
+                .andThen(Observable.fromCallable(() -> {
+                    updates.forEach(update -> updateTagIndexes(update.getMetricId(), update.getAdded(),
+                            update.getDeleted()));
+                    updates.stream()
+                            .map(TagsUpdate::getMetricId)
+                            .filter(notified)
+                            .forEach(this::metricDefinitionChanged);
+                    return updates.size();
+                }))
+                .concatWith(updateTagCompletion(updates).map(resultSet -> 0))
+                .reduce(0, (a, b) -> a + b);
+    }
+
+    /**
+     * Updates the tag completion after the tags have been written, done for the distinct tag values of the updates
+     */
+    private Observable<ResultSet> updateTagCompletion(List<TagsUpdate> updates) {
+        if (tagCompletion == null) {
+            return Observable.empty();
+        }
+        Set<List<Object>> added = new HashSet<>();
+        Set<List<Object>> deleted = new HashSet<>();
+        updates.forEach(update -> {
+            MetricId<?> id = update.getMetricId();
+            update.getAdded().forEach((name, value) -> added.add(Arrays.asList(id.getTenantId(), id.getType(), name,
+                    value)));
+            update.getDeleted().forEach((name, value) -> deleted.add(Arrays.asList(id.getTenantId(), id.getType(),
+                    name, value)));
+        });
+        deleted.removeAll(added);
+        return Observable.from(added)
+                .flatMap(tag -> tagCompletion.addTag((String) tag.get(0), (MetricType<?>) tag.get(1),
+                        (String) tag.get(2), (String) tag.get(3)), TAG_UPDATE_CONCURRENCY)
+                .concatWith(Observable.from(deleted)
+                        .flatMap(tag -> tagCompletion.deleteTag((String) tag.get(0), (MetricType<?>) tag.get(1),
+                                (String) tag.get(2), (String) tag.get(3)), TAG_UPDATE_CONCURRENCY));
+    }
+
+    /**
+     * Updates the tag completion after the tags have been written to metrics_tags_idx
+     */
+    private Observable<ResultSet> updateTagCompletion(MetricId<?> id, Map<String, String> addedTags,
+            Map<String, String> deletedTags) {
+        if (tagCompletion == null) {
+            return Observable.empty();
+        }
+        Observable<ResultSet> added = addedTags == null ? Observable.empty() : tagCompletion.addTags(id, addedTags);
+        Observable<ResultSet> deleted = deletedTags == null ? Observable.empty()
+                : tagCompletion.deleteTags(id, deletedTags);
+        return added.concatWith(deleted);
+    }
+
+    private static Predicate<MetricId<?>> distinctDefinitions() {
+        Set<List<Object>> seen = new HashSet<>();
+        return id -> seen.add(Arrays.asList(id.getTenantId(), id.getType()));
+    }
+
+    /**
+     * Updates the node local tag index and statistics and invalidates the cached definitions on all the nodes
+     */
+    private void updateMetricDefinition(MetricId<?> id, Map<String, String> addedTags,
+            Map<String, String> deletedTags) {
+        updateTagIndexes(id, addedTags, deletedTags);
+        metricDefinitionChanged(id);
+    }
+
+    private void updateTagIndexes(MetricId<?> id, Map<String, String> addedTags, Map<String, String> deletedTags) {
+        if (tagIndex != null) {
+            if (addedTags != null) {
+                tagIndex.addTags(id, addedTags);
+            }
+            if (deletedTags != null) {
+                tagIndex.deleteTags(id, deletedTags);
+            }
+        }
+        if (tagStatistics != null) {
+            if (addedTags != null) {
+                tagStatistics.addTags(id, addedTags);
+            }
+            if (deletedTags != null) {
+                tagStatistics.deleteTags(id, deletedTags);
+            }
+        }
+    }
+
+    private void metricDefinitionChanged(MetricId<?> id) {
+        if (metricDefinitions != null) {
+            metricDefinitions.invalidate(id.getTenantId(), id.getType());
+            metricDefinitionChanges.publish(id)
+                    .subscribe(resultSet -> {}, t -> log.warnMetricDefinitionChangeFailed(id, t));
+        }
+    }
+
+    /**
+     * Called when another node has changed the metric definitions of the tenant and metric type
+     */
+    private void metricDefinitionsChanged(String tenantId, MetricType<?> type) {
+        metricDefinitions.invalidate(tenantId, type);
+        if (tagIndex != null) {
+            tagIndex.invalidate(tenantId);
+        }
+        if (tagCompletion != null) {
+            tagCompletion.invalidate(tenantId);
+        }
+    }
+
+    /**
+     * Drops the node local tag index, tag statistics, tag completion and metric definitions, they're loaded again
+     * when needed.
+     */
+    public void invalidateCaches() {
+        if (tagIndex != null) {
+            tagIndex.clear();
+        }
+        if (tagStatistics != null) {
+            tagStatistics.clear();
+        }
+        if (tagCompletion != null) {
+            tagCompletion.clear();
+        }
+        if (metricDefinitions != null) {
+            metricDefinitions.invalidateAll();
+        }
+    }
+
+    /**
+     * @return Node local tag index or null if it's disabled
+     */
+    public TagIndex getTagIndex() {
+        return tagIndex;
+    }
+
     @Override
     public <T> Observable<Void> addDataPoints(MetricType<T> metricType, Observable<Metric<T>> metrics) {
         checkArgument(metricType != null, "metricType is null");
 
-        return pointsInserter
-                .get(metricType)
-                .call(metrics
-                        .filter(metric -> !metric.getDataPoints().isEmpty())
-                        .doOnNext(insertedDataPointEvents::onNext))
-                .doOnNext(dataPointsInserted::mark)
-                .map(i -> null);
+        return Observable.defer(() -> {
+            Queue<MetricId<?>> created = new ConcurrentLinkedQueue<>();
+            long uncompressedStart = dataAccess.getUncompressedDataStart();
+            return pointsInserter
+                    .get(metricType)
+                    .call(metrics
+                            .filter(metric -> !metric.getDataPoints().isEmpty())
+                            .doOnNext(insertedDataPointEvents::onNext)
+                            .doOnNext(metric -> markLateDataPoints(metric, uncompressedStart))
+                            .doOnNext(metric -> {
+                                if (isNewDefinition(metric.getMetricId())) {
+                                    created.add(metric.getMetricId());
+                                }
+                            }))
+                    .doOnNext(dataPointsInserted::mark)
+                    .doOnCompleted(() -> created.forEach(this::metricDefinitionChanged))
+                    .doOnError(t -> created.forEach(metricDefinitions::forgetWritten))
+                    .map(i -> null);
+        });
+    }
+
+    /**
+     * Metrics created by writing data points are not in metrics_idx. The first write of a metric unknown to this node
+     * is announced as a definition change once its data points are stored.
+     */
+    private boolean isNewDefinition(MetricId<?> id) {
+        return metricDefinitions != null && metricDefinitions.dataPointsWritten(id);
+    }
+
+    /**
+     * Points older than the oldest uncompressed block end up in the out-of-order table, from where they are merged
+     * to their compressed blocks by {@link #mergeLateDataPoints(int, int)}
+     */
+    private <T> void markLateDataPoints(Metric<T> metric, long uncompressedStart) {
+        long late = metric.getDataPoints().stream()
+                .filter(dataPoint -> dataPoint.getTimestamp() < uncompressedStart)
+                .count();
+        if (late > 0) {
+            lateDataPoints.mark(late);
+        }
+    }
+
+    @Override
+    public <T> Observable<Integer> addCompressedDataPoints(MetricId<T> metricId, ByteBuffer compressedValue) {
+        try {
+            checkArgument(metricId.getType() == GAUGE || metricId.getType() == COUNTER,
+                    "Compressed blocks are supported only for gauges and counters");
+        } catch (Exception e) {
+            return Observable.error(e);
+        }
+
+        return Observable.fromCallable(() -> {
+            long blockStart = PointColumns.getBlockStart(compressedValue);
+            long blockSize = Duration.standardHours(2).getMillis();
+            if (DateTimeService.getTimeSlice(blockStart, Duration.standardHours(2)) != blockStart) {
+                throw new IllegalArgumentException("Block start " + blockStart + " is not aligned to the " +
+                        "two hour blocks");
+            }
+            if (blockStart + blockSize > DateTimeService.now.get().getMillis()) {
+                throw new IllegalArgumentException("Block starting at " + blockStart + " is not complete yet");
+            }
+            PointColumns columns = PointColumns.decompressBlock(compressedValue, blockStart, blockStart + blockSize);
+            if (metricId.getType() == COUNTER) {
+                for (int i = 0; i < columns.size(); i++) {
+                    if (columns.getValue(i) != Math.rint(columns.getValue(i))) {
+                        throw new IllegalArgumentException("Counter value " + columns.getValue(i) + " is not an " +
+                                "integer");
+                    }
+                }
+            }
+            return columns;
+        }).flatMap(columns -> {
+            // The compression job merges with the row too, so the block may be uploaded before it's compressed
+            long blockStart = PointColumns.getBlockStart(compressedValue);
+            Observable<?> inserted = mergeCompressedBlock(metricId, blockStart, columns)
+                    .mergeWith(updateMetricExpiration(metricId).map(v -> null));
+            boolean created = isNewDefinition(metricId);
+            return inserted
+                    .toList()
+                    .map(l -> columns.size())
+                    .doOnNext(dataPointsInserted::mark)
+                    .doOnCompleted(() -> {
+                        if (created) {
+                            metricDefinitionChanged(metricId);
+                        }
+                    })
+                    .doOnError(t -> {
+                        if (created) {
+                            metricDefinitions.forgetWritten(metricId);
+                        }
+                    });
+        });
+    }
+
+    private <T> Observable<Integer> insertData(Observable<Metric<T>> metrics) {
+        if (writeBuffer != null) {
+            return metrics.flatMap(metric -> writeBuffer.append(metric));
+        }
+        return dataAccess.insertData(metrics);
     }
 
     @Override
@@ -645,8 +1207,6 @@ public class MetricsServiceImpl implements MetricsService {
         if (metricType == GAUGE || metricType == AVAILABILITY || metricType == COUNTER) {
             long sliceStart = DateTimeService.getTimeSlice(start, Duration.standardHours(2));
 
-            Func1<Row, DataPoint<T>> tempMapper = (Func1<Row, DataPoint<T>>) tempDataPointMappers.get(metricType);
-
             // Calls mostly deprecated methods..
 //            Observable<DataPoint<T>> uncompressedPoints = dataAccess.findOldData(metricId, start, end, limit, safeOrder,
 //                    pageSize).map(mapper).doOnError(Throwable::printStackTrace);
@@ -655,15 +1215,17 @@ public class MetricsServiceImpl implements MetricsService {
                     dataAccess.findCompressedData(metricId, sliceStart, end, limit, safeOrder)
                             .compose(new DataPointDecompressTransformer(metricType, safeOrder, limit, start, end));
 
-            Observable<DataPoint<T>> tempStoragePoints = dataAccess.findTempData(metricId, start, end, limit,
-                    safeOrder, pageSize)
-                    .map(tempMapper);
+            Observable<DataPoint<T>> tempStoragePoints = findTempDataPoints(metricId, start, end, limit, safeOrder,
+                    pageSize);
+
+            Observable<DataPoint<T>> walPoints = findWalDataPoints(metricId, start, end, safeOrder);
 
             Comparator<DataPoint<T>> comparator = getDataPointComparator(safeOrder);
-            List<Observable<? extends DataPoint<T>>> sources = new ArrayList<>(3);
+            List<Observable<? extends DataPoint<T>>> sources = new ArrayList<>(4);
 //            sources.add(uncompressedPoints);
             sources.add(compressedPoints);
             sources.add(tempStoragePoints);
+            sources.add(walPoints);
 
             Observable<DataPoint<T>> dataPoints = SortedMerge.create(sources, comparator, false)
                     .distinctUntilChanged(
@@ -683,6 +1245,97 @@ public class MetricsServiceImpl implements MetricsService {
         return results.doOnCompleted(context::stop);
     }
 
+    @SuppressWarnings("unchecked")
+    private <T> Observable<DataPoint<T>> findTempDataPoints(MetricId<T> metricId, long start, long end, int limit,
+                                                            Order order, int pageSize) {
+        Func1<Row, DataPoint<T>> tempMapper = (Func1<Row, DataPoint<T>>) tempDataPointMappers.get(metricId.getType());
+        return dataAccess.findTempData(metricId, start, end, limit, order, pageSize).map(tempMapper);
+    }
+
+    private <T> Observable<DataPoint<T>> findWalDataPoints(MetricId<T> metricId, long start, long end, Order order) {
+        // Write-ahead log rows are write batches, not sorted by the data point timestamps
+        return dataAccess.findWalData(metricId, start, end)
+                .collect(PointColumns::new,
+                        (columns, r) -> columns.addAll(PointColumns.decode(r.getBytes(2), r.getBytes(3))))
+                .flatMapIterable(columns -> columns.sort().toDataPoints(metricId.getType(), start, end, order));
+    }
+
+    /**
+     * Fetches the gauge or counter data as sorted primitive columns, one per block, for the statistics. The
+     * compressed blocks are decoded directly to columns. Points from the temporary tables and the write-ahead log are
+     * only found in the recent blocks, they are merged to the block's columns (replacing compressed points with the
+     * same timestamp) so that each timestamp is counted once.
+     */
+    private <T> Observable<PointColumns> findNumericColumns(MetricId<T> metricId, long start, long end) {
+        Duration blockSize = Duration.standardHours(2);
+        long sliceStart = DateTimeService.getTimeSlice(start, blockSize);
+        MetricType<T> metricType = metricId.getType();
+
+        Observable<Map<Long, PointColumns>> uncompressedBlocks =
+                findTempDataPoints(metricId, start, end, 0, ASC, defaultPageSize)
+                        .mergeWith(findWalDataPoints(metricId, start, end, ASC))
+                        .collect(HashMap::new, (blocks, dataPoint) -> blocks
+                                .computeIfAbsent(DateTimeService.getTimeSlice(dataPoint.getTimestamp(), blockSize),
+                                        b -> new PointColumns())
+                                .add(metricType, dataPoint));
+
+        return uncompressedBlocks.flatMap(uncompressed -> dataAccess
+                .findCompressedData(metricId, sliceStart, end, 0, ASC)
+                .compose(new CompressedColumnsTransformer(start, end))
+                .map(columns -> {
+                    long blockStart = DateTimeService.getTimeSlice(columns.getTimestamp(0), blockSize);
+                    PointColumns late = uncompressed.remove(blockStart);
+                    if (late != null) {
+                        columns.addAll(late);
+                    }
+                    return columns.sort();
+                })
+                .concatWith(Observable.defer(() -> Observable.from(uncompressed.values()).map(PointColumns::sort))));
+    }
+
+    /**
+     * Computes the buckets from the coarsest rollups that fit the bucket step. Only the compressed blocks are rolled
+     * up, so the rollups are used for the time range between the first rolled up block and the oldest block that is
+     * still in the temporary tables. The rest, including the parts of the buckets that are not aligned to the rollups,
+     * is computed from the raw data.
+     */
+    private <T extends Number> Observable<List<NumericBucketPoint>> findNumericBucketPoints(
+            Observable<MetricId<T>> metricIds, long start, long end, Buckets buckets, List<Percentile> percentiles) {
+        Optional<RollupResolution> resolution = RollupResolution.forBuckets(buckets);
+        if (!resolution.isPresent()) {
+            return findRawNumericBucketPoints(metricIds, start, end, buckets, percentiles);
+        }
+
+        return getRollupsStart().flatMap(availableStart -> {
+            RollupStatsCollector collector = new RollupStatsCollector(buckets, percentiles, resolution.get(), start,
+                    end, availableStart, dataAccess.getUncompressedDataStart());
+            if (!collector.hasRollups()) {
+                return findRawNumericBucketPoints(metricIds, start, end, buckets, percentiles);
+            }
+
+            // Concatenated, the collector is not thread-safe
+            return Completable.concat(metricIds.map(metricId -> Completable.concat(
+                    Completable.fromObservable(dataAccess
+                            .findRollups(metricId, collector.getResolution(), collector.getRollupsStart(),
+                                    collector.getRollupsEnd())
+                            .map(RollupPoint::fromRow)
+                            .doOnNext(collector::increment)),
+                    Completable.fromObservable(Observable.from(collector.getRawRanges())
+                            .concatMap(range -> findNumericColumns(metricId, range.lowerEndpoint(),
+                                    range.upperEndpoint()))
+                            .doOnNext(collector::increment)))))
+                    .andThen(Observable.fromCallable(collector::toBucketPoints));
+        });
+    }
+
+    private <T extends Number> Observable<List<NumericBucketPoint>> findRawNumericBucketPoints(
+            Observable<MetricId<T>> metricIds, long start, long end, Buckets buckets, List<Percentile> percentiles) {
+        return metricIds
+                .concatMap(metricId -> findNumericColumns(metricId, start, end))
+                .collect(() -> new NumericColumnsCollector(buckets, percentiles), NumericColumnsCollector::increment)
+                .map(NumericColumnsCollector::toBucketPoints);
+    }
+
     private <T> Comparator<DataPoint<T>> getDataPointComparator(Order safeOrder) {
         Comparator<DataPoint<T>> comparator;
 
@@ -741,45 +1394,296 @@ public class MetricsServiceImpl implements MetricsService {
             startTime = startTime.plus(2, ChronoUnit.HOURS);
         }
 
+        if (writeBuffer != null) {
+            return Completable.fromObservable(dataAccess.createTempTablesIfNotExists(timestamps)
+                    .concatWith(dataAccess.createWalTablesIfNotExists(timestamps)));
+        }
         return Completable.fromObservable(dataAccess.createTempTablesIfNotExists(timestamps));
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public Completable compressBlock(long startTimeSlice, int pageSize, int maxConcurrency) {
-        return Completable.fromObservable(
-                dataAccess.findAllDataFromBucket(startTimeSlice, pageSize, maxConcurrency)
-                        .switchIfEmpty(Observable.empty())
-                        .flatMap(rows -> rows
-                                // Each time the tokenrange changes inside the query, create new window, publish allows
-                                // reuse of the observable in two distinct processing phases
-                                .publish(p -> p.window(
-                                        p.map(Row::getPartitionKeyToken)
-                                                .distinctUntilChanged()))
-                                // ConcatMap so we don't mess the order as that's important in the compression job
-                                .concatMap(o -> {
-                                    // Cache the first key from the observable so we can use it to create a key later
-                                    Observable<Row> sharedRows = o.share();
-                                    Observable<CompressedPointContainer> compressed =
-                                            sharedRows.compose(new TempTableCompressTransformer(startTimeSlice));
-                                    Observable<Row> keyTake = sharedRows.take(1);
-
-                                    // Merge the first row with the compressed package to be able to write to Cassandra
-                                    return compressed.zipWith(keyTake, (cpc, r) -> {
-                                        MetricId<?> metricId =
-                                                new MetricId(r.getString(0), MetricType.fromCode(r.getByte(1)),
-                                                        r.getString(2));
-                                        return dataAccess
-                                                .insertCompressedData(metricId, startTimeSlice, cpc, getTTL(metricId))
-                                                .mergeWith(updateMetricExpiration(metricId).map(rs -> null));
-                                    });
-                                }), maxConcurrency)
-                        .flatMap(rs -> rs)
-                        .doOnCompleted(() -> dataAccess.dropTempTable(startTimeSlice)
-                                .compose(applyRetryPolicy())
-                                .subscribeOn(Schedulers.io())
-                                .subscribe())
-        );
+        // The write-ahead log is compressed last, as it is merged with what the temporary table produced
+        return Completable.fromObservable(compressRanges(startTimeSlice, CompressionPhase.TEMP, getTokenRanges(),
+                pageSize, maxConcurrency))
+                .andThen(finishCompression(startTimeSlice, CompressionPhase.TEMP))
+                .andThen(Completable.fromObservable(compressRanges(startTimeSlice, CompressionPhase.WAL,
+                        getTokenRanges(), pageSize, maxConcurrency)))
+                .andThen(finishCompression(startTimeSlice, CompressionPhase.WAL));
+    }
+
+    /**
+     * Compresses up to maxConcurrency token ranges in parallel. A range is recorded as completed only when all of its
+     * writes are, a restarted compression processes only the ranges that were not completed.
+     */
+    @Override
+    public Observable<Integer> compressRanges(long startTimeSlice, CompressionPhase phase,
+            Collection<TokenRange> ranges, int pageSize, int maxConcurrency) {
+        return markRollupsStart(startTimeSlice)
+                .andThen(findUncompressedRanges(startTimeSlice, phase, ranges))
+                .flatMap(range -> {
+                    Observable<Integer> compressed = phase == CompressionPhase.TEMP
+                            ? compressTempRange(startTimeSlice, range, pageSize)
+                            : compressWalRange(startTimeSlice, range, pageSize);
+                    return compressed
+                            .count()
+                            .concatMap(count -> dataAccess
+                                    .insertCompressedRange(startTimeSlice, phase.getCode(), range)
+                                    .map(rs -> count));
+                }, maxConcurrency);
+    }
+
+    @Override
+    public Observable<TokenRange> findCompressedRanges(long startTimeSlice, CompressionPhase phase) {
+        return dataAccess.findCompressedRanges(startTimeSlice, phase.getCode())
+                .compose(applyRetryPolicy());
+    }
+
+    /**
+     * The completed ranges are forgotten after the last phase so that the block can be compressed again
+     */
+    @Override
+    public Completable finishCompression(long startTimeSlice, CompressionPhase phase) {
+        if (phase == CompressionPhase.TEMP) {
+            return Completable.fromObservable(dataAccess.dropTempTable(startTimeSlice)
+                    .compose(applyRetryPolicy()));
+        }
+        return Completable.fromObservable(dataAccess.dropWalTable(startTimeSlice)
+                .compose(applyRetryPolicy())
+                .concatWith(dataAccess.deleteCompressedRanges(startTimeSlice)));
+    }
+
+    @Override
+    public Set<TokenRange> getTokenRanges() {
+        return dataAccess.getTokenRanges();
+    }
+
+    /**
+     * The out-of-order table buffers the late points of each metric. The points of the blocks that have been fully
+     * compressed are merged to the blocks' data_compressed rows and then deleted, blocks that are still being
+     * compressed are left for a later run. Merging is idempotent, points that were merged but not yet deleted are
+     * merged again with the same result.
+     */
+    @Override
+    public Observable<Integer> mergeLateDataPoints(int pageSize, int maxConcurrency) {
+        return Observable.defer(() -> {
+            long uncompressedStart = dataAccess.getUncompressedDataStart();
+            return Observable.from(getTokenRanges())
+                    .flatMap(range -> mergeLateRange(range, uncompressedStart, pageSize), maxConcurrency);
+        });
+    }
+
+    private Observable<Integer> mergeLateRange(TokenRange range, long uncompressedStart, int pageSize) {
+        return dataAccess.findOutOfOrderData(range, pageSize)
+                .compose(applyRetryPolicy())
+                .filter(r -> r.getTimestamp(3).getTime() < uncompressedStart)
+                .publish(p -> p.window(
+                        p.map(Row::getPartitionKeyToken)
+                                .distinctUntilChanged()))
+                .concatMap(o -> o.toList()
+                        .filter(rows -> !rows.isEmpty())
+                        .concatMap(this::mergeLateRows));
+    }
+
+    /**
+     * Merges a metric's out-of-order rows block by block, the rows are deleted once their block has been written
+     */
+    @SuppressWarnings("unchecked")
+    private Observable<Integer> mergeLateRows(List<Row> rows) {
+        Row first = rows.get(0);
+        MetricId<?> metricId = new MetricId(first.getString(0), MetricType.fromCode(first.getByte(1)),
+                first.getString(2));
+        Map<Long, List<Row>> blocks = rows.stream()
+                .collect(Collectors.groupingBy(r -> DateTimeService.getTimeSlice(r.getTimestamp(3).getTime(),
+                        Duration.standardHours(2))));
+
+        return Observable.from(blocks.entrySet())
+                .concatMap(block -> {
+                    PointColumns columns = new PointColumns();
+                    block.getValue().forEach(r -> TempTableCompressTransformer.addRow(columns, r));
+                    Observable<ResultSet> deleted = Observable.from(block.getValue())
+                            .flatMap(r -> dataAccess.deleteOutOfOrderData(metricId, r.getTimestamp(3).getTime(),
+                                    getValueWriteTime(r))
+                                    .compose(applyRetryPolicy()));
+                    return mergeCompressedBlock(metricId, block.getKey(), columns)
+                            .compose(applyRetryPolicy())
+                            .toCompletable()
+                            .andThen(Observable.defer(() -> deleted))
+                            .toCompletable()
+                            .andThen(Observable.just(block.getValue().size()));
+                })
+                .doOnNext(lateDataPointsMerged::mark);
+    }
+
+    /**
+     * @return Write time of the value column of an out-of-order row, the write times follow the token column
+     */
+    private static long getValueWriteTime(Row r) {
+        switch (r.getByte(1)) {
+            case 0: // GAUGE
+                return r.getLong(9);
+            case 1: // AVAILABILITY
+                return r.getLong(10);
+            case 2: // COUNTER
+                return r.getLong(11);
+            default:
+                throw new RuntimeException("Metric of type " + r.getByte(1) + " is not supported in compression");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Observable<Integer> compressTempRange(long startTimeSlice, TokenRange range, int pageSize) {
+        return dataAccess.findDataFromBucket(startTimeSlice, range, pageSize)
+                // Each time the tokenrange changes inside the query, create new window, publish allows
+                // reuse of the observable in two distinct processing phases
+                .publish(p -> p.window(
+                        p.map(Row::getPartitionKeyToken)
+                                .distinctUntilChanged()))
+                // ConcatMap so we don't mess the order as that's important in the compression job
+                .concatMap(o -> {
+                    // Cache the first key from the observable so we can use it to create a key later
+                    Observable<Row> sharedRows = o.share();
+                    Observable<CompressedPointContainer> compressed =
+                            sharedRows.compose(new TempTableCompressTransformer(startTimeSlice, integerCodecs));
+                    Observable<Row> keyTake = sharedRows.take(1);
+
+                    // Merge the first row with the compressed package to be able to write to Cassandra. The block is
+                    // merged with the data_compressed row, a range compressed again after a restart keeps the late
+                    // points that were merged to the row in between.
+                    return compressed.zipWith(keyTake, (cpc, r) -> {
+                        MetricId<?> metricId =
+                                new MetricId(r.getString(0), MetricType.fromCode(r.getByte(1)),
+                                        r.getString(2));
+                        return mergeCompressedBlock(metricId, startTimeSlice, PointColumns
+                                .decompress(cpc.getValueBuffer(), cpc.getTagsBuffer(), startTimeSlice))
+                                .mergeWith(updateMetricExpiration(metricId).map(rs -> null));
+                    });
+                })
+                // Emits once per metric, when all of the metric's writes are done
+                .flatMap(rs -> rs.toCompletable().andThen(Observable.just(1)));
+    }
+
+    /**
+     * Compresses the write-ahead log rows of the range. Each metric's log rows are materialized to in-memory columns
+     * and compressed from there, merging with the data_compressed row if the block was partially written to
+     * the temporary tables.
+     */
+    @SuppressWarnings("unchecked")
+    private Observable<Integer> compressWalRange(long startTimeSlice, TokenRange range, int pageSize) {
+        return dataAccess.findWalDataFromBucket(startTimeSlice, range, pageSize)
+                .publish(p -> p.window(
+                        p.map(Row::getPartitionKeyToken)
+                                .distinctUntilChanged()))
+                .concatMap(o -> {
+                    Observable<Row> sharedRows = o.share();
+                    // "SELECT tenant_id, type, metric, time, count, value, tags FROM %s "
+                    Observable<PointColumns> columns = sharedRows
+                            .collect(PointColumns::new, (pc, r) -> pc
+                                    .addAll(PointColumns.decode(r.getBytes(5), r.getBytes(6))));
+                    Observable<Row> keyTake = sharedRows.take(1);
+
+                    return columns.zipWith(keyTake, (pc, r) -> {
+                        MetricId<?> metricId =
+                                new MetricId(r.getString(0), MetricType.fromCode(r.getByte(1)),
+                                        r.getString(2));
+                        return mergeCompressedBlock(metricId, startTimeSlice, pc)
+                                .mergeWith(updateMetricExpiration(metricId).map(rs -> null));
+                    });
+                })
+                .flatMap(rs -> rs.toCompletable().andThen(Observable.just(1)));
+    }
+
+    /**
+     * @return The given token ranges that have not been recorded as completed for the block's phase. Ranges recorded
+     * under an earlier ring topology do not match and are compressed again, which is idempotent.
+     */
+    private Observable<TokenRange> findUncompressedRanges(long startTimeSlice, CompressionPhase phase,
+            Collection<TokenRange> ranges) {
+        return findCompressedRanges(startTimeSlice, phase)
+                .toList()
+                .flatMap(completed -> {
+                    if (!completed.isEmpty()) {
+                        log.debugf("Resuming %s compression of block %d, %d token ranges completed", phase,
+                                startTimeSlice, completed.size());
+                    }
+                    return Observable.from(ranges)
+                            .filter(range -> !completed.contains(range));
+                });
+    }
+
+    /**
+     * Merges the columns with the metric's data_compressed row of the block, if there is one. The row is replaced only
+     * if its version hasn't changed since it was read, a concurrent merge to the same row makes this one read the row
+     * again and retry.
+     */
+    private <T> Observable<ResultSet> mergeCompressedBlock(MetricId<T> metricId, long blockStart,
+                                                           PointColumns columns) {
+        return Observable.defer(() -> dataAccess.findCompressedBlock(metricId, blockStart)
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(row -> {
+                    PointColumns merged = row
+                            .map(r -> PointColumns.decompress(r.getBytes(0), r.getBytes(1), blockStart))
+                            .orElseGet(PointColumns::new);
+                    Integer version = row.filter(r -> !r.isNull(2)).map(r -> r.getInt(2)).orElse(null);
+                    merged.addAll(columns);
+                    return dataAccess.updateCompressedData(metricId, blockStart,
+                            merged.compress(blockStart, metricId.getType(), integerCodecs), getTTL(metricId), version)
+                            .flatMap(resultSet -> {
+                                if (!resultSet.wasApplied()) {
+                                    return Observable.error(new CompressedBlockChangedException());
+                                }
+                                return Observable.just(resultSet).mergeWith(insertRollups(metricId, merged));
+                            });
+                }))
+                .retry((attempt, t) -> t instanceof CompressedBlockChangedException && attempt < MAX_MERGE_ATTEMPTS);
+    }
+
+    private static class CompressedBlockChangedException extends RuntimeException {
+        CompressedBlockChangedException() {
+            super("The compressed block was changed by a concurrent merge");
+        }
+    }
+
+    /**
+     * Writes the rollups of a compressed block, only gauges and counters are rolled up. The rollup rows of the block
+     * are replaced, so the columns must hold all the points of the block.
+     */
+    private <T> Observable<ResultSet> insertRollups(MetricId<T> metricId, PointColumns columns) {
+        if ((metricId.getType() != GAUGE && metricId.getType() != COUNTER) || columns.isEmpty()) {
+            return Observable.empty();
+        }
+        return dataAccess.insertRollups(metricId, Rollups.compute(columns.sort()), getTTL(metricId))
+                .map(i -> null);
+    }
+
+    /**
+     * Stores the start of the first rolled up block, older blocks were compressed without rollups. The later blocks
+     * are all rolled up as the compression job processes the blocks in order.
+     */
+    private Completable markRollupsStart(long blockStart) {
+        return Completable.defer(() -> {
+            if (rollupsStart != Long.MAX_VALUE) {
+                return Completable.complete();
+            }
+            return Completable.fromObservable(configurationService.load("org.hawkular.metrics", "rollups.start")
+                    .map(Long::parseLong)
+                    .switchIfEmpty(configurationService
+                            .save("org.hawkular.metrics", "rollups.start", String.valueOf(blockStart))
+                            .map(v -> blockStart))
+                    .doOnNext(start -> rollupsStart = start));
+        });
+    }
+
+    private Observable<Long> getRollupsStart() {
+        if (rollupsStart != Long.MAX_VALUE) {
+            return Observable.just(rollupsStart);
+        }
+        // Another node might have compressed the first block with rollups
+        return configurationService.load("org.hawkular.metrics", "rollups.start")
+                .map(Long::parseLong)
+                .doOnNext(start -> rollupsStart = start)
+                .defaultIfEmpty(Long.MAX_VALUE);
     }
 
     @Override
@@ -792,7 +1696,7 @@ public class MetricsServiceImpl implements MetricsService {
                 .compose(applyRetryPolicy())
                 .concatMap(metricId -> findDataPoints(metricId, startTimeSlice, endTimeSlice, 0, ASC, pageSize)
                         .compose(applyRetryPolicy())
-                        .compose(new DataPointCompressTransformer(metricId.getType(), startTimeSlice))
+                        .compose(new DataPointCompressTransformer(metricId.getType(), startTimeSlice, integerCodecs))
                         .doOnNext(cpc -> subject.onNext(new Metric<>(metricId, getTTL(metricId))))
                         .concatMap(cpc -> dataAccess.deleteAndInsertCompressedGauge(metricId, startTimeSlice,
                                 (CompressedPointContainer) cpc, startTimeSlice, endTimeSlice, getTTL(metricId))
@@ -803,8 +1707,8 @@ public class MetricsServiceImpl implements MetricsService {
     public <T> Observable<NamedDataPoint<T>> findDataPoints(List<MetricId<T>> metricIds, long start,
             long end, int limit, Order order) {
         return Observable.from(metricIds)
-                .concatMap(id -> findDataPoints(id, start, end, limit, order)
-                        .map(dataPoint -> new NamedDataPoint<>(id.getName(), dataPoint)));
+                .compose(fetchInOrder(id -> findDataPoints(id, start, end, limit, order)
+                        .map(dataPoint -> new NamedDataPoint<>(id.getName(), dataPoint))));
     }
 
     @Override
@@ -812,8 +1716,19 @@ public class MetricsServiceImpl implements MetricsService {
             String tagFilters, long start, long end, int limit, Order order) {
         return findMetricsWithFilters(tenantId, metricType, tagFilters)
                 .map(Metric::getMetricId)
-                .concatMap(id -> findDataPoints(id, start, end, limit, order)
-                        .map(dataPoint -> new NamedDataPoint<>(id.getName(), dataPoint)));
+                .compose(fetchInOrder(id -> findDataPoints(id, start, end, limit, order)
+                        .map(dataPoint -> new NamedDataPoint<>(id.getName(), dataPoint))));
+    }
+
+    /**
+     * Fetches the data of up to queryConcurrency metrics concurrently, but emits it in the order of the metrics with
+     * each metric's data points grouped together, as the named data point serialization expects. Results of the
+     * metrics that are not yet emitted are buffered. Each metric's fetch is requested EAGER_FETCH_CAPACITY_HINT data
+     * points at a time and more only as its buffer is drained, so at most queryConcurrency * EAGER_FETCH_CAPACITY_HINT
+     * data points are held here regardless of the size of the metrics.
+     */
+    private <T, R> Observable.Transformer<MetricId<T>, R> fetchInOrder(Func1<MetricId<T>, Observable<R>> fetcher) {
+        return ids -> ids.concatMapEager(fetcher, EAGER_FETCH_CAPACITY_HINT, queryConcurrency);
     }
 
     @SuppressWarnings("unchecked")
@@ -868,8 +1783,8 @@ public class MetricsServiceImpl implements MetricsService {
     @Override
     public <T extends Number> Observable<NamedDataPoint<Double>> findRateData(List<MetricId<T>> ids, long start,
                                                                      long end, int limit, Order order) {
-        return Observable.from(ids).concatMap(id -> findRateData(id, start, end, limit, order)
-                .map(dataPoint -> new NamedDataPoint<>(id.getName(), dataPoint)));
+        return Observable.from(ids).compose(fetchInOrder(id -> findRateData(id, start, end, limit, order)
+                .map(dataPoint -> new NamedDataPoint<>(id.getName(), dataPoint))));
     }
 
     @Override
@@ -894,8 +1809,8 @@ public class MetricsServiceImpl implements MetricsService {
                 List<Percentile> percentiles) {
         TimeRange timeRange = bucketConfig.getTimeRange();
         checkArgument(isValidTimeRange(timeRange.getStart(), timeRange.getEnd()), "Invalid time range");
-        return findDataPoints(metricId, timeRange.getStart(), timeRange.getEnd(), 0, Order.DESC)
-                .compose(new NumericBucketPointTransformer(bucketConfig.getBuckets(), percentiles));
+        return findNumericBucketPoints(Observable.just(metricId), timeRange.getStart(), timeRange.getEnd(),
+                bucketConfig.getBuckets(), percentiles);
     }
 
     @Override
@@ -910,13 +1825,10 @@ public class MetricsServiceImpl implements MetricsService {
             List<MetricId<T>> metrics, long start, long end, Buckets buckets, List<Percentile>
             percentiles, boolean stacked, boolean isRate) {
 
-        // TODO Stats needs fixing to understand compressed values also..
         checkArgument(isValidTimeRange(start, end), "Invalid time range");
         if (!stacked) {
             if (!isRate) {
-                return Observable.from(metrics)
-                        .flatMap(metricId -> findDataPoints(metricId, start, end, 0, Order.DESC))
-                        .compose(new NumericBucketPointTransformer(buckets, percentiles));
+                return findNumericBucketPoints(Observable.from(metrics), start, end, buckets, percentiles);
             } else {
                 return Observable.from(metrics)
                         .flatMap(metricId -> findRateData(metricId, start, end, 0, ASC))
@@ -926,8 +1838,7 @@ public class MetricsServiceImpl implements MetricsService {
             Observable<Observable<NumericBucketPoint>> individualStats;
             if (!isRate) {
                 individualStats = Observable.from(metrics).map(metricId -> {
-                    return findDataPoints(metricId, start, end, 0, Order.DESC)
-                            .compose(new NumericBucketPointTransformer(buckets, percentiles))
+                    return findNumericBucketPoints(Observable.just(metricId), start, end, buckets, percentiles)
                             .flatMap(Observable::from);
                 });
             } else {
@@ -994,9 +1905,8 @@ public class MetricsServiceImpl implements MetricsService {
             percentiles) {
         TimeRange timeRange = bucketConfig.getTimeRange();
         checkArgument(isValidTimeRange(timeRange.getStart(), timeRange.getEnd()), "Invalid time range");
-        return findDataPoints(id, timeRange.getStart(), timeRange.getEnd(), 0, ASC)
-                .doOnError(Throwable::printStackTrace)
-                .compose(new NumericBucketPointTransformer(bucketConfig.getBuckets(), percentiles));
+        return findNumericBucketPoints(Observable.just(id), timeRange.getStart(), timeRange.getEnd(),
+                bucketConfig.getBuckets(), percentiles);
     }
 
     @Override
@@ -1055,6 +1965,15 @@ public class MetricsServiceImpl implements MetricsService {
     }
 
     public void shutdown() {
+        if (metricDefinitionChangesPoller != null) {
+            metricDefinitionChangesPoller.unsubscribe();
+        }
+        if (writeBuffer != null) {
+            writeBuffer.flush();
+        }
+        if (batchWriter != null) {
+            batchWriter.flush();
+        }
         insertedDataPointEvents.onCompleted();
         metricsTasks.shutdown();
         unloadDataRetentions();
@@ -1078,10 +1997,17 @@ public class MetricsServiceImpl implements MetricsService {
         //      for the compressed data table.
 
         return getMetricTags(id)
-                .flatMap(tags -> dataAccess.deleteFromMetricsIndexAndTags(id, tags))
+                .flatMap(tags -> dataAccess.deleteFromMetricsIndexAndTags(id, tags)
+                        .doOnCompleted(() -> updateMetricDefinition(id, null, tags))
+                        .concatWith(updateTagCompletion(id, null, tags)))
                 .concatWith(dataAccess.deleteMetricData(id))
                 .concatWith(dataAccess.deleteMetricFromRetentionIndex(id))
                 .concatWith(dataAccess.deleteFromMetricExpirationIndex(id))
+                .doOnCompleted(() -> {
+                    if (metricDefinitions != null) {
+                        metricDefinitions.forgetWritten(id);
+                    }
+                })
                 .doOnError(Throwable::printStackTrace)
 //                        .concatMap(r -> dataAccess.deleteMetricData(id))
 //                        .concatMap(r -> dataAccess.deleteMetricFromRetentionIndex(id))
@@ -1089,6 +2015,31 @@ public class MetricsServiceImpl implements MetricsService {
                 .map(r -> null);
     }
 
+    @Override
+    public <T> Observable<Void> deleteMetricData(MetricId<T> id) {
+        return dataAccess.deleteMetricData(id)
+                .concatWith(dataAccess.deleteFromMetricExpirationIndex(id))
+                .map(r -> null);
+    }
+
+    @Override
+    public void invalidateTenant(String tenantId) {
+        if (tagIndex != null) {
+            tagIndex.invalidate(tenantId);
+        }
+        if (tagStatistics != null) {
+            tagStatistics.invalidate(tenantId);
+        }
+        if (tagCompletion != null) {
+            tagCompletion.invalidate(tenantId);
+        }
+        if (metricDefinitions != null) {
+            metricDefinitions.forgetWritten(tenantId);
+        }
+        // Only the tenant and the type of the id are used, the other nodes drop their tag indexes too
+        MetricType.userTypes().forEach(type -> metricDefinitionChanged(new MetricId<>(tenantId, type, "")));
+    }
+
     @Override
     public <T> Observable<Void> updateMetricExpiration(MetricId<T> metric) {
         if (!MetricType.STRING.equals(metric.getType())) {
@@ -1096,7 +2047,7 @@ public class MetricsServiceImpl implements MetricsService {
 
             return dataAccess.updateMetricExpirationIndex(metric, expiration)
                     .doOnError(t -> log.error("Failure to update expiration index", t))
-                    .flatMap(r -> null);
+                    .map(r -> null);
         }
 
         return Observable.empty();
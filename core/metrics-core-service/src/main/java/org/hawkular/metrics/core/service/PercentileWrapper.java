@@ -17,12 +17,11 @@
 package org.hawkular.metrics.core.service;
 
 /**
- * We use the org.apache.commons.math3.stat.descriptive.rank.PSquarePercentile class for computing percentiles. The
- * order in which values are added to PSquarePercentile can effect the results. This can make automated testing
- * difficult in scenarios in which values are added from different threads concurrently. For those scenarios
- * org.apache.commons.math3.stat.descriptive.rank.Percentile works better as it stores all values in memory and the
- * order in which it consumes values does not effect the result. Unfortunately, these two classes do not share a common
- * interface that we can use, so interface is used to facilitate testing.
+ * The percentiles are computed with {@link SketchPercentileWrapper}, which is backed by a mergeable
+ * {@link org.hawkular.metrics.core.service.rollup.QuantileSketch} with a relative error guarantee. For tests that
+ * compare against exact values, org.apache.commons.math3.stat.descriptive.rank.Percentile works better as it stores
+ * all values in memory. These classes do not share a common interface that we can use, so interface is used to
+ * facilitate testing.
  *
  * @author jsanda
  */
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import org.hawkular.metrics.core.service.rollup.QuantileSketch;
+
+/**
+ * Percentile computed from a {@link QuantileSketch}. A sketch can answer any percentile, so the wrappers of the
+ * percentiles requested for the same values can share a single sketch. The values of a shared sketch are added to
+ * the sketch directly, once, instead of through each wrapper.
+ *
+ * Like the collectors it is used by, the wrapper is not thread-safe.
+ */
+public class SketchPercentileWrapper implements PercentileWrapper {
+
+    private final QuantileSketch sketch;
+    private final double quantile;
+
+    /**
+     * @param percentile Percentile in range (0, 100]
+     */
+    public SketchPercentileWrapper(double percentile) {
+        this(new QuantileSketch(), percentile);
+    }
+
+    public SketchPercentileWrapper(QuantileSketch sketch, double percentile) {
+        this.sketch = sketch;
+        this.quantile = percentile / 100;
+    }
+
+    @Override
+    public void addValue(double value) {
+        sketch.add(value);
+    }
+
+    @Override
+    public double getResult() {
+        return sketch.getQuantile(quantile);
+    }
+}
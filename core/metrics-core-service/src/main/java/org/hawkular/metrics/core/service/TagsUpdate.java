@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+
+/**
+ * Effective tag changes of a single metric, computed from the metric's current tags. Tags that already have the
+ * requested value are not written again and a tag that is both deleted and added keeps only the added value.
+ */
+public class TagsUpdate {
+
+    private final MetricId<?> metricId;
+    private final Map<String, String> added = new HashMap<>();
+    private final Map<String, String> deleted = new HashMap<>();
+
+    /**
+     * @param metric Metric with its current tags
+     * @param addTags Tags to add or to replace
+     * @param deleteTags Names of the tags to delete
+     */
+    public TagsUpdate(Metric<?> metric, Map<String, String> addTags, Set<String> deleteTags) {
+        this.metricId = metric.getMetricId();
+        Map<String, String> current = metric.getTags();
+
+        deleteTags.stream()
+                .filter(name -> !addTags.containsKey(name) && current.containsKey(name))
+                .forEach(name -> deleted.put(name, current.get(name)));
+        addTags.forEach((name, value) -> {
+            String currentValue = current.get(name);
+            if (!value.equals(currentValue)) {
+                added.put(name, value);
+                if (currentValue != null) {
+                    // The index row of the old value is replaced
+                    deleted.put(name, currentValue);
+                }
+            }
+        });
+    }
+
+    public MetricId<?> getMetricId() {
+        return metricId;
+    }
+
+    /**
+     * @return Tags with a new value
+     */
+    public Map<String, String> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return Removed tags with their previous values, including the tags that got a new value
+     */
+    public Map<String, String> getDeleted() {
+        return deleted;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && deleted.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "TagsUpdate[metricId=" + metricId + ", added=" + added + ", deleted=" + deleted + "]";
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.TokenRange;
+
+/**
+ * Sorted index of the token ring, maps a token to the group of ranges that share the same replica set with a binary
+ * search instead of scanning all the token ranges. The index is immutable, create a new one when the topology
+ * changes.
+ */
+public class TokenRingIndex {
+
+    /**
+     * Group returned when the ring is empty (for example before the driver has fetched the token metadata)
+     */
+    public static final int UNKNOWN_GROUP = -1;
+
+    private final Token[] rangeEnds;
+    private final int[] groups;
+    private final int groupCount;
+    private final Object[] primaryReplicas;
+
+    /**
+     * @param rangeEnds End tokens of the (non-wrapping) token ranges, in any order
+     * @param replicas Replicas owning the range, in the same order as the rangeEnds
+     */
+    TokenRingIndex(List<Token> rangeEnds, List<? extends Collection<?>> replicas) {
+        Integer[] order = new Integer[rangeEnds.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> rangeEnds.get(i1).compareTo(rangeEnds.get(i2)));
+
+        this.rangeEnds = new Token[order.length];
+        this.groups = new int[order.length];
+
+        Map<Collection<?>, Integer> replicaGroups = new HashMap<>();
+        List<Object> primaries = new ArrayList<>();
+        for (int i = 0; i < order.length; i++) {
+            Collection<?> hosts = replicas.get(order[i]);
+            this.rangeEnds[i] = rangeEnds.get(order[i]);
+            this.groups[i] = replicaGroups.computeIfAbsent(hosts, r -> {
+                primaries.add(hosts.isEmpty() ? null : hosts.iterator().next());
+                return replicaGroups.size();
+            });
+        }
+        this.groupCount = replicaGroups.size();
+        this.primaryReplicas = primaries.toArray();
+    }
+
+    public static TokenRingIndex build(Metadata metadata, String keyspace) {
+        List<Token> rangeEnds = new ArrayList<>();
+        List<Collection<?>> replicas = new ArrayList<>();
+
+        for (TokenRange tokenRange : metadata.getTokenRanges()) {
+            // Replicas of the wrapping range are the same for both of its parts
+            Collection<?> hosts = metadata.getReplicas(keyspace, tokenRange);
+            for (TokenRange unwrapped : tokenRange.unwrap()) {
+                rangeEnds.add(unwrapped.getEnd());
+                replicas.add(hosts);
+            }
+        }
+        return new TokenRingIndex(rangeEnds, replicas);
+    }
+
+    /**
+     * Finds the replica set group of the token. Ranges are (start, end], so the owner is the first range with an end
+     * equal or larger than the token. Tokens after the last end belong to the range wrapping around the ring.
+     *
+     * @return Group identifier, equal for all the tokens that are owned by the same set of replicas
+     */
+    public int getReplicaGroup(Token token) {
+        if (rangeEnds.length == 0) {
+            return UNKNOWN_GROUP;
+        }
+
+        int low = 0;
+        int high = rangeEnds.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = rangeEnds[mid].compareTo(token);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return groups[mid];
+            }
+        }
+
+        return groups[low == rangeEnds.length ? 0 : low];
+    }
+
+    /**
+     * @return The first replica of the group, which the token aware load balancing routes the writes to, or null for
+     * an unknown group
+     */
+    public Object getPrimaryReplica(int group) {
+        if (group < 0 || group >= primaryReplicas.length) {
+            return null;
+        }
+        return primaryReplicas[group];
+    }
+
+    public int getGroupCount() {
+        return groupCount;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.metrics.core.service.compress.PointColumns;
+import org.hawkular.metrics.datetime.DateTimeService;
+import org.hawkular.metrics.model.DataPoint;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+import org.joda.time.Duration;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+import rx.subjects.AsyncSubject;
+
+/**
+ * In-memory write buffer in front of the write-ahead log tables. Incoming data points are collected to primitive
+ * per-metric columns for each block and appended to the log as a single row per metric when the buffer is flushed.
+ * Flush happens when the buffer has reached its maximum size or the flush delay has passed since the first write to
+ * the buffer (group commit).
+ *
+ * The returned Observable of append completes only after the points have been written to the log, so an
+ * acknowledged write is always durable.
+ */
+public class WriteBuffer {
+
+    private static final Duration BLOCK_SIZE = Duration.standardHours(2);
+
+    private final DataAccess dataAccess;
+    private final long flushDelay;
+    private final int maxBufferedPoints;
+    private final Scheduler scheduler;
+
+    private final Object lock = new Object();
+    private Batch current = new Batch();
+
+    private static class Batch {
+        private final Map<Long, Map<MetricId<?>, PointColumns>> blocks = new HashMap<>();
+        private final AsyncSubject<Integer> flushed = AsyncSubject.create();
+        private int points = 0;
+        private boolean scheduled = false;
+        private boolean closed = false;
+    }
+
+    public WriteBuffer(DataAccess dataAccess, long flushDelay, int maxBufferedPoints) {
+        this(dataAccess, flushDelay, maxBufferedPoints, Schedulers.computation());
+    }
+
+    public WriteBuffer(DataAccess dataAccess, long flushDelay, int maxBufferedPoints, Scheduler scheduler) {
+        this.dataAccess = dataAccess;
+        this.flushDelay = flushDelay;
+        this.maxBufferedPoints = maxBufferedPoints;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Adds the metric's data points to the buffer.
+     *
+     * @return Observable emitting the amount of appended data points once they're stored to the write-ahead log
+     */
+    public <T> Observable<Integer> append(Metric<T> metric) {
+        MetricType<T> type = metric.getMetricId().getType();
+        int pointCount = metric.getDataPoints().size();
+        Batch batch;
+        boolean flushNow = false;
+        boolean scheduleFlush = false;
+
+        synchronized (lock) {
+            batch = current;
+            for (DataPoint<T> dataPoint : metric.getDataPoints()) {
+                long block = DateTimeService.getTimeSlice(dataPoint.getTimestamp(), BLOCK_SIZE);
+                batch.blocks.computeIfAbsent(block, b -> new HashMap<>())
+                        .computeIfAbsent(metric.getMetricId(), id -> new PointColumns())
+                        .add(type, dataPoint);
+            }
+            batch.points += pointCount;
+
+            if (batch.points >= maxBufferedPoints) {
+                batch.closed = true;
+                current = new Batch();
+                flushNow = true;
+            } else if (!batch.scheduled) {
+                batch.scheduled = true;
+                scheduleFlush = true;
+            }
+        }
+
+        if (flushNow) {
+            write(batch);
+        } else if (scheduleFlush) {
+            Observable.timer(flushDelay, TimeUnit.MILLISECONDS, scheduler)
+                    .subscribe(l -> flush(batch));
+        }
+
+        return batch.flushed.map(i -> pointCount);
+    }
+
+    /**
+     * Flushes the current buffer content to the write-ahead log
+     */
+    public void flush() {
+        Batch batch;
+        synchronized (lock) {
+            batch = current;
+        }
+        flush(batch);
+    }
+
+    private void flush(Batch batch) {
+        synchronized (lock) {
+            if (batch.closed) {
+                // Already flushed because of the size limit
+                return;
+            }
+            batch.closed = true;
+            current = new Batch();
+        }
+        write(batch);
+    }
+
+    private void write(Batch batch) {
+        if (batch.blocks.isEmpty()) {
+            batch.flushed.onNext(0);
+            batch.flushed.onCompleted();
+            return;
+        }
+        Observable.from(batch.blocks.entrySet())
+                .flatMap(e -> dataAccess.insertWalData(e.getKey(), e.getValue()))
+                .subscribe(
+                        i -> {},
+                        batch.flushed::onError,
+                        () -> {
+                            batch.flushed.onNext(batch.points);
+                            batch.flushed.onCompleted();
+                        });
+    }
+}
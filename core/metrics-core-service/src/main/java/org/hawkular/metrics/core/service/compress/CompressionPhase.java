@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.compress;
+
+/**
+ * Phases of a block's compression. The write-ahead log is merged with what the temporary table produced, so it is
+ * compressed only after the whole temporary table has been. The completed token ranges of each phase are recorded
+ * separately.
+ */
+public enum CompressionPhase {
+    TEMP((byte) 0),
+    WAL((byte) 1);
+
+    private byte code;
+
+    CompressionPhase(byte code) {
+        this.code = code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+}
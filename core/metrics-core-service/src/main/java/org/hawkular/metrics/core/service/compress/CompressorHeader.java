@@ -16,9 +16,7 @@
  */
 package org.hawkular.metrics.core.service.compress;
 
-import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.List;
 
 /**
  * CompressionHeader for compression details, stored as the first byte in every c_value ByteBuffer
@@ -34,9 +32,17 @@ public class CompressorHeader {
         byte getByteValue();
     }
 
+    /**
+     * GORILLA is used for gauges (XOR encoded floating point values), DELTA_OF_DELTA for counters (delta-of-delta
+     * encoded integer values) and RUN_LENGTH for availabilities (run-length encoded codes) when the integer codecs are
+     * enabled, otherwise every block uses GORILLA. The codec is chosen per block, a block whose values do not fit the
+     * specialized codec is stored with GORILLA.
+     */
     public enum Compressor {
         GORILLA((byte) 0x10, GorillaSettings.class),
-        GORILLA_V2((byte) 0x20, GorillaSettings.class);
+        GORILLA_V2((byte) 0x20, GorillaSettings.class),
+        DELTA_OF_DELTA((byte) 0x30, NoSettings.class),
+        RUN_LENGTH((byte) 0x40, NoSettings.class);
 
         private byte value;
 
@@ -73,6 +79,14 @@ public class CompressorHeader {
         }
     }
 
+    public enum NoSettings implements CompressorSetting {
+        ;
+
+        public byte getByteValue() {
+            return 0;
+        }
+    }
+
     public static byte getHeader(Compressor compressor, EnumSet<? extends CompressorSetting> settings) {
         byte b = (byte) (compressor.getByteValue() & 0xF0);
         for (CompressorSetting setting : settings) {
@@ -97,14 +111,13 @@ public class CompressorHeader {
     }
 
     public static <E extends Enum<E> & CompressorSetting> EnumSet getSettings(Class<E> e, byte b) {
-        List<E> enumList = new ArrayList<>(4); // There's only 4 bits reserved
-        EnumSet<E> enumSet = EnumSet.allOf(e);
-        for (E setting : enumSet) {
+        EnumSet<E> settings = EnumSet.noneOf(e); // There's only 4 bits reserved
+        for (E setting : EnumSet.allOf(e)) {
             if((b & setting.getByteValue()) == setting.getByteValue()) {
-                enumList.add(setting);
+                settings.add(setting);
             }
         }
 
-        return EnumSet.copyOf(enumList);
+        return settings;
     }
 }
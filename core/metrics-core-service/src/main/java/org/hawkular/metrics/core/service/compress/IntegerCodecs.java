@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.compress;
+
+import java.nio.ByteBuffer;
+
+import fi.iki.yak.ts.compression.gorilla.BitInput;
+import fi.iki.yak.ts.compression.gorilla.ByteBufferBitInput;
+import fi.iki.yak.ts.compression.gorilla.ByteBufferBitOutput;
+
+/**
+ * Bit stream codecs for blocks with integer values. Both formats start with the block start (64 bits) and the amount
+ * of points (32 bits), followed by the timestamps as delta-of-deltas and the values:
+ *
+ * DELTA_OF_DELTA stores the values as delta-of-deltas, a counter increasing at a steady rate takes a bit per value.
+ * RUN_LENGTH stores the values as runs of the value (8 bits) and the run length, an availability that does not change
+ * during the block takes a couple of bytes.
+ *
+ * Delta-of-deltas and run lengths are written zig-zag encoded with a variable length prefix, in the same way as the
+ * Gorilla timestamps: '0' for zero, '10' followed by 7 bits, '110' by 9 bits, '1110' by 12 bits, '11110' by 32 bits
+ * and '11111' by 64 bits.
+ */
+final class IntegerCodecs {
+
+    private static final int[] BUCKET_BITS = {7, 9, 12, 32};
+
+    private IntegerCodecs() {
+    }
+
+    /**
+     * @return true if every value is an integer that fits to a long, and to a byte if asked
+     */
+    static boolean isIntegral(double[] values, int size, boolean bytes) {
+        // Exclusive upper bound, Long.MAX_VALUE is rounded up to 2^63 as a double and 2^63 does not fit a long
+        double min = bytes ? Byte.MIN_VALUE : -0x1p63;
+        double max = bytes ? Byte.MAX_VALUE + 1 : 0x1p63;
+        for (int i = 0; i < size; i++) {
+            if (values[i] != Math.rint(values[i]) || values[i] < min || values[i] >= max) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static ByteBuffer encode(byte header, long blockStart, long[] timestamps, double[] values, int size) {
+        ByteBufferBitOutput out = new ByteBufferBitOutput();
+        out.getByteBuffer().put(header);
+        out.writeBits(blockStart, 64);
+        out.writeBits(size, 32);
+
+        long previous = blockStart;
+        long previousDelta = 0;
+        for (int i = 0; i < size; i++) {
+            long delta = timestamps[i] - previous;
+            writeVariable(out, delta - previousDelta);
+            previous = timestamps[i];
+            previousDelta = delta;
+        }
+
+        if (CompressorHeader.getCompressor(header) == CompressorHeader.Compressor.RUN_LENGTH) {
+            int i = 0;
+            while (i < size) {
+                int run = 1;
+                while (i + run < size && values[i + run] == values[i]) {
+                    run++;
+                }
+                out.writeBits((byte) values[i], 8);
+                writeVariable(out, run);
+                i += run;
+            }
+        } else {
+            long previousValue = 0;
+            long previousValueDelta = 0;
+            for (int i = 0; i < size; i++) {
+                long value = (long) values[i];
+                long delta = value - previousValue;
+                writeVariable(out, delta - previousValueDelta);
+                previousValue = value;
+                previousValueDelta = delta;
+            }
+        }
+        out.flush();
+        return (ByteBuffer) out.getByteBuffer().flip();
+    }
+
+    /**
+     * Decodes the points inside [start, end) to the columns, the buffer is positioned after the header byte.
+     */
+    static void decode(CompressorHeader.Compressor compressor, ByteBuffer bb, PointColumns columns, long start,
+                       long end) {
+        BitInput in = new ByteBufferBitInput(bb);
+        long previous = in.getLong(64);
+        int count = (int) in.getLong(32);
+        if (count < 0 || count > bb.remaining() * 8L + 8) {
+            // Every timestamp takes at least a bit
+            throw new IllegalArgumentException("Invalid amount of points " + count);
+        }
+
+        long[] timestamps = new long[count];
+        long previousDelta = 0;
+        for (int i = 0; i < count; i++) {
+            previousDelta += readVariable(in);
+            previous += previousDelta;
+            timestamps[i] = previous;
+        }
+
+        if (compressor == CompressorHeader.Compressor.RUN_LENGTH) {
+            int i = 0;
+            while (i < count && timestamps[i] < end) {
+                double value = (byte) in.getLong(8);
+                long run = readVariable(in);
+                for (int j = i; j < i + run && j < count; j++) {
+                    if (timestamps[j] >= start && timestamps[j] < end) {
+                        columns.add(timestamps[j], value);
+                    }
+                }
+                i += Math.max(run, 1);
+            }
+        } else {
+            long value = 0;
+            long delta = 0;
+            for (int i = 0; i < count && timestamps[i] < end; i++) {
+                delta += readVariable(in);
+                value += delta;
+                if (timestamps[i] >= start) {
+                    columns.add(timestamps[i], value);
+                }
+            }
+        }
+    }
+
+    private static void writeVariable(ByteBufferBitOutput out, long value) {
+        long zigZag = (value << 1) ^ (value >> 63);
+        if (zigZag == 0) {
+            out.skipBit();
+            return;
+        }
+        for (int bucket = 0; bucket < BUCKET_BITS.length; bucket++) {
+            out.writeBit();
+            if (zigZag >>> BUCKET_BITS[bucket] == 0) {
+                out.skipBit();
+                out.writeBits(zigZag, BUCKET_BITS[bucket]);
+                return;
+            }
+        }
+        out.writeBit();
+        out.writeBits(zigZag, 64);
+    }
+
+    private static long readVariable(BitInput in) {
+        int bucket = 0;
+        while (bucket <= BUCKET_BITS.length && in.readBit()) {
+            bucket++;
+        }
+        if (bucket == 0) {
+            return 0;
+        }
+        long zigZag = in.getLong(bucket <= BUCKET_BITS.length ? BUCKET_BITS[bucket - 1] : 64);
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+}
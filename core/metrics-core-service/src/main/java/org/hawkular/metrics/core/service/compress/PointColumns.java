@@ -0,0 +1,567 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.compress;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.hawkular.metrics.core.service.Order;
+import org.hawkular.metrics.model.AvailabilityType;
+import org.hawkular.metrics.model.DataPoint;
+import org.hawkular.metrics.model.MetricType;
+
+import fi.iki.yak.ts.compression.gorilla.ByteBufferBitInput;
+import fi.iki.yak.ts.compression.gorilla.ByteBufferBitOutput;
+import fi.iki.yak.ts.compression.gorilla.Compressor;
+import fi.iki.yak.ts.compression.gorilla.Decompressor;
+import fi.iki.yak.ts.compression.gorilla.Pair;
+
+/**
+ * Primitive timestamp / value column buffer for a single metric. Used to hold a metric's points in memory while they
+ * are written to the write-ahead log and when a block is compressed, without boxing every point to a DataPoint.
+ *
+ * Values are stored as doubles, in the same way as the compressed format stores them (availability code and counter
+ * value are converted). Tags are sparse and kept per timestamp.
+ *
+ * Not thread-safe.
+ */
+public class PointColumns {
+
+    /**
+     * Header byte of the write-ahead log value blob
+     */
+    public static final byte WAL_SERIALIZER = 0x01;
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] timestamps;
+    private double[] values;
+    private int size = 0;
+    private boolean sorted = true;
+
+    private Map<Long, Map<String, String>> tags = null;
+
+    // Decoded tags of a stored block, resolved when a point's tags are requested
+    private TagsDeserializer.BlockTags blockTags = null;
+
+    public PointColumns() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PointColumns(int capacity) {
+        int initialCapacity = Math.max(capacity, 1);
+        timestamps = new long[initialCapacity];
+        values = new double[initialCapacity];
+    }
+
+    public void add(long timestamp, double value) {
+        if (blockTags != null) {
+            materializeTags();
+        }
+        ensureCapacity(size + 1);
+        if (size > 0 && timestamps[size - 1] >= timestamp) {
+            sorted = false;
+        }
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+
+        if (tags != null) {
+            // Later write of the same timestamp replaces the tags as well
+            tags.remove(timestamp);
+        }
+    }
+
+    public void add(long timestamp, double value, Map<String, String> pointTags) {
+        add(timestamp, value);
+        if (pointTags != null && !pointTags.isEmpty()) {
+            if (tags == null) {
+                tags = new HashMap<>();
+            }
+            tags.put(timestamp, pointTags);
+        }
+    }
+
+    public <T> void add(MetricType<T> type, DataPoint<T> dataPoint) {
+        add(dataPoint.getTimestamp(), toDouble(type, dataPoint.getValue()), dataPoint.getTags());
+    }
+
+    /**
+     * Appends all the points of other. Points with equal timestamp in other replace the existing ones after sort()
+     */
+    public void addAll(PointColumns other) {
+        ensureCapacity(size + other.size);
+        for (int i = 0; i < other.size; i++) {
+            add(other.timestamps[i], other.values[i]);
+        }
+        if (other.tags != null || other.blockTags != null) {
+            if (tags == null) {
+                tags = new HashMap<>();
+            }
+            if (other.blockTags != null) {
+                other.blockTags.forEach(tags::put);
+            }
+            if (other.tags != null) {
+                tags.putAll(other.tags);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public Map<String, String> getTags(int index) {
+        Map<String, String> pointTags = findTags(timestamps[index]);
+        return pointTags == null ? Collections.emptyMap() : pointTags;
+    }
+
+    private Map<String, String> findTags(long timestamp) {
+        if (tags != null) {
+            return tags.get(timestamp);
+        }
+        return blockTags == null ? null : blockTags.get(timestamp);
+    }
+
+    /**
+     * Decodes all the block's tags before the columns are modified
+     */
+    private void materializeTags() {
+        TagsDeserializer.BlockTags decoded = blockTags;
+        blockTags = null;
+        tags = new HashMap<>();
+        decoded.forEach(tags::put);
+    }
+
+    /**
+     * Sorts the columns to ascending timestamp order. If the same timestamp was added multiple times, the last added
+     * value is kept.
+     *
+     * @return this
+     */
+    public PointColumns sort() {
+        if (sorted) {
+            return this;
+        }
+
+        // Stable sort of the indexes keeps the insertion order of duplicate timestamps
+        Integer[] indexes = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, (i1, i2) -> Long.compare(timestamps[i1], timestamps[i2]));
+
+        long[] sortedTimestamps = new long[timestamps.length];
+        double[] sortedValues = new double[values.length];
+        int j = -1;
+        for (int i = 0; i < size; i++) {
+            int index = indexes[i];
+            if (j >= 0 && sortedTimestamps[j] == timestamps[index]) {
+                sortedValues[j] = values[index];
+            } else {
+                j++;
+                sortedTimestamps[j] = timestamps[index];
+                sortedValues[j] = values[index];
+            }
+        }
+
+        timestamps = sortedTimestamps;
+        values = sortedValues;
+        size = j + 1;
+        sorted = true;
+        return this;
+    }
+
+    /**
+     * Encodes the columns to the write-ahead log value format. Timestamps are stored as zig-zag varint deltas and
+     * values as raw IEEE 754 doubles.
+     */
+    public ByteBuffer encodeValues() {
+        ByteBuffer bb = ByteBuffer.allocate(1 + 5 + size * (10 + 8));
+        bb.put(WAL_SERIALIZER);
+        putVarInt(bb, size);
+
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            putVarLong(bb, zigZag(timestamps[i] - previous));
+            bb.putLong(Double.doubleToRawLongBits(values[i]));
+            previous = timestamps[i];
+        }
+        bb.flip();
+        return bb;
+    }
+
+    /**
+     * Encodes the tags with the TagsSerializer, relative to the first timestamp of the columns.
+     *
+     * @return null if there are no tags to store
+     */
+    public ByteBuffer encodeTags() {
+        if (size == 0 || blockTags == null && (tags == null || tags.isEmpty())) {
+            return null;
+        }
+        TagsSerializer serializer = new TagsSerializer(timestamps[0]);
+        for (int i = 0; i < size; i++) {
+            Map<String, String> pointTags = findTags(timestamps[i]);
+            if (pointTags != null) {
+                serializer.addDataPointTags(timestamps[i], pointTags);
+            }
+        }
+        return serializer.getByteBuffer();
+    }
+
+    /**
+     * Reads the columns back from the write-ahead log format written by encodeValues() and encodeTags().
+     */
+    public static PointColumns decode(ByteBuffer valueBuffer, ByteBuffer tagsBuffer) {
+        ByteBuffer bb = valueBuffer.duplicate();
+        if (bb.get() != WAL_SERIALIZER) {
+            throw new IllegalArgumentException("Unknown write-ahead log serialization format");
+        }
+        int count = getVarInt(bb);
+        PointColumns columns = new PointColumns(count);
+
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            long timestamp = previous + unZigZag(getVarLong(bb));
+            columns.add(timestamp, Double.longBitsToDouble(bb.getLong()));
+            previous = timestamp;
+        }
+
+        if (tagsBuffer != null && count > 0) {
+            TagsDeserializer deserializer = new TagsDeserializer(columns.timestamps[0]);
+            TagsDeserializer.BlockTags decoded = deserializer.deserializeLazy(tagsBuffer.duplicate());
+            if (!decoded.isEmpty()) {
+                columns.blockTags = decoded;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Gorilla compresses the columns to the data_compressed format. The columns are sorted first.
+     *
+     * @param blockStart Start of the block, all the timestamps must be equal or larger than this
+     */
+    public CompressedPointContainer compress(long blockStart) {
+        return compress(blockStart, MetricType.GAUGE, false);
+    }
+
+    /**
+     * Compresses the columns to the data_compressed format. The columns are sorted first.
+     *
+     * @param blockStart Start of the block, all the timestamps must be equal or larger than this
+     * @param type Type of the metric, selects the codec when the integer codecs are enabled
+     * @param integerCodecs Whether counters and availabilities use the integer codecs instead of Gorilla, see
+     *                      {@link CompressorHeader.Compressor}. Older servers can't read blocks written with them.
+     */
+    public CompressedPointContainer compress(long blockStart, MetricType<?> type, boolean integerCodecs) {
+        sort();
+
+        CompressorHeader.Compressor compressor = integerCodecs ? getCompressor(type)
+                : CompressorHeader.Compressor.GORILLA;
+        ByteBuffer valueBuffer;
+        if (compressor == CompressorHeader.Compressor.GORILLA) {
+            ByteBufferBitOutput out = new ByteBufferBitOutput();
+            out.getByteBuffer().put(CompressorHeader.getHeader(compressor,
+                    EnumSet.noneOf(CompressorHeader.GorillaSettings.class)));
+            Compressor gorilla = new Compressor(blockStart, out);
+            for (int i = 0; i < size; i++) {
+                gorilla.addValue(timestamps[i], values[i]);
+            }
+            gorilla.close();
+            valueBuffer = (ByteBuffer) out.getByteBuffer().flip();
+        } else {
+            valueBuffer = IntegerCodecs.encode(CompressorHeader.getHeader(compressor,
+                    EnumSet.noneOf(CompressorHeader.NoSettings.class)), blockStart, timestamps, values, size);
+        }
+
+        TagsSerializer tagsSerializer = new TagsSerializer(blockStart);
+        if (tags != null || blockTags != null) {
+            for (int i = 0; i < size; i++) {
+                Map<String, String> pointTags = findTags(timestamps[i]);
+                if (pointTags != null) {
+                    tagsSerializer.addDataPointTags(timestamps[i], pointTags);
+                }
+            }
+        }
+
+        CompressedPointContainer container = new CompressedPointContainer();
+        container.setValueBuffer(valueBuffer);
+        ByteBuffer tagsBuffer = tagsSerializer.getByteBuffer();
+        if (tagsBuffer.limit() > 1) {
+            // Exclude header
+            container.setTagsBuffer(tagsBuffer);
+        }
+        return container;
+    }
+
+    /**
+     * Reads an existing data_compressed row back to columns, for example to merge more points to it.
+     */
+    public static PointColumns decompress(ByteBuffer compressedValue, ByteBuffer tagsBuffer, long blockStart) {
+        return decompress(compressedValue, tagsBuffer, blockStart, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the points inside [start, end) of a data_compressed row. Blocks are stored in time order, so the decoding
+     * stops at the first point after the range.
+     */
+    public static PointColumns decompress(ByteBuffer compressedValue, ByteBuffer tagsBuffer, long blockStart,
+                                          long start, long end) {
+        PointColumns columns = new PointColumns();
+        if (compressedValue == null) {
+            return columns;
+        }
+        ByteBuffer bb = compressedValue.duplicate();
+        // Read the HWKMETRICS internal header, the codec depends on it
+        CompressorHeader.Compressor compressor = getSupportedCompressor(bb.get());
+
+        if (compressor == CompressorHeader.Compressor.GORILLA) {
+            Decompressor d = new Decompressor(new ByteBufferBitInput(bb));
+            Pair pair;
+            while ((pair = d.readPair()) != null) {
+                long timestamp = pair.getTimestamp();
+                if (timestamp >= end) {
+                    break;
+                }
+                if (timestamp >= start) {
+                    columns.add(timestamp, pair.getDoubleValue());
+                }
+            }
+        } else {
+            IntegerCodecs.decode(compressor, bb, columns, start, end);
+        }
+
+        if (tagsBuffer != null && columns.size > 0) {
+            // Only the points returned from the range resolve their tags
+            TagsDeserializer.BlockTags decoded = new TagsDeserializer(blockStart).deserializeLazy(tagsBuffer
+                    .duplicate());
+            if (!decoded.isEmpty()) {
+                columns.blockTags = decoded;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Reads the block start of a data_compressed value, every supported codec stores it after the header.
+     *
+     * @throws IllegalArgumentException if the value is not compressed with a supported codec
+     */
+    public static long getBlockStart(ByteBuffer compressedValue) {
+        if (compressedValue == null || compressedValue.remaining() < 1 + Long.BYTES) {
+            throw new IllegalArgumentException("Compressed block is too short");
+        }
+        getSupportedCompressor(compressedValue.get(compressedValue.position()));
+        return compressedValue.getLong(compressedValue.position() + 1);
+    }
+
+    /**
+     * Gauges keep the Gorilla encoding. Counters and availabilities use the integer codecs when all of the block's
+     * values fit them, which is the case unless the values were written as doubles from outside.
+     */
+    private CompressorHeader.Compressor getCompressor(MetricType<?> type) {
+        if (type == MetricType.COUNTER && IntegerCodecs.isIntegral(values, size, false)) {
+            return CompressorHeader.Compressor.DELTA_OF_DELTA;
+        }
+        if (type == MetricType.AVAILABILITY && IntegerCodecs.isIntegral(values, size, true)) {
+            return CompressorHeader.Compressor.RUN_LENGTH;
+        }
+        return CompressorHeader.Compressor.GORILLA;
+    }
+
+    private static CompressorHeader.Compressor getSupportedCompressor(byte header) {
+        for (CompressorHeader.Compressor compressor : CompressorHeader.Compressor.values()) {
+            if (compressor.getByteValue() == (byte) (header & 0xF0)) {
+                if (compressor == CompressorHeader.Compressor.GORILLA_V2 || (header & 0x0F) != 0) {
+                    break;
+                }
+                return compressor;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported compressed block header " + (header & 0xFF));
+    }
+
+    /**
+     * Decompresses a block received from outside, such as an agent that compressed the block itself. Unlike
+     * {@link #decompress(ByteBuffer, ByteBuffer, long)} the content is not trusted: the stream must be readable to
+     * the end and the timestamps must be strictly increasing and inside [blockStart, blockEnd).
+     *
+     * @throws IllegalArgumentException if the block is not valid
+     */
+    public static PointColumns decompressBlock(ByteBuffer compressedValue, long blockStart, long blockEnd) {
+        PointColumns columns;
+        try {
+            columns = decompress(compressedValue, null, blockStart);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Corrupted compressed block", e);
+        }
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("Compressed block has no data points");
+        }
+
+        long previous = blockStart - 1;
+        for (int i = 0; i < columns.size; i++) {
+            long timestamp = columns.timestamps[i];
+            if (timestamp <= previous || timestamp >= blockEnd) {
+                throw new IllegalArgumentException("Data point timestamp " + timestamp + " is out of order or " +
+                        "outside the block [" + blockStart + ", " + blockEnd + ")");
+            }
+            previous = timestamp;
+        }
+        return columns;
+    }
+
+    /**
+     * Materializes the points inside [start, end) as DataPoints. Columns must be sorted.
+     */
+    public <T> List<DataPoint<T>> toDataPoints(MetricType<T> type, long start, long end, Order order) {
+        List<DataPoint<T>> dataPoints = new ArrayList<>(size);
+        if (order == Order.DESC) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (timestamps[i] >= start && timestamps[i] < end) {
+                    dataPoints.add(new DataPoint<>(timestamps[i], fromDouble(type, values[i]), getTags(i)));
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                if (timestamps[i] >= start && timestamps[i] < end) {
+                    dataPoints.add(new DataPoint<>(timestamps[i], fromDouble(type, values[i]), getTags(i)));
+                }
+            }
+        }
+        return dataPoints;
+    }
+
+    /**
+     * Lazily materializes the points as DataPoints, so a consumer that stops early (such as a limit) does not create
+     * the rest of them. DESC order iterates the columns backwards. Columns must be sorted.
+     */
+    public <T> Iterable<DataPoint<T>> dataPoints(MetricType<T> type, Order order) {
+        return () -> new Iterator<DataPoint<T>>() {
+            private int index = order == Order.DESC ? size - 1 : 0;
+
+            @Override
+            public boolean hasNext() {
+                return index >= 0 && index < size;
+            }
+
+            @Override
+            public DataPoint<T> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                DataPoint<T> dataPoint = new DataPoint<>(timestamps[index], fromDouble(type, values[index]),
+                        getTags(index));
+                index += order == Order.DESC ? -1 : 1;
+                return dataPoint;
+            }
+        };
+    }
+
+    public static <T> double toDouble(MetricType<T> type, T value) {
+        switch (type.getCode()) {
+            case 0: // GAUGE
+                return (Double) value;
+            case 1: // AVAILABILITY
+                return ((AvailabilityType) value).getCode();
+            case 2: // COUNTER
+                return ((Long) value).doubleValue();
+            default:
+                throw new IllegalArgumentException("Metric of type " + type.getText() + " is not supported");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T fromDouble(MetricType<T> type, double value) {
+        switch (type.getCode()) {
+            case 0: // GAUGE
+                return (T) Double.valueOf(value);
+            case 1: // AVAILABILITY
+                return (T) AvailabilityType.fromByte((byte) value);
+            case 2: // COUNTER
+                return (T) Long.valueOf((long) value);
+            default:
+                throw new IllegalArgumentException("Metric of type " + type.getText() + " is not supported");
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > timestamps.length) {
+            int newCapacity = Math.max(capacity, timestamps.length + (timestamps.length >> 1));
+            timestamps = Arrays.copyOf(timestamps, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void putVarInt(ByteBuffer bb, int value) {
+        putVarLong(bb, value & 0xFFFFFFFFL);
+    }
+
+    private static int getVarInt(ByteBuffer bb) {
+        return (int) getVarLong(bb);
+    }
+
+    private static void putVarLong(ByteBuffer bb, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bb.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        bb.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer bb) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bb.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
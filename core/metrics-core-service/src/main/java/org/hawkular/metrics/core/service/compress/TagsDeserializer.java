@@ -18,11 +18,17 @@ package org.hawkular.metrics.core.service.compress;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 /**
- * Deserializes the data_compressed table tags map
+ * Deserializes the data_compressed table tags map. Both the dictionary format and the simple format of the earlier
+ * releases are supported.
  *
  * @author Michael Burman
  */
@@ -35,41 +41,219 @@ public class TagsDeserializer {
 
     public Map<Long, Map<String, String>> deserialize(ByteBuffer bb) {
         Map<Long, Map<String, String>> tagsMap = new HashMap<>();
+        deserializeLazy(bb).forEach(tagsMap::put);
+        return tagsMap;
+    }
 
+    /**
+     * Reads only the points' tag set references, the strings and the tag sets are decoded when a point's tags are
+     * requested.
+     */
+    public BlockTags deserializeLazy(ByteBuffer bb) {
         if(bb.hasRemaining()) {
-            if(TagsSerializer.SIMPLE_SERIALIZER == bb.get()) {
-                while(bb.hasRemaining()) {
-                    int delta = bb.getInt();
-                    long timestamp = blockStart + delta;
+            byte header = bb.get();
+            if(TagsSerializer.DICTIONARY_SERIALIZER == header) {
+                return deserializeDictionary(bb);
+            } else if(TagsSerializer.SIMPLE_SERIALIZER == header) {
+                return deserializeSimple(bb);
+            } else {
+                // Return back to start position, let something else handle it
+                bb.rewind();
+            }
+        }
+        return new BlockTags(new long[0], new int[0], new int[0][], new String[0], null, null, null);
+    }
 
-                    int tagsSize = bb.get() & 0xFF;
+    private BlockTags deserializeDictionary(ByteBuffer bb) {
+        int stringCount = (int) TagsSerializer.getVarLong(bb);
+        // Strings are decoded only when requested, until then only their positions in the buffer are known
+        int[] stringOffsets = new int[stringCount];
+        int[] stringLengths = new int[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            stringLengths[i] = (int) TagsSerializer.getVarLong(bb);
+            stringOffsets[i] = bb.position();
+            bb.position(bb.position() + stringLengths[i]);
+        }
 
-                    Map<String, String> entryMap = new HashMap<>();
+        int[][] tagSets = new int[(int) TagsSerializer.getVarLong(bb)][];
+        for (int i = 0; i < tagSets.length; i++) {
+            int[] pairs = new int[(int) TagsSerializer.getVarLong(bb) * 2];
+            for (int j = 0; j < pairs.length; j++) {
+                pairs[j] = (int) TagsSerializer.getVarLong(bb);
+            }
+            tagSets[i] = pairs;
+        }
 
-                    for(byte i = 0; i < tagsSize; i++) {
-                        int keyLength = bb.get() & 0xFF;
-                        int valueLength = bb.get() & 0xFF;
+        int points = (int) TagsSerializer.getVarLong(bb);
+        long[] timestamps = new long[points];
+        int[] pointTagSets = new int[points];
+        long previous = blockStart;
+        long previousDelta = 0;
+        for (int i = 0; i < points; i++) {
+            previousDelta += TagsSerializer.unZigZag(TagsSerializer.getVarLong(bb));
+            previous += previousDelta;
+            timestamps[i] = previous;
+            pointTagSets[i] = (int) TagsSerializer.getVarLong(bb);
+        }
 
-                        byte[] key = new byte[keyLength];
-                        byte[] value = new byte[valueLength];
+        return new BlockTags(timestamps, pointTagSets, tagSets, new String[stringCount], bb, stringOffsets,
+                stringLengths);
+    }
 
-                        bb.get(key);
-                        bb.get(value);
+    private BlockTags deserializeSimple(ByteBuffer bb) {
+        List<Long> timestamps = new ArrayList<>();
+        List<Map<String, String>> tagSets = new ArrayList<>();
+        while(bb.hasRemaining()) {
+            int delta = bb.getInt();
+            long timestamp = blockStart + delta;
 
-                        String mapKey = new String(key, StandardCharsets.UTF_8);
-                        String mapValue = new String(value, StandardCharsets.UTF_8);
+            int tagsSize = bb.get() & 0xFF;
 
-                        entryMap.put(mapKey, mapValue);
+            Map<String, String> entryMap = new HashMap<>();
+
+            for(int i = 0; i < tagsSize; i++) {
+                int keyLength = bb.get() & 0xFF;
+                int valueLength = bb.get() & 0xFF;
+
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength];
+
+                bb.get(key);
+                bb.get(value);
+
+                String mapKey = new String(key, StandardCharsets.UTF_8);
+                String mapValue = new String(value, StandardCharsets.UTF_8);
+
+                entryMap.put(mapKey, mapValue);
+            }
+
+            timestamps.add(timestamp);
+            tagSets.add(entryMap);
+        }
+
+        // Every point has its own tag set of already decoded strings
+        long[] pointTimestamps = new long[timestamps.size()];
+        int[] pointTagSets = new int[timestamps.size()];
+        int[][] pairs = new int[timestamps.size()][];
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < pointTimestamps.length; i++) {
+            pointTimestamps[i] = timestamps.get(i);
+            pointTagSets[i] = i;
+            pairs[i] = new int[tagSets.get(i).size() * 2];
+            int j = 0;
+            for (Map.Entry<String, String> tagEntry : tagSets.get(i).entrySet()) {
+                pairs[i][j++] = strings.size();
+                strings.add(tagEntry.getKey());
+                pairs[i][j++] = strings.size();
+                strings.add(tagEntry.getValue());
+            }
+        }
+        return new BlockTags(pointTimestamps, pointTagSets, pairs, strings.toArray(new String[strings.size()]),
+                null, null, null);
+    }
+
+    /**
+     * Tags of the block's points. A tag set is decoded when the tags of a point referencing it are first requested,
+     * and shared by all the points referencing it.
+     *
+     * Not thread-safe.
+     */
+    public static class BlockTags {
+        private long[] timestamps;
+        private int[] pointTagSets;
+        private int[][] tagSets;
+        private Map<String, String>[] decodedTagSets;
+        private String[] strings;
+        private ByteBuffer buffer;
+        private int[] stringOffsets;
+        private int[] stringLengths;
+
+        @SuppressWarnings("unchecked")
+        BlockTags(long[] timestamps, int[] pointTagSets, int[][] tagSets, String[] strings, ByteBuffer buffer,
+                  int[] stringOffsets, int[] stringLengths) {
+            this.tagSets = tagSets;
+            this.decodedTagSets = new Map[tagSets.length];
+            this.strings = strings;
+            this.buffer = buffer;
+            this.stringOffsets = stringOffsets;
+            this.stringLengths = stringLengths;
+
+            this.timestamps = timestamps;
+            this.pointTagSets = pointTagSets;
+            if (!isSorted(timestamps)) {
+                // Later points of the same timestamp replace the earlier ones
+                Integer[] indexes = new Integer[timestamps.length];
+                for (int i = 0; i < indexes.length; i++) {
+                    indexes[i] = i;
+                }
+                Arrays.sort(indexes, (i1, i2) -> Long.compare(timestamps[i1], timestamps[i2]));
+                long[] sortedTimestamps = new long[timestamps.length];
+                int[] sortedTagSets = new int[timestamps.length];
+                int j = -1;
+                for (Integer index : indexes) {
+                    if (j < 0 || sortedTimestamps[j] != timestamps[index]) {
+                        j++;
                     }
+                    sortedTimestamps[j] = timestamps[index];
+                    sortedTagSets[j] = pointTagSets[index];
+                }
+                this.timestamps = Arrays.copyOf(sortedTimestamps, j + 1);
+                this.pointTagSets = Arrays.copyOf(sortedTagSets, j + 1);
+            }
+        }
+
+        public boolean isEmpty() {
+            return timestamps.length == 0;
+        }
+
+        /**
+         * @return Tags of the point or null if the point has no tags
+         */
+        public Map<String, String> get(long timestamp) {
+            int index = Arrays.binarySearch(timestamps, timestamp);
+            return index < 0 ? null : getTagSet(pointTagSets[index]);
+        }
+
+        public void forEach(BiConsumer<Long, Map<String, String>> consumer) {
+            for (int i = 0; i < timestamps.length; i++) {
+                consumer.accept(timestamps[i], getTagSet(pointTagSets[i]));
+            }
+        }
 
-                    tagsMap.put(Long.valueOf(timestamp), entryMap);
+        private Map<String, String> getTagSet(int tagSet) {
+            Map<String, String> tags = decodedTagSets[tagSet];
+            if (tags == null) {
+                int[] pairs = tagSets[tagSet];
+                tags = new HashMap<>(pairs.length);
+                for (int i = 0; i < pairs.length; i += 2) {
+                    tags.put(getString(pairs[i]), getString(pairs[i + 1]));
                 }
-            } else {
-                // Return back to start position, let something else handle it
-                bb.rewind();
+                tags = Collections.unmodifiableMap(tags);
+                decodedTagSets[tagSet] = tags;
             }
+            return tags;
         }
 
-        return tagsMap;
+        private String getString(int id) {
+            String string = strings[id];
+            if (string == null) {
+                byte[] bytes = new byte[stringLengths[id]];
+                ByteBuffer bb = buffer.duplicate();
+                bb.position(stringOffsets[id]);
+                bb.get(bytes);
+                string = new String(bytes, StandardCharsets.UTF_8);
+                strings[id] = string;
+            }
+            return string;
+        }
+
+        private static boolean isSorted(long[] timestamps) {
+            for (int i = 1; i < timestamps.length; i++) {
+                if (timestamps[i] <= timestamps[i - 1]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 }
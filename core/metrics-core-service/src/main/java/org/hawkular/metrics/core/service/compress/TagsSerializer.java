@@ -18,57 +18,170 @@ package org.hawkular.metrics.core.service.compress;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
- * Serializes multiple rows of tags to a single blob. For compression, we rely on the Cassandra's block compression.
+ * Serializes multiple rows of tags to a single blob. Data point tags are usually repeated from point to point, so the
+ * blob stores a block level dictionary of the strings and of the distinct tag sets, and each point only references
+ * its tag set:
+ *
+ * header (1 byte) | string count | strings (length, UTF-8 bytes) | tag set count | tag sets (pair count, key and
+ * value string ids) | point count | points (zig-zag timestamp delta-of-delta, tag set id)
+ *
+ * All the numbers are varints, the first timestamp delta is relative to the block start. Points with tags at a
+ * regular interval take two bytes each. The output buffer is sized to the serialized tags.
  *
  * @author Michael Burman
  */
 public class TagsSerializer {
 
-    private ByteBuffer bb;
-    private int MAX_SIZE = 255;
-    private long blockStart;
+    /**
+     * Format of the earlier releases, only read by {@link TagsDeserializer}
+     */
     public static byte SIMPLE_SERIALIZER = 0x10;
+    public static final byte DICTIONARY_SERIALIZER = 0x20;
 
-    public TagsSerializer(long blockStart) {
-        // Max byteAmount is 510 bytes per key/value + 4 bytes for delta + 1 byte for
+    private long blockStart;
 
-        bb = ByteBuffer.allocate(33*4096);
-        bb.put(SIMPLE_SERIALIZER);
+    private Map<String, Integer> stringIds = new HashMap<>();
+    private List<byte[]> strings = new ArrayList<>();
+    private Map<Map<String, String>, Integer> tagSetIds = new HashMap<>();
+    private List<int[]> tagSets = new ArrayList<>();
+
+    private long[] timestamps = new long[16];
+    private int[] pointTagSets = new int[16];
+    private int points = 0;
+
+    public TagsSerializer(long blockStart) {
         this.blockStart = blockStart; // No need to encode blockStart as we have that stored on the row already
     }
 
     public void addDataPointTags(long timestamp, Map<String, String> tags) {
-        if(tags.entrySet().size() > MAX_SIZE) {
-            throw new RuntimeException("Single datapoint can only store max of " + MAX_SIZE + " tags");
+        Integer tagSet = tagSetIds.get(tags);
+        if (tagSet == null) {
+            int[] pairs = new int[tags.size() * 2];
+            int i = 0;
+            for (Map.Entry<String, String> tagEntry : tags.entrySet()) {
+                pairs[i++] = getStringId(tagEntry.getKey());
+                pairs[i++] = getStringId(tagEntry.getValue());
+            }
+            tagSet = tagSets.size();
+            tagSets.add(pairs);
+            tagSetIds.put(tags, tagSet);
         }
 
-        // Store delta of block timestamp.. 23 bits is enough to represent any delta value
-        long delta = timestamp - blockStart;
+        if (points == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, points * 2);
+            pointTagSets = Arrays.copyOf(pointTagSets, points * 2);
+        }
+        timestamps[points] = timestamp;
+        pointTagSets[points] = tagSet;
+        points++;
+    }
 
-        bb.putInt((int) delta);
-        bb.put((byte) tags.entrySet().size()); // MAX of 255 tags per datapoint?
+    /**
+     * @return Serialized tags, ready to be read. Contains only the header if no tags were added.
+     */
+    public ByteBuffer getByteBuffer() {
+        if (points == 0) {
+            return (ByteBuffer) ByteBuffer.allocate(1).put(DICTIONARY_SERIALIZER).flip();
+        }
 
-        // Now write the values
-        for (Map.Entry<String, String> tagEntry : tags.entrySet()) {
-            byte[] key = tagEntry.getKey().getBytes(StandardCharsets.UTF_8);
-            byte[] value = tagEntry.getValue().getBytes(StandardCharsets.UTF_8);
+        int size = 1 + varLongSize(strings.size()) + varLongSize(tagSets.size()) + varLongSize(points);
+        for (byte[] string : strings) {
+            size += varLongSize(string.length) + string.length;
+        }
+        for (int[] pairs : tagSets) {
+            size += varLongSize(pairs.length / 2);
+            for (int id : pairs) {
+                size += varLongSize(id);
+            }
+        }
+        long previous = blockStart;
+        long previousDelta = 0;
+        for (int i = 0; i < points; i++) {
+            long delta = timestamps[i] - previous;
+            size += varLongSize(zigZag(delta - previousDelta)) + varLongSize(pointTagSets[i]);
+            previous = timestamps[i];
+            previousDelta = delta;
+        }
 
-            if(key.length > MAX_SIZE || value.length > MAX_SIZE) {
-                throw new RuntimeException("Could not store pair key->" + tagEntry.getKey() + ", value->" + tagEntry
-                        .getValue() + ", they exceed max length of " + MAX_SIZE + " bytes");
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.put(DICTIONARY_SERIALIZER);
+        putVarLong(bb, strings.size());
+        for (byte[] string : strings) {
+            putVarLong(bb, string.length);
+            bb.put(string);
+        }
+        putVarLong(bb, tagSets.size());
+        for (int[] pairs : tagSets) {
+            putVarLong(bb, pairs.length / 2);
+            for (int id : pairs) {
+                putVarLong(bb, id);
             }
+        }
+        putVarLong(bb, points);
+        previous = blockStart;
+        previousDelta = 0;
+        for (int i = 0; i < points; i++) {
+            long delta = timestamps[i] - previous;
+            putVarLong(bb, zigZag(delta - previousDelta));
+            putVarLong(bb, pointTagSets[i]);
+            previous = timestamps[i];
+            previousDelta = delta;
+        }
+        bb.flip();
+        return bb;
+    }
 
-            bb.put((byte) key.length);
-            bb.put((byte) value.length);
-            bb.put(key);
-            bb.put(value);
+    private int getStringId(String string) {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = strings.size();
+            strings.add(string.getBytes(StandardCharsets.UTF_8));
+            stringIds.put(string, id);
         }
+        return id;
     }
 
-    public ByteBuffer getByteBuffer() {
-        return bb;
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void putVarLong(ByteBuffer bb, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bb.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        bb.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer bb) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bb.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
     }
 }
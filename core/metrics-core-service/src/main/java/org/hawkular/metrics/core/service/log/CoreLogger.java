@@ -19,6 +19,7 @@ package org.hawkular.metrics.core.service.log;
 import static org.jboss.logging.Logger.Level.INFO;
 import static org.jboss.logging.Logger.Level.WARN;
 
+import org.hawkular.metrics.model.MetricId;
 import org.hawkular.metrics.model.MetricType;
 import org.jboss.logging.BasicLogger;
 import org.jboss.logging.annotations.Cause;
@@ -72,4 +73,50 @@ public interface CoreLogger extends BasicLogger {
     @Message(id = 100009, value = "Using max number of retries %d and max retry delay of %d ms for inserting data " +
             "points")
     void infoInsertRetryConfig(int maxRetries, long maxRetryDelay);
+
+    @LogMessage(level = INFO)
+    @Message(id = 100010, value = "Using write-ahead log for data points with flush delay of %d ms and max buffer " +
+            "size of %d data points")
+    void infoWriteAheadLogConfig(long flushDelay, int maxBufferedPoints);
+
+    @LogMessage(level = INFO)
+    @Message(id = 100011, value = "Writing data point batches with max %d in-flight batches per replica set, flush " +
+            "delay of %d ms and latency target of %d ms")
+    void infoBatchWriterConfig(int maxInFlight, long flushDelay, long latencyTarget);
+
+    @LogMessage(level = INFO)
+    @Message(id = 100012, value = "Fetching the data points of multi-metric queries from max %d metrics concurrently")
+    void infoQueryConcurrencyConfig(int queryConcurrency);
+
+    @LogMessage(level = INFO)
+    @Message(id = 100013, value = "Tag index refresh interval is %d seconds (0 = tag index disabled)")
+    void infoTagIndexConfig(long refreshInterval);
+
+    @LogMessage(level = INFO)
+    @Message(id = 100014, value = "Metric definitions are cached for %d seconds (0 = definition cache disabled)")
+    void infoMetricDefinitionCacheConfig(long expiration);
+
+    @LogMessage(level = WARN)
+    @Message(id = 100015, value = "Failed to read the metric definition changes of other nodes")
+    void warnMetricDefinitionChangesPollFailed(@Cause Throwable t);
+
+    @LogMessage(level = WARN)
+    @Message(id = 100016, value = "Failed to announce a change in the metric definitions of %s")
+    void warnMetricDefinitionChangeFailed(MetricId<?> id, @Cause Throwable t);
+
+    @LogMessage(level = INFO)
+    @Message(id = 100017, value = "Tag statistics refresh interval is %d seconds (0 = tag statistics disabled)")
+    void infoTagStatisticsConfig(long refreshInterval);
+
+    @LogMessage(level = INFO)
+    @Message(id = 100018, value = "Tag completion refresh interval is %d seconds (0 = tag completion disabled)")
+    void infoTagCompletionConfig(long refreshInterval);
+
+    @LogMessage(level = WARN)
+    @Message(id = 100019, value = "Invalid query.fetch-concurrency %s, it must be at least 1. Using %d instead")
+    void warnInvalidQueryConcurrency(String queryConcurrency, int defaultConcurrency);
+
+    @LogMessage(level = INFO)
+    @Message(id = 100020, value = "Integer codecs of counter and availability blocks are %s")
+    void infoIntegerCodecsConfig(boolean enabled);
 }
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.rollup;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch with a relative error guarantee. Values are counted in logarithmically sized buckets, a
+ * bucket covers the range (gamma^(i-1), gamma^i] with gamma = (1 + alpha) / (1 - alpha), so any quantile is returned
+ * within the relative accuracy alpha of a value that has the requested rank. Unlike PSquarePercentile the result
+ * does not depend on the order of the values and two sketches can be merged without losing accuracy, which allows
+ * storing them with the rollups and combining them at query time.
+ *
+ * Not thread-safe.
+ */
+public class QuantileSketch {
+
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    private static final byte SERIALIZATION_VERSION = 0x01;
+
+    /**
+     * Values with a smaller magnitude are counted as zeros, this keeps the amount of buckets bounded
+     */
+    private static final double MIN_INDEXABLE_VALUE = 1e-9;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    private final Store positives = new Store();
+    private final Store negatives = new Store();
+    private long zeroCount;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    public QuantileSketch(double relativeAccuracy) {
+        checkArgument(relativeAccuracy > 0 && relativeAccuracy < 1, "Relative accuracy must be in range (0, 1)");
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (value > MIN_INDEXABLE_VALUE) {
+            positives.add(index(value), 1);
+        } else if (value < -MIN_INDEXABLE_VALUE) {
+            negatives.add(index(-value), 1);
+        } else {
+            zeroCount++;
+        }
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the values counted by the other sketch to this one. Both sketches must have the same relative accuracy.
+     */
+    public void merge(QuantileSketch other) {
+        checkArgument(relativeAccuracy == other.relativeAccuracy, "Can't merge sketches with relative accuracies "
+                + "%s and %s", relativeAccuracy, other.relativeAccuracy);
+        positives.merge(other.positives);
+        negatives.merge(other.negatives);
+        zeroCount += other.zeroCount;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @param quantile Requested quantile in range [0, 1]
+     * @return Estimated value of the quantile or NaN if the sketch is empty
+     */
+    public double getQuantile(double quantile) {
+        checkArgument(quantile >= 0 && quantile <= 1, "Quantile must be in range [0, 1]");
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (quantile == 0) {
+            return min;
+        }
+        if (quantile == 1) {
+            return max;
+        }
+
+        long rank = (long) (quantile * (count - 1));
+        double value;
+        if (rank < negatives.total) {
+            // Larger negative buckets hold smaller values, walk them from the end
+            value = -value(negatives.getIndexOfReverseRank(rank));
+        } else if (rank < negatives.total + zeroCount) {
+            value = 0;
+        } else {
+            value = value(positives.getIndexOfRank(rank - negatives.total - zeroCount));
+        }
+        return Math.max(min, Math.min(max, value));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    /**
+     * Representative value of the bucket, which is within the relative accuracy from both of the bucket's bounds
+     */
+    private double value(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    /**
+     * Serialized format: version (1 byte), relative accuracy (double), zero count (varint), min (double),
+     * max (double), positive store and negative store. A store is its first index (zigzag varint), the amount of
+     * counters (varint) and the counters (varint each).
+     */
+    public ByteBuffer serialize() {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 3 * 8 + 10 + positives.getSerializedSize()
+                + negatives.getSerializedSize());
+        buffer.put(SERIALIZATION_VERSION);
+        buffer.putDouble(relativeAccuracy);
+        putVarLong(buffer, zeroCount);
+        buffer.putDouble(min);
+        buffer.putDouble(max);
+        positives.serialize(buffer);
+        negatives.serialize(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static QuantileSketch deserialize(ByteBuffer serialized) {
+        ByteBuffer buffer = serialized.duplicate();
+        byte version = buffer.get();
+        if (version != SERIALIZATION_VERSION) {
+            throw new IllegalArgumentException("Unknown quantile sketch version " + version);
+        }
+        QuantileSketch sketch = new QuantileSketch(buffer.getDouble());
+        sketch.zeroCount = getVarLong(buffer);
+        sketch.min = buffer.getDouble();
+        sketch.max = buffer.getDouble();
+        sketch.positives.deserialize(buffer);
+        sketch.negatives.deserialize(buffer);
+        sketch.count = sketch.zeroCount + sketch.positives.total + sketch.negatives.total;
+        return sketch;
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Dense counters of consecutive bucket indexes, grown at either end when needed
+     */
+    private static final class Store {
+        private static final int INITIAL_SIZE = 32;
+
+        private long[] counts;
+        private int offset;
+        private long total;
+
+        void add(int index, long amount) {
+            ensureCapacity(index);
+            counts[index - offset] += amount;
+            total += amount;
+        }
+
+        void merge(Store other) {
+            if (other.counts == null) {
+                return;
+            }
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] != 0) {
+                    add(i + other.offset, other.counts[i]);
+                }
+            }
+        }
+
+        int getIndexOfRank(long rank) {
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen > rank) {
+                    return i + offset;
+                }
+            }
+            return counts.length - 1 + offset;
+        }
+
+        int getIndexOfReverseRank(long rank) {
+            long seen = 0;
+            for (int i = counts.length - 1; i >= 0; i--) {
+                seen += counts[i];
+                if (seen > rank) {
+                    return i + offset;
+                }
+            }
+            return offset;
+        }
+
+        private void ensureCapacity(int index) {
+            if (counts == null) {
+                counts = new long[INITIAL_SIZE];
+                offset = index - INITIAL_SIZE / 2;
+                return;
+            }
+            if (index < offset) {
+                int newOffset = index - counts.length / 2;
+                long[] grown = new long[counts.length + offset - newOffset];
+                System.arraycopy(counts, 0, grown, offset - newOffset, counts.length);
+                counts = grown;
+                offset = newOffset;
+            } else if (index >= offset + counts.length) {
+                counts = Arrays.copyOf(counts, index - offset + 1 + counts.length / 2);
+            }
+        }
+
+        private int firstNonZero() {
+            int first = 0;
+            while (first < counts.length && counts[first] == 0) {
+                first++;
+            }
+            return first;
+        }
+
+        private int lastNonZero() {
+            int last = counts.length - 1;
+            while (last >= 0 && counts[last] == 0) {
+                last--;
+            }
+            return last;
+        }
+
+        int getSerializedSize() {
+            int size = 5 + 5;
+            if (counts != null) {
+                for (long c : counts) {
+                    size += varLongSize(c);
+                }
+            }
+            return size;
+        }
+
+        void serialize(ByteBuffer buffer) {
+            if (total == 0) {
+                putVarLong(buffer, 0);
+                putVarLong(buffer, 0);
+                return;
+            }
+            int first = firstNonZero();
+            int last = lastNonZero();
+            int firstIndex = first + offset;
+            putVarLong(buffer, ((firstIndex << 1) ^ (firstIndex >> 31)) & 0xFFFFFFFFL);
+            putVarLong(buffer, last - first + 1);
+            for (int i = first; i <= last; i++) {
+                putVarLong(buffer, counts[i]);
+            }
+        }
+
+        void deserialize(ByteBuffer buffer) {
+            int zigzag = (int) getVarLong(buffer);
+            int firstIndex = (zigzag >>> 1) ^ -(zigzag & 1);
+            int length = (int) getVarLong(buffer);
+            for (int i = 0; i < length; i++) {
+                long c = getVarLong(buffer);
+                if (c != 0) {
+                    add(firstIndex + i, c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.rollup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hawkular.metrics.model.NumericBucketPoint;
+import org.hawkular.metrics.model.Percentile;
+
+import com.datastax.driver.core.Row;
+
+/**
+ * Aggregated statistics of the values of a single rollup period. Rollups of finer resolution (or raw values) are
+ * accumulated to a coarser one with {@link #add(double)} and {@link #merge(RollupPoint)}.
+ *
+ * Not thread-safe.
+ */
+public class RollupPoint {
+
+    private final long start;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double sum;
+    private int samples;
+    private final QuantileSketch sketch;
+
+    public RollupPoint(long start) {
+        this(start, new QuantileSketch());
+    }
+
+    private RollupPoint(long start, QuantileSketch sketch) {
+        this.start = start;
+        this.sketch = sketch;
+    }
+
+    /**
+     * Maps a rollup row "SELECT time, min, max, sum, samples, sketch"
+     */
+    public static RollupPoint fromRow(Row row) {
+        RollupPoint point = new RollupPoint(row.getTimestamp(0).getTime(), QuantileSketch.deserialize(row.getBytes(5)));
+        point.min = row.getDouble(1);
+        point.max = row.getDouble(2);
+        point.sum = row.getDouble(3);
+        point.samples = row.getInt(4);
+        return point;
+    }
+
+    public void add(double value) {
+        min = samples == 0 ? value : Math.min(min, value);
+        max = samples == 0 ? value : Math.max(max, value);
+        sum += value;
+        samples++;
+        sketch.add(value);
+    }
+
+    public void merge(RollupPoint other) {
+        if (other.samples == 0) {
+            return;
+        }
+        min = samples == 0 ? other.min : Math.min(min, other.min);
+        max = samples == 0 ? other.max : Math.max(max, other.max);
+        sum += other.sum;
+        samples += other.samples;
+        sketch.merge(other.sketch);
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getAvg() {
+        return samples == 0 ? Double.NaN : sum / samples;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public QuantileSketch getSketch() {
+        return sketch;
+    }
+
+    /**
+     * @param percentiles Requested percentiles, the median is always included
+     */
+    public NumericBucketPoint toBucketPoint(long end, List<Percentile> percentiles) {
+        List<Percentile> percentileReturns = new ArrayList<>(percentiles.size());
+        for (Percentile p : percentiles) {
+            percentileReturns.add(new Percentile(p.getOriginalQuantile(), sketch.getQuantile(p.getQuantile() / 100)));
+        }
+        return new NumericBucketPoint.Builder(start, end)
+                .setMin(min)
+                .setAvg(getAvg())
+                .setMedian(sketch.getQuantile(0.5))
+                .setMax(max)
+                .setSum(sum)
+                .setSamples(samples)
+                .setPercentiles(percentileReturns)
+                .build();
+    }
+}
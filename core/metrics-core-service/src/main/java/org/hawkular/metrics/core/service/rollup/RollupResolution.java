@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.rollup;
+
+import java.util.Optional;
+
+import org.hawkular.metrics.model.Buckets;
+import org.joda.time.Duration;
+
+/**
+ * Resolutions of the pre-aggregated rollups, written by the compression job from the complete two hour blocks. The
+ * coarsest resolution is the block size, so each rollup row is computed from a single block and is never updated
+ * with a read-modify-write.
+ */
+public enum RollupResolution {
+
+    FIVE_MINUTES("rollup_300", Duration.standardMinutes(5)),
+    ONE_HOUR("rollup_3600", Duration.standardHours(1)),
+    TWO_HOURS("rollup_7200", Duration.standardHours(2));
+
+    private final String tableName;
+    private final long step;
+
+    RollupResolution(String tableName, Duration step) {
+        this.tableName = tableName;
+        this.step = step.getMillis();
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return Duration of a rollup in milliseconds
+     */
+    public long getStep() {
+        return step;
+    }
+
+    public long getRollupStart(long timestamp) {
+        return timestamp - Math.floorMod(timestamp, step);
+    }
+
+    /**
+     * Finds the coarsest resolution whose rollups can be combined to the buckets, which requires the bucket step to
+     * be a multiple of the rollup step. Buckets that are not aligned to the rollups are still usable, only the parts
+     * of the buckets that do not cover a whole rollup need to be read from the raw data.
+     *
+     * @return The resolution or an empty Optional if the buckets are finer than any of the rollups
+     */
+    public static Optional<RollupResolution> forBuckets(Buckets buckets) {
+        RollupResolution[] resolutions = values();
+        for (int i = resolutions.length - 1; i >= 0; i--) {
+            if (buckets.getStep() % resolutions[i].step == 0) {
+                return Optional.of(resolutions[i]);
+            }
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.rollup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hawkular.metrics.core.service.compress.PointColumns;
+import org.hawkular.metrics.model.Buckets;
+import org.hawkular.metrics.model.NumericBucketPoint;
+import org.hawkular.metrics.model.Percentile;
+
+import com.google.common.collect.Range;
+
+/**
+ * Accumulates rollups and raw values to the buckets. Each bucket is split to the interior that is covered by whole
+ * rollups of the resolution (and by the time range where the rollups are available) and to the edges that have to be
+ * read from the raw data. Rollups outside the interiors and raw values inside them are ignored, so that every value
+ * is counted exactly once.
+ *
+ * Not thread-safe.
+ */
+public final class RollupStatsCollector {
+
+    private final Buckets buckets;
+    private final List<Percentile> percentiles;
+    private final RollupResolution resolution;
+
+    private final long[] interiorStarts;
+    private final long[] interiorEnds;
+    private final List<Range<Long>> rawRanges = new ArrayList<>();
+    private final RollupPoint[] collectors;
+
+    private long rollupsStart = Long.MAX_VALUE;
+    private long rollupsEnd = Long.MIN_VALUE;
+
+    /**
+     * @param start          start of the queried time range, inclusive
+     * @param end            end of the queried time range, exclusive
+     * @param availableStart start of the time range that has rollups available, inclusive
+     * @param availableEnd   end of the time range that has rollups available, exclusive
+     */
+    public RollupStatsCollector(Buckets buckets, List<Percentile> percentiles, RollupResolution resolution,
+                                long start, long end, long availableStart, long availableEnd) {
+        this.buckets = buckets;
+        this.percentiles = percentiles;
+        this.resolution = resolution;
+        this.interiorStarts = new long[buckets.getCount()];
+        this.interiorEnds = new long[buckets.getCount()];
+        this.collectors = new RollupPoint[buckets.getCount()];
+
+        long rollupRangeStart = Long.MAX_VALUE;
+        long rollupRangeEnd = Long.MIN_VALUE;
+        if (availableStart < availableEnd) {
+            rollupRangeStart = ceil(Math.max(start, availableStart));
+            rollupRangeEnd = resolution.getRollupStart(Math.min(end, availableEnd));
+        }
+
+        for (int i = 0; i < buckets.getCount(); i++) {
+            long bucketStart = buckets.getBucketStart(i);
+            long bucketEnd = bucketStart + buckets.getStep();
+
+            long interiorStart = Math.max(ceil(bucketStart), rollupRangeStart);
+            long interiorEnd = Math.min(resolution.getRollupStart(bucketEnd), rollupRangeEnd);
+            if (interiorStart >= interiorEnd) {
+                interiorStart = interiorEnd = bucketEnd;
+            } else {
+                rollupsStart = Math.min(rollupsStart, interiorStart);
+                rollupsEnd = Math.max(rollupsEnd, interiorEnd);
+            }
+            interiorStarts[i] = interiorStart;
+            interiorEnds[i] = interiorEnd;
+
+            addRawRange(Math.max(bucketStart, start), Math.min(interiorStart, end));
+            addRawRange(Math.max(interiorEnd, start), Math.min(bucketEnd, end));
+        }
+    }
+
+    private long ceil(long timestamp) {
+        long rollupStart = resolution.getRollupStart(timestamp);
+        return rollupStart == timestamp ? timestamp : rollupStart + resolution.getStep();
+    }
+
+    private void addRawRange(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        if (!rawRanges.isEmpty()) {
+            Range<Long> previous = rawRanges.get(rawRanges.size() - 1);
+            if (previous.upperEndpoint() == start) {
+                rawRanges.set(rawRanges.size() - 1, Range.closedOpen(previous.lowerEndpoint(), end));
+                return;
+            }
+        }
+        rawRanges.add(Range.closedOpen(start, end));
+    }
+
+    /**
+     * @return true if any of the buckets can use the rollups
+     */
+    public boolean hasRollups() {
+        return rollupsStart < rollupsEnd;
+    }
+
+    /**
+     * @return Start of the time range to fetch rollups from, inclusive
+     */
+    public long getRollupsStart() {
+        return rollupsStart;
+    }
+
+    /**
+     * @return End of the time range to fetch rollups from, exclusive
+     */
+    public long getRollupsEnd() {
+        return rollupsEnd;
+    }
+
+    /**
+     * @return Sorted and disjoint time ranges to fetch the raw data from
+     */
+    public List<Range<Long>> getRawRanges() {
+        return rawRanges;
+    }
+
+    public RollupResolution getResolution() {
+        return resolution;
+    }
+
+    public void increment(RollupPoint rollup) {
+        int index = getIndex(rollup.getStart());
+        if (index >= 0 && rollup.getStart() >= interiorStarts[index]
+                && rollup.getStart() + resolution.getStep() <= interiorEnds[index]) {
+            getCollector(index).merge(rollup);
+        }
+    }
+
+    public void increment(PointColumns columns) {
+        for (int i = 0; i < columns.size(); i++) {
+            long timestamp = columns.getTimestamp(i);
+            int index = getIndex(timestamp);
+            if (index >= 0 && (timestamp < interiorStarts[index] || timestamp >= interiorEnds[index])) {
+                getCollector(index).add(columns.getValue(i));
+            }
+        }
+    }
+
+    public List<NumericBucketPoint> toBucketPoints() {
+        Map<Long, NumericBucketPoint> pointMap = new HashMap<>();
+        for (RollupPoint collector : collectors) {
+            if (collector != null && collector.getSamples() > 0) {
+                NumericBucketPoint bucketPoint = collector.toBucketPoint(collector.getStart() + buckets.getStep(),
+                        percentiles);
+                pointMap.put(bucketPoint.getStart(), bucketPoint);
+            }
+        }
+        return NumericBucketPoint.toList(pointMap, buckets);
+    }
+
+    private int getIndex(long timestamp) {
+        long offset = timestamp - buckets.getStart();
+        if (offset < 0 || offset >= buckets.getCount() * buckets.getStep()) {
+            return -1;
+        }
+        return (int) (offset / buckets.getStep());
+    }
+
+    private RollupPoint getCollector(int index) {
+        RollupPoint collector = collectors[index];
+        if (collector == null) {
+            collector = new RollupPoint(buckets.getBucketStart(index));
+            collectors[index] = collector;
+        }
+        return collector;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.rollup;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hawkular.metrics.core.service.compress.PointColumns;
+
+/**
+ * Computes the rollups of a block.
+ */
+public final class Rollups {
+
+    private Rollups() {
+    }
+
+    /**
+     * Computes the rollups of every resolution from sorted columns. The finest resolution is computed from the values
+     * and each coarser one by merging the previous resolution, so the values are visited only once.
+     *
+     * @return Rollups of each resolution in ascending time order, rollup periods without values are not included
+     */
+    public static Map<RollupResolution, List<RollupPoint>> compute(PointColumns columns) {
+        Map<RollupResolution, List<RollupPoint>> rollups = new EnumMap<>(RollupResolution.class);
+
+        RollupResolution[] resolutions = RollupResolution.values();
+        List<RollupPoint> points = new ArrayList<>();
+        RollupPoint current = null;
+        for (int i = 0; i < columns.size(); i++) {
+            long rollupStart = resolutions[0].getRollupStart(columns.getTimestamp(i));
+            if (current == null || current.getStart() != rollupStart) {
+                current = new RollupPoint(rollupStart);
+                points.add(current);
+            }
+            current.add(columns.getValue(i));
+        }
+        rollups.put(resolutions[0], points);
+
+        for (int r = 1; r < resolutions.length; r++) {
+            List<RollupPoint> coarser = new ArrayList<>();
+            current = null;
+            for (RollupPoint point : points) {
+                long rollupStart = resolutions[r].getRollupStart(point.getStart());
+                if (current == null || current.getStart() != rollupStart) {
+                    current = new RollupPoint(rollupStart);
+                    coarser.add(current);
+                }
+                current.merge(point);
+            }
+            rollups.put(resolutions[r], coarser);
+            points = coarser;
+        }
+        return rollups;
+    }
+}
@@ -17,10 +17,8 @@
 package org.hawkular.metrics.core.service.tags;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Pattern;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.BaseErrorListener;
@@ -28,40 +26,61 @@ import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
-import org.antlr.v4.runtime.tree.ParseTree;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.hawkular.metrics.core.service.DataAccess;
 import org.hawkular.metrics.core.service.MetricsService;
-import org.hawkular.metrics.core.service.PatternUtil;
-import org.hawkular.metrics.core.service.tags.parser.TagQueryBaseListener;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.And;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Node;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Operator;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Or;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Predicate;
+import org.hawkular.metrics.core.service.tags.parser.TagQueryBaseVisitor;
 import org.hawkular.metrics.core.service.tags.parser.TagQueryLexer;
 import org.hawkular.metrics.core.service.tags.parser.TagQueryParser;
-import org.hawkular.metrics.core.service.tags.parser.TagQueryParser.ArrayContext;
 import org.hawkular.metrics.core.service.tags.parser.TagQueryParser.ObjectContext;
 import org.hawkular.metrics.core.service.tags.parser.TagQueryParser.PairContext;
 import org.hawkular.metrics.core.service.tags.parser.TagQueryParser.ValueContext;
-import org.hawkular.metrics.core.service.transformers.MetricIdFromMetricIndexRowTransformer;
-import org.hawkular.metrics.core.service.transformers.TagsIndexRowTransformerFilter;
 import org.hawkular.metrics.model.Metric;
-import org.hawkular.metrics.model.MetricId;
 import org.hawkular.metrics.model.MetricType;
 
+import com.google.common.collect.ImmutableList;
+
 import rx.Observable;
 
-/**
- * @author Stefan Negrea
- */
 public class ExpressionTagQueryParser {
 
-    private DataAccess dataAccess;
     private MetricsService metricsService;
+    private TagIndex tagIndex;
+    private TagQueryExecutor executor;
 
     public ExpressionTagQueryParser(DataAccess dataAccess, MetricsService metricsService) {
-        this.dataAccess = dataAccess;
+        this(dataAccess, metricsService, null, null);
+    }
+
+    public ExpressionTagQueryParser(DataAccess dataAccess, MetricsService metricsService, TagIndex tagIndex) {
+        this(dataAccess, metricsService, tagIndex, null);
+    }
+
+    /**
+     * @param tagIndex   Index used to evaluate the queries, null to evaluate them with Cassandra queries
+     * @param statistics Tag statistics used to order the predicates, null to order them by their fixed cost
+     */
+    public ExpressionTagQueryParser(DataAccess dataAccess, MetricsService metricsService, TagIndex tagIndex,
+            TagStatistics statistics) {
         this.metricsService = metricsService;
+        this.tagIndex = tagIndex;
+        this.executor = new TagQueryExecutor(dataAccess, metricsService, statistics);
     }
 
     public <T> Observable<Metric<T>> parse(String tenantId, MetricType<T> metricType, String expression) {
+        return execute(tenantId, metricType, compile(expression));
+    }
+
+    /**
+     * Parses the expression to a plan that can be executed any number of times.
+     *
+     * @throws ParseCancellationException if the expression is not valid
+     */
+    public static TagQueryPlan compile(String expression) {
         ANTLRInputStream input = new ANTLRInputStream(expression);
         TagQueryLexer tql = new TagQueryLexer(input);
         tql.removeErrorListeners();
@@ -73,15 +92,45 @@ public class ExpressionTagQueryParser {
         parser.removeErrorListeners();
         parser.addErrorListener(new ThrowingErrorListener());
 
-        ParseTree parseTree = parser.tagquery();
+        return new TagQueryPlan(new PlanVisitor().visit(parser.tagquery()), TagQueryPlan.Syntax.EXPRESSION);
+    }
 
-        StorageTagQueryListener<T> listener = new StorageTagQueryListener<>(tenantId, metricType);
-        ParseTreeWalker.DEFAULT.walk(listener, parseTree);
+    public <T> Observable<Metric<T>> execute(String tenantId, MetricType<T> metricType, TagQueryPlan plan) {
+        // Metrics without a tag are not in the index, those queries need to read all the metric definitions
+        if (tagIndex != null && !plan.hasNonExistence()) {
+            return tagIndex.load(tenantId, plan.getTagNames())
+                    .flatMap(tenant -> Observable.from(tenant.find(index -> evaluate(tenantId, index,
+                            plan.getRoot()), metricType)))
+                    .flatMap(metricsService::findMetric);
+        }
+        return executor.fetch(tenantId, metricType, plan.getRoot())
+                .flatMap(metricsService::findMetric);
+    }
+
+    private BitSet evaluate(String tenantId, TagIndex.Tenant index, Node node) {
+        if (node instanceof And) {
+            BitSet result = null;
+            for (Node operand : executor.order(tenantId, ((And) node).getOperands())) {
+                if (result == null) {
+                    result = evaluate(tenantId, index, operand);
+                } else {
+                    result.and(evaluate(tenantId, index, operand));
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return result;
+        } else if (node instanceof Or) {
+            BitSet result = new BitSet();
+            ((Or) node).getOperands().forEach(operand -> result.or(evaluate(tenantId, index, operand)));
+            return result;
+        }
 
-        return listener.getResult();
+        return index.matching((Predicate) node);
     }
 
-    public class ThrowingErrorListener extends BaseErrorListener {
+    public static class ThrowingErrorListener extends BaseErrorListener {
         @Override
         public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine,
                 String msg, RecognitionException e)
@@ -90,204 +139,57 @@ public class ExpressionTagQueryParser {
         }
     }
 
-    private class StorageTagQueryListener<T> extends TagQueryBaseListener {
+    private static String getText(ValueContext value) {
+        if (value.COMPLEXTEXT() != null) {
+            String text = value.COMPLEXTEXT().getText();
+            return text.substring(1, text.length() - 1);
+        }
+        return value.SIMPLETEXT().getText();
+    }
 
-        private Map<Integer, List<String>> arrays = new HashMap<>();
-        private Map<Integer, List<Observable<MetricId<T>>>> observables = new HashMap<>();
-        private String tenantId;
-        private MetricType<T> metricType;
+    /**
+     * Builds the plan nodes from the parse tree
+     */
+    private static class PlanVisitor extends TagQueryBaseVisitor<Node> {
 
-        public StorageTagQueryListener(String tenantId, MetricType<T> metricType) {
-            this.tenantId = tenantId;
-            this.metricType = metricType;
+        @Override
+        public Node visitTagquery(TagQueryParser.TagqueryContext ctx) {
+            return visit(ctx.object());
         }
 
-        public Observable<Metric<T>> getResult() {
-            if (observables.size() == 1) {
-                return observables.values().iterator().next().get(0)
-                    .flatMap(metricsService::findMetric);
+        @Override
+        public Node visitObject(ObjectContext ctx) {
+            if (ctx.pair() != null) {
+                return visit(ctx.pair());
             }
-
-            return Observable.empty();
+            if (ctx.logical_operator() == null) {
+                return visit(ctx.object(0));
+            }
+            List<Node> operands = ImmutableList.of(visit(ctx.object(0)), visit(ctx.object(1)));
+            return ctx.logical_operator().AND() != null ? TagQueryPlan.and(operands) : TagQueryPlan.or(operands);
         }
 
         @Override
-        public void exitPair(PairContext ctx) {
+        public Node visitPair(PairContext ctx) {
             String tagName = ctx.key().getText();
 
-            Observable<MetricId<T>> result = null;
-            int dataIndex = 3;
-
             if (ctx.array_operator() != null) {
-                // extra ' characters are already removed by the array listener
-                List<String> valueArray = arrays.get(ctx.array().getText().hashCode());
-                List<Pattern> patterns = new ArrayList<>(valueArray.size());
-                valueArray.forEach(tagValue -> patterns.add(PatternUtil.filterPattern(tagValue)));
-                boolean positive = ctx.array_operator().NOT() == null;
-
-                result = dataAccess.findMetricsByTagName(this.tenantId, tagName)
-                        .filter(r -> {
-                            for (Pattern p : patterns) {
-                                if (positive && p.matcher(r.getString(dataIndex)).matches()) {
-                                    return true;
-                                } else if (!positive && p.matcher(r.getString(dataIndex)).matches()) {
-                                    return false;
-                                }
-                            }
-
-                            return !positive;
-                        })
-                        .compose(new TagsIndexRowTransformerFilter<>(metricType))
-                        .distinct();
-            } else if (ctx.boolean_operator() != null) {
-                final String tagValue;
-                if (ctx.value().COMPLEXTEXT() != null) {
-                    String tempTagValue = ctx.value().COMPLEXTEXT().getText();
-                    tagValue = tempTagValue.substring(1, tempTagValue.length() - 1);
-                } else if (ctx.value().SIMPLETEXT() != null) {
-                    tagValue = ctx.value().SIMPLETEXT().getText();
-                } else {
-                    tagValue = null;
-                }
-
-                if (tagValue != null) {
-                    boolean positive = ctx.boolean_operator().EQUAL() != null;
-
-                    if (positive) {
-                        result = dataAccess.findMetricsByTagNameValue(this.tenantId, tagName, tagValue)
-                                .compose(new TagsIndexRowTransformerFilter<>(metricType))
-                                .distinct();
-                    } else {
-                        result = dataAccess.findMetricsByTagName(this.tenantId, tagName)
-                                .filter(r -> !tagValue.equals(r.getString(dataIndex)))
-                                .compose(new TagsIndexRowTransformerFilter<>(metricType))
-                                .distinct();
-                    }
+                List<String> values = new ArrayList<>();
+                for (ValueContext value : ctx.array().value()) {
+                    values.add(getText(value));
                 }
+                Operator operator = ctx.array_operator().NOT() == null ? Operator.IN : Operator.NOT_IN;
+                return TagQueryPlan.predicate(tagName, operator, values);
+            } else if (ctx.boolean_operator() != null) {
+                Operator operator = ctx.boolean_operator().EQUAL() != null ? Operator.EQUAL : Operator.NOT_EQUAL;
+                return TagQueryPlan.predicate(tagName, operator, ImmutableList.of(getText(ctx.value())));
             } else if (ctx.regex_operator() != null) {
-                final String tagValue;
-                if (ctx.value().COMPLEXTEXT() != null) {
-                    String tempTagValue = ctx.value().COMPLEXTEXT().getText();
-                    tagValue = tempTagValue.substring(1, tempTagValue.length() - 1);
-                } else if (ctx.value().SIMPLETEXT() != null) {
-                    tagValue = ctx.value().SIMPLETEXT().getText();
-                } else {
-                    tagValue = null;
-                }
-
-                if (tagValue != null) {
-                    Pattern p = PatternUtil.filterPattern(tagValue);
-                    boolean positive = ctx.regex_operator().REGEXMATCH() != null;
-
-                    result = dataAccess.findMetricsByTagName(this.tenantId, tagName)
-                            .filter(r -> positive == p.matcher(r.getString(dataIndex)).matches())
-                            .compose(new TagsIndexRowTransformerFilter<>(metricType))
-                            .distinct();
-                }
+                Operator operator = ctx.regex_operator().REGEXMATCH() != null ? Operator.REGEX : Operator.NOT_REGEX;
+                return TagQueryPlan.predicate(tagName, operator, ImmutableList.of(getText(ctx.value())));
             } else if (ctx.existence_operator() != null) {
-                if (ctx.existence_operator().NOT() != null) {
-                    if (metricType != null) {
-                        result = dataAccess.findMetricsInMetricsIndex(tenantId, metricType)
-                                .filter(r -> r.getMap(1, String.class, String.class).get(tagName) == null)
-                                .compose(new MetricIdFromMetricIndexRowTransformer<T>(tenantId, metricType))
-                                .distinct();
-                    } else {
-                        for (MetricType<?> ltype : MetricType.userTypes()) {
-                            @SuppressWarnings({ "unchecked", "rawtypes" })
-                            Observable<MetricId<T>> lresult = dataAccess.findMetricsInMetricsIndex(tenantId, ltype)
-                                    .filter(r -> r.getMap(1, String.class, String.class).get(tagName) == null)
-                                    .compose(new MetricIdFromMetricIndexRowTransformer(tenantId, ltype))
-                                    .distinct();
-
-                            if (result != null) {
-                                result = result.concatWith(lresult);
-                            } else {
-                                result = lresult;
-                            }
-                        }
-                    }
-                }
-            } else {
-                result = dataAccess.findMetricsByTagName(this.tenantId, tagName)
-                        .compose(new TagsIndexRowTransformerFilter<>(metricType))
-                        .distinct();
-            }
-
-            pushObservable(ctx.getText().hashCode(), result);
-        }
-
-        @Override
-        public void exitObject(ObjectContext ctx) {
-            if (ctx.logical_operator() != null) {
-                Observable<MetricId<T>> leftObservable = popObservable(ctx.object(0).getText().hashCode());
-                Observable<MetricId<T>> rightObservable = popObservable(ctx.object(1).getText().hashCode());
-
-                observables.remove(ctx.object(0).getText().hashCode());
-                observables.remove(ctx.object(1).getText().hashCode());
-
-                Observable<MetricId<T>> result = leftObservable.concatWith(rightObservable);
-
-                if (ctx.logical_operator().AND() != null) {
-                    //group by metric and then use one element from the groups with two elements
-                    //if a group has two elements it is in both sets, hence AND
-                    result = result
-                            .groupBy(m -> m)
-                            .flatMap(s -> s.skip(1).take(1));
-                } else if (ctx.logical_operator().OR() != null) {
-                    result = result.distinct();
-                }
-
-                pushObservable(ctx.getText().hashCode(), result);
-            } else {
-                if (ctx.object(0) != null && ctx.object(0).getText().hashCode() != ctx.getText().hashCode()) {
-                    Observable<MetricId<T>> expressionObservable = popObservable(ctx.object(0).getText().hashCode());
-                    observables.remove(ctx.object(0).getText().hashCode());
-                    pushObservable(ctx.getText().hashCode(), expressionObservable);
-                }
-            }
-        };
-
-        @Override
-        public void enterArray(ArrayContext ctx) {
-            List<String> arrayContext = new ArrayList<String>();
-            for (ValueContext node : ctx.value()) {
-                if (node.COMPLEXTEXT() != null) {
-                    String text = node.COMPLEXTEXT().getText();
-                    arrayContext.add(text.substring(1, text.length() - 1));
-                } else if (node.SIMPLETEXT() != null) {
-                    String text = node.SIMPLETEXT().getText();
-                    arrayContext.add(text);
-                }
-
-            }
-            arrays.put(ctx.getText().hashCode(), arrayContext);
-        }
-
-        private void pushObservable(Integer hashCode, Observable<MetricId<T>> observable) {
-            List<Observable<MetricId<T>>> hashObservables = observables.get(hashCode);
-            if (hashObservables != null) {
-                hashObservables.add(observable);
-            } else {
-                hashObservables = new ArrayList<Observable<MetricId<T>>>();
-                hashObservables.add(observable);
-                observables.put(hashCode, hashObservables);
+                return TagQueryPlan.predicate(tagName, Operator.NOT_EXISTS);
             }
-        }
-
-        private Observable<MetricId<T>> popObservable(Integer hashCode) {
-            List<Observable<MetricId<T>>> hashObservables = observables.get(hashCode);
-
-            if (hashObservables == null || hashObservables.isEmpty()) {
-                return null;
-            }
-
-            Observable<MetricId<T>> observable = hashObservables.remove(0);
-
-            if (hashObservables.isEmpty()) {
-                observables.remove(hashCode);
-            }
-
-            return observable;
+            return TagQueryPlan.predicate(tagName, Operator.EXISTS);
         }
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Set of metric ordinals. A small set is a sorted array, it's turned into a bitmap once the bitmap would take less
+ * memory than the array, and back into an array when most of the bitmap is empty again.
+ */
+class OrdinalSet {
+
+    /**
+     * Sets smaller than this are always arrays, so that a set isn't converted back and forth
+     */
+    static final int MIN_BITMAP_SIZE = 64;
+
+    private int[] array = new int[1];
+    private BitSet bitmap;
+    private int size;
+
+    /**
+     * @return true if the ordinal was not in the set
+     */
+    boolean add(int ordinal) {
+        if (bitmap != null) {
+            if (bitmap.get(ordinal)) {
+                return false;
+            }
+            bitmap.set(ordinal);
+            size++;
+            return true;
+        }
+        int index = Arrays.binarySearch(array, 0, size, ordinal);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (size == array.length) {
+            array = Arrays.copyOf(array, size + (size >> 1) + 1);
+        }
+        System.arraycopy(array, index, array, index + 1, size - index);
+        array[index] = ordinal;
+        size++;
+        // A bitmap takes a bit per ordinal up to the largest one, the array 32 bits per ordinal in the set
+        if (size >= MIN_BITMAP_SIZE && (long) size * Integer.SIZE > array[size - 1]) {
+            toBitmap();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the ordinal was in the set
+     */
+    boolean remove(int ordinal) {
+        if (bitmap != null) {
+            if (!bitmap.get(ordinal)) {
+                return false;
+            }
+            bitmap.clear(ordinal);
+            size--;
+            if (size < MIN_BITMAP_SIZE / 2 || (long) size * Integer.SIZE * 2 < bitmap.length()) {
+                toArray();
+            }
+            return true;
+        }
+        int index = Arrays.binarySearch(array, 0, size, ordinal);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(array, index + 1, array, index, size - index - 1);
+        size--;
+        if (size < array.length / 4) {
+            array = Arrays.copyOf(array, Math.max(1, size * 2));
+        }
+        return true;
+    }
+
+    boolean contains(int ordinal) {
+        if (bitmap != null) {
+            return bitmap.get(ordinal);
+        }
+        return Arrays.binarySearch(array, 0, size, ordinal) >= 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isBitmap() {
+        return bitmap != null;
+    }
+
+    /**
+     * Adds the ordinals of this set to the bitmap
+     */
+    void addTo(BitSet target) {
+        if (bitmap != null) {
+            target.or(bitmap);
+        } else {
+            for (int i = 0; i < size; i++) {
+                target.set(array[i]);
+            }
+        }
+    }
+
+    void forEach(IntConsumer action) {
+        if (bitmap != null) {
+            bitmap.stream().forEach(action);
+        } else {
+            for (int i = 0; i < size; i++) {
+                action.accept(array[i]);
+            }
+        }
+    }
+
+    private void toBitmap() {
+        bitmap = new BitSet(array[size - 1] + 1);
+        for (int i = 0; i < size; i++) {
+            bitmap.set(array[i]);
+        }
+        array = null;
+    }
+
+    private void toArray() {
+        array = bitmap.stream().toArray();
+        bitmap = null;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the literal parts of tag value regular expressions, so that they can be evaluated with lookups in the
+ * sorted tag values instead of testing every value.
+ */
+final class RegexLiterals {
+
+    private static final String META_CHARACTERS = ".[]{}()*+?^$|\\";
+
+    private RegexLiterals() {
+        // Utility class
+    }
+
+    /**
+     * @return The values matched by a regexp which consists only of literal alternatives, such as "a|b|c", or null
+     * if the regexp has any other syntax
+     */
+    static List<String> alternatives(String regexp) {
+        List<String> alternatives = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < regexp.length(); i++) {
+            char c = regexp.charAt(i);
+            if (c == '\\') {
+                if (!isEscapedLiteral(regexp, i)) {
+                    return null;
+                }
+                current.append(regexp.charAt(++i));
+            } else if (c == '|') {
+                alternatives.add(current.toString());
+                current.setLength(0);
+            } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                current.append(c);
+            }
+        }
+        alternatives.add(current.toString());
+        return alternatives;
+    }
+
+    /**
+     * @return Prefix every value matched by the regexp starts with, empty if there's none
+     */
+    static String prefix(String regexp) {
+        if (regexp.indexOf('|') >= 0) {
+            // The prefix of the first alternative doesn't apply to the others
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        // The whole value is always matched, so a leading ^ changes nothing
+        for (int i = regexp.startsWith("^") ? 1 : 0; i < regexp.length(); i++) {
+            char c = regexp.charAt(i);
+            if (c == '\\') {
+                if (!isEscapedLiteral(regexp, i)) {
+                    break;
+                }
+                prefix.append(regexp.charAt(++i));
+            } else if (c == '*' || c == '?' || c == '{') {
+                // The previous character is optional or repeated
+                if (prefix.length() > 0) {
+                    prefix.setLength(prefix.length() - 1);
+                }
+                break;
+            } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                break;
+            } else {
+                prefix.append(c);
+            }
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * @return Smallest string greater than all the strings starting with the prefix, or null if there's none which
+     * can be used as an exclusive range end
+     */
+    static String upperBound(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (Character.isSurrogate(c)) {
+                return null;
+            }
+            if (c < Character.MAX_VALUE) {
+                char next = (char) (c + 1);
+                // Skip the surrogate range, it has no characters of its own
+                return prefix.substring(0, i) + (Character.isSurrogate(next) ? '\uE000' : next);
+            }
+        }
+        return null;
+    }
+
+    static String commonPrefix(String a, String b) {
+        int length = 0;
+        while (length < a.length() && length < b.length() && a.charAt(length) == b.charAt(length)) {
+            length++;
+        }
+        return a.substring(0, length);
+    }
+
+    private static boolean isEscapedLiteral(String regexp, int i) {
+        return i + 1 < regexp.length() && !Character.isLetterOrDigit(regexp.charAt(i + 1));
+    }
+}
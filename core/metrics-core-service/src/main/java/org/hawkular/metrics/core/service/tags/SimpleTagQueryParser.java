@@ -17,24 +17,29 @@
 package org.hawkular.metrics.core.service.tags;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.hawkular.metrics.core.service.DataAccess;
 import org.hawkular.metrics.core.service.MetricsService;
 import org.hawkular.metrics.core.service.PatternUtil;
-import org.hawkular.metrics.core.service.transformers.ItemsToSetTransformer;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.And;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Node;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Operator;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Predicate;
 import org.hawkular.metrics.core.service.transformers.TagsIndexRowTransformerFilter;
 import org.hawkular.metrics.model.Metric;
 import org.hawkular.metrics.model.MetricType;
 
 import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableList;
 
 import rx.Observable;
 import rx.functions.Func1;
@@ -48,82 +53,114 @@ public class SimpleTagQueryParser {
 
     private DataAccess dataAccess;
     private MetricsService metricsService;
+    private TagIndex tagIndex;
+    private TagQueryExecutor executor;
 
     public SimpleTagQueryParser(DataAccess dataAccess, MetricsService metricsService) {
+        this(dataAccess, metricsService, null, null);
+    }
+
+    public SimpleTagQueryParser(DataAccess dataAccess, MetricsService metricsService, TagIndex tagIndex) {
+        this(dataAccess, metricsService, tagIndex, null);
+    }
+
+    /**
+     * @param tagIndex   Index used to evaluate the queries, null to evaluate them with Cassandra queries
+     * @param statistics Tag statistics used to order the filters, null to order them by their fixed cost
+     */
+    public SimpleTagQueryParser(DataAccess dataAccess, MetricsService metricsService, TagIndex tagIndex,
+            TagStatistics statistics) {
         this.dataAccess = dataAccess;
         this.metricsService = metricsService;
+        this.tagIndex = tagIndex;
+        this.executor = new TagQueryExecutor(dataAccess, metricsService, statistics);
     }
 
-    // Arrange the queries:
-    // a) Group which can be executed on Cassandra
-    // b) Group which requires Cassandra and in-memory
-    // c) Group which is executed in memory by fetching metric definitions from Cassandra
-    // Arrange each group to a sequence of most powerful query (such as exact query on Cassandra)
-
-    // Between group b & c, fetch the metric definitions (of the current list)
-
-    static class QueryOptimizer {
-
-        public static final long GROUP_A_COST = 10;
-        public static final long GROUP_B_COST = 50;
-        public static final long GROUP_C_COST = 99;
-
-        /**
-         * Sorts the query language parameters based on their query cost.
-         *
-         * @param tagsQuery User's TagQL
-         * @return TreeMap with Long key indicating query cost (lower is better)
-         */
-        public static Map<Long, List<Map.Entry<String, String>>> reOrderTagsQuery(Map<String, String> tagsQuery) {
-            Map<Long, List<Map.Entry<String, String>>> costSortedMap = new TreeMap<>();
-            costSortedMap.put(GROUP_B_COST, new ArrayList<>());
-            costSortedMap.put(GROUP_C_COST, new ArrayList<>());
-
-            for (Map.Entry<String, String> tagQuery : tagsQuery.entrySet()) {
-                if(tagQuery.getKey().startsWith("!")) {
-                    // In-memory sorted query, requires fetching all the definitions
-                    List<Map.Entry<String, String>> entries = costSortedMap.get(GROUP_C_COST);
-                    entries.add(tagQuery);
+    /**
+     * Tag values without any regular expression syntax are matched exactly
+     */
+    private static final Pattern LITERAL_VALUE = Pattern.compile("[\\w\\-]+");
+
+    /**
+     * Compiles the tag filters to a plan. Filters with an exact value are evaluated first, then the ones matching the
+     * tag value with a regular expression and last the !tagName filters, which are evaluated in memory from the
+     * metric definitions.
+     */
+    public static TagQueryPlan compile(Map<String, String> tagsQueries) {
+        List<Node> predicates = new ArrayList<>(tagsQueries.size());
+        for (Map.Entry<String, String> tagQuery : tagsQueries.entrySet()) {
+            String tagName = tagQuery.getKey();
+            String regexp = tagQuery.getValue();
+            if (tagName.startsWith("!")) {
+                predicates.add(TagQueryPlan.predicate(tagName.substring(1), Operator.NOT_EXISTS));
+            } else {
+                boolean positive = !regexp.startsWith("!");
+                String value = positive ? regexp : regexp.substring(1);
+                if (LITERAL_VALUE.matcher(value).matches()) {
+                    predicates.add(TagQueryPlan.predicate(tagName, positive ? Operator.EQUAL : Operator.NOT_EQUAL,
+                            ImmutableList.of(value)));
                 } else {
-                    // TODO How to filter exact matching from regexp matching?
-                    List<Map.Entry<String, String>> entries = costSortedMap.get(GROUP_B_COST);
-                    entries.add(tagQuery);
+                    predicates.add(TagQueryPlan.predicate(tagName, positive ? Operator.REGEX : Operator.NOT_REGEX,
+                            ImmutableList.of(value)));
                 }
             }
-
-            return costSortedMap;
         }
+        return new TagQueryPlan(TagQueryPlan.and(predicates), TagQueryPlan.Syntax.SIMPLE);
     }
 
     public Observable<Metric<?>> findMetricsWithFilters(String tenantId, MetricType<?> metricType,
                                                             Map<String, String> tagsQueries) {
+        return execute(tenantId, metricType, compile(tagsQueries));
+    }
 
-        Map<Long, List<Map.Entry<String, String>>> costSortedMap = QueryOptimizer.reOrderTagsQuery(tagsQueries);
-
-        List<Map.Entry<String, String>> groupBEntries = costSortedMap.get(QueryOptimizer.GROUP_B_COST);
-        List<Map.Entry<String, String>> groupCEntries = costSortedMap.get(QueryOptimizer.GROUP_C_COST);
+    /**
+     * @param plan Plan compiled with {@link #compile(Map)}
+     */
+    public Observable<Metric<?>> execute(String tenantId, MetricType<?> metricType, TagQueryPlan plan) {
+        Node root = plan.getRoot();
+        List<Node> predicates = root instanceof And ? ((And) root).getOperands() : ImmutableList.of(root);
+
+        // Filters requiring the tag are evaluated from the tags index, the rest from the metric definitions
+        List<Predicate> indexPredicates = new ArrayList<>();
+        List<Predicate> definitionPredicates = new ArrayList<>();
+        for (Node node : predicates) {
+            Predicate predicate = (Predicate) node;
+            if (predicate.getOperator() == Operator.NOT_EXISTS) {
+                definitionPredicates.add(predicate);
+            } else {
+                indexPredicates.add(predicate);
+            }
+        }
 
         Observable<Metric<?>> groupMetrics;
 
-        // Fetch everything from the tagsQueries
-        groupMetrics = Observable.from(groupBEntries)
-                        .flatMap(e -> dataAccess.findMetricsByTagName(tenantId, e.getKey())
-                                .filter(tagValueFilter(e.getValue(), 3))
-                                .compose(new TagsIndexRowTransformerFilter<>(metricType))
-                                .compose(new ItemsToSetTransformer<>())
-                                .reduce((s1, s2) -> {
-                                    s1.addAll(s2);
-                                    return s1;
-                                }))
-                        .reduce((s1, s2) -> {
-                            s1.retainAll(s2);
-                            return s1;
-                        })
-                        .flatMap(Observable::from)
-                        .flatMap(metricsService::findMetric);
+        if (tagIndex != null && !indexPredicates.isEmpty()) {
+            groupMetrics = tagIndex.load(tenantId, indexPredicates.stream().map(Predicate::getTagName)
+                    .collect(Collectors.toList()))
+                    .flatMap(tenant -> Observable.from(tenant.find(index -> {
+                        BitSet matching = null;
+                        for (Node predicate : executor.order(tenantId, new ArrayList<>(indexPredicates))) {
+                            BitSet tagMatching = index.matching((Predicate) predicate);
+                            if (matching == null) {
+                                matching = tagMatching;
+                            } else {
+                                matching.and(tagMatching);
+                            }
+                            if (matching.isEmpty()) {
+                                break;
+                            }
+                        }
+                        return matching;
+                    }, metricType)))
+                    .flatMap(metricsService::findMetric);
+        } else if (!indexPredicates.isEmpty()) {
+            groupMetrics = fetch(tenantId, metricType, TagQueryPlan.and(new ArrayList<>(indexPredicates)));
+        } else {
+            groupMetrics = Observable.empty();
+        }
 
         // There might not be any metrics fetched yet.. if this is the only query
-        if(groupBEntries.isEmpty() && !groupCEntries.isEmpty()) {
+        if(indexPredicates.isEmpty() && !definitionPredicates.isEmpty()) {
             // Fetch all the available metrics for this tenant
             Observable<? extends Metric<?>> tagsMetrics = dataAccess.findAllMetricsFromTagsIndex()
                     .compose(new TagsIndexRowTransformerFilter<>(metricType))
@@ -137,15 +174,21 @@ public class SimpleTagQueryParser {
             groupMetrics = Observable.concat(tagsMetrics, dataMetrics).distinct();
         }
 
-        // Group C processing, everything outside Cassandra
-        for (Map.Entry<String, String> groupCQuery : groupCEntries) {
+        // Everything outside Cassandra
+        for (Predicate predicate : definitionPredicates) {
             groupMetrics = groupMetrics
-                    .filter(tagNotExistsFilter(groupCQuery.getKey().substring(1)));
+                    .filter(tagNotExistsFilter(predicate.getTagName()));
         }
 
         return groupMetrics;
     }
 
+    private <T> Observable<Metric<?>> fetch(String tenantId, MetricType<T> metricType, Node node) {
+        return executor.fetch(tenantId, metricType, node)
+                .flatMap(metricsService::findMetric)
+                .map(metric -> (Metric<?>) metric);
+    }
+
     public Observable<Map<String, Set<String>>> getTagValues(String tenantId, MetricType<?> metricType,
                                                              Map<String, String> tagsQueries) {
 
@@ -224,7 +267,10 @@ public class SimpleTagQueryParser {
         return tMetric -> !tMetric.getTags().keySet().contains(unwantedTagName);
     }
 
-    private Func1<String, Boolean> tagNameFilter(String regexp) {
+    /**
+     * @param regexp Tag name filter, prefixed with ! to return the names that don't match
+     */
+    public static Func1<String, Boolean> tagNameFilter(String regexp) {
         if(regexp != null) {
             boolean positive = (!regexp.startsWith("!"));
             Pattern p = PatternUtil.filterPattern(regexp);
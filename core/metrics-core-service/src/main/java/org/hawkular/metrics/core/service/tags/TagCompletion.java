@@ -0,0 +1,377 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import static java.util.stream.Collectors.toList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+
+import rx.Observable;
+
+/**
+ * Per tenant prefix search of the tag names and tag values for autocompletion. The distinct tag names of a tenant are
+ * stored in the tenant's partition of tag_names_idx and the distinct values of a tag in its partition of
+ * tag_values_idx, so serving them never scans metrics_tags_idx across the cluster. In memory the names and values
+ * are kept in sorted maps where a prefix is looked up as the range of keys starting with it, so a lookup costs the
+ * length of the prefix and the amount of returned suggestions, not the amount of tags.
+ *
+ * The writes of this node update the loaded names and values directly, the writes of the other nodes are seen once
+ * they're read again after the refresh interval. A value is removed when no metric of the type has it anymore in
+ * metrics_tags_idx and a name when none of its values is left. The removals are written with the time of the check,
+ * so that an insert done concurrently with the check is kept.
+ *
+ * Tenants whose tags were written before the tables existed are indexed from metrics_idx when they're first
+ * queried. A row with an empty tag name marks the tenant as indexed, tag names can't be empty.
+ */
+public class TagCompletion {
+
+    public static final long DEFAULT_REFRESH_INTERVAL = 60;
+
+    static final String INDEXED_MARKER = "";
+
+    private static final int WRITE_CONCURRENCY = 16;
+
+    private final DataAccess dataAccess;
+    private final long refreshIntervalNanos;
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+    /**
+     * @param refreshInterval time in seconds after which loaded names and values are read again from Cassandra
+     */
+    public TagCompletion(DataAccess dataAccess, long refreshInterval) {
+        this.dataAccess = dataAccess;
+        this.refreshIntervalNanos = TimeUnit.SECONDS.toNanos(refreshInterval);
+    }
+
+    /**
+     * @param type   Type of the metrics having the tag, null for all the user types
+     * @param prefix Prefix of the returned names, null or empty for all the names
+     * @param limit  Maximum amount of names, 0 for no limit
+     * @return Tag names in ascending order
+     */
+    public Observable<String> completeTagNames(String tenantId, MetricType<?> type, String prefix, int limit) {
+        return loadNames(tenantId)
+                .flatMapIterable(tenant -> tenant.completeNames(typeMask(type), nullToEmpty(prefix), limit));
+    }
+
+    /**
+     * @param type   Type of the metrics having the tag value, null for all the user types
+     * @param prefix Prefix of the returned values, null or empty for all the values
+     * @param limit  Maximum amount of values, 0 for no limit
+     * @return Values of the tag in ascending order
+     */
+    public Observable<String> completeTagValues(String tenantId, MetricType<?> type, String tagName, String prefix,
+            int limit) {
+        return loadNames(tenantId)
+                .flatMap(tenant -> loadValues(tenantId, tenant, tagName))
+                .flatMapIterable(tenant -> tenant.completeValues(tagName, typeMask(type), nullToEmpty(prefix),
+                        limit));
+    }
+
+    /**
+     * Stores the tag names and values, called after the tags are written to metrics_tags_idx.
+     */
+    public Observable<ResultSet> addTags(MetricId<?> id, Map<String, String> tags) {
+        return Observable.from(tags.entrySet())
+                .flatMap(tag -> addTag(id.getTenantId(), id.getType(), tag.getKey(), tag.getValue()));
+    }
+
+    /**
+     * The value is written before the name, so that a name is never removed while it has a value. The writes start
+     * when the returned Observable is subscribed.
+     */
+    public Observable<ResultSet> addTag(String tenantId, MetricType<?> type, String tagName, String tagValue) {
+        return Observable.defer(() -> dataAccess.insertTagCompletionValue(tenantId, type, tagName, tagValue))
+                .concatWith(Observable.defer(() -> dataAccess.insertTagCompletionName(tenantId, type, tagName)))
+                .doOnCompleted(() -> {
+                    Tenant tenant = tenants.get(tenantId);
+                    if (tenant != null) {
+                        tenant.add(type, tagName, tagValue);
+                    }
+                });
+    }
+
+    /**
+     * Removes the tag values that no metric has anymore, called after the tags are deleted from metrics_tags_idx.
+     */
+    public Observable<ResultSet> deleteTags(MetricId<?> id, Map<String, String> tags) {
+        return Observable.from(tags.entrySet())
+                .flatMap(tag -> deleteTag(id.getTenantId(), id.getType(), tag.getKey(), tag.getValue()));
+    }
+
+    /**
+     * The check starts when the returned Observable is subscribed.
+     */
+    public Observable<ResultSet> deleteTag(String tenantId, MetricType<?> type, String tagName, String tagValue) {
+        return Observable.defer(() -> {
+            long valueChecked = currentTimeMicros();
+            return dataAccess.hasTagValue(tenantId, type, tagName, tagValue)
+                    .filter(exists -> !exists)
+                    .flatMap(unused -> dataAccess.deleteTagCompletionValue(tenantId, type, tagName, tagValue,
+                            valueChecked));
+        })
+                .doOnNext(resultSet -> {
+                    Tenant tenant = tenants.get(tenantId);
+                    if (tenant != null) {
+                        tenant.removeValue(type, tagName, tagValue);
+                    }
+                })
+                .concatMap(resultSet -> deleteUnusedName(tenantId, type, tagName));
+    }
+
+    private Observable<ResultSet> deleteUnusedName(String tenantId, MetricType<?> type, String tagName) {
+        long nameChecked = currentTimeMicros();
+        return dataAccess.findTagCompletionValues(tenantId, tagName)
+                .exists(row -> row.getByte(1) == type.getCode())
+                .filter(exists -> !exists)
+                .flatMap(unused -> dataAccess.deleteTagCompletionName(tenantId, type, tagName, nameChecked))
+                .doOnNext(resultSet -> {
+                    Tenant tenant = tenants.get(tenantId);
+                    if (tenant != null) {
+                        tenant.removeName(type, tagName);
+                    }
+                });
+    }
+
+    /**
+     * Drops the tenant's names and values, they're loaded again when queried.
+     */
+    public void invalidate(String tenantId) {
+        tenants.remove(tenantId);
+    }
+
+    /**
+     * Drops everything, the names and values are loaded again when queried.
+     */
+    public void clear() {
+        tenants.clear();
+    }
+
+    private Observable<Tenant> loadNames(String tenantId) {
+        Tenant tenant = tenants.computeIfAbsent(tenantId, id -> new Tenant());
+        if (tenant.namesLoaded(refreshIntervalNanos)) {
+            return Observable.just(tenant);
+        }
+        long loadStarted = System.nanoTime();
+        long updatesBefore = tenant.getUpdates();
+        return dataAccess.findTagCompletionNames(tenantId)
+                .toList()
+                .flatMap(rows -> {
+                    if (rows.isEmpty() || !INDEXED_MARKER.equals(rows.get(0).getString(0))) {
+                        return indexTenant(tenantId);
+                    }
+                    return Observable.just(toTypeMasks(rows.subList(1, rows.size())));
+                })
+                .doOnNext(names -> tenant.loadNames(names, loadStarted, updatesBefore))
+                .map(names -> tenant);
+    }
+
+    private Observable<Tenant> loadValues(String tenantId, Tenant tenant, String tagName) {
+        if (tenant.valuesLoaded(tagName, refreshIntervalNanos)) {
+            return Observable.just(tenant);
+        }
+        long loadStarted = System.nanoTime();
+        long updatesBefore = tenant.getUpdates();
+        return dataAccess.findTagCompletionValues(tenantId, tagName)
+                .toList()
+                .doOnNext(rows -> tenant.loadValues(tagName, toTypeMasks(rows), loadStarted, updatesBefore))
+                .map(rows -> tenant);
+    }
+
+    /**
+     * Writes the tag names and values of the tenant's metric definitions and marks the tenant as indexed
+     *
+     * @return Tag names of the tenant
+     */
+    private Observable<NavigableMap<String, Integer>> indexTenant(String tenantId) {
+        NavigableMap<String, Integer> names = new TreeMap<>();
+        Map<String, NavigableMap<String, Integer>> values = new HashMap<>();
+        return Observable.from(MetricType.userTypes())
+                .concatMap(type -> dataAccess.findMetricsInMetricsIndex(tenantId, type)
+                        .doOnNext(row -> row.getMap(1, String.class, String.class).forEach((tagName, tagValue) -> {
+                            names.merge(tagName, typeMask(type), (a, b) -> a | b);
+                            values.computeIfAbsent(tagName, name -> new TreeMap<>())
+                                    .merge(tagValue, typeMask(type), (a, b) -> a | b);
+                        })))
+                .toCompletable()
+                .andThen(Observable.merge(Observable.from(values.entrySet())
+                        .flatMapIterable(tag -> tag.getValue().entrySet().stream()
+                                .flatMap(value -> typesOf(value.getValue()).stream()
+                                        .map(type -> Observable.defer(() -> dataAccess.insertTagCompletionValue(
+                                                tenantId, type, tag.getKey(), value.getKey()))))
+                                .collect(toList())), WRITE_CONCURRENCY)
+                        .toCompletable())
+                .andThen(Observable.merge(Observable.from(names.entrySet())
+                        .flatMapIterable(tag -> typesOf(tag.getValue()).stream()
+                                .map(type -> Observable.defer(() -> dataAccess.insertTagCompletionName(tenantId,
+                                        type, tag.getKey())))
+                                .collect(toList())), WRITE_CONCURRENCY)
+                        .toCompletable())
+                .andThen(Observable.defer(() -> dataAccess.insertTagCompletionName(tenantId, MetricType.GAUGE,
+                        INDEXED_MARKER)).toCompletable())
+                .andThen(Observable.just(names));
+    }
+
+    private static NavigableMap<String, Integer> toTypeMasks(List<Row> rows) {
+        NavigableMap<String, Integer> masks = new TreeMap<>();
+        rows.forEach(row -> masks.merge(row.getString(0), 1 << row.getByte(1), (a, b) -> a | b));
+        return masks;
+    }
+
+    private static int typeMask(MetricType<?> type) {
+        if (type != null) {
+            return 1 << type.getCode();
+        }
+        return MetricType.userTypes().stream().mapToInt(userType -> 1 << userType.getCode()).reduce(0, (a, b) -> a | b);
+    }
+
+    private static List<MetricType<?>> typesOf(int mask) {
+        List<MetricType<?>> types = new ArrayList<>();
+        MetricType.userTypes().stream()
+                .filter(type -> (mask & (1 << type.getCode())) != 0)
+                .forEach(types::add);
+        return types;
+    }
+
+    private static String nullToEmpty(String prefix) {
+        return prefix == null ? "" : prefix;
+    }
+
+    private static long currentTimeMicros() {
+        return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+
+    /**
+     * Names or values mapped to the bit mask of the metric types having them
+     */
+    private static List<String> complete(NavigableMap<String, Integer> entries, int typeMask, String prefix,
+            int limit) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : entries.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix) || (limit > 0 && result.size() >= limit)) {
+                break;
+            }
+            if ((entry.getValue() & typeMask) != 0) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    private static void removeType(NavigableMap<String, Integer> entries, String key, MetricType<?> type) {
+        entries.computeIfPresent(key, (k, mask) -> {
+            int remaining = mask & ~(1 << type.getCode());
+            return remaining == 0 ? null : remaining;
+        });
+    }
+
+    private static class Values {
+        private final NavigableMap<String, Integer> values;
+        private final long loadedAt;
+        private final boolean stale;
+
+        Values(NavigableMap<String, Integer> values, long loadedAt, boolean stale) {
+            this.values = values;
+            this.loadedAt = loadedAt;
+            this.stale = stale;
+        }
+    }
+
+    private static class Tenant {
+        private NavigableMap<String, Integer> names;
+        private long namesLoadedAt;
+        private boolean namesStale;
+        private final Map<String, Values> values = new HashMap<>();
+        private long updates;
+
+        private synchronized long getUpdates() {
+            return updates;
+        }
+
+        private synchronized boolean namesLoaded(long refreshIntervalNanos) {
+            return names != null && !namesStale && System.nanoTime() - namesLoadedAt < refreshIntervalNanos;
+        }
+
+        private synchronized boolean valuesLoaded(String tagName, long refreshIntervalNanos) {
+            Values tagValues = values.get(tagName);
+            return tagValues != null && !tagValues.stale
+                    && System.nanoTime() - tagValues.loadedAt < refreshIntervalNanos;
+        }
+
+        private synchronized void loadNames(NavigableMap<String, Integer> loaded, long loadStarted,
+                long updatesBefore) {
+            // An update done while the rows were read might be missing from them, read them again next time
+            names = loaded;
+            namesLoadedAt = loadStarted;
+            namesStale = updates != updatesBefore;
+        }
+
+        private synchronized void loadValues(String tagName, NavigableMap<String, Integer> loaded, long loadStarted,
+                long updatesBefore) {
+            values.put(tagName, new Values(loaded, loadStarted, updates != updatesBefore));
+        }
+
+        private synchronized List<String> completeNames(int typeMask, String prefix, int limit) {
+            return names == null ? new ArrayList<>() : complete(names, typeMask, prefix, limit);
+        }
+
+        private synchronized List<String> completeValues(String tagName, int typeMask, String prefix, int limit) {
+            Values tagValues = values.get(tagName);
+            return tagValues == null ? new ArrayList<>() : complete(tagValues.values, typeMask, prefix, limit);
+        }
+
+        private synchronized void add(MetricType<?> type, String tagName, String tagValue) {
+            updates++;
+            if (names != null) {
+                names.merge(tagName, 1 << type.getCode(), (a, b) -> a | b);
+            }
+            Values tagValues = values.get(tagName);
+            if (tagValues != null) {
+                tagValues.values.merge(tagValue, 1 << type.getCode(), (a, b) -> a | b);
+            }
+        }
+
+        private synchronized void removeValue(MetricType<?> type, String tagName, String tagValue) {
+            updates++;
+            Values tagValues = values.get(tagName);
+            if (tagValues != null) {
+                removeType(tagValues.values, tagValue, type);
+            }
+        }
+
+        private synchronized void removeName(MetricType<?> type, String tagName) {
+            updates++;
+            if (names != null) {
+                removeType(names, tagName, type);
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+
+import com.datastax.driver.core.Row;
+
+import rx.Observable;
+
+/**
+ * Node local inverted index of metrics_tags_idx. Every indexed metric of a tenant is given an ordinal and each tag
+ * name / tag value pair maps to the set of ordinals of the metrics that have it, so tag queries are evaluated with
+ * bitmap operations instead of reading and filtering the index rows. Small sets are kept as sorted arrays, so a tag
+ * with a distinct value for every metric takes memory in proportion to its metrics. The ordinals of metrics that lose
+ * all their loaded tags are reused.
+ *
+ * The tag names are loaded from Cassandra the first time they're queried and kept current by the tag updates done
+ * through this node. Updates done by the other nodes are seen when the tag name is reloaded after the refresh
+ * interval has passed.
+ */
+public class TagIndex {
+
+    public static final long DEFAULT_REFRESH_INTERVAL = 60;
+
+    private final DataAccess dataAccess;
+    private final long refreshIntervalNanos;
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+    /**
+     * @param refreshInterval time in seconds after which a loaded tag name is read again from Cassandra
+     */
+    public TagIndex(DataAccess dataAccess, long refreshInterval) {
+        this.dataAccess = dataAccess;
+        this.refreshIntervalNanos = TimeUnit.SECONDS.toNanos(refreshInterval);
+    }
+
+    /**
+     * Loads the tag names that are missing or due for a refresh.
+     *
+     * @return Observable emitting the tenant's index once the tag names are available
+     */
+    public Observable<Tenant> load(String tenantId, Collection<String> tagNames) {
+        Tenant tenant = tenants.computeIfAbsent(tenantId, id -> new Tenant());
+        return Observable.from(tagNames)
+                .distinct()
+                .filter(tagName -> !tenant.isLoaded(tagName, refreshIntervalNanos))
+                .flatMap(tagName -> {
+                    long loadStarted = System.nanoTime();
+                    long updatesBefore = tenant.getUpdates();
+                    return dataAccess.findMetricsByTagName(tenantId, tagName)
+                            .toList()
+                            .doOnNext(rows -> tenant.load(tagName, rows, loadStarted, updatesBefore));
+                })
+                .toCompletable()
+                .andThen(Observable.just(tenant));
+    }
+
+    public void addTags(MetricId<?> id, Map<String, String> tags) {
+        Tenant tenant = tenants.get(id.getTenantId());
+        if (tenant != null) {
+            tenant.addTags(id, tags);
+        }
+    }
+
+    public void deleteTags(MetricId<?> id, Map<String, String> tags) {
+        Tenant tenant = tenants.get(id.getTenantId());
+        if (tenant != null) {
+            tenant.deleteTags(id, tags);
+        }
+    }
+
+    /**
+     * Drops the tenant's index, its tag names are loaded again when queried.
+     */
+    public void invalidate(String tenantId) {
+        tenants.remove(tenantId);
+    }
+
+    /**
+     * Drops everything, the tag names are loaded again when queried.
+     */
+    public void clear() {
+        tenants.clear();
+    }
+
+    /**
+     * Ordinal sets of a tag name, the values are kept sorted so that values with a common prefix can be looked up as a
+     * range.
+     */
+    private static class Postings {
+        private final NavigableMap<String, OrdinalSet> values = new TreeMap<>();
+        private final OrdinalSet all = new OrdinalSet();
+
+        /**
+         * Metrics with more than one value, an old value can be left behind in the index
+         */
+        private final OrdinalSet multiValued = new OrdinalSet();
+
+        private long loadedAt;
+        private boolean stale;
+
+        /**
+         * @return true if the metric didn't have the tag before
+         */
+        boolean add(String tagValue, int ordinal) {
+            if (!values.computeIfAbsent(tagValue, v -> new OrdinalSet()).add(ordinal)) {
+                return false;
+            }
+            if (!all.add(ordinal)) {
+                multiValued.add(ordinal);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the metric doesn't have the tag anymore
+         */
+        boolean remove(String tagValue, int ordinal) {
+            OrdinalSet value = values.get(tagValue);
+            if (value == null || !value.remove(ordinal)) {
+                return false;
+            }
+            if (value.isEmpty()) {
+                values.remove(tagValue);
+            }
+            if (multiValued.contains(ordinal)) {
+                long remaining = values.values().stream().filter(ordinals -> ordinals.contains(ordinal)).count();
+                if (remaining <= 1) {
+                    multiValued.remove(ordinal);
+                }
+                if (remaining > 0) {
+                    return false;
+                }
+            }
+            all.remove(ordinal);
+            return true;
+        }
+    }
+
+    /**
+     * Index of a single tenant. The ordinals of metrics that are no longer indexed are reused, so the bitmaps are only
+     * valid while the tenant's lock is held, see {@link #find(Function, MetricType)}.
+     */
+    public static class Tenant {
+        private final Map<MetricId<?>, Integer> ordinals = new HashMap<>();
+        private final List<MetricId<?>> metricIds = new ArrayList<>();
+        private final Map<String, Postings> tags = new HashMap<>();
+        private final BitSet free = new BitSet();
+
+        /**
+         * Amount of loaded tag names each metric has, a metric without any is dropped
+         */
+        private int[] references = new int[16];
+
+        private long updates;
+
+        private synchronized boolean isLoaded(String tagName, long refreshIntervalNanos) {
+            Postings postings = tags.get(tagName);
+            return postings != null && !postings.stale
+                    && System.nanoTime() - postings.loadedAt < refreshIntervalNanos;
+        }
+
+        private synchronized long getUpdates() {
+            return updates;
+        }
+
+        /**
+         * @param rows          rows of metrics_tags_idx in order tenant_id, type, metric, tvalue
+         * @param loadStarted   time when the rows were requested
+         * @param updatesBefore amount of updates done before the rows were requested
+         */
+        private synchronized void load(String tagName, List<Row> rows, long loadStarted, long updatesBefore) {
+            Postings postings = new Postings();
+            for (Row row : rows) {
+                MetricId<?> id = new MetricId<>(row.getString(0), MetricType.fromCode(row.getByte(1)),
+                        row.getString(2));
+                int ordinal = getOrdinal(id);
+                if (postings.add(row.getString(3), ordinal)) {
+                    references[ordinal]++;
+                }
+            }
+            // An update done while the rows were read might be missing from them, read them again next time
+            postings.loadedAt = loadStarted;
+            postings.stale = updates != updatesBefore;
+            Postings previous = tags.put(tagName, postings);
+            if (previous != null) {
+                previous.all.forEach(this::release);
+            }
+        }
+
+        private synchronized void addTags(MetricId<?> id, Map<String, String> newTags) {
+            updates++;
+            newTags.forEach((tagName, tagValue) -> {
+                Postings postings = tags.get(tagName);
+                if (postings != null) {
+                    int ordinal = getOrdinal(id);
+                    if (postings.add(tagValue, ordinal)) {
+                        references[ordinal]++;
+                    }
+                }
+            });
+        }
+
+        private synchronized void deleteTags(MetricId<?> id, Map<String, String> deletedTags) {
+            updates++;
+            Integer ordinal = ordinals.get(id);
+            if (ordinal == null) {
+                return;
+            }
+            deletedTags.forEach((tagName, tagValue) -> {
+                Postings postings = tags.get(tagName);
+                if (postings != null && postings.remove(tagValue, ordinal)) {
+                    release(ordinal);
+                }
+            });
+        }
+
+        /**
+         * The lowest free ordinal is reused, so that the bitmaps stay dense
+         */
+        private int getOrdinal(MetricId<?> id) {
+            Integer ordinal = ordinals.get(id);
+            if (ordinal != null) {
+                return ordinal;
+            }
+            int reused = free.nextSetBit(0);
+            if (reused >= 0) {
+                free.clear(reused);
+                metricIds.set(reused, id);
+                ordinals.put(id, reused);
+                return reused;
+            }
+            metricIds.add(id);
+            if (metricIds.size() > references.length) {
+                references = Arrays.copyOf(references, references.length * 2);
+            }
+            ordinals.put(id, metricIds.size() - 1);
+            return metricIds.size() - 1;
+        }
+
+        private void release(int ordinal) {
+            if (--references[ordinal] > 0) {
+                return;
+            }
+            ordinals.remove(metricIds.get(ordinal));
+            metricIds.set(ordinal, null);
+            free.set(ordinal);
+            // Free ordinals at the end are dropped
+            int last = metricIds.size() - 1;
+            while (last >= 0 && metricIds.get(last) == null) {
+                metricIds.remove(last);
+                free.clear(last);
+                last--;
+            }
+        }
+
+        /**
+         * @return Amount of ordinals in use, including the free ones that are waiting for reuse
+         */
+        synchronized int getOrdinals() {
+            return metricIds.size();
+        }
+
+        /**
+         * Evaluates the predicate against the distinct values of the tag. Known values are looked up directly, the
+         * values sharing the predicate's literal prefix are scanned as a range and each of them is tested once,
+         * regardless of the amount of metrics having it.
+         */
+        public synchronized BitSet matching(TagQueryPlan.Predicate predicate) {
+            BitSet result = new BitSet();
+            Postings postings = tags.get(predicate.getTagName());
+            if (postings == null) {
+                return result;
+            }
+            switch (predicate.getOperator()) {
+                case EXISTS:
+                    postings.all.addTo(result);
+                    return result;
+                case NOT_EXISTS:
+                    return result;
+                default:
+                    break;
+            }
+
+            Set<String> literalValues = predicate.getLiteralValues();
+            if (literalValues != null) {
+                literalValues.forEach(tagValue -> {
+                    OrdinalSet value = postings.values.get(tagValue);
+                    if (value != null) {
+                        value.addTo(result);
+                    }
+                });
+                return result;
+            }
+
+            String prefix = predicate.getLiteralPrefix();
+            for (Map.Entry<String, OrdinalSet> value : postings.values.tailMap(prefix, true).entrySet()) {
+                if (!value.getKey().startsWith(prefix)) {
+                    break;
+                }
+                if (predicate.matches(value.getKey())) {
+                    value.getValue().addTo(result);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Evaluates a query with {@link #matching(TagQueryPlan.Predicate)} while holding the tenant's lock, so that
+         * no ordinal of the result is reused before it's mapped to its metric.
+         *
+         * @param type Type of the returned metrics, null for all the user types
+         */
+        public synchronized <T> List<MetricId<T>> find(Function<Tenant, BitSet> evaluation, MetricType<T> type) {
+            return getMetricIds(evaluation.apply(this), type);
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> List<MetricId<T>> getMetricIds(BitSet bitmap, MetricType<T> type) {
+            List<MetricId<T>> ids = new ArrayList<>(bitmap.cardinality());
+            for (int i = bitmap.nextSetBit(0); i >= 0; i = bitmap.nextSetBit(i + 1)) {
+                MetricId<?> id = metricIds.get(i);
+                if ((type == null && id.getType().isUserType()) || id.getType() == type) {
+                    ids.add((MetricId<T>) id);
+                }
+            }
+            return ids;
+        }
+    }
+}
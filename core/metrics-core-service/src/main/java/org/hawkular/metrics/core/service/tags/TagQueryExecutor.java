@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.And;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Node;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Operator;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Or;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Predicate;
+import org.hawkular.metrics.core.service.transformers.TagsIndexRowTransformerFilter;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+
+import rx.Observable;
+
+/**
+ * Evaluates tag query plans with Cassandra queries. The operands of AND are ordered by the estimated amount of
+ * matching metrics, the first one is fetched from metrics_tags_idx and each of the rest is either fetched from the
+ * index and intersected or, if there are clearly fewer candidates than rows to read, tested against the definitions
+ * of the candidate metrics.
+ */
+class TagQueryExecutor {
+
+    /**
+     * Testing a candidate needs its metric definition, which is assumed to cost as much as reading this many index
+     * rows
+     */
+    static final long SCAN_COST_FACTOR = 10;
+
+    private final DataAccess dataAccess;
+    private final MetricsService metricsService;
+    private final TagStatistics statistics;
+
+    /**
+     * @param statistics Cardinality statistics, null to use the fixed operator costs only
+     */
+    TagQueryExecutor(DataAccess dataAccess, MetricsService metricsService, TagStatistics statistics) {
+        this.dataAccess = dataAccess;
+        this.metricsService = metricsService;
+        this.statistics = statistics;
+    }
+
+    <T> Observable<MetricId<T>> fetch(String tenantId, MetricType<T> metricType, Node node) {
+        if (node instanceof And) {
+            // Most selective operand first, the rest are only evaluated while the intersection is not empty
+            List<Node> operands = order(tenantId, ((And) node).getOperands());
+            Observable<Set<MetricId<T>>> result = fetchSet(tenantId, metricType, operands.get(0));
+            for (Node operand : operands.subList(1, operands.size())) {
+                long estimate = estimate(tenantId, operand);
+                result = result.flatMap(ids -> {
+                    if (ids.isEmpty()) {
+                        return Observable.just(ids);
+                    }
+                    if (operand instanceof Predicate && shouldScan(ids.size(), estimate, (Predicate) operand)) {
+                        return testDefinitions(ids, (Predicate) operand);
+                    }
+                    return fetchSet(tenantId, metricType, operand).map(operandIds -> {
+                        ids.retainAll(operandIds);
+                        return ids;
+                    });
+                });
+            }
+            return result.flatMap(Observable::from);
+        } else if (node instanceof Or) {
+            return Observable.from(((Or) node).getOperands())
+                    .concatMap(operand -> fetch(tenantId, metricType, operand))
+                    .distinct();
+        }
+
+        Predicate predicate = (Predicate) node;
+        if (predicate.getOperator() == Operator.NOT_EXISTS) {
+            return findMetricsWithoutTag(tenantId, metricType, predicate.getTagName());
+        }
+        return TagsIndexLookup.findMetrics(dataAccess, tenantId, predicate)
+                .compose(new TagsIndexRowTransformerFilter<>(metricType))
+                .distinct();
+    }
+
+    /**
+     * @return The operands ordered by their estimated amount of matching metrics, operands without an estimate are
+     * kept in the order of their fixed cost after the estimated ones
+     */
+    List<Node> order(String tenantId, List<Node> operands) {
+        if (statistics == null) {
+            return operands;
+        }
+        List<Node> ordered = new ArrayList<>(operands);
+        ordered.sort(Comparator.comparingLong(operand -> estimate(tenantId, operand)));
+        return ordered;
+    }
+
+    private long estimate(String tenantId, Node node) {
+        return statistics == null ? TagStatistics.UNKNOWN : statistics.estimate(tenantId, node);
+    }
+
+    /**
+     * Metrics without the tag are found only by reading all the definitions, testing the candidates is always
+     * cheaper. Other predicates are tested if reading their index rows would cost clearly more.
+     */
+    private static boolean shouldScan(int candidates, long estimate, Predicate predicate) {
+        if (predicate.getOperator() == Operator.NOT_EXISTS) {
+            return true;
+        }
+        return estimate != TagStatistics.UNKNOWN && candidates * SCAN_COST_FACTOR < estimate;
+    }
+
+    private <T> Observable<Set<MetricId<T>>> testDefinitions(Set<MetricId<T>> ids, Predicate predicate) {
+        return Observable.from(ids)
+                .flatMap(metricsService::findMetric)
+                .filter(metric -> predicate.test(metric.getTags()))
+                .map(Metric::getMetricId)
+                .collect(HashSet::new, Set::add);
+    }
+
+    private <T> Observable<Set<MetricId<T>>> fetchSet(String tenantId, MetricType<T> metricType, Node node) {
+        return fetch(tenantId, metricType, node).collect(HashSet::new, Set::add);
+    }
+
+    private <T> Observable<MetricId<T>> findMetricsWithoutTag(String tenantId, MetricType<T> metricType,
+            String tagName) {
+        return metricsService.findMetrics(tenantId, metricType)
+                .filter(metric -> !metric.getTags().containsKey(tagName))
+                .map(Metric::getMetricId);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.hawkular.metrics.core.service.PatternUtil;
+
+/**
+ * Compiled tag query. Plans are immutable and don't depend on the tenant, so a plan is compiled once and shared by
+ * all the queries using the same expression. The operands of AND are ordered by their estimated cost, so the
+ * cheapest and most selective predicates are evaluated first.
+ */
+public class TagQueryPlan {
+
+    /**
+     * Query language the plan was compiled from, which decides how it is executed
+     */
+    public enum Syntax {
+        /** Tag query expression, see {@link ExpressionTagQueryParser} */
+        EXPRESSION,
+        /** Comma separated tagName:regexp filters, see {@link SimpleTagQueryParser} */
+        SIMPLE
+    }
+
+    /**
+     * Predicate operators, the cost reflects how much of the tag index has to be read to evaluate the predicate
+     */
+    public enum Operator {
+        /** Reads the metrics with a single tag value */
+        EQUAL(1),
+        /** Reads all the metrics with the tag and filters their values */
+        IN(4),
+        EXISTS(4),
+        NOT_EQUAL(5),
+        NOT_IN(5),
+        REGEX(6),
+        NOT_REGEX(6),
+        /** Reads all the metric definitions of the tenant */
+        NOT_EXISTS(10);
+
+        private final int cost;
+
+        Operator(int cost) {
+            this.cost = cost;
+        }
+
+        public int getCost() {
+            return cost;
+        }
+    }
+
+    public abstract static class Node {
+        public abstract int getCost();
+    }
+
+    /**
+     * Condition on a single tag
+     */
+    public static final class Predicate extends Node {
+        private final String tagName;
+        private final Operator operator;
+        private final List<String> values;
+        private final List<Pattern> patterns;
+        private final Set<String> literalValues;
+        private final String literalPrefix;
+
+        private Predicate(String tagName, Operator operator, List<String> values) {
+            this.tagName = tagName;
+            this.operator = operator;
+            this.values = Collections.unmodifiableList(new ArrayList<>(values));
+            List<Pattern> compiled = new ArrayList<>(values.size());
+            if (operator == Operator.IN || operator == Operator.NOT_IN || operator == Operator.REGEX
+                    || operator == Operator.NOT_REGEX) {
+                values.forEach(value -> compiled.add(PatternUtil.filterPattern(value)));
+            }
+            this.patterns = Collections.unmodifiableList(compiled);
+
+            Set<String> literals = null;
+            String prefix = "";
+            if (operator == Operator.EQUAL) {
+                literals = Collections.singleton(values.get(0));
+            } else if ((operator == Operator.IN || operator == Operator.REGEX) && !patterns.isEmpty()) {
+                literals = new HashSet<>();
+                prefix = null;
+                for (Pattern pattern : patterns) {
+                    List<String> alternatives = RegexLiterals.alternatives(pattern.pattern());
+                    if (alternatives == null) {
+                        literals = null;
+                    } else if (literals != null) {
+                        literals.addAll(alternatives);
+                    }
+                    String patternPrefix = RegexLiterals.prefix(pattern.pattern());
+                    prefix = prefix == null ? patternPrefix : RegexLiterals.commonPrefix(prefix, patternPrefix);
+                }
+            }
+            this.literalValues = literals == null ? null : Collections.unmodifiableSet(literals);
+            this.literalPrefix = prefix;
+        }
+
+        public String getTagName() {
+            return tagName;
+        }
+
+        public Operator getOperator() {
+            return operator;
+        }
+
+        /**
+         * @return The exact value of EQUAL and NOT_EQUAL predicates
+         */
+        public String getValue() {
+            return values.get(0);
+        }
+
+        /**
+         * @return All the values that fulfill the predicate if they're known without testing the values, null
+         * otherwise
+         */
+        public Set<String> getLiteralValues() {
+            return literalValues;
+        }
+
+        /**
+         * @return Prefix of all the values that fulfill the predicate, empty if unknown
+         */
+        public String getLiteralPrefix() {
+            return literalPrefix;
+        }
+
+        @Override
+        public int getCost() {
+            // Known values are read directly instead of scanning all the values of the tag
+            return literalValues != null ? Operator.EQUAL.getCost() : operator.getCost();
+        }
+
+        /**
+         * @return true if a metric having the tag with this value fulfills the predicate
+         */
+        public boolean matches(String tagValue) {
+            switch (operator) {
+                case EQUAL:
+                    return values.get(0).equals(tagValue);
+                case NOT_EQUAL:
+                    return !values.get(0).equals(tagValue);
+                case REGEX:
+                case IN:
+                    return anyPatternMatches(tagValue);
+                case NOT_REGEX:
+                case NOT_IN:
+                    return !anyPatternMatches(tagValue);
+                case EXISTS:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * @return true if a metric with the tags fulfills the predicate
+         */
+        public boolean test(Map<String, String> tags) {
+            String tagValue = tags.get(tagName);
+            if (tagValue == null) {
+                return operator == Operator.NOT_EXISTS;
+            }
+            return matches(tagValue);
+        }
+
+        private boolean anyPatternMatches(String tagValue) {
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(tagValue).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return tagName + " " + operator + (values.isEmpty() ? "" : " " + values);
+        }
+    }
+
+    /**
+     * Intersection of the operands, which are ordered by their cost
+     */
+    public static final class And extends Node {
+        private final List<Node> operands;
+
+        private And(List<Node> operands) {
+            List<Node> ordered = new ArrayList<>(operands);
+            ordered.sort(Comparator.comparingInt(Node::getCost));
+            this.operands = Collections.unmodifiableList(ordered);
+        }
+
+        public List<Node> getOperands() {
+            return operands;
+        }
+
+        @Override
+        public int getCost() {
+            // The cheapest operand limits the amount of metrics the rest are evaluated against
+            return operands.isEmpty() ? 0 : operands.get(0).getCost();
+        }
+
+        @Override
+        public String toString() {
+            return "AND" + operands;
+        }
+    }
+
+    /**
+     * Union of the operands
+     */
+    public static final class Or extends Node {
+        private final List<Node> operands;
+
+        private Or(List<Node> operands) {
+            this.operands = Collections.unmodifiableList(new ArrayList<>(operands));
+        }
+
+        public List<Node> getOperands() {
+            return operands;
+        }
+
+        @Override
+        public int getCost() {
+            return operands.stream().mapToInt(Node::getCost).max().orElse(0);
+        }
+
+        @Override
+        public String toString() {
+            return "OR" + operands;
+        }
+    }
+
+    private final Node root;
+    private final Syntax syntax;
+    private final Set<String> tagNames;
+    private final boolean nonExistence;
+
+    public TagQueryPlan(Node root, Syntax syntax) {
+        this.root = root;
+        this.syntax = syntax;
+        Set<String> names = new HashSet<>();
+        this.nonExistence = collect(root, names);
+        this.tagNames = Collections.unmodifiableSet(names);
+    }
+
+    private static boolean collect(Node node, Set<String> names) {
+        if (node instanceof Predicate) {
+            Predicate predicate = (Predicate) node;
+            names.add(predicate.getTagName());
+            return predicate.getOperator() == Operator.NOT_EXISTS;
+        }
+        boolean nonExistence = false;
+        for (Node operand : node instanceof And ? ((And) node).getOperands() : ((Or) node).getOperands()) {
+            nonExistence |= collect(operand, names);
+        }
+        return nonExistence;
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    public Syntax getSyntax() {
+        return syntax;
+    }
+
+    /**
+     * @return Names of all the tags the query refers to
+     */
+    public Set<String> getTagNames() {
+        return tagNames;
+    }
+
+    /**
+     * @return true if the query matches metrics without a tag, which requires reading all the metric definitions
+     */
+    public boolean hasNonExistence() {
+        return nonExistence;
+    }
+
+    public static Predicate predicate(String tagName, Operator operator, List<String> values) {
+        return new Predicate(tagName, operator, values);
+    }
+
+    public static Predicate predicate(String tagName, Operator operator) {
+        return new Predicate(tagName, operator, Collections.emptyList());
+    }
+
+    /**
+     * @return Intersection of the operands, nested intersections are flattened
+     */
+    public static Node and(List<Node> operands) {
+        List<Node> flattened = new ArrayList<>(operands.size());
+        operands.forEach(operand -> {
+            if (operand instanceof And) {
+                flattened.addAll(((And) operand).getOperands());
+            } else {
+                flattened.add(operand);
+            }
+        });
+        return flattened.size() == 1 ? flattened.get(0) : new And(flattened);
+    }
+
+    /**
+     * @return Union of the operands, nested unions are flattened
+     */
+    public static Node or(List<Node> operands) {
+        List<Node> flattened = new ArrayList<>(operands.size());
+        operands.forEach(operand -> {
+            if (operand instanceof Or) {
+                flattened.addAll(((Or) operand).getOperands());
+            } else {
+                flattened.add(operand);
+            }
+        });
+        return flattened.size() == 1 ? flattened.get(0) : new Or(flattened);
+    }
+
+    @Override
+    public String toString() {
+        return "TagQueryPlan[" + syntax + ": " + root + "]";
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+import org.hawkular.metrics.core.dropwizard.HawkularMetricRegistry;
+import org.hawkular.metrics.model.MetricType;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Bounded cache of compiled tag query plans, the least recently used plans are evicted first. Queries which fail to
+ * compile are not cached.
+ */
+public class TagQueryPlanCache {
+
+    public static final long DEFAULT_MAX_SIZE = 1000;
+
+    private final Cache<Key, TagQueryPlan> plans;
+
+    private Meter hits = new Meter();
+    private Meter misses = new Meter();
+
+    public TagQueryPlanCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public TagQueryPlanCache(long maxSize) {
+        plans = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+    }
+
+    /**
+     * Exposes the cache hits, misses and the amount of cached plans.
+     */
+    public void initMetrics(HawkularMetricRegistry metricRegistry) {
+        // Registered gauge is bound to this instance, replace the one from a previous startup
+        metricRegistry.remove("TagQueryPlanCacheSize");
+
+        hits = metricRegistry.meter("TagQueryPlanCacheHits", "Core", "Read");
+        misses = metricRegistry.meter("TagQueryPlanCacheMisses", "Core", "Read");
+        metricRegistry.register("TagQueryPlanCacheSize", "Core", "Read", (Gauge<Long>) plans::size);
+    }
+
+    /**
+     * @param compiler compiles the expression when the plan is not cached, any exception it throws is passed to the
+     *                 caller
+     */
+    public TagQueryPlan get(String tenantId, MetricType<?> type, String expression,
+            Function<String, TagQueryPlan> compiler) {
+        Key key = new Key(tenantId, type, expression);
+        TagQueryPlan plan = plans.getIfPresent(key);
+        if (plan != null) {
+            hits.mark();
+            return plan;
+        }
+        misses.mark();
+        plan = compiler.apply(expression);
+        plans.put(key, plan);
+        return plan;
+    }
+
+    public long size() {
+        return plans.size();
+    }
+
+    private static final class Key {
+        private final String tenantId;
+        private final MetricType<?> type;
+        private final String expression;
+
+        Key(String tenantId, MetricType<?> type, String expression) {
+            this.tenantId = tenantId;
+            this.type = type;
+            this.expression = expression;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(tenantId, key.tenantId) && Objects.equals(type, key.type)
+                    && Objects.equals(expression, key.expression);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tenantId, type, expression);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.And;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Node;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Or;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Predicate;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.TagCardinality;
+import org.jboss.logging.Logger;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import rx.Observable;
+
+/**
+ * Per tenant cardinality statistics of the tag names: the amount of metrics having the tag, the amount of distinct
+ * values and a count-min sketch of the value frequencies. The statistics of a tag name are read from metrics_tags_idx
+ * when the tag is first queried, kept up to date with the tag writes of this node and read again after the refresh
+ * interval, which also covers the writes of the other nodes. The sketch is sized from the amount of distinct values
+ * read, a tag that outgrows its sketch is read again on next use.
+ *
+ * The estimates are used to order the evaluation of the predicates, so that the most selective one is fetched first,
+ * and to decide if the rest of the predicates are fetched from the index or tested against the candidate metrics.
+ */
+public class TagStatistics {
+
+    private static final Logger logger = Logger.getLogger(TagStatistics.class);
+
+    public static final long DEFAULT_REFRESH_INTERVAL = 600;
+
+    /**
+     * Estimate of a predicate whose tag has no statistics yet or that can't be estimated from the tag's statistics
+     */
+    public static final long UNKNOWN = Long.MAX_VALUE;
+
+    private static final int VALUE_INDEX = 3;
+
+    private final DataAccess dataAccess;
+    private final long refreshIntervalNanos;
+
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+    public TagStatistics(DataAccess dataAccess, long refreshInterval) {
+        this.dataAccess = dataAccess;
+        this.refreshIntervalNanos = TimeUnit.SECONDS.toNanos(refreshInterval);
+    }
+
+    /**
+     * @param tagNames Names of the tenant's tags
+     * @return Statistics of the tag names, loading the ones that are missing or due for a refresh
+     */
+    public Observable<TagCardinality> getCardinalities(String tenantId, Observable<String> tagNames) {
+        return tagNames
+                .distinct()
+                .flatMap(tagName -> load(tenantId, tagName), 4);
+    }
+
+    /**
+     * @return Statistics of the tag name, loaded if missing or due for a refresh
+     */
+    public Observable<TagCardinality> load(String tenantId, String tagName) {
+        Tenant tenant = getTenant(tenantId);
+        Stats current = tenant.tags.get(tagName);
+        if (current != null && !current.isExpired(refreshIntervalNanos)) {
+            return Observable.just(current.toCardinality(tagName));
+        }
+        return Observable.defer(() -> {
+            long loadStarted = System.nanoTime();
+            long updatesBefore = tenant.updates.get();
+            return dataAccess.findMetricsByTagName(tenantId, tagName)
+                    .collect(HashMap<String, Integer>::new,
+                            (counts, row) -> counts.merge(row.getString(VALUE_INDEX), 1, Integer::sum))
+                    .map(counts -> {
+                        Stats stats = new Stats(counts);
+                        // Updates made during the load might be missing, the statistics are refreshed on next use
+                        stats.loadedAt = tenant.updates.get() == updatesBefore ? loadStarted : 0;
+                        tenant.tags.put(tagName, stats);
+                        return stats.toCardinality(tagName);
+                    });
+        });
+    }
+
+    /**
+     * Estimates the amount of metrics matching the node. Never blocks, tags without statistics are loaded in the
+     * background and estimated as {@link #UNKNOWN} until then.
+     */
+    public long estimate(String tenantId, Node node) {
+        if (node instanceof And) {
+            long estimate = UNKNOWN;
+            for (Node operand : ((And) node).getOperands()) {
+                estimate = Math.min(estimate, estimate(tenantId, operand));
+            }
+            return estimate;
+        } else if (node instanceof Or) {
+            long estimate = 0;
+            for (Node operand : ((Or) node).getOperands()) {
+                long operandEstimate = estimate(tenantId, operand);
+                if (operandEstimate == UNKNOWN) {
+                    return UNKNOWN;
+                }
+                estimate += operandEstimate;
+            }
+            return estimate;
+        }
+
+        Predicate predicate = (Predicate) node;
+        Stats stats = getStats(tenantId, predicate.getTagName());
+        if (stats == null) {
+            return UNKNOWN;
+        }
+        return stats.estimate(predicate);
+    }
+
+    public void addTags(MetricId<?> id, Map<String, String> tags) {
+        Tenant tenant = tenants.get(id.getTenantId());
+        if (tenant != null) {
+            tenant.updates.incrementAndGet();
+            tags.forEach((tagName, tagValue) -> {
+                Stats stats = tenant.tags.get(tagName);
+                if (stats != null) {
+                    stats.add(tagValue);
+                }
+            });
+        }
+    }
+
+    public void deleteTags(MetricId<?> id, Map<String, String> tags) {
+        Tenant tenant = tenants.get(id.getTenantId());
+        if (tenant != null) {
+            tenant.updates.incrementAndGet();
+            tags.forEach((tagName, tagValue) -> {
+                Stats stats = tenant.tags.get(tagName);
+                if (stats != null) {
+                    stats.remove(tagValue);
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops the tenant's statistics, they're loaded again when the tags are queried.
+     */
+    public void invalidate(String tenantId) {
+        tenants.remove(tenantId);
+    }
+
+    public void clear() {
+        tenants.clear();
+    }
+
+    private Tenant getTenant(String tenantId) {
+        return tenants.computeIfAbsent(tenantId, id -> new Tenant());
+    }
+
+    private Stats getStats(String tenantId, String tagName) {
+        Tenant tenant = getTenant(tenantId);
+        Stats stats = tenant.tags.get(tagName);
+        if ((stats == null || stats.isExpired(refreshIntervalNanos)) && tenant.loading.add(tagName)) {
+            load(tenantId, tagName)
+                    .doOnTerminate(() -> tenant.loading.remove(tagName))
+                    .subscribe(cardinality -> {}, t -> logger.debug("Failed to load the statistics of tag ["
+                            + tagName + "] of tenant [" + tenantId + "]", t));
+        }
+        return stats;
+    }
+
+    private static class Tenant {
+        private final Map<String, Stats> tags = new ConcurrentHashMap<>();
+        private final Set<String> loading = ConcurrentHashMap.newKeySet();
+        private final AtomicLong updates = new AtomicLong();
+    }
+
+    /**
+     * Statistics of a single tag name. The distinct count is exact when loaded. Afterwards a value whose estimated
+     * frequency is zero is counted as a new distinct value, so collisions in the sketch can only make the distinct
+     * count smaller than it is. The sketch has room for a few times the loaded values to keep the collisions rare,
+     * once the added values fill it the statistics are due for a refresh.
+     */
+    private static class Stats {
+        private final FrequencySketch frequencies;
+        private long metrics;
+        private long distinctValues;
+        private volatile long loadedAt;
+
+        /**
+         * @param counts Amount of metrics of each value read from metrics_tags_idx
+         */
+        Stats(Map<String, Integer> counts) {
+            frequencies = new FrequencySketch(counts.size());
+            counts.forEach((tagValue, count) -> {
+                frequencies.add(tagValue, count);
+                metrics += count;
+            });
+            distinctValues = counts.size();
+        }
+
+        synchronized void add(String tagValue) {
+            if (frequencies.estimate(tagValue) == 0) {
+                distinctValues++;
+                if (frequencies.isFull(distinctValues)) {
+                    loadedAt = 0;
+                }
+            }
+            frequencies.add(tagValue, 1);
+            metrics++;
+        }
+
+        synchronized void remove(String tagValue) {
+            if (frequencies.estimate(tagValue) == 0) {
+                return;
+            }
+            frequencies.add(tagValue, -1);
+            if (frequencies.estimate(tagValue) == 0) {
+                distinctValues--;
+            }
+            metrics--;
+        }
+
+        synchronized long estimate(Predicate predicate) {
+            switch (predicate.getOperator()) {
+                case EXISTS:
+                    return metrics;
+                case NOT_EXISTS:
+                    // Depends on the amount of metrics without the tag
+                    return UNKNOWN;
+                case NOT_EQUAL:
+                    return Math.max(0, metrics - frequencies.estimate(predicate.getValue()));
+                default:
+                    break;
+            }
+            Set<String> literalValues = predicate.getLiteralValues();
+            if (literalValues == null) {
+                return metrics;
+            }
+            long estimate = 0;
+            for (String tagValue : literalValues) {
+                estimate += frequencies.estimate(tagValue);
+            }
+            return Math.min(metrics, estimate);
+        }
+
+        synchronized TagCardinality toCardinality(String tagName) {
+            return new TagCardinality(tagName, metrics, distinctValues);
+        }
+
+        boolean isExpired(long refreshIntervalNanos) {
+            return System.nanoTime() - loadedAt > refreshIntervalNanos;
+        }
+    }
+
+    /**
+     * Count-min sketch, the estimate is never smaller than the real frequency
+     */
+    static class FrequencySketch {
+        static final int MIN_WIDTH = 256;
+        static final int MAX_WIDTH = 1 << 18;
+        private static final int DEPTH = 4;
+        private static final int LOAD_FACTOR = 4;
+        private static final HashFunction HASH = Hashing.murmur3_128();
+
+        private final int[][] counters;
+        private final int mask;
+
+        /**
+         * @param distinctValues Expected amount of distinct values, the width is the next power of two with room for
+         *                       {@link #LOAD_FACTOR} times as many values, up to {@link #MAX_WIDTH}
+         */
+        FrequencySketch(long distinctValues) {
+            long needed = Math.max(MIN_WIDTH, distinctValues * LOAD_FACTOR);
+            long width = Math.min(MAX_WIDTH, Long.highestOneBit((needed - 1) * 2));
+            counters = new int[DEPTH][(int) width];
+            mask = (int) width - 1;
+        }
+
+        int getWidth() {
+            return mask + 1;
+        }
+
+        /**
+         * @return true if the amount of distinct values needs a wider sketch to keep the collisions rare
+         */
+        boolean isFull(long distinctValues) {
+            return getWidth() < MAX_WIDTH && distinctValues * LOAD_FACTOR > getWidth();
+        }
+
+        void add(String value, int amount) {
+            long hash = hash(value);
+            for (int i = 0; i < DEPTH; i++) {
+                counters[i][index(hash, i)] += amount;
+            }
+        }
+
+        long estimate(String value) {
+            long hash = hash(value);
+            long estimate = Long.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                estimate = Math.min(estimate, counters[i][index(hash, i)]);
+            }
+            return Math.max(0, estimate);
+        }
+
+        private static long hash(String value) {
+            return HASH.hashUnencodedChars(value).asLong();
+        }
+
+        /**
+         * Derives the row's index from the two halves of the hash
+         */
+        private int index(long hash, int row) {
+            int combined = (int) hash + row * (int) (hash >>> 32);
+            return combined & mask;
+        }
+    }
+}
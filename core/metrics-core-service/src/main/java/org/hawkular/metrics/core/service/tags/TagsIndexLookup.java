@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import java.util.Set;
+
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Predicate;
+
+import com.datastax.driver.core.Row;
+
+import rx.Observable;
+
+/**
+ * Reads the metrics_tags_idx rows that fulfill a tag predicate. The rows of a tag name are sorted by the tag value, so
+ * known values are read with exact lookups, values with a literal prefix are read as a range and the predicate is
+ * tested once per distinct value instead of once per row.
+ */
+final class TagsIndexLookup {
+
+    private static final int VALUE_INDEX = 3;
+
+    private TagsIndexLookup() {
+        // Utility class
+    }
+
+    /**
+     * @return Rows in order tenant_id, type, metric, tvalue
+     */
+    static Observable<Row> findMetrics(DataAccess dataAccess, String tenantId, Predicate predicate) {
+        String tagName = predicate.getTagName();
+        switch (predicate.getOperator()) {
+            case EXISTS:
+                return dataAccess.findMetricsByTagName(tenantId, tagName);
+            case NOT_EXISTS:
+                return Observable.empty();
+            default:
+                break;
+        }
+
+        Set<String> literalValues = predicate.getLiteralValues();
+        if (literalValues != null) {
+            return Observable.from(literalValues)
+                    .concatMap(tagValue -> dataAccess.findMetricsByTagNameValue(tenantId, tagName, tagValue));
+        }
+
+        String prefix = predicate.getLiteralPrefix();
+        String upperBound = RegexLiterals.upperBound(prefix);
+        Observable<Row> rows = upperBound != null
+                ? dataAccess.findMetricsByTagNameValueRange(tenantId, tagName, prefix, upperBound)
+                : dataAccess.findMetricsByTagName(tenantId, tagName);
+
+        return Observable.defer(() -> {
+            // Rows are ordered by the value, remembering the previous one is enough to test each value only once
+            String[] previousValue = new String[1];
+            boolean[] previousMatched = new boolean[1];
+            return rows.filter(row -> {
+                String tagValue = row.getString(VALUE_INDEX);
+                if (!tagValue.equals(previousValue[0])) {
+                    previousValue[0] = tagValue;
+                    previousMatched[0] = predicate.matches(tagValue);
+                }
+                return previousMatched[0];
+            });
+        });
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.transformers;
+
+import org.hawkular.metrics.core.service.compress.PointColumns;
+
+import com.datastax.driver.core.Row;
+
+import rx.Observable;
+
+/**
+ * Decodes data_compressed rows to primitive columns, one PointColumns per row in the order of the rows. Only the
+ * points inside [start, end) are kept. Consumers that only need the values (such as the statistics) can use the
+ * columns without creating a DataPoint per point.
+ */
+public class CompressedColumnsTransformer implements Observable.Transformer<Row, PointColumns> {
+
+    private long start;
+    private long end;
+
+    public CompressedColumnsTransformer(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public Observable<PointColumns> call(Observable<Row> rows) {
+        return rows
+                .map(r -> {
+                    long blockStart = r.getTimestamp("time").toInstant().toEpochMilli();
+                    return PointColumns.decompress(r.getBytes("c_value"), r.getBytes("tags"), blockStart, start,
+                            end);
+                })
+                .filter(columns -> !columns.isEmpty());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.transformers;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hawkular.metrics.core.service.compress.PointColumns;
+import org.hawkular.metrics.model.Buckets;
+import org.hawkular.metrics.model.NumericBucketPoint;
+import org.hawkular.metrics.model.Percentile;
+
+/**
+ * Accumulates primitive columns to the buckets in a single pass, without creating a DataPoint per value. Columns are
+ * expected to be sorted, so a block that lies entirely inside one bucket is added to that bucket without computing
+ * the bucket of each point. Values outside the buckets are ignored.
+ *
+ * Not thread-safe.
+ */
+public final class NumericColumnsCollector {
+
+    private final Buckets buckets;
+    private final List<Percentile> percentiles;
+    private final NumericDataPointCollector[] collectors;
+
+    public NumericColumnsCollector(Buckets buckets, List<Percentile> percentiles) {
+        this.buckets = buckets;
+        this.percentiles = percentiles;
+        this.collectors = new NumericDataPointCollector[buckets.getCount()];
+    }
+
+    public void increment(PointColumns columns) {
+        if (columns.isEmpty()) {
+            return;
+        }
+
+        int first = getIndex(columns.getTimestamp(0));
+        int last = getIndex(columns.getTimestamp(columns.size() - 1));
+
+        if (first == last && first >= 0) {
+            NumericDataPointCollector collector = getCollector(first);
+            for (int i = 0; i < columns.size(); i++) {
+                collector.increment(columns.getValue(i));
+            }
+            return;
+        }
+
+        for (int i = 0; i < columns.size(); i++) {
+            int index = getIndex(columns.getTimestamp(i));
+            if (index >= 0) {
+                getCollector(index).increment(columns.getValue(i));
+            }
+        }
+    }
+
+    public List<NumericBucketPoint> toBucketPoints() {
+        Map<Long, NumericBucketPoint> pointMap = new HashMap<>();
+        for (NumericDataPointCollector collector : collectors) {
+            if (collector != null) {
+                NumericBucketPoint bucketPoint = collector.toBucketPoint();
+                pointMap.put(bucketPoint.getStart(), bucketPoint);
+            }
+        }
+        return NumericBucketPoint.toList(pointMap, buckets);
+    }
+
+    private int getIndex(long timestamp) {
+        long offset = timestamp - buckets.getStart();
+        if (offset < 0 || offset >= buckets.getCount() * buckets.getStep()) {
+            return -1;
+        }
+        return (int) (offset / buckets.getStep());
+    }
+
+    private NumericDataPointCollector getCollector(int index) {
+        NumericDataPointCollector collector = collectors[index];
+        if (collector == null) {
+            collector = new NumericDataPointCollector(buckets, index, percentiles);
+            collectors[index] = collector;
+        }
+        return collector;
+    }
+}
@@ -24,41 +24,70 @@ import java.util.function.Function;
 import org.apache.commons.math3.stat.descriptive.moment.Mean;
 import org.apache.commons.math3.stat.descriptive.rank.Max;
 import org.apache.commons.math3.stat.descriptive.rank.Min;
-import org.apache.commons.math3.stat.descriptive.rank.PSquarePercentile;
 import org.apache.commons.math3.stat.descriptive.summary.Sum;
 import org.hawkular.metrics.core.service.PercentileWrapper;
+import org.hawkular.metrics.core.service.SketchPercentileWrapper;
+import org.hawkular.metrics.core.service.rollup.QuantileSketch;
 import org.hawkular.metrics.model.Buckets;
 import org.hawkular.metrics.model.DataPoint;
 import org.hawkular.metrics.model.NumericBucketPoint;
 import org.hawkular.metrics.model.Percentile;
 
 /**
- * Accumulates numeric data points to produce a {@link NumericBucketPoint}.
+ * Accumulates numeric data points to produce a {@link NumericBucketPoint}. A collector is not thread-safe, the data
+ * points of a bucket are accumulated sequentially.
  *
  * @author Thomas Segismont
  */
 public final class NumericDataPointCollector {
 
+    private static Function<Double, PercentileWrapper> percentileFactory = SketchPercentileWrapper::new;
+
     /**
-     * This is a test hook. See {@link Percentile} for details.
+     * True when the default percentile implementation is in use. The collectors then compute all the percentiles of
+     * a bucket from a single quantile sketch.
      */
-    public static Function<Double, PercentileWrapper> createPercentile = p -> new PercentileWrapper() {
+    private static boolean sharedSketch = true;
 
-        PSquarePercentile percentile = new PSquarePercentile(p);
+    /**
+     * This is a test hook. See {@link Percentile} for details.
+     *
+     * @param factory Percentile implementation, null restores the default one
+     */
+    public static void setPercentileFactory(Function<Double, PercentileWrapper> factory) {
+        if (factory == null) {
+            percentileFactory = SketchPercentileWrapper::new;
+            sharedSketch = true;
+        } else {
+            percentileFactory = factory;
+            sharedSketch = false;
+        }
+    }
 
-        // Note that these methods need to be synchronized because PSquarePecentile is not synchronized and we need to
-        // support concurrent access.
+    public static PercentileWrapper createPercentile(double percentile) {
+        return percentileFactory.apply(percentile);
+    }
 
-        @Override
-        public synchronized void addValue(double value) {
-            percentile.increment(value);
+    /**
+     * Creates the percentiles of a single collector, the median last
+     *
+     * @param sketch receives the values of all the percentiles, null if the test hook has replaced the percentile
+     *               implementation
+     */
+    static List<PercentileWrapper> createPercentiles(List<Percentile> percentilesList, QuantileSketch sketch) {
+        List<PercentileWrapper> percentiles = new ArrayList<>(percentilesList.size() + 1);
+        Function<Double, PercentileWrapper> factory = sketch == null ? percentileFactory
+                : p -> new SketchPercentileWrapper(sketch, p);
+        for (Percentile p : percentilesList) {
+            percentiles.add(factory.apply(p.getQuantile()));
         }
+        percentiles.add(factory.apply(50.0)); // Important to be the last one
+        return percentiles;
+    }
 
-        @Override
-        public synchronized double getResult() {
-            return percentile.getResult();
-        }
-    };
+    static QuantileSketch createSharedSketch() {
+        return sharedSketch ? new QuantileSketch() : null;
+    }
 
     private final Buckets buckets;
     private final int bucketIndex;
@@ -71,23 +100,36 @@ public final class NumericDataPointCollector {
     private List<PercentileWrapper> percentiles;
     private List<Percentile> percentileList;
 
+    /**
+     * Shared by the percentile wrappers, null if the test hook has replaced the percentile implementation
+     */
+    private final QuantileSketch sketch;
+
     public NumericDataPointCollector(Buckets buckets, int bucketIndex, List<Percentile> percentilesList) {
         this.buckets = buckets;
         this.bucketIndex = bucketIndex;
-        this.percentiles = new ArrayList<>(percentilesList.size() + 1);
         this.percentileList = percentilesList;
-        percentilesList.stream().forEach(d -> percentiles.add(createPercentile.apply(d.getQuantile())));
-        percentiles.add(createPercentile.apply(50.0)); // Important to be the last one
+        this.sketch = createSharedSketch();
+        this.percentiles = createPercentiles(percentilesList, sketch);
     }
 
     public void increment(DataPoint<? extends Number> dataPoint) {
-        Number value = dataPoint.getValue();
-        min.increment(value.doubleValue());
-        average.increment(value.doubleValue());
-        max.increment(value.doubleValue());
-        sum.increment(value.doubleValue());
+        increment(dataPoint.getValue().doubleValue());
+    }
+
+    public void increment(double value) {
+        min.increment(value);
+        average.increment(value);
+        max.increment(value);
+        sum.increment(value);
         samples++;
-        percentiles.stream().forEach(p -> p.addValue(value.doubleValue()));
+        if (sketch != null) {
+            sketch.add(value);
+        } else {
+            for (int i = 0; i < percentiles.size(); i++) {
+                percentiles.get(i).addValue(value);
+            }
+        }
     }
 
     public NumericBucketPoint toBucketPoint() {
@@ -17,7 +17,8 @@
 
 package org.hawkular.metrics.core.service.transformers;
 
-import static org.hawkular.metrics.core.service.transformers.NumericDataPointCollector.createPercentile;
+import static org.hawkular.metrics.core.service.transformers.NumericDataPointCollector.createPercentiles;
+import static org.hawkular.metrics.core.service.transformers.NumericDataPointCollector.createSharedSketch;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -28,6 +29,7 @@ import org.apache.commons.math3.stat.descriptive.rank.Max;
 import org.apache.commons.math3.stat.descriptive.rank.Min;
 import org.apache.commons.math3.stat.descriptive.summary.Sum;
 import org.hawkular.metrics.core.service.PercentileWrapper;
+import org.hawkular.metrics.core.service.rollup.QuantileSketch;
 import org.hawkular.metrics.model.DataPoint;
 import org.hawkular.metrics.model.Percentile;
 import org.hawkular.metrics.model.TaggedBucketPoint;
@@ -47,13 +49,14 @@ public class TaggedDataPointCollector {
     private Sum sum = new Sum();
     private List<PercentileWrapper> percentiles;
     private List<Percentile> percentileList;
+    // All the percentiles are computed from this sketch, null if the test hook has replaced the implementation
+    private final QuantileSketch sketch;
 
     public TaggedDataPointCollector(Map<String, String> tags, List<Percentile> percentilesList) {
         this.tags = tags;
-        this.percentiles = new ArrayList<>(percentilesList.size() + 1);
         this.percentileList = percentilesList;
-        percentilesList.stream().forEach(d -> percentiles.add(createPercentile.apply(d.getQuantile())));
-        percentiles.add(createPercentile.apply(50.0)); // Important to be the last one
+        this.sketch = createSharedSketch();
+        this.percentiles = createPercentiles(percentilesList, sketch);
     }
 
     public void increment(DataPoint<? extends Number> dataPoint) {
@@ -63,7 +66,11 @@ public class TaggedDataPointCollector {
         max.increment(value.doubleValue());
         sum.increment(value.doubleValue());
         samples++;
-        percentiles.stream().forEach(p -> p.addValue(value.doubleValue()));
+        if (sketch != null) {
+            sketch.add(value.doubleValue());
+        } else {
+            percentiles.stream().forEach(p -> p.addValue(value.doubleValue()));
+        }
     }
 
     public TaggedBucketPoint toBucketPoint() {
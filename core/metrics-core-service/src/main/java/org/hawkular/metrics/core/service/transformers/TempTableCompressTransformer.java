@@ -16,82 +16,67 @@
  */
 package org.hawkular.metrics.core.service.transformers;
 
-import java.nio.ByteBuffer;
-import java.util.EnumSet;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.hawkular.metrics.core.service.compress.CompressedPointContainer;
-import org.hawkular.metrics.core.service.compress.CompressorHeader;
-import org.hawkular.metrics.core.service.compress.TagsSerializer;
+import org.hawkular.metrics.core.service.compress.PointColumns;
 import org.hawkular.metrics.model.AvailabilityType;
+import org.hawkular.metrics.model.MetricType;
 
 import com.datastax.driver.core.Row;
 
-import fi.iki.yak.ts.compression.gorilla.ByteBufferBitOutput;
-import fi.iki.yak.ts.compression.gorilla.Compressor;
 import rx.Observable;
 
 /**
- * DataPointCompressor for the type 01 (plain Gorilla)
+ * Compresses a metric's temporary table rows of the block. The rows are collected to columns and compressed with the
+ * codec of the metric's type, see {@link PointColumns#compress(long, MetricType, boolean)}.
  *
  * @author Michael Burman
  */
 public class TempTableCompressTransformer implements Observable.Transformer<Row, CompressedPointContainer> {
 
     private long timeslice;
+    private boolean integerCodecs;
 
-    public TempTableCompressTransformer(long timeslice) {
+    public TempTableCompressTransformer(long timeslice, boolean integerCodecs) {
         this.timeslice = timeslice;
+        this.integerCodecs = integerCodecs;
     }
 
     @Override
     public Observable<CompressedPointContainer> call(Observable<Row> dataRow) {
-        ByteBufferBitOutput out = new ByteBufferBitOutput();
+        AtomicReference<MetricType<?>> metricType = new AtomicReference<>();
 
-        byte gorillaHeader = CompressorHeader.getHeader(CompressorHeader.Compressor.GORILLA, EnumSet.noneOf
-                (CompressorHeader.GorillaSettings.class));
-        out.getByteBuffer().put(gorillaHeader);
-
-        Compressor compressor = new Compressor(timeslice, out);
-        TagsSerializer tagsSerializer = new TagsSerializer(timeslice);
-
-        return dataRow.collect(CompressedPointContainer::new,
-                (container, r) -> {
-                    // "SELECT tenant_id, type, metric, time, n_value, availability, l_value, tags FROM %s " +
-                    long timestamp = r.getTimestamp(3).getTime(); // Check validity
-                    switch(r.getByte(1)) {
-                        case 0: // GAUGE
-                            compressor.addValue(timestamp, r.getDouble(4));
-                            break;
-                        case 1: // AVAILABILITY
-                            // TODO Update to GORILLA_V2 to fix these - no point storing as FP
-                            compressor.addValue(timestamp, ((Byte) (AvailabilityType.fromBytes(r.getBytes(5))
-                                    .getCode())).doubleValue());
-                            break;
-                        case 2: // COUNTER
-                            // TODO Update to GORILLA_V2 to fix these - no point storing as FP
-                            compressor.addValue(timestamp, ((Long) r.getLong(6)).doubleValue());
-                            break;
-                        default:
-                            // Not supported yet
-                            throw new RuntimeException("Metric of type " + r.getByte(1) + " is not supported" +
-                                    " in compression");
-                    }
-                    Map<String, String> tags = r.getMap(7, String.class, String.class);
-                    if(tags != null && !tags.isEmpty()) {
-                        tagsSerializer.addDataPointTags(timestamp, tags);
-                    }
+        return dataRow.collect(PointColumns::new,
+                (columns, r) -> {
+                    addRow(columns, r);
+                    metricType.compareAndSet(null, MetricType.fromCode(r.getByte(1)));
                 })
-                .doOnNext(cpc -> {
-                    compressor.close();
-                    // Update to use long words
-                    ByteBuffer valueBuffer = (ByteBuffer) out.getByteBuffer().flip();
-                    ByteBuffer tagsBuffer = (ByteBuffer) tagsSerializer.getByteBuffer().flip();
-                    cpc.setValueBuffer(valueBuffer);
-                    if(tagsBuffer.limit() > 1) {
-                        // Exclude header
-                        cpc.setTagsBuffer(tagsBuffer);
-                    }
-                });
+                .map(columns -> columns.compress(timeslice, metricType.get(), integerCodecs));
+    }
+
+    /**
+     * Adds the point of a temporary table scan row to the columns
+     */
+    public static void addRow(PointColumns columns, Row r) {
+        // "SELECT tenant_id, type, metric, time, n_value, availability, l_value, tags FROM %s " +
+        long timestamp = r.getTimestamp(3).getTime(); // Check validity
+        Map<String, String> tags = r.getMap(7, String.class, String.class);
+        switch(r.getByte(1)) {
+            case 0: // GAUGE
+                columns.add(timestamp, r.getDouble(4), tags);
+                break;
+            case 1: // AVAILABILITY
+                columns.add(timestamp, AvailabilityType.fromBytes(r.getBytes(5)).getCode(), tags);
+                break;
+            case 2: // COUNTER
+                columns.add(timestamp, r.getLong(6), tags);
+                break;
+            default:
+                // Not supported yet
+                throw new RuntimeException("Metric of type " + r.getByte(1) + " is not supported" +
+                        " in compression");
+        }
     }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.compress;
+
+import static java.util.Arrays.asList;
+
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.core.service.DelegatingDataAccess;
+import org.hawkular.metrics.core.service.Order;
+import org.hawkular.metrics.core.service.compress.CompressionPhase;
+import org.hawkular.metrics.core.service.metrics.BaseMetricsITest;
+import org.hawkular.metrics.datetime.DateTimeService;
+import org.hawkular.metrics.model.DataPoint;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.joda.time.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.TokenRange;
+
+import rx.Observable;
+
+/**
+ * Tests the checkpointed token range compression of {@link org.hawkular.metrics.core.service.MetricsService}
+ */
+public class CompressRangesITest extends BaseMetricsITest {
+
+    private static final int METRICS = 20;
+
+    private long blockStart;
+    private String tenantId;
+    private Set<TokenRange> ranges;
+
+    /**
+     * Token ranges read from the temporary table by the current run
+     */
+    private Set<TokenRange> scanned;
+
+    /**
+     * The range recorded by this insert fails, 0 for none
+     */
+    private AtomicInteger failingRecord;
+
+    @BeforeMethod
+    public void initBlock() {
+        ZonedDateTime block = Instant.ofEpochMilli(DateTimeService.getTimeSlice(
+                DateTimeService.now.get().minusDays(2), Duration.standardHours(2)).getMillis()).atZone(ZoneOffset.UTC);
+        blockStart = block.toInstant().toEpochMilli();
+        tenantId = "compress-ranges-" + blockStart;
+        metricsService.verifyAndCreateTempTables(block, block.plusHours(2)).await();
+
+        for (int i = 0; i < METRICS; i++) {
+            Metric<Double> metric = new Metric<>(new MetricId<>(tenantId, GAUGE, "m" + i), asList(
+                    new DataPoint<>(blockStart + 1000, 1.1),
+                    new DataPoint<>(blockStart + 2000, 2.2)));
+            doAction(() -> metricsService.addDataPoints(GAUGE, Observable.just(metric)));
+        }
+
+        ranges = metricsService.getTokenRanges();
+        scanned = ConcurrentHashMap.newKeySet();
+        failingRecord = new AtomicInteger();
+        AtomicInteger records = new AtomicInteger();
+        metricsService.setDataAccess(new DelegatingDataAccess(dataAccess) {
+            @Override
+            public Observable<Row> findDataFromBucket(long timestamp, TokenRange range, int pageSize) {
+                scanned.add(range);
+                return super.findDataFromBucket(timestamp, range, pageSize);
+            }
+
+            @Override
+            public Observable<ResultSet> insertCompressedRange(long timeslice, byte phase, TokenRange range) {
+                if (records.incrementAndGet() == failingRecord.get()) {
+                    return Observable.error(new RuntimeException("Recording the range failed"));
+                }
+                return super.insertCompressedRange(timeslice, phase, range);
+            }
+        });
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void finishBlock() {
+        metricsService.setDataAccess(dataAccess);
+        metricsService.finishCompression(blockStart, CompressionPhase.TEMP).await();
+        metricsService.finishCompression(blockStart, CompressionPhase.WAL).await();
+    }
+
+    @Test
+    public void resumeCompressesOnlyMissingRanges() {
+        failingRecord.set(3);
+        try {
+            metricsService.compressRanges(blockStart, CompressionPhase.TEMP, ranges, 1000, 1).toBlocking()
+                    .lastOrDefault(null);
+        } catch (RuntimeException e) {
+            // Expected, two ranges were recorded before the failure
+        }
+        Set<TokenRange> recorded = getRecorded(CompressionPhase.TEMP);
+        assertEquals(recorded.size(), 2);
+
+        scanned.clear();
+        metricsService.compressRanges(blockStart, CompressionPhase.TEMP, ranges, 1000, 1).toBlocking()
+                .lastOrDefault(null);
+
+        Set<TokenRange> missing = new HashSet<>(ranges);
+        missing.removeAll(recorded);
+        assertEquals(scanned, missing);
+        assertEquals(getRecorded(CompressionPhase.TEMP), ranges);
+        assertAllCompressed();
+    }
+
+    @Test
+    public void redoRangesRecordedUnderAnotherTopology() {
+        // A range recorded before the ring changed covers only a part of a current range
+        TokenRange range = ranges.iterator().next();
+        List<TokenRange> halves = range.splitEvenly(2);
+        dataAccess.insertCompressedRange(blockStart, CompressionPhase.TEMP.getCode(), halves.get(0)).toBlocking()
+                .lastOrDefault(null);
+
+        metricsService.compressRanges(blockStart, CompressionPhase.TEMP, ranges, 1000, 2).toBlocking()
+                .lastOrDefault(null);
+
+        assertEquals(scanned, ranges);
+        assertTrue(getRecorded(CompressionPhase.TEMP).containsAll(ranges));
+        assertAllCompressed();
+    }
+
+    @Test
+    public void forgetRecordedRangesOnceBlockIsFinished() {
+        metricsService.compressBlock(blockStart, 1000, 2).await();
+
+        assertFalse(ranges.isEmpty());
+        assertTrue(getRecorded(CompressionPhase.TEMP).isEmpty());
+        assertTrue(getRecorded(CompressionPhase.WAL).isEmpty());
+        assertAllCompressed();
+    }
+
+    private Set<TokenRange> getRecorded(CompressionPhase phase) {
+        return new HashSet<>(dataAccess.findCompressedRanges(blockStart, phase.getCode()).toList().toBlocking()
+                .single());
+    }
+
+    private void assertAllCompressed() {
+        for (int i = 0; i < METRICS; i++) {
+            MetricId<Double> id = new MetricId<>(tenantId, GAUGE, "m" + i);
+            List<Row> rows = dataAccess.findCompressedData(id, blockStart, blockStart + 1, 0, Order.ASC).toList()
+                    .toBlocking().single();
+            assertEquals(rows.size(), 1, "Expected the block of " + id + " to be compressed");
+        }
+    }
+}
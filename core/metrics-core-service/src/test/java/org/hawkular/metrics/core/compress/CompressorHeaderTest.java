@@ -47,4 +47,16 @@ public class CompressorHeaderTest {
         assertEquals(1, compressorSettings.size());
         assertTrue(compressorSettings.contains(CompressorHeader.GorillaSettings.SECOND_PRECISION));
     }
+
+    @Test
+    public void testHeaderWithoutSettings() {
+        byte header = CompressorHeader.getHeader(CompressorHeader.Compressor.DELTA_OF_DELTA,
+                EnumSet.noneOf(CompressorHeader.NoSettings.class));
+
+        assertEquals((byte) 0x30, header);
+
+        CompressorHeader.Compressor compressor = CompressorHeader.getCompressor(header);
+        assertEquals(CompressorHeader.Compressor.DELTA_OF_DELTA, compressor);
+        assertTrue(CompressorHeader.getSettings(compressor.getSettingsClass(), header).isEmpty());
+    }
 }
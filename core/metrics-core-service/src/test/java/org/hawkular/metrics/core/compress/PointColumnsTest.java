@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.compress;
+
+import static org.hawkular.metrics.model.MetricType.AVAILABILITY;
+import static org.hawkular.metrics.model.MetricType.COUNTER;
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.hawkular.metrics.core.service.Order;
+import org.hawkular.metrics.core.service.compress.CompressedPointContainer;
+import org.hawkular.metrics.core.service.compress.CompressorHeader;
+import org.hawkular.metrics.core.service.compress.PointColumns;
+import org.hawkular.metrics.model.AvailabilityType;
+import org.hawkular.metrics.model.DataPoint;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class PointColumnsTest {
+
+    private static final long BLOCK_START = 1483228800000L; // 2017-01-01T00:00:00Z
+
+    @Test
+    public void sortKeepsLastWrittenValue() {
+        PointColumns columns = new PointColumns(2);
+        columns.add(BLOCK_START + 3000, 3.0);
+        columns.add(BLOCK_START + 1000, 1.0);
+        columns.add(BLOCK_START + 2000, 2.0);
+        columns.add(BLOCK_START + 1000, 1.5);
+
+        columns.sort();
+
+        assertEquals(3, columns.size());
+        assertEquals(BLOCK_START + 1000, columns.getTimestamp(0));
+        assertEquals(1.5, columns.getValue(0), 0);
+        assertEquals(BLOCK_START + 2000, columns.getTimestamp(1));
+        assertEquals(BLOCK_START + 3000, columns.getTimestamp(2));
+    }
+
+    @Test
+    public void writeAheadLogRoundTrip() {
+        PointColumns columns = new PointColumns();
+        for (int i = 0; i < 100; i++) {
+            columns.add(BLOCK_START + i * 10000, i * 1.1);
+        }
+        columns.add(BLOCK_START + 50, 42.0, ImmutableMap.of("host", "a"));
+
+        assertNull(new PointColumns().encodeTags());
+
+        PointColumns decoded = PointColumns.decode(columns.sort().encodeValues(), columns.encodeTags());
+
+        assertEquals(columns.size(), decoded.size());
+        for (int i = 0; i < columns.size(); i++) {
+            assertEquals(columns.getTimestamp(i), decoded.getTimestamp(i));
+            assertEquals(columns.getValue(i), decoded.getValue(i), 0);
+            assertEquals(columns.getTags(i), decoded.getTags(i));
+        }
+        assertEquals("a", decoded.getTags(1).get("host"));
+    }
+
+    @Test
+    public void compressAndMergeWithExistingBlock() {
+        PointColumns existing = new PointColumns();
+        existing.add(BLOCK_START + 1000, 1.0);
+        existing.add(BLOCK_START + 3000, 3.0, ImmutableMap.of("a", "b"));
+
+        CompressedPointContainer cpc = existing.compress(BLOCK_START);
+
+        PointColumns merged = PointColumns.decompress(cpc.getValueBuffer(), cpc.getTagsBuffer(), BLOCK_START);
+        assertEquals(2, merged.size());
+
+        PointColumns wal = new PointColumns();
+        wal.add(BLOCK_START + 2000, 2.0);
+        wal.add(BLOCK_START + 3000, 4.0);
+        merged.addAll(wal);
+
+        List<DataPoint<Double>> dataPoints = PointColumns.decompress(merged.compress(BLOCK_START).getValueBuffer(),
+                null, BLOCK_START).toDataPoints(GAUGE, BLOCK_START, BLOCK_START + 10000, Order.DESC);
+
+        assertEquals(3, dataPoints.size());
+        assertEquals(new DataPoint<>(BLOCK_START + 3000, 4.0), dataPoints.get(0));
+        assertEquals(new DataPoint<>(BLOCK_START + 2000, 2.0), dataPoints.get(1));
+        assertEquals(new DataPoint<>(BLOCK_START + 1000, 1.0), dataPoints.get(2));
+        assertTrue(dataPoints.get(0).getTags().isEmpty());
+    }
+
+    @Test
+    public void validateExternalBlock() {
+        long blockEnd = BLOCK_START + 7200000;
+        PointColumns columns = new PointColumns();
+        columns.add(BLOCK_START, 1.0);
+        columns.add(BLOCK_START + 1000, 2.0);
+        ByteBuffer block = columns.compress(BLOCK_START).getValueBuffer();
+
+        assertEquals(BLOCK_START, PointColumns.getBlockStart(block));
+        assertEquals(2, PointColumns.decompressBlock(block, BLOCK_START, blockEnd).size());
+
+        // Points outside the block
+        PointColumns late = new PointColumns();
+        late.add(blockEnd, 1.0);
+        ByteBuffer lateBlock = late.compress(BLOCK_START).getValueBuffer();
+        try {
+            PointColumns.decompressBlock(lateBlock, BLOCK_START, blockEnd);
+            fail("Points outside the block should be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Truncated stream
+        ByteBuffer truncated = (ByteBuffer) block.duplicate().limit(block.limit() - 4);
+        try {
+            PointColumns.decompressBlock(truncated, BLOCK_START, blockEnd);
+            fail("Truncated block should be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Unknown compressor
+        ByteBuffer unknown = ByteBuffer.allocate(block.remaining()).put(block.duplicate());
+        unknown.put(0, (byte) 0x70).flip();
+        try {
+            PointColumns.getBlockStart(unknown);
+            fail("Unknown compressor should be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void decompressRangeAndIterateInOrder() {
+        PointColumns columns = new PointColumns();
+        for (int i = 0; i < 10; i++) {
+            columns.add(BLOCK_START + i * 1000, i);
+        }
+        columns.add(BLOCK_START + 5000, 5.0, ImmutableMap.of("a", "b"));
+        CompressedPointContainer cpc = columns.compress(BLOCK_START);
+
+        PointColumns range = PointColumns.decompress(cpc.getValueBuffer(), cpc.getTagsBuffer(), BLOCK_START,
+                BLOCK_START + 3000, BLOCK_START + 6000);
+        assertEquals(3, range.size());
+
+        List<DataPoint<Double>> desc = new ArrayList<>();
+        range.dataPoints(GAUGE, Order.DESC).forEach(desc::add);
+        assertEquals(3, desc.size());
+        assertEquals(new DataPoint<>(BLOCK_START + 5000, 5.0, ImmutableMap.of("a", "b")), desc.get(0));
+        assertEquals(new DataPoint<>(BLOCK_START + 3000, 3.0), desc.get(2));
+
+        Iterator<DataPoint<Double>> asc = range.dataPoints(GAUGE, Order.ASC).iterator();
+        assertEquals(BLOCK_START + 3000, asc.next().getTimestamp());
+        assertEquals(BLOCK_START + 4000, asc.next().getTimestamp());
+        assertEquals(BLOCK_START + 5000, asc.next().getTimestamp());
+        assertFalse(asc.hasNext());
+    }
+
+    @Test
+    public void typedValues() {
+        PointColumns columns = new PointColumns();
+        columns.add(AVAILABILITY, new DataPoint<>(BLOCK_START, AvailabilityType.DOWN));
+        assertEquals(AvailabilityType.DOWN, PointColumns.fromDouble(AVAILABILITY, columns.getValue(0)));
+
+        columns = new PointColumns();
+        columns.add(COUNTER, new DataPoint<>(BLOCK_START, 123456789L));
+        List<DataPoint<Long>> counters = columns.toDataPoints(COUNTER, BLOCK_START, BLOCK_START + 1, Order.ASC);
+        assertEquals(Long.valueOf(123456789L), counters.get(0).getValue());
+    }
+
+    @Test
+    public void integerCodecsPerType() {
+        PointColumns counters = new PointColumns();
+        PointColumns availabilities = new PointColumns();
+        for (int i = 0; i < 720; i++) {
+            counters.add(BLOCK_START + i * 10000, 1000000 + i * 15);
+            availabilities.add(BLOCK_START + i * 10000, i < 700 ? AvailabilityType.UP.getCode() :
+                    AvailabilityType.DOWN.getCode());
+        }
+        counters.add(BLOCK_START + 5, 7.0, ImmutableMap.of("a", "b"));
+
+        CompressedPointContainer counterBlock = counters.compress(BLOCK_START, COUNTER, true);
+        ByteBuffer availabilityBlock = availabilities.compress(BLOCK_START, AVAILABILITY, true).getValueBuffer();
+
+        assertEquals(CompressorHeader.Compressor.DELTA_OF_DELTA,
+                CompressorHeader.getCompressor(counterBlock.getValueBuffer().get(0)));
+        assertEquals(CompressorHeader.Compressor.RUN_LENGTH, CompressorHeader.getCompressor(availabilityBlock.get(0)));
+        assertTrue(counterBlock.getValueBuffer().remaining() <
+                counters.compress(BLOCK_START).getValueBuffer().remaining());
+        assertTrue(availabilityBlock.remaining() < availabilities.compress(BLOCK_START).getValueBuffer().remaining());
+        assertEquals(BLOCK_START, PointColumns.getBlockStart(counterBlock.getValueBuffer()));
+
+        PointColumns decoded = PointColumns.decompress(counterBlock.getValueBuffer(), counterBlock.getTagsBuffer(),
+                BLOCK_START);
+        assertEquals(counters.size(), decoded.size());
+        for (int i = 0; i < counters.size(); i++) {
+            assertEquals(counters.getTimestamp(i), decoded.getTimestamp(i));
+            assertEquals(counters.getValue(i), decoded.getValue(i), 0);
+        }
+        assertEquals("b", decoded.getTags(1).get("a"));
+
+        PointColumns range = PointColumns.decompress(availabilityBlock, null, BLOCK_START,
+                BLOCK_START + 6985000, BLOCK_START + 7005000);
+        assertEquals(2, range.size());
+        assertEquals(AvailabilityType.UP.getCode(), range.getValue(0), 0);
+        assertEquals(AvailabilityType.DOWN.getCode(), range.getValue(1), 0);
+    }
+
+    @Test
+    public void nonIntegerValuesFallBackToGorilla() {
+        PointColumns columns = new PointColumns();
+        columns.add(BLOCK_START, 1.5);
+        ByteBuffer block = columns.compress(BLOCK_START, COUNTER, true).getValueBuffer();
+
+        assertEquals(CompressorHeader.Compressor.GORILLA, CompressorHeader.getCompressor(block.get(0)));
+        assertEquals(1.5, PointColumns.decompress(block, null, BLOCK_START).getValue(0), 0);
+    }
+
+    @Test
+    public void integerCodecsAreDisabledByDefault() {
+        PointColumns counters = new PointColumns();
+        PointColumns availabilities = new PointColumns();
+        counters.add(BLOCK_START, 1.0);
+        availabilities.add(BLOCK_START, AvailabilityType.UP.getCode());
+
+        assertEquals(CompressorHeader.Compressor.GORILLA, CompressorHeader.getCompressor(
+                counters.compress(BLOCK_START, COUNTER, false).getValueBuffer().get(0)));
+        assertEquals(CompressorHeader.Compressor.GORILLA, CompressorHeader.getCompressor(
+                availabilities.compress(BLOCK_START, AVAILABILITY, false).getValueBuffer().get(0)));
+    }
+
+    @Test
+    public void longRangeBoundsOfDeltaOfDelta() {
+        // Long.MAX_VALUE is 2^63 as a double, which is out of the long range
+        PointColumns overflow = new PointColumns();
+        overflow.add(BLOCK_START, (double) Long.MAX_VALUE);
+        ByteBuffer block = overflow.compress(BLOCK_START, COUNTER, true).getValueBuffer();
+        assertEquals(CompressorHeader.Compressor.GORILLA, CompressorHeader.getCompressor(block.get(0)));
+        assertEquals(0x1p63, PointColumns.decompress(block, null, BLOCK_START).getValue(0), 0);
+
+        PointColumns bounds = new PointColumns();
+        bounds.add(BLOCK_START, -0x1p63);
+        bounds.add(BLOCK_START + 1, Math.nextDown(0x1p63));
+        block = bounds.compress(BLOCK_START, COUNTER, true).getValueBuffer();
+        assertEquals(CompressorHeader.Compressor.DELTA_OF_DELTA, CompressorHeader.getCompressor(block.get(0)));
+        PointColumns decoded = PointColumns.decompress(block, null, BLOCK_START);
+        assertEquals(-0x1p63, decoded.getValue(0), 0);
+        assertEquals(Math.nextDown(0x1p63), decoded.getValue(1), 0);
+    }
+}
@@ -17,8 +17,11 @@
 package org.hawkular.metrics.core.compress;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 import org.hawkular.metrics.core.service.compress.TagsDeserializer;
@@ -46,8 +49,6 @@ public class TagsMapSerializingTest {
 
         ByteBuffer serializedTags = serializer.getByteBuffer();
 
-        serializedTags.flip();
-
         TagsDeserializer deserializer = new TagsDeserializer(timeSlice);
         Map<Long, Map<String, String>> deTags = deserializer.deserialize(serializedTags);
 
@@ -71,8 +72,6 @@ public class TagsMapSerializingTest {
 
         ByteBuffer serializedTags = serializer.getByteBuffer();
 
-        serializedTags.flip();
-
         TagsDeserializer deserializer = new TagsDeserializer(timeSlice);
         Map<Long, Map<String, String>> deTags = deserializer.deserialize(serializedTags);
 
@@ -86,4 +85,47 @@ public class TagsMapSerializingTest {
         assertEquals("b", abMap.get("a"));
         assertEquals("d", abMap.get("c"));
     }
+
+    @Test
+    public void repeatedTagsAreStoredOnce() {
+        long timeSlice = DateTimeService.getTimeSlice(DateTimeService.now.get().getMillis(), Duration.standardHours(2));
+        Map<String, String> podTags = ImmutableMap.of("pod_name", "hawkular-metrics-1-abcde", "namespace",
+                "openshift-infra");
+
+        TagsSerializer single = new TagsSerializer(timeSlice);
+        single.addDataPointTags(timeSlice, podTags);
+        int singleSize = single.getByteBuffer().remaining();
+
+        TagsSerializer serializer = new TagsSerializer(timeSlice);
+        for (int i = 0; i < 720; i++) {
+            serializer.addDataPointTags(timeSlice + i * 10000, podTags);
+        }
+        serializer.addDataPointTags(timeSlice + 7200000 - 1, ImmutableMap.of("namespace", "default"));
+
+        ByteBuffer serializedTags = serializer.getByteBuffer();
+        // Each point takes a timestamp delta and a tag set reference
+        assertTrue(serializedTags.remaining() < singleSize + 721 * 3);
+
+        TagsDeserializer.BlockTags blockTags = new TagsDeserializer(timeSlice).deserializeLazy(serializedTags);
+        assertEquals(podTags, blockTags.get(timeSlice + 350 * 10000));
+        assertEquals("default", blockTags.get(timeSlice + 7200000 - 1).get("namespace"));
+        assertNull(blockTags.get(timeSlice + 1));
+    }
+
+    @Test
+    public void simpleSerializerIsReadable() {
+        long timeSlice = DateTimeService.getTimeSlice(DateTimeService.now.get().getMillis(), Duration.standardHours(2));
+
+        // Format of the earlier releases: delta, tag count and length prefixed key / value pairs
+        ByteBuffer serializedTags = ByteBuffer.allocate(64);
+        serializedTags.put(TagsSerializer.SIMPLE_SERIALIZER);
+        serializedTags.putInt(20).put((byte) 1).put((byte) 1).put((byte) 1);
+        serializedTags.put("a".getBytes(StandardCharsets.UTF_8)).put("b".getBytes(StandardCharsets.UTF_8));
+        serializedTags.flip();
+
+        Map<Long, Map<String, String>> deTags = new TagsDeserializer(timeSlice).deserialize(serializedTags);
+
+        assertEquals(1, deTags.size());
+        assertEquals("b", deTags.get(timeSlice + 20).get("a"));
+    }
 }
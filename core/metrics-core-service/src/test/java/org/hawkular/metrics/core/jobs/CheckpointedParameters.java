@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.jobs;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hawkular.metrics.scheduler.api.JobDetails;
+import org.hawkular.metrics.scheduler.api.JobParameters;
+
+import com.google.common.collect.ImmutableMap;
+
+import rx.Completable;
+
+/**
+ * Job parameters kept in memory for running a job's checkpoints against failures. The parameters are copied to
+ * {@link #getSaved()} on each save, saving fails from the given save on.
+ */
+class CheckpointedParameters implements JobParameters {
+
+    private final Map<String, String> parameters;
+    private final Map<String, String> saved;
+    private final Map<String, List<String>> puts = new HashMap<>();
+    private final int failingSave;
+    private int saves;
+
+    /**
+     * @param failingSave The first save that fails, counted from 1
+     */
+    CheckpointedParameters(Map<String, String> parameters, int failingSave) {
+        this.parameters = new HashMap<>(parameters);
+        this.saved = new HashMap<>(parameters);
+        this.failingSave = failingSave;
+    }
+
+    /**
+     * @return Parameters that never fail to save
+     */
+    static CheckpointedParameters of(Map<String, String> parameters) {
+        return new CheckpointedParameters(parameters, Integer.MAX_VALUE);
+    }
+
+    JobDetails toJobDetails(String jobName) {
+        JobDetails details = mock(JobDetails.class);
+        when(details.getJobName()).thenReturn(jobName);
+        when(details.getParameters()).thenReturn(this);
+        return details;
+    }
+
+    synchronized Map<String, String> getSaved() {
+        return new HashMap<>(saved);
+    }
+
+    /**
+     * @return The values put for the key, in order
+     */
+    synchronized List<String> getPuts(String key) {
+        return new ArrayList<>(puts.getOrDefault(key, new ArrayList<>()));
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        return parameters.get(key);
+    }
+
+    @Override
+    public synchronized String put(String key, String value) {
+        puts.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        return parameters.put(key, value);
+    }
+
+    @Override
+    public synchronized String remove(String key) {
+        return parameters.remove(key);
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) {
+        return parameters.containsKey(key);
+    }
+
+    @Override
+    public synchronized Map<String, String> getMap() {
+        return ImmutableMap.copyOf(parameters);
+    }
+
+    @Override
+    public Completable save() {
+        return Completable.defer(() -> {
+            synchronized (this) {
+                if (++saves >= failingSave) {
+                    return Completable.error(new RuntimeException("Saving the parameters failed"));
+                }
+                saved.clear();
+                saved.putAll(parameters);
+                return Completable.complete();
+            }
+        });
+    }
+}
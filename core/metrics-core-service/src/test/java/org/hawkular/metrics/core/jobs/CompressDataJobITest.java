@@ -32,7 +32,10 @@ import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -42,6 +45,8 @@ import org.hawkular.metrics.core.service.DataAccess;
 import org.hawkular.metrics.core.service.MetricsServiceImpl;
 import org.hawkular.metrics.core.service.Order;
 import org.hawkular.metrics.core.service.TestDataAccessFactory;
+import org.hawkular.metrics.core.service.compress.CompressionPhase;
+import org.hawkular.metrics.core.service.compress.PointColumns;
 import org.hawkular.metrics.core.service.transformers.DataPointDecompressTransformer;
 import org.hawkular.metrics.datetime.DateTimeService;
 import org.hawkular.metrics.model.AvailabilityType;
@@ -65,10 +70,12 @@ import org.testng.annotations.Test;
 
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.Row;
+import com.datastax.driver.core.TokenRange;
 import com.google.common.collect.ImmutableMap;
 
 import rx.Observable;
 import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
 
 /**
  * Test the compression ETL jobs
@@ -399,6 +406,126 @@ public class CompressDataJobITest extends BaseITest {
         assertNull(dataAccess.findMetricExpiration(m2.getMetricId()).toBlocking().firstOrDefault(null));
     }
 
+    @Test(dependsOnMethods={"testCompressJob"})
+    public void testMergeLateDataPoints() throws Exception {
+        long blockStart = DateTimeService.getTimeSlice(DateTimeService.now.get().minusDays(3),
+                Duration.standardHours(2)).getMillis();
+        String tenantId = nextTenantId() + blockStart;
+
+        MetricId<Double> mId = new MetricId<>(tenantId, GAUGE, "m1");
+
+        doAction(() -> metricsService.createTenant(new Tenant(tenantId), false));
+
+        PointColumns compressed = new PointColumns();
+        compressed.add(blockStart + 1000, 1.1);
+        compressed.add(blockStart + 3000, 3.3);
+        metricsService.addCompressedDataPoints(mId, compressed.compress(blockStart).getValueBuffer())
+                .toBlocking().lastOrDefault(null);
+
+        // The block has no temporary tables, the points are stored to the out-of-order table
+        Metric<Double> late = new Metric<>(mId, asList(
+                new DataPoint<>(blockStart + 2000, 2.2),
+                new DataPoint<>(blockStart + 3000, 4.4)));
+        doAction(() -> metricsService.addDataPoints(GAUGE, Observable.just(late)));
+
+        int merged = metricsService.mergeLateDataPoints(1000, 2)
+                .reduce(0, (sum, points) -> sum + points)
+                .toBlocking().single();
+        assertTrue(merged >= 2);
+
+        DataPointDecompressTransformer<Double> decompressor = new DataPointDecompressTransformer<>(GAUGE, Order.ASC,
+                0, blockStart, blockStart + Duration.standardHours(2).getMillis());
+        List<DataPoint<Double>> points = dataAccess.findCompressedData(mId, blockStart, blockStart + 1, 0, Order.ASC)
+                .compose(decompressor)
+                .toList().toBlocking().single();
+        assertEquals(asList(
+                new DataPoint<>(blockStart + 1000, 1.1),
+                new DataPoint<>(blockStart + 2000, 2.2),
+                new DataPoint<>(blockStart + 3000, 4.4)), points);
+
+        long remaining = Observable.from(dataAccess.getTokenRanges())
+                .flatMap(range -> dataAccess.findOutOfOrderData(range, 1000))
+                .filter(r -> r.getString(0).equals(tenantId))
+                .count().toBlocking().single();
+        assertEquals(0, remaining);
+    }
+
+    @Test(dependsOnMethods={"testCompressJob"})
+    public void testConcurrentMergesKeepAllPoints() throws Exception {
+        long blockStart = DateTimeService.getTimeSlice(DateTimeService.now.get().minusDays(3),
+                Duration.standardHours(2)).getMillis();
+        String tenantId = nextTenantId() + blockStart;
+
+        MetricId<Double> mId = new MetricId<>(tenantId, GAUGE, "m1");
+
+        doAction(() -> metricsService.createTenant(new Tenant(tenantId), false));
+
+        List<Observable<Integer>> uploads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            PointColumns block = new PointColumns();
+            block.add(blockStart + (i + 1) * 1000, i + 0.5);
+            uploads.add(metricsService.addCompressedDataPoints(mId, block.compress(blockStart).getValueBuffer()));
+        }
+        Observable.merge(uploads).toBlocking().lastOrDefault(null);
+
+        DataPointDecompressTransformer<Double> decompressor = new DataPointDecompressTransformer<>(GAUGE, Order.ASC,
+                0, blockStart, blockStart + Duration.standardHours(2).getMillis());
+        List<DataPoint<Double>> points = dataAccess.findCompressedData(mId, blockStart, blockStart + 1, 0, Order.ASC)
+                .compose(decompressor)
+                .toList().toBlocking().single();
+        assertEquals(asList(
+                new DataPoint<>(blockStart + 1000, 0.5),
+                new DataPoint<>(blockStart + 2000, 1.5),
+                new DataPoint<>(blockStart + 3000, 2.5),
+                new DataPoint<>(blockStart + 4000, 3.5)), points);
+    }
+
+    @Test
+    public void testMergeWhileTempRangeIsCompressedAgain() throws Exception {
+        ZonedDateTime block = Instant.ofEpochMilli(DateTimeService.getTimeSlice(
+                DateTimeService.now.get().minusDays(2), Duration.standardHours(2)).getMillis()).atZone(ZoneOffset.UTC);
+        long blockStart = block.toInstant().toEpochMilli();
+        String tenantId = nextTenantId() + blockStart;
+
+        MetricId<Double> mId = new MetricId<>(tenantId, GAUGE, "m1");
+
+        doAction(() -> metricsService.createTenant(new Tenant(tenantId), false));
+        metricsService.verifyAndCreateTempTables(block, block.plusHours(2)).await();
+
+        Metric<Double> m1 = new Metric<>(mId, asList(
+                new DataPoint<>(blockStart + 1000, 1.1),
+                new DataPoint<>(blockStart + 2000, 2.2)));
+        doAction(() -> metricsService.addDataPoints(GAUGE, Observable.just(m1)));
+
+        Set<TokenRange> ranges = metricsService.getTokenRanges();
+        metricsService.compressRanges(blockStart, CompressionPhase.TEMP, ranges, 1000, 2).toCompletable().await();
+
+        // The ranges were not recorded before a restart, the temporary table is compressed again while a late block
+        // is merged to the same row
+        dataAccess.deleteCompressedRanges(blockStart).toCompletable().await();
+        PointColumns late = new PointColumns();
+        late.add(blockStart + 3000, 3.3);
+        Observable.merge(
+                metricsService.addCompressedDataPoints(mId, late.compress(blockStart).getValueBuffer())
+                        .subscribeOn(Schedulers.io()),
+                metricsService.compressRanges(blockStart, CompressionPhase.TEMP, ranges, 1000, 2)
+                        .subscribeOn(Schedulers.io()))
+                .toBlocking().lastOrDefault(null);
+
+        DataPointDecompressTransformer<Double> decompressor = new DataPointDecompressTransformer<>(GAUGE, Order.ASC,
+                0, blockStart, blockStart + Duration.standardHours(2).getMillis());
+        List<DataPoint<Double>> points = dataAccess.findCompressedData(mId, blockStart, blockStart + 1, 0, Order.ASC)
+                .compose(decompressor)
+                .toList().toBlocking().single();
+        assertEquals(asList(
+                new DataPoint<>(blockStart + 1000, 1.1),
+                new DataPoint<>(blockStart + 2000, 2.2),
+                new DataPoint<>(blockStart + 3000, 3.3)), points);
+
+        metricsService.finishCompression(blockStart, CompressionPhase.TEMP).await();
+        metricsService.finishCompression(blockStart, CompressionPhase.WAL).await();
+    }
+
     private String nextTenantId() {
         return "T" + tenantCounter.getAndIncrement();
     }
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.jobs;
+
+import static java.util.Arrays.asList;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.hawkular.metrics.core.service.BaseITest;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.core.service.compress.CompressionPhase;
+import org.hawkular.metrics.scheduler.impl.LockManager;
+import org.hawkular.metrics.sysconfig.ConfigurationService;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.datastax.driver.core.TokenRange;
+
+import rx.Completable;
+import rx.Observable;
+
+/**
+ * Runs several nodes' {@link CompressionShards} against the locks and the published phases in Cassandra. The
+ * compression itself is simulated, the completed ranges are kept in memory.
+ */
+public class CompressionShardsITest extends BaseITest {
+
+    private static final int LOCK_TIMEOUT = 5;
+    private static final long POLL_INTERVAL = 1;
+
+    private static AtomicLong blocks = new AtomicLong(System.currentTimeMillis());
+
+    private ConfigurationService configurationService;
+    private LockManager otherNode;
+    private Set<TokenRange> tokenRanges;
+
+    private long block;
+    private Map<CompressionPhase, Set<TokenRange>> completed;
+    private List<String> finished;
+    private List<CompressionShards> nodes;
+
+    @BeforeClass
+    public void initClass() {
+        configurationService = new ConfigurationService();
+        configurationService.init(rxSession);
+        otherNode = new LockManager(rxSession);
+        tokenRanges = session.getCluster().getMetadata().getTokenRanges();
+    }
+
+    @BeforeMethod
+    public void initTest() {
+        block = blocks.incrementAndGet();
+        completed = new ConcurrentHashMap<>();
+        finished = Collections.synchronizedList(new ArrayList<>());
+        nodes = new ArrayList<>();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        nodes.forEach(CompressionShards::shutdown);
+        configurationService.delete(CompressionShards.CONFIG_ID, Long.toString(block)).toBlocking()
+                .lastOrDefault(null);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void shutdown() {
+        otherNode.shutdown();
+    }
+
+    @Test
+    public void skipShardsClaimedByOtherNodes() {
+        List<List<TokenRange>> compressed = newList();
+        CompressionShards node = newNode(compressed, new AtomicInteger());
+        List<List<TokenRange>> shards = node.getShardRanges();
+        publish(CompressionPhase.WAL);
+
+        String lock = CompressionShards.getLockName(block, CompressionPhase.WAL, 0);
+        assertTrue(otherNode.acquireLock(lock, "other", 60, false).toBlocking().single().isLocked());
+        claim(node, CompressionPhase.WAL);
+
+        assertEquals(compressed.size(), shards.size() - 1);
+        assertFalse(compressed.contains(shards.get(0)));
+
+        otherNode.releaseLock(lock, "other").toBlocking().single();
+        claim(node, CompressionPhase.WAL);
+
+        assertEquals(compressed.size(), shards.size());
+        assertEquals(compressed.get(shards.size() - 1), shards.get(0));
+        assertAllCompleted(CompressionPhase.WAL);
+    }
+
+    @Test
+    public void takeOverExpiredLocks() throws Exception {
+        List<List<TokenRange>> compressed = newList();
+        CompressionShards node = newNode(compressed, new AtomicInteger());
+        List<List<TokenRange>> shards = node.getShardRanges();
+        publish(CompressionPhase.TEMP);
+
+        // The other node dies without releasing its lock
+        String lock = CompressionShards.getLockName(block, CompressionPhase.TEMP, 1);
+        assertTrue(otherNode.acquireLock(lock, "other", 2, false).toBlocking().single().isLocked());
+        claim(node, CompressionPhase.TEMP);
+        assertFalse(compressed.contains(shards.get(1)));
+
+        Thread.sleep(3000);
+        claim(node, CompressionPhase.TEMP);
+
+        assertEquals(compressed.size(), shards.size());
+        assertAllCompleted(CompressionPhase.TEMP);
+    }
+
+    @Test
+    public void resumeAfterFailedRun() {
+        List<List<TokenRange>> compressed = newList();
+        // The third shard fails after its first range is completed
+        CompressionShards node = newNode(compressed, new AtomicInteger(3));
+        List<List<TokenRange>> shards = node.getShardRanges();
+        publish(CompressionPhase.WAL);
+
+        try {
+            claim(node, CompressionPhase.WAL);
+            throw new AssertionError("The compression should have failed");
+        } catch (RuntimeException e) {
+            assertEquals(e.getMessage(), "Compression failed");
+        }
+        assertEquals(compressed.size(), 2);
+
+        // The failed shard's lock was released and only the shards with uncompressed ranges are compressed again
+        claim(node, CompressionPhase.WAL);
+        assertEquals(compressed.size(), shards.size());
+        assertEquals(new HashSet<>(compressed).size(), shards.size());
+        assertAllCompleted(CompressionPhase.WAL);
+    }
+
+    @Test
+    public void skipShardsOfFinishedPhase() {
+        List<List<TokenRange>> compressed = newList();
+        CompressionShards node = newNode(compressed, new AtomicInteger());
+        publish(CompressionPhase.WAL);
+
+        // The node listed the shards of the temporary tables before the publisher moved on to the next phase
+        claim(node, CompressionPhase.TEMP);
+        assertTrue(compressed.isEmpty());
+
+        // The publisher finished the block and its completed ranges were forgotten
+        configurationService.delete(CompressionShards.CONFIG_ID, Long.toString(block)).toBlocking()
+                .lastOrDefault(null);
+        claim(node, CompressionPhase.WAL);
+        assertTrue(compressed.isEmpty());
+
+        String lock = CompressionShards.getLockName(block, CompressionPhase.WAL, 0);
+        assertTrue(otherNode.acquireLock(lock, "other", 60, false).toBlocking().single().isLocked());
+        otherNode.releaseLock(lock, "other").toBlocking().single();
+    }
+
+    @Test
+    public void shareShardsBetweenNodes() {
+        List<List<TokenRange>> publisherShards = newList();
+        List<List<TokenRange>> pollerShards = newList();
+        CompressionShards publisher = newNode(publisherShards, new AtomicInteger());
+        CompressionShards poller = newNode(pollerShards, new AtomicInteger());
+        int shards = publisher.getShardRanges().size();
+        poller.start();
+
+        assertTrue(publisher.compress(block).await(60, TimeUnit.SECONDS));
+
+        // Both phases were shared and every shard was compressed once per phase
+        assertFalse(publisherShards.isEmpty());
+        assertFalse(pollerShards.isEmpty());
+        assertEquals(publisherShards.size() + pollerShards.size(), 2 * shards);
+        assertAllCompleted(CompressionPhase.TEMP);
+        assertAllCompleted(CompressionPhase.WAL);
+
+        // The nodes stopped claiming the block before it was finished
+        assertEquals(finished, asList(CompressionPhase.TEMP + " published", CompressionPhase.WAL + " unpublished"));
+    }
+
+    private CompressionShards newNode(List<List<TokenRange>> compressed, AtomicInteger failAt) {
+        AtomicInteger attempts = new AtomicInteger();
+        MetricsService metricsService = mock(MetricsService.class);
+        when(metricsService.getTokenRanges()).thenReturn(tokenRanges);
+        when(metricsService.findCompressedRanges(anyLong(), any())).thenAnswer(i -> Observable.from(
+                new ArrayList<>(getCompleted(i.getArgumentAt(0, Long.class), i.getArgumentAt(1,
+                        CompressionPhase.class)))));
+        when(metricsService.compressRanges(anyLong(), any(), any(), anyInt(), anyInt())).thenAnswer(i -> {
+            long startTimeSlice = i.getArgumentAt(0, Long.class);
+            Set<TokenRange> phaseCompleted = getCompleted(startTimeSlice, i.getArgumentAt(1, CompressionPhase.class));
+            @SuppressWarnings("unchecked")
+            List<TokenRange> ranges = new ArrayList<>(i.getArgumentAt(2, Collection.class));
+            return Observable.defer(() -> {
+                // Like the real compression, the completed ranges are skipped
+                List<TokenRange> uncompressed = ranges.stream()
+                        .filter(range -> !phaseCompleted.contains(range))
+                        .collect(Collectors.toList());
+                if (uncompressed.isEmpty()) {
+                    return Observable.<Integer>empty();
+                }
+                if (attempts.incrementAndGet() == failAt.get()) {
+                    phaseCompleted.add(uncompressed.get(0));
+                    return Observable.<Integer>error(new RuntimeException("Compression failed"));
+                }
+                phaseCompleted.addAll(uncompressed);
+                compressed.add(ranges);
+                return Observable.just(uncompressed.size());
+            }).delay(100, TimeUnit.MILLISECONDS);
+        });
+        when(metricsService.finishCompression(anyLong(), any())).thenAnswer(i -> Completable.fromAction(() -> {
+            boolean published = configurationService.load(CompressionShards.CONFIG_ID, Long.toString(block))
+                    .isEmpty().map(empty -> !empty).toBlocking().single();
+            finished.add(i.getArgumentAt(1, CompressionPhase.class) + (published ? " published" : " unpublished"));
+        }));
+
+        CompressionShards node = new CompressionShards(rxSession, metricsService, configurationService, LOCK_TIMEOUT,
+                POLL_INTERVAL);
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Blocks published by other tests are polled as well, only the test's own block is tracked
+     */
+    private Set<TokenRange> getCompleted(long startTimeSlice, CompressionPhase phase) {
+        if (startTimeSlice != block) {
+            return new HashSet<>(tokenRanges);
+        }
+        return completed.computeIfAbsent(phase, p -> ConcurrentHashMap.newKeySet());
+    }
+
+    private void publish(CompressionPhase phase) {
+        configurationService.save(CompressionShards.CONFIG_ID, Long.toString(block), phase.name()).toBlocking()
+                .lastOrDefault(null);
+    }
+
+    private void claim(CompressionShards node, CompressionPhase phase) {
+        node.claimShards(block, phase).toBlocking().lastOrDefault(null);
+    }
+
+    private void assertAllCompleted(CompressionPhase phase) {
+        assertEquals(completed.get(phase), new HashSet<>(tokenRanges));
+    }
+
+    private static List<List<TokenRange>> newList() {
+        return Collections.synchronizedList(new ArrayList<>());
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.jobs;
+
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+
+import static org.hawkular.metrics.core.service.DataAccessImpl.EXPIRATION_BUCKET_SHARDS;
+import static org.hawkular.metrics.core.service.DataAccessImpl.EXPIRATION_BUCKET_SIZE;
+import static org.hawkular.metrics.core.service.DataAccessImpl.getExpirationBucket;
+import static org.hawkular.metrics.core.service.DataAccessImpl.getExpirationShard;
+import static org.hawkular.metrics.core.service.TimeUUIDUtils.getTimeUUID;
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.hawkular.metrics.core.service.BaseITest;
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.core.service.MetricsServiceImpl;
+import org.hawkular.metrics.core.service.TestDataAccessFactory;
+import org.hawkular.metrics.datetime.DateTimeService;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.sysconfig.ConfigurationService;
+import org.jboss.logging.Logger;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Runs the {@link DeleteExpiredMetrics} job directly with in-memory job parameters. The job uses pages of two
+ * metrics, so that the position inside an expiration bucket shard is saved.
+ */
+public class DeleteExpiredMetricsITest extends BaseITest {
+
+    private static Logger logger = Logger.getLogger(DeleteExpiredMetricsITest.class);
+
+    private static final String EXPIRATION_TIMESTAMP = "expirationTimestamp";
+
+    private static AtomicInteger tenantCounter = new AtomicInteger();
+
+    private DataAccess dataAccess;
+    private MetricsServiceImpl metricsService;
+    private ConfigurationService configurationService;
+    private DeleteExpiredMetrics deleteExpiredMetrics;
+
+    private PreparedStatement resetConfig;
+    private PreparedStatement insertExpiration;
+    private PreparedStatement findBucketMetrics;
+    private PreparedStatement insertData;
+
+    private String jobName;
+    private String tenantId;
+    private long today;
+    private long yesterday;
+
+    /**
+     * The job deletes metrics that expired before the middle of today's bucket
+     */
+    private long expirationTime;
+
+    @BeforeClass
+    public void initClass() {
+        dataAccess = TestDataAccessFactory.newInstance(session);
+
+        resetConfig = session.prepare("DELETE FROM sys_config WHERE config_id = ?");
+        insertExpiration = session.prepare(
+                "INSERT INTO metrics_expiration_idx (tenant_id, type, metric, time) VALUES (?, ?, ?, ?)");
+        findBucketMetrics = session.prepare(
+                "SELECT metric FROM metrics_expiration_buckets WHERE bucket = ? AND shard = ? AND tenant_id = ?");
+        insertData = session.prepare(
+                "INSERT INTO data (tenant_id, type, metric, dpart, time, n_value) VALUES (?, ?, ?, 0, ?, ?)");
+
+        configurationService = new ConfigurationService();
+        configurationService.init(rxSession);
+
+        metricsService = new MetricsServiceImpl();
+        metricsService.setDataAccess(dataAccess);
+        metricsService.setConfigurationService(configurationService);
+        metricsService.startUp(session, getKeyspace(), true, metricRegistry);
+
+        deleteExpiredMetrics = new DeleteExpiredMetrics(metricsService, rxSession, configurationService, 0, 2);
+    }
+
+    @BeforeMethod
+    public void initTest(Method method) {
+        logger.debug("Starting [" + method.getName() + "]");
+
+        jobName = method.getName();
+        tenantId = "T" + tenantCounter.getAndIncrement() + "-" + System.currentTimeMillis();
+
+        // The sweep reads the expiration index and the buckets of all tenants
+        session.execute("TRUNCATE metrics_expiration_idx");
+        session.execute("TRUNCATE metrics_expiration_buckets");
+        session.execute(resetConfig.bind(DeleteExpiredMetrics.CONFIG_ID));
+        session.execute(resetConfig.bind(CompressData.CONFIG_ID));
+
+        today = getExpirationBucket(DateTimeService.now.get().getMillis());
+        yesterday = today - EXPIRATION_BUCKET_SIZE;
+        expirationTime = today + EXPIRATION_BUCKET_SIZE / 2;
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void shutdown() {
+        dataAccess.shutdown();
+    }
+
+    @Test
+    public void sweepDeletesExpiredMetricsAndKeepsExtendedOnes() {
+        setCompressionEnabled(true);
+        setSweptBucket(yesterday - EXPIRATION_BUCKET_SIZE);
+
+        MetricId<Double> expired = createMetric("expired", yesterday + 1000);
+        // The expiration was extended after the metric was added to yesterday's bucket, the bucket entry is stale
+        MetricId<Double> extended = createMetric("extended", yesterday + 1000);
+        long extendedExpiration = today + TimeUnit.DAYS.toMillis(5);
+        dataAccess.updateMetricExpirationIndex(extended, extendedExpiration).toCompletable().await();
+
+        assertTrue(deleteExpiredMetrics.call(newParameters().toJobDetails(jobName)).await(10, TimeUnit.SECONDS));
+
+        assertDeleted(expired);
+        assertKept(extended);
+        assertTrue(findBucketMetrics(yesterday, extended).isEmpty(), "Expected the swept bucket to be deleted");
+        assertEquals(findBucketMetrics(getExpirationBucket(extendedExpiration), extended),
+                singletonList(extended.getName()), "Expected the extended metric to stay in its new bucket");
+        assertEquals(getSweptBucket(), Long.toString(yesterday));
+    }
+
+    @Test
+    public void resumeSweepFromSavedPosition() {
+        setCompressionEnabled(true);
+        setSweptBucket(yesterday - EXPIRATION_BUCKET_SIZE);
+
+        // Five metrics in the last shard make three pages, another one is in the first shard
+        int shard = EXPIRATION_BUCKET_SHARDS - 1;
+        List<String> names = findNames(shard, 5);
+        List<MetricId<Double>> metrics = names.stream()
+                .map(name -> createMetric(name, yesterday + 1000))
+                .collect(toList());
+        MetricId<Double> skipped = createMetric(findNames(0, 1).get(0), yesterday + 1000);
+
+        // The sweep continues from the saved bucket and shard, saving the position after the second page fails
+        CheckpointedParameters failed = new CheckpointedParameters(ImmutableMap.of(
+                EXPIRATION_TIMESTAMP, Long.toString(expirationTime),
+                DeleteExpiredMetrics.BUCKET, Long.toString(yesterday),
+                DeleteExpiredMetrics.SHARD, Integer.toString(shard)), 2);
+        // The job logs the failure and completes, the saved position is kept for the next execution
+        assertTrue(deleteExpiredMetrics.call(failed.toJobDetails(jobName)).await(10, TimeUnit.SECONDS));
+
+        Map<String, String> saved = failed.getSaved();
+        assertEquals(saved.get(DeleteExpiredMetrics.BUCKET), Long.toString(yesterday));
+        assertEquals(saved.get(DeleteExpiredMetrics.SHARD), Integer.toString(shard));
+        assertNotNull(saved.get(DeleteExpiredMetrics.PAGING_STATE));
+        metrics.subList(0, 4).forEach(this::assertDeleted);
+        assertKept(metrics.get(4));
+
+        // The metrics of the first page are added again, the resumed sweep must not read that page again
+        List<MetricId<Double>> firstPage = metrics.subList(0, 2).stream()
+                .map(id -> createMetric(id.getName(), yesterday + 1000))
+                .collect(toList());
+
+        CheckpointedParameters resumed = CheckpointedParameters.of(saved);
+        assertTrue(deleteExpiredMetrics.call(resumed.toJobDetails(jobName)).await(10, TimeUnit.SECONDS));
+
+        firstPage.forEach(this::assertKept);
+        metrics.subList(2, 5).forEach(this::assertDeleted);
+        assertKept(skipped);
+        assertFalse(resumed.containsKey(DeleteExpiredMetrics.BUCKET));
+        assertFalse(resumed.containsKey(DeleteExpiredMetrics.PAGING_STATE));
+        assertEquals(getSweptBucket(), Long.toString(yesterday));
+    }
+
+    @Test
+    public void firstSweepBackfillsExpirationBuckets() {
+        setCompressionEnabled(true);
+
+        // Metrics of older versions are only in the expiration index
+        MetricId<Double> expired = new MetricId<>(tenantId, GAUGE, "expired");
+        MetricId<Double> unexpired = new MetricId<>(tenantId, GAUGE, "unexpired");
+        long unexpiredExpiration = today + TimeUnit.DAYS.toMillis(5);
+        insertExpiration(expired, yesterday + 1000);
+        insertExpiration(unexpired, unexpiredExpiration);
+
+        assertTrue(deleteExpiredMetrics.call(newParameters().toJobDetails(jobName)).await(10, TimeUnit.SECONDS));
+
+        assertDeleted(expired);
+        assertKept(unexpired);
+        assertEquals(findBucketMetrics(getExpirationBucket(unexpiredExpiration), unexpired),
+                singletonList(unexpired.getName()), "Expected the unexpired metric to be added to its bucket");
+        assertTrue(findBucketMetrics(yesterday, expired).isEmpty());
+        assertEquals(getSweptBucket(), Long.toString(yesterday));
+    }
+
+    @Test
+    public void sweepChecksDataWhenCompressionIsDisabled() {
+        setCompressionEnabled(false);
+        setSweptBucket(yesterday - EXPIRATION_BUCKET_SIZE);
+
+        MetricId<Double> withData = createMetric("withData", yesterday + 1000);
+        MetricId<Double> withoutData = createMetric("withoutData", yesterday + 1000);
+        session.execute(insertData.bind(tenantId, GAUGE.getCode(), withData.getName(),
+                getTimeUUID(DateTimeService.now.get().getMillis()), 1.1));
+
+        assertTrue(deleteExpiredMetrics.call(newParameters().toJobDetails(jobName)).await(10, TimeUnit.SECONDS));
+
+        assertKept(withData);
+        assertDeleted(withoutData);
+    }
+
+    private CheckpointedParameters newParameters() {
+        return CheckpointedParameters.of(ImmutableMap.of(EXPIRATION_TIMESTAMP, Long.toString(expirationTime)));
+    }
+
+    private MetricId<Double> createMetric(String name, long expiration) {
+        MetricId<Double> id = new MetricId<>(tenantId, GAUGE, name);
+        doAction(() -> metricsService.createMetric(new Metric<>(id), true));
+        dataAccess.updateMetricExpirationIndex(id, expiration).toCompletable().await();
+        return id;
+    }
+
+    private void insertExpiration(MetricId<?> id, long expiration) {
+        session.execute(insertExpiration.bind(id.getTenantId(), id.getType().getCode(), id.getName(),
+                new Date(expiration)));
+    }
+
+    /**
+     * @return Names of the tenant's gauges that are in the shard, in the order they're stored in the bucket
+     */
+    private List<String> findNames(int shard, int count) {
+        return IntStream.iterate(0, i -> i + 1)
+                .mapToObj(i -> "M" + i)
+                .filter(name -> getExpirationShard(new MetricId<>(tenantId, GAUGE, name)) == shard)
+                .limit(count)
+                .sorted()
+                .collect(toList());
+    }
+
+    private List<String> findBucketMetrics(long bucket, MetricId<?> id) {
+        List<String> names = new ArrayList<>();
+        session.execute(findBucketMetrics.bind(new Date(bucket), getExpirationShard(id), tenantId))
+                .forEach(row -> names.add(row.getString(0)));
+        return names;
+    }
+
+    private void assertDeleted(MetricId<?> id) {
+        assertTrue(dataAccess.findMetricExpiration(id).isEmpty().toBlocking().single(),
+                "Expected " + id + " to be deleted");
+    }
+
+    private void assertKept(MetricId<?> id) {
+        assertFalse(dataAccess.findMetricExpiration(id).isEmpty().toBlocking().single(),
+                "Expected " + id + " to be kept");
+    }
+
+    private void setCompressionEnabled(boolean enabled) {
+        configurationService.save(CompressData.CONFIG_ID, "enabled", Boolean.toString(enabled)).toCompletable()
+                .await();
+    }
+
+    private void setSweptBucket(long bucket) {
+        configurationService.save(DeleteExpiredMetrics.CONFIG_ID, DeleteExpiredMetrics.SWEPT_BUCKET,
+                Long.toString(bucket)).toCompletable().await();
+    }
+
+    private String getSweptBucket() {
+        return configurationService.load(DeleteExpiredMetrics.CONFIG_ID, DeleteExpiredMetrics.SWEPT_BUCKET)
+                .toBlocking().firstOrDefault(null);
+    }
+}
@@ -26,10 +26,14 @@ import static org.hawkular.metrics.model.MetricType.COUNTER;
 import static org.hawkular.metrics.model.MetricType.GAUGE;
 import static org.hawkular.metrics.model.MetricType.STRING;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -270,6 +274,9 @@ public class DeleteTenantITest extends BaseITest {
                 new DataPoint<>(start.getMillis(), "starting"),
                 new DataPoint<>(start.plusMinutes(2).getMillis(), "stopping")));
 
+        // String metrics are only found from metrics_idx, the data of string metrics that were never created expires
+        doAction(() -> metricsService.createMetric(s1, true));
+        doAction(() -> metricsService.createMetric(s2, true));
         doAction(() -> metricsService.addDataPoints(STRING, Observable.just(s1, s2)));
 
         JobDetails details = jobsService.submitDeleteTenantJob(tenantId, jobName).toBlocking().value();
@@ -327,6 +334,9 @@ public class DeleteTenantITest extends BaseITest {
                 new DataPoint<>(start.getMillis(), "starting"),
                 new DataPoint<>(start.plusMinutes(2).getMillis(), "stopping")));
 
+        // String metrics are only found from metrics_idx, the data of string metrics that were never created expires
+        doAction(() -> metricsService.createMetric(s1, true));
+        doAction(() -> metricsService.createMetric(s2, true));
         doAction(() -> metricsService.addDataPoints(STRING, Observable.just(s1, s2)));
 
         JobDetails details1 = jobsService.submitDeleteTenantJob(tenantId, jobName).toBlocking().value();
@@ -366,6 +376,90 @@ public class DeleteTenantITest extends BaseITest {
         assertTrue(latch.await(10, TimeUnit.SECONDS));
     }
 
+    @Test
+    public void resumeDeletionAfterFailedCheckpoint() throws Exception {
+        String tenantId = nextTenantId();
+        DateTime start = new DateTime(jobScheduler.now());
+
+        Metric<Double> g1 = new Metric<>(new MetricId<>(tenantId, GAUGE, "G1"), asList(
+                new DataPoint<>(start.getMillis(), 1.1),
+                new DataPoint<>(start.plusMinutes(2).getMillis(), 2.2)));
+        Metric<Long> c1 = new Metric<>(new MetricId<>(tenantId, COUNTER, "C1"), asList(
+                new DataPoint<>(start.getMillis(), 10L),
+                new DataPoint<>(start.plusMinutes(2).getMillis(), 20L)));
+
+        doAction(() -> metricsService.createMetric(g1, true));
+        doAction(() -> metricsService.createMetric(c1, true));
+        doAction(() -> metricsService.addDataPoints(GAUGE, Observable.just(g1)));
+        doAction(() -> metricsService.addDataPoints(COUNTER, Observable.just(c1)));
+
+        DeleteTenant deleteTenant = new DeleteTenant(rxSession, metricsService);
+
+        // The first source is checkpointed, saving the second checkpoint fails
+        CheckpointedParameters failed = new CheckpointedParameters(ImmutableMap.of(DeleteTenant.TENANT_ID, tenantId),
+                2);
+        try {
+            deleteTenant.call(failed.toJobDetails(jobName)).await(10, TimeUnit.SECONDS);
+        } catch (RuntimeException e) {
+            logger.debug("Deletion failed as expected", e);
+        }
+        assertEquals(failed.getSaved().get(DeleteTenant.SOURCE), "1");
+
+        CheckpointedParameters resumed = CheckpointedParameters.of(failed.getSaved());
+        assertTrue(deleteTenant.call(resumed.toJobDetails(jobName)).await(10, TimeUnit.SECONDS));
+        assertNotEquals(resumed.getPuts(DeleteTenant.SOURCE).get(0), "1",
+                "The deletion should continue after the saved source");
+
+        assertDataEmpty(g1, start, start.plusMinutes(3));
+        assertDataEmpty(c1, start, start.plusMinutes(3));
+
+        List<Metric<Double>> gauges = getOnNextEvents(() -> metricsService.findMetrics(tenantId, GAUGE));
+        assertTrue(gauges.isEmpty());
+        List<Metric<Long>> counters = getOnNextEvents(() -> metricsService.findMetrics(tenantId, COUNTER));
+        assertTrue(counters.isEmpty());
+    }
+
+    @Test
+    public void resumeDeletionFromSavedPagingState() throws Exception {
+        String tenantId = nextTenantId();
+        DateTime start = new DateTime(jobScheduler.now());
+
+        List<Metric<Double>> gauges = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Metric<Double> gauge = new Metric<>(new MetricId<>(tenantId, GAUGE, "G" + i), asList(
+                    new DataPoint<>(start.getMillis(), 1.1),
+                    new DataPoint<>(start.plusMinutes(2).getMillis(), 2.2)));
+            doAction(() -> metricsService.createMetric(gauge, true));
+            gauges.add(gauge);
+        }
+        doAction(() -> metricsService.addDataPoints(GAUGE, Observable.from(gauges)));
+
+        // Pages of two metrics, the first page is checkpointed and saving the second checkpoint fails
+        DeleteTenant deleteTenant = new DeleteTenant(rxSession, metricsService, 2);
+        CheckpointedParameters failed = new CheckpointedParameters(ImmutableMap.of(DeleteTenant.TENANT_ID, tenantId),
+                2);
+        try {
+            deleteTenant.call(failed.toJobDetails(jobName)).await(10, TimeUnit.SECONDS);
+        } catch (RuntimeException e) {
+            logger.debug("Deletion failed as expected", e);
+        }
+        Map<String, String> saved = failed.getSaved();
+        assertEquals(saved.get(DeleteTenant.SOURCE), "0");
+        assertNotNull(saved.get(DeleteTenant.PAGING_STATE));
+        assertEquals(saved.get(DeleteTenant.DELETED), "2");
+
+        CheckpointedParameters resumed = CheckpointedParameters.of(saved);
+        assertTrue(deleteTenant.call(resumed.toJobDetails(jobName)).await(10, TimeUnit.SECONDS));
+
+        // The resumed job starts from the second page, the first page is not counted twice
+        assertEquals(resumed.get(DeleteTenant.DELETED), "5");
+        for (Metric<Double> gauge : gauges) {
+            assertDataEmpty(gauge, start, start.plusMinutes(3));
+        }
+        List<Metric<Double>> metrics = getOnNextEvents(() -> metricsService.findMetrics(tenantId, GAUGE));
+        assertTrue(metrics.isEmpty());
+    }
+
     private String nextTenantId() {
         return "T" + tenantCounter.getAndIncrement();
     }
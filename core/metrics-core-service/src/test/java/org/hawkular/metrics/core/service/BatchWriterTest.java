@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.rx.cassandra.driver.RxSession;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Statement;
+
+import rx.Observable;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+public class BatchWriterTest {
+
+    private static final long FLUSH_DELAY = 10;
+
+    private List<PublishSubject<ResultSet>> executions;
+    private TestScheduler scheduler;
+    private BatchWriter batchWriter;
+
+    @Before
+    public void setUp() {
+        executions = new ArrayList<>();
+        RxSession rxSession = mock(RxSession.class);
+        when(rxSession.execute(any(Statement.class))).thenAnswer(invocation -> {
+            PublishSubject<ResultSet> execution = PublishSubject.create();
+            executions.add(execution);
+            return execution;
+        });
+        scheduler = new TestScheduler();
+        batchWriter = new BatchWriter(rxSession, 1, FLUSH_DELAY, BatchWriter.DEFAULT_LATENCY_TARGET, scheduler);
+    }
+
+    @Test
+    public void limitInFlightBatchesPerHost() {
+        // 120 statements are split to batches of 50, 50 and 20 statements
+        TestSubscriber<Integer> subscriber = write(statements(120), 0);
+
+        assertEquals(1, executions.size());
+        assertEquals(50, batchWriter.getQueueDepth());
+
+        // Remaining statements are flushed once the flush delay has passed
+        scheduler.advanceTimeBy(FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        assertEquals(1, executions.size());
+        assertEquals(70, batchWriter.getQueueDepth());
+
+        complete(0);
+        assertEquals(2, executions.size());
+        assertEquals(20, batchWriter.getQueueDepth());
+
+        complete(1);
+        assertEquals(3, executions.size());
+        assertEquals(0, batchWriter.getQueueDepth());
+
+        complete(2);
+        subscriber.assertCompleted();
+        subscriber.assertValues(50, 50, 20);
+    }
+
+    @Test
+    public void shareBatchesBetweenWrites() {
+        TestSubscriber<Integer> first = write(statements(10), 0);
+        TestSubscriber<Integer> second = write(statements(15), 0);
+
+        assertEquals(0, executions.size());
+        scheduler.advanceTimeBy(FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        assertEquals(1, executions.size());
+
+        complete(0);
+        first.assertCompleted();
+        first.assertValues(10);
+        second.assertCompleted();
+        second.assertValues(15);
+    }
+
+    @Test
+    public void shareLimitBetweenGroupsOfSameHost() {
+        TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        List<BoundStatement> statements = statements(2);
+        Observable.from(statements)
+                .compose(batchWriter.write(b -> b == statements.get(0) ? 0 : 1, group -> "host"))
+                .subscribe(subscriber);
+
+        scheduler.advanceTimeBy(FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        assertEquals(1, executions.size());
+        assertEquals(1, batchWriter.getQueueDepth());
+
+        complete(0);
+        assertEquals(2, executions.size());
+        complete(1);
+
+        subscriber.assertCompleted();
+        subscriber.assertValues(1, 1);
+    }
+
+    @Test
+    public void separateLimitForEachHost() {
+        TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        List<BoundStatement> statements = statements(2);
+        Observable.from(statements)
+                .compose(batchWriter.write(b -> b == statements.get(0) ? 0 : 1, group -> "host" + group))
+                .subscribe(subscriber);
+
+        scheduler.advanceTimeBy(FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        assertEquals(2, executions.size());
+        assertEquals(0, batchWriter.getQueueDepth());
+
+        complete(0);
+        complete(1);
+
+        subscriber.assertCompleted();
+        subscriber.assertValues(1, 1);
+    }
+
+    @Test
+    public void dropQueuedStatementsOfUnsubscribedWrites() {
+        // The first write occupies the only in-flight slot of the host
+        TestSubscriber<Integer> running = write(statements(50), 0);
+        TestSubscriber<Integer> queued = write(statements(120), 0);
+        scheduler.advanceTimeBy(FLUSH_DELAY, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, executions.size());
+        assertEquals(120, batchWriter.getQueueDepth());
+
+        queued.unsubscribe();
+
+        // The released slot does not execute the dropped statements
+        complete(0);
+        assertEquals(1, executions.size());
+        assertEquals(0, batchWriter.getQueueDepth());
+
+        running.assertCompleted();
+        running.assertValues(50);
+        queued.assertNoValues();
+    }
+
+    @Test
+    public void failWritesOfFailedBatch() {
+        TestSubscriber<Integer> first = write(statements(10), 0);
+        TestSubscriber<Integer> second = write(statements(10), 0);
+        scheduler.advanceTimeBy(FLUSH_DELAY, TimeUnit.MILLISECONDS);
+
+        executions.get(0).onError(new RuntimeException("Write timeout"));
+
+        first.assertError(RuntimeException.class);
+        second.assertError(RuntimeException.class);
+    }
+
+    private TestSubscriber<Integer> write(List<BoundStatement> statements, int group) {
+        TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        Observable.from(statements)
+                .compose(batchWriter.write(b -> group, g -> "host"))
+                .subscribe(subscriber);
+        return subscriber;
+    }
+
+    private List<BoundStatement> statements(int count) {
+        List<BoundStatement> statements = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            statements.add(mock(BoundStatement.class));
+        }
+        return statements;
+    }
+
+    private void complete(int execution) {
+        executions.get(execution).onNext(mock(ResultSet.class));
+        executions.get(execution).onCompleted();
+    }
+}
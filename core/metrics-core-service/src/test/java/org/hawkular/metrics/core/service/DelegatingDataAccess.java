@@ -16,19 +16,26 @@
  */
 package org.hawkular.metrics.core.service;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.function.Function;
 
 import org.hawkular.metrics.core.service.compress.CompressedPointContainer;
+import org.hawkular.metrics.core.service.compress.PointColumns;
+import org.hawkular.metrics.core.service.rollup.RollupPoint;
+import org.hawkular.metrics.core.service.rollup.RollupResolution;
 import org.hawkular.metrics.model.Metric;
 import org.hawkular.metrics.model.MetricId;
 import org.hawkular.metrics.model.MetricType;
 import org.hawkular.metrics.model.Tenant;
 
+import com.datastax.driver.core.PagingState;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
+import com.datastax.driver.core.TokenRange;
 
 import rx.Observable;
 
@@ -48,6 +55,11 @@ public class DelegatingDataAccess implements DataAccess {
         return delegate.createTempTablesIfNotExists(timestamps);
     }
 
+    @Override
+    public Observable<ResultSet> createWalTablesIfNotExists(Set<Long> timestamps) {
+        return delegate.createWalTablesIfNotExists(timestamps);
+    }
+
     @Override
     public Observable<ResultSet> insertTenant(Tenant tenant, boolean overwrite) {
         return delegate.insertTenant(tenant, overwrite);
@@ -102,6 +114,11 @@ public class DelegatingDataAccess implements DataAccess {
         return delegate.deleteTags(metric, tags);
     }
 
+    @Override
+    public Observable<Integer> updateTags(Observable<TagsUpdate> updates, int maxConcurrency) {
+        return delegate.updateTags(updates, maxConcurrency);
+    }
+
     @Override
     public <T> Observable<ResultSet> deleteFromMetricsIndexAndTags(MetricId<T> id, Map<String, String> tags) {
         return delegate.deleteFromMetricsIndexAndTags(id, tags);
@@ -117,14 +134,74 @@ public class DelegatingDataAccess implements DataAccess {
         return delegate.findMetricsInMetricsIndex(tenantId, type);
     }
 
+    @Override
+    public <T> Observable<ResultSet> findMetricsInMetricsIndex(String tenantId, MetricType<T> type, int fetchSize,
+            PagingState pagingState) {
+        return delegate.findMetricsInMetricsIndex(tenantId, type, fetchSize, pagingState);
+    }
+
     @Override public Observable<Observable<Row>> findAllDataFromBucket(long timestamp, int pageSize, int maxConcurrency) {
         return delegate.findAllDataFromBucket(timestamp, pageSize, maxConcurrency);
     }
 
+    @Override
+    public Observable<Row> findDataFromBucket(long timestamp, TokenRange range, int pageSize) {
+        return delegate.findDataFromBucket(timestamp, range, pageSize);
+    }
+
     @Override public Observable<ResultSet> dropTempTable(long timestamp) {
         return delegate.dropTempTable(timestamp);
     }
 
+    @Override
+    public long getUncompressedDataStart() {
+        return delegate.getUncompressedDataStart();
+    }
+
+    @Override
+    public Observable<Observable<Row>> findAllWalDataFromBucket(long timestamp, int pageSize, int maxConcurrency) {
+        return delegate.findAllWalDataFromBucket(timestamp, pageSize, maxConcurrency);
+    }
+
+    @Override
+    public Observable<Row> findWalDataFromBucket(long timestamp, TokenRange range, int pageSize) {
+        return delegate.findWalDataFromBucket(timestamp, range, pageSize);
+    }
+
+    @Override
+    public Set<TokenRange> getTokenRanges() {
+        return delegate.getTokenRanges();
+    }
+
+    @Override
+    public Observable<TokenRange> findCompressedRanges(long timeslice, byte phase) {
+        return delegate.findCompressedRanges(timeslice, phase);
+    }
+
+    @Override
+    public Observable<ResultSet> insertCompressedRange(long timeslice, byte phase, TokenRange range) {
+        return delegate.insertCompressedRange(timeslice, phase, range);
+    }
+
+    @Override
+    public Observable<ResultSet> deleteCompressedRanges(long timeslice) {
+        return delegate.deleteCompressedRanges(timeslice);
+    }
+
+    @Override
+    public Observable<Row> findOutOfOrderData(TokenRange range, int pageSize) {
+        return delegate.findOutOfOrderData(range, pageSize);
+    }
+
+    @Override
+    public <T> Observable<ResultSet> deleteOutOfOrderData(MetricId<T> id, long timestamp, long writeTime) {
+        return delegate.deleteOutOfOrderData(id, timestamp, writeTime);
+    }
+
+    @Override public Observable<ResultSet> dropWalTable(long timestamp) {
+        return delegate.dropWalTable(timestamp);
+    }
+
 //    @Override public Completable resetTempTable(long timestamp) {
 //        return delegate.resetTempTable(timestamp);
 //    }
@@ -139,6 +216,11 @@ public class DelegatingDataAccess implements DataAccess {
         return delegate.insertData(metrics);
     }
 
+    @Override
+    public Observable<Integer> insertWalData(long timeslice, Map<MetricId<?>, PointColumns> columns) {
+        return delegate.insertWalData(timeslice, columns);
+    }
+
     @Override
     public Observable<Integer> insertStringDatas(Observable<Metric<String>> strings,
             Function<MetricId<String>, Integer> ttlFetcher, int maxSize) {
@@ -156,6 +238,11 @@ public class DelegatingDataAccess implements DataAccess {
         return delegate.findTempData(id, startTime, endTime, limit, order, pageSize);
     }
 
+    @Override
+    public <T> Observable<Row> findWalData(MetricId<T> id, long startTime, long endTime) {
+        return delegate.findWalData(id, startTime, endTime);
+    }
+
 //    @Override
 //    public <T> Observable<Row> findOldData(MetricId<T> id, long startTime, long endTime, int limit, Order order,
 //                                           int pageSize) {
@@ -213,11 +300,83 @@ public class DelegatingDataAccess implements DataAccess {
         return delegate.findMetricsByTagName(tenantId, tag);
     }
 
+    @Override
+    public Observable<ResultSet> findMetricsByTagName(String tenantId, String tag, int fetchSize,
+            PagingState pagingState) {
+        return delegate.findMetricsByTagName(tenantId, tag, fetchSize, pagingState);
+    }
+
     @Override
     public Observable<Row> findMetricsByTagNameValue(String tenantId, String tag, String tvalue) {
         return delegate.findMetricsByTagNameValue(tenantId, tag, tvalue);
     }
 
+    @Override
+    public Observable<Row> findMetricsByTagNameValueRange(String tenantId, String tag, String from, String to) {
+        return delegate.findMetricsByTagNameValueRange(tenantId, tag, from, to);
+    }
+
+    @Override
+    public Observable<Boolean> hasTagValue(String tenantId, MetricType<?> type, String tag, String tvalue) {
+        return delegate.hasTagValue(tenantId, type, tag, tvalue);
+    }
+
+    @Override
+    public Observable<Row> findTagCompletionNames(String tenantId) {
+        return delegate.findTagCompletionNames(tenantId);
+    }
+
+    @Override
+    public Observable<Row> findTagCompletionValues(String tenantId, String tag) {
+        return delegate.findTagCompletionValues(tenantId, tag);
+    }
+
+    @Override
+    public Observable<ResultSet> insertTagCompletionName(String tenantId, MetricType<?> type, String tag) {
+        return delegate.insertTagCompletionName(tenantId, type, tag);
+    }
+
+    @Override
+    public Observable<ResultSet> insertTagCompletionValue(String tenantId, MetricType<?> type, String tag,
+            String tvalue) {
+        return delegate.insertTagCompletionValue(tenantId, type, tag, tvalue);
+    }
+
+    @Override
+    public Observable<ResultSet> deleteTagCompletionName(String tenantId, MetricType<?> type, String tag,
+            long timestamp) {
+        return delegate.deleteTagCompletionName(tenantId, type, tag, timestamp);
+    }
+
+    @Override
+    public Observable<ResultSet> deleteTagCompletionValue(String tenantId, MetricType<?> type, String tag,
+            String tvalue, long timestamp) {
+        return delegate.deleteTagCompletionValue(tenantId, type, tag, tvalue, timestamp);
+    }
+
+    @Override
+    public <T> Observable<Integer> insertRollups(MetricId<T> id, Map<RollupResolution, List<RollupPoint>> rollups,
+                                                 int ttl) {
+        return delegate.insertRollups(id, rollups, ttl);
+    }
+
+    @Override
+    public <T> Observable<Row> findRollups(MetricId<T> id, RollupResolution resolution, long startTime,
+                                           long endTime) {
+        return delegate.findRollups(id, resolution, startTime, endTime);
+    }
+
+    @Override
+    public Observable<ResultSet> insertMetricDefinitionChange(long bucket, UUID time, String tenantId,
+            MetricType<?> type, UUID source) {
+        return delegate.insertMetricDefinitionChange(bucket, time, tenantId, type, source);
+    }
+
+    @Override
+    public Observable<Row> findMetricDefinitionChanges(long bucket, UUID after) {
+        return delegate.findMetricDefinitionChanges(bucket, after);
+    }
+
     @Override
     public <T> Observable<ResultSet> deleteAndInsertCompressedGauge(MetricId<T> id, long timeslice,
                                                                     CompressedPointContainer cpc,
@@ -236,6 +395,17 @@ public class DelegatingDataAccess implements DataAccess {
         return delegate.insertCompressedData(id, timeslice, cpc, ttl);
     }
 
+    @Override
+    public Observable<Row> findCompressedBlock(MetricId<?> id, long timeslice) {
+        return delegate.findCompressedBlock(id, timeslice);
+    }
+
+    @Override
+    public <T> Observable<ResultSet> updateCompressedData(MetricId<T> id, long timeslice,
+                                                          CompressedPointContainer cpc, int ttl, Integer version) {
+        return delegate.updateCompressedData(id, timeslice, cpc, ttl, version);
+    }
+
     @Override
     public <T> Observable<ResultSet> updateMetricExpirationIndex(MetricId<T> id, long expirationTime) {
         return delegate.updateMetricExpirationIndex(id, expirationTime);
@@ -251,6 +421,11 @@ public class DelegatingDataAccess implements DataAccess {
         return delegate.findMetricExpiration(id);
     }
 
+    @Override
+    public void setBatchWriter(BatchWriter batchWriter) {
+        delegate.setBatchWriter(batchWriter);
+    }
+
     @Override public void shutdown() {
         delegate.shutdown();
     }
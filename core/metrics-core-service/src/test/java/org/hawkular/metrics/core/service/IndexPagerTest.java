@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import static java.util.Arrays.asList;
+
+import static org.hawkular.metrics.model.MetricType.AVAILABILITY;
+import static org.hawkular.metrics.model.MetricType.COUNTER;
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.hawkular.metrics.model.MetricType.STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricType;
+import org.hawkular.metrics.model.exception.RuntimeApiError;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+
+import rx.Observable;
+
+public class IndexPagerTest {
+
+    private static final String TENANT = "index-pager";
+
+    private DataAccess dataAccess;
+    private IndexPager pager;
+
+    @Before
+    public void setUp() {
+        dataAccess = mock(DataAccess.class);
+        pager = new IndexPager(dataAccess, 7 * 24 * 60 * 60);
+    }
+
+    @Test
+    public void pageThroughMetricsOfType() throws Exception {
+        PagingState state = pagingState(1);
+        when(dataAccess.findMetricsInMetricsIndex(eq(TENANT), eq(GAUGE), eq(2), isNull(PagingState.class)))
+                .thenAnswer(i -> Observable.just(resultSet(state, metricRow("a"), metricRow("b"))));
+        when(dataAccess.findMetricsInMetricsIndex(eq(TENANT), eq(GAUGE), eq(2), same(state)))
+                .thenAnswer(i -> Observable.just(resultSet(null, metricRow("c"))));
+
+        Page<Metric<Double>> first = pager.findMetrics(TENANT, GAUGE, 2, null).toBlocking().single();
+        assertEquals(asList("a", "b"), names(first));
+        assertNotNull(first.getNext());
+
+        Page<Metric<Double>> second = pager.findMetrics(TENANT, GAUGE, 2, first.getNext()).toBlocking().single();
+        assertEquals(Collections.singletonList("c"), names(second));
+        assertNull(second.getNext());
+    }
+
+    @Test
+    public void continueToNextTypeWhenPartitionEnds() throws Exception {
+        when(dataAccess.findMetricsInMetricsIndex(eq(TENANT), eq(GAUGE), eq(3), isNull(PagingState.class)))
+                .thenAnswer(i -> Observable.just(resultSet(null, metricRow("g"))));
+        when(dataAccess.findMetricsInMetricsIndex(eq(TENANT), eq(AVAILABILITY), eq(2), isNull(PagingState.class)))
+                .thenAnswer(i -> Observable.just(resultSet(null, metricRow("a1"), metricRow("a2"))));
+        when(dataAccess.findMetricsInMetricsIndex(eq(TENANT), eq(COUNTER), eq(3), isNull(PagingState.class)))
+                .thenAnswer(i -> Observable.just(resultSet(null, metricRow("c"))));
+        when(dataAccess.findMetricsInMetricsIndex(eq(TENANT), eq(STRING), eq(2), isNull(PagingState.class)))
+                .thenAnswer(i -> Observable.just(resultSet(null)));
+
+        Page<Metric<Object>> first = pager.findMetrics(TENANT, null, 3, null).toBlocking().single();
+        assertEquals(asList("g", "a1", "a2"), names(first));
+        assertEquals(asList(GAUGE, AVAILABILITY, AVAILABILITY), first.getItems().stream()
+                .map(Metric::getType).collect(Collectors.toList()));
+
+        // The page was filled by the availability partition, the next one starts from counters
+        Page<Metric<Object>> second = pager.findMetrics(TENANT, null, 3, first.getNext()).toBlocking().single();
+        assertEquals(Collections.singletonList("c"), names(second));
+        assertNull(second.getNext());
+        verify(dataAccess).findMetricsInMetricsIndex(eq(TENANT), eq(COUNTER), eq(3), isNull(PagingState.class));
+    }
+
+    @Test
+    public void pageThroughDistinctTagValues() throws Exception {
+        PagingState state = pagingState(2);
+        Row a = tagRow(GAUGE, "a");
+        Row aCounter = tagRow(COUNTER, "a");
+        Row b = tagRow(GAUGE, "b");
+        Row bCounter = tagRow(COUNTER, "b");
+        Row c = tagRow(GAUGE, "c");
+        when(dataAccess.findMetricsByTagName(eq(TENANT), eq("env"), eq(2), isNull(PagingState.class)))
+                .thenAnswer(i -> Observable.just(resultSet(state, a, aCounter)));
+        when(dataAccess.findMetricsByTagName(eq(TENANT), eq("env"), eq(2), same(state)))
+                .thenAnswer(i -> Observable.just(resultSet(null, b, bCounter, c)));
+
+        Page<String> first = pager.findTagValues(TENANT, null, "env", null, 2, null).toBlocking().single();
+        assertEquals(asList("a", "b"), first.getItems());
+        assertNotNull(first.getNext());
+
+        // The rows of the last fetch are read again, values up to the last returned one are skipped
+        Page<String> second = pager.findTagValues(TENANT, null, "env", null, 2, first.getNext()).toBlocking()
+                .single();
+        assertEquals(Collections.singletonList("c"), second.getItems());
+        assertNull(second.getNext());
+
+        Page<String> filtered = pager.findTagValues(TENANT, COUNTER, "env", "!a", 2, null).toBlocking().single();
+        assertEquals(Collections.singletonList("b"), filtered.getItems());
+        assertNull(filtered.getNext());
+    }
+
+    @Test
+    public void rejectInvalidCursor() {
+        try {
+            pager.findMetrics(TENANT, GAUGE, 10, "not-a-cursor").toBlocking().single();
+            fail("Invalid cursor should be rejected");
+        } catch (RuntimeApiError e) {
+            // Expected
+        }
+
+        // Cursor of a tag value listing points to no metric type
+        String tagCursor = new IndexPager.Cursor((byte) -1, null, "a").encode();
+        try {
+            pager.findMetrics(TENANT, GAUGE, 10, tagCursor).toBlocking().single();
+            fail("Cursor of another listing should be rejected");
+        } catch (RuntimeApiError e) {
+            // Expected
+        }
+    }
+
+    private static List<String> names(Page<? extends Metric<?>> page) {
+        return page.getItems().stream().map(Metric::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * Paging state decoded from the cursor is a new instance, compare the serialized form
+     */
+    private static PagingState same(PagingState state) {
+        return argThat(new ArgumentMatcher<PagingState>() {
+            @Override
+            public boolean matches(Object argument) {
+                return argument != null && argument.toString().equals(state.toString());
+            }
+        });
+    }
+
+    private static PagingState pagingState(int page) throws Exception {
+        Constructor<PagingState> constructor = PagingState.class.getDeclaredConstructor(ByteBuffer.class,
+                Statement.class, ProtocolVersion.class, CodecRegistry.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(ByteBuffer.wrap(new byte[]{(byte) page}), new SimpleStatement("SELECT 1"),
+                ProtocolVersion.NEWEST_SUPPORTED, CodecRegistry.DEFAULT_INSTANCE);
+    }
+
+    private static ResultSet resultSet(PagingState next, Row... rows) {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.getAvailableWithoutFetching()).thenReturn(rows.length);
+        if (rows.length > 0) {
+            when(resultSet.one()).thenReturn(rows[0], asList(rows).subList(1, rows.length).toArray(new Row[0]));
+        }
+        ExecutionInfo executionInfo = mock(ExecutionInfo.class);
+        when(executionInfo.getPagingState()).thenReturn(next);
+        when(resultSet.getExecutionInfo()).thenReturn(executionInfo);
+        return resultSet;
+    }
+
+    private static Row metricRow(String name) {
+        Row row = mock(Row.class);
+        when(row.getString(0)).thenReturn(name);
+        when(row.getMap(1, String.class, String.class)).thenReturn(Collections.emptyMap());
+        when(row.getInt(2)).thenReturn(0);
+        return row;
+    }
+
+    private static Row tagRow(MetricType<?> type, String value) {
+        Row row = mock(Row.class);
+        when(row.getByte(1)).thenReturn(type.getCode());
+        when(row.getString(3)).thenReturn(value);
+        return row;
+    }
+}
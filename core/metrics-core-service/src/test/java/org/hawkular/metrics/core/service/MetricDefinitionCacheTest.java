@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import static org.hawkular.metrics.model.MetricType.COUNTER;
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import rx.Observable;
+
+public class MetricDefinitionCacheTest {
+
+    private static final String TENANT = "definitions";
+
+    @Test
+    public void cacheDefinitionsOfTenantAndType() {
+        MetricDefinitionCache cache = new MetricDefinitionCache();
+        Metric<Double> g1 = new Metric<>(new MetricId<>(TENANT, GAUGE, "g1"), ImmutableMap.of("a", "b"), 7);
+        Metric<Double> g2 = new Metric<>(new MetricId<>(TENANT, GAUGE, "g2"));
+
+        assertNull(cache.getMetrics(TENANT, GAUGE));
+
+        // The definition from metrics_idx comes first and wins over the one found from the data table
+        cache.put(TENANT, GAUGE, ImmutableList.of(g1, g2, new Metric<>(g1.getMetricId())), cache.getGeneration());
+        cache.put(TENANT, COUNTER, ImmutableList.of(), cache.getGeneration());
+
+        assertEquals(ImmutableList.of(g1, g2), new ArrayList<>(cache.getMetrics(TENANT, GAUGE)));
+        assertEquals(ImmutableMap.of("a", "b"), cache.getMetric(g1.getMetricId()).getTags());
+        assertEquals(0, cache.getMetrics(TENANT, COUNTER).size());
+        assertNull(cache.getMetric(new MetricId<>(TENANT, GAUGE, "g3")));
+        assertNull(cache.getMetrics("other", GAUGE));
+
+        cache.invalidate(TENANT, GAUGE);
+        assertNull(cache.getMetrics(TENANT, GAUGE));
+        assertEquals(0, cache.getMetrics(TENANT, COUNTER).size());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void doNotCacheDefinitionsLoadedDuringChange() {
+        MetricDefinitionCache cache = new MetricDefinitionCache();
+        long generation = cache.getGeneration();
+        cache.invalidate(TENANT, COUNTER);
+        cache.put(TENANT, GAUGE, ImmutableList.of(new Metric<>(new MetricId<>(TENANT, GAUGE, "g1"))), generation);
+
+        assertNull(cache.getMetrics(TENANT, GAUGE));
+    }
+
+    @Test
+    public void limitAmountOfCachedDefinitions() {
+        MetricDefinitionCache cache = new MetricDefinitionCache(10, MetricDefinitionCache.DEFAULT_EXPIRATION);
+        for (int i = 0; i < 5; i++) {
+            List<Metric<?>> metrics = new ArrayList<>();
+            for (int j = 0; j < 5; j++) {
+                metrics.add(new Metric<>(new MetricId<>(TENANT + i, GAUGE, "g" + j)));
+            }
+            cache.put(TENANT + i, GAUGE, metrics, cache.getGeneration());
+        }
+
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void announceFirstWriteOfUnknownMetric() {
+        MetricDefinitionCache cache = new MetricDefinitionCache();
+        MetricId<Double> g1 = new MetricId<>(TENANT, GAUGE, "g1");
+        MetricId<Double> g2 = new MetricId<>(TENANT, GAUGE, "g2");
+        cache.put(TENANT, GAUGE, ImmutableList.of(new Metric<>(g1)), cache.getGeneration());
+
+        assertFalse(cache.dataPointsWritten(g1));
+        assertTrue(cache.dataPointsWritten(g2));
+        assertFalse(cache.dataPointsWritten(g2));
+
+        // Invalidating the definitions must not announce the written metrics again
+        cache.invalidate(TENANT, GAUGE);
+        assertFalse(cache.dataPointsWritten(g2));
+
+        cache.forgetWritten(g2);
+        assertTrue(cache.dataPointsWritten(g2));
+        cache.forgetWritten(TENANT);
+        assertTrue(cache.dataPointsWritten(g1));
+    }
+
+    @Test
+    public void deliverChangesOfOtherNodes() {
+        DataAccess dataAccess = mock(DataAccess.class);
+        List<String> changes = new ArrayList<>();
+        MetricDefinitionChanges feed = new MetricDefinitionChanges(dataAccess,
+                (tenantId, type) -> changes.add(tenantId + "/" + type.getText()));
+
+        ArgumentCaptor<UUID> source = ArgumentCaptor.forClass(UUID.class);
+        when(dataAccess.insertMetricDefinitionChange(anyLong(), any(), any(), any(), source.capture()))
+                .thenReturn(Observable.empty());
+        feed.publish(new MetricId<>(TENANT, GAUGE, "g1")).subscribe();
+        verify(dataAccess).insertMetricDefinitionChange(anyLong(), any(), any(), any(), any());
+
+        Row own = row(UUIDs.timeBased(), "own", GAUGE, source.getValue());
+        Row other = row(UUIDs.timeBased(), TENANT, COUNTER, UUID.randomUUID());
+        when(dataAccess.findMetricDefinitionChanges(anyLong(), any()))
+                .thenAnswer(i -> Observable.just(own, other));
+
+        assertEquals(Integer.valueOf(1), feed.poll().toBlocking().single());
+        assertEquals(ImmutableList.of(TENANT + "/counter"), changes);
+
+        // Changes are read again after the previous poll, but delivered only once
+        assertEquals(Integer.valueOf(0), feed.poll().toBlocking().single());
+        assertEquals(1, changes.size());
+    }
+
+    private static Row row(UUID time, String tenantId, MetricType<?> type, UUID source) {
+        Row row = mock(Row.class);
+        when(row.getUUID(0)).thenReturn(time);
+        when(row.getString(1)).thenReturn(tenantId);
+        when(row.getByte(2)).thenReturn(type.getCode());
+        when(row.getUUID(3)).thenReturn(source);
+        return row;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+public class TagsUpdateTest {
+
+    private final Metric<Double> metric = new Metric<>(new MetricId<>("t1", GAUGE, "m1"),
+            ImmutableMap.of("host", "a", "env", "prod", "dc", "x"), null);
+
+    @Test
+    public void replacedTagDeletesOldValue() {
+        TagsUpdate update = new TagsUpdate(metric, ImmutableMap.of("host", "b", "env", "prod", "rack", "r1"),
+                ImmutableSet.of("dc", "missing"));
+
+        assertEquals(ImmutableMap.of("host", "b", "rack", "r1"), update.getAdded());
+        assertEquals(ImmutableMap.of("host", "a", "dc", "x"), update.getDeleted());
+    }
+
+    @Test
+    public void addWinsOverDelete() {
+        TagsUpdate update = new TagsUpdate(metric, ImmutableMap.of("env", "prod"), ImmutableSet.of("env"));
+        assertTrue(update.isEmpty());
+
+        update = new TagsUpdate(metric, ImmutableMap.of("env", "test"), ImmutableSet.of("env"));
+        assertEquals(ImmutableMap.of("env", "test"), update.getAdded());
+        assertEquals(ImmutableMap.of("env", "prod"), update.getDeleted());
+    }
+
+    @Test
+    public void unchangedMetric() {
+        assertTrue(new TagsUpdate(metric, emptyMap(), ImmutableSet.of("missing")).isEmpty());
+        assertTrue(new TagsUpdate(metric, ImmutableMap.of("host", "a"), emptySet()).isEmpty());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import static java.util.Arrays.asList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Token;
+import com.google.common.collect.ImmutableSet;
+
+public class TokenRingIndexTest {
+
+    private static class LongToken extends Token {
+        private final long value;
+
+        LongToken(long value) {
+            this.value = value;
+        }
+
+        @Override public DataType getType() {
+            return DataType.bigint();
+        }
+
+        @Override public Object getValue() {
+            return value;
+        }
+
+        @Override public ByteBuffer serialize(ProtocolVersion protocolVersion) {
+            return (ByteBuffer) ByteBuffer.allocate(8).putLong(0, value);
+        }
+
+        @Override public int compareTo(Token other) {
+            return Long.compare(value, ((LongToken) other).value);
+        }
+    }
+
+    @Test
+    public void findReplicaGroupOfToken() {
+        Set<String> replicasA = ImmutableSet.of("a", "b");
+        Set<String> replicasB = ImmutableSet.of("b", "c");
+
+        // Ranges (Long.MIN, -100], (-100, 0], (0, 100], (100, Long.MIN] given out of order
+        List<Token> ends = asList(new LongToken(100), new LongToken(Long.MIN_VALUE), new LongToken(0),
+                new LongToken(-100));
+        List<Set<String>> replicas = asList(replicasB, replicasA, replicasA, replicasB);
+
+        TokenRingIndex index = new TokenRingIndex(ends, replicas);
+
+        assertEquals(2, index.getGroupCount());
+
+        int groupA = index.getReplicaGroup(new LongToken(-50));
+        int groupB = index.getReplicaGroup(new LongToken(50));
+        assertNotEquals(groupA, groupB);
+
+        assertEquals(groupA, index.getReplicaGroup(new LongToken(0)));
+        assertEquals(groupB, index.getReplicaGroup(new LongToken(-101)));
+        assertEquals(groupB, index.getReplicaGroup(new LongToken(-100)));
+        assertEquals(groupB, index.getReplicaGroup(new LongToken(100)));
+        // Wraps around the ring to the range ending at Long.MIN
+        assertEquals(groupA, index.getReplicaGroup(new LongToken(101)));
+        assertEquals(groupA, index.getReplicaGroup(new LongToken(Long.MAX_VALUE)));
+
+        assertEquals("a", index.getPrimaryReplica(groupA));
+        assertEquals("b", index.getPrimaryReplica(groupB));
+    }
+
+    @Test
+    public void emptyRing() {
+        TokenRingIndex index = new TokenRingIndex(Collections.emptyList(), Collections.emptyList());
+        assertEquals(TokenRingIndex.UNKNOWN_GROUP, index.getReplicaGroup(new LongToken(1)));
+        assertNull(index.getPrimaryReplica(TokenRingIndex.UNKNOWN_GROUP));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service;
+
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.metrics.core.service.compress.PointColumns;
+import org.hawkular.metrics.model.DataPoint;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.junit.Before;
+import org.junit.Test;
+
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+public class WriteBufferTest {
+
+    private static final long BLOCK_START = 1483228800000L; // 2017-01-01T00:00:00Z
+    private static final long BLOCK_SIZE = TimeUnit.HOURS.toMillis(2);
+
+    private final MetricId<Double> m1 = new MetricId<>("t", GAUGE, "m1");
+    private final MetricId<Double> m2 = new MetricId<>("t", GAUGE, "m2");
+
+    private List<Long> writtenBlocks;
+    private List<Map<MetricId<?>, PointColumns>> writtenColumns;
+    private List<PublishSubject<Integer>> writes;
+    private TestScheduler scheduler;
+    private WriteBuffer writeBuffer;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        writtenBlocks = new ArrayList<>();
+        writtenColumns = new ArrayList<>();
+        writes = new ArrayList<>();
+        DataAccess dataAccess = mock(DataAccess.class);
+        when(dataAccess.insertWalData(anyLong(), anyMap()))
+                .thenAnswer(invocation -> {
+                    writtenBlocks.add((Long) invocation.getArguments()[0]);
+                    writtenColumns.add((Map<MetricId<?>, PointColumns>) invocation.getArguments()[1]);
+                    PublishSubject<Integer> write = PublishSubject.create();
+                    writes.add(write);
+                    return write;
+                });
+        scheduler = new TestScheduler();
+        writeBuffer = new WriteBuffer(dataAccess, 100, 10, scheduler);
+    }
+
+    @Test
+    public void bufferUntilFlushDelay() {
+        TestSubscriber<Integer> first = new TestSubscriber<>();
+        TestSubscriber<Integer> second = new TestSubscriber<>();
+        writeBuffer.append(metric(m1, BLOCK_START + 1000, BLOCK_START + 2000)).subscribe(first);
+        writeBuffer.append(metric(m2, BLOCK_START + 1000)).subscribe(second);
+        writeBuffer.append(metric(m1, BLOCK_START + 3000)).subscribe();
+
+        scheduler.advanceTimeBy(99, TimeUnit.MILLISECONDS);
+        assertTrue(writes.isEmpty());
+
+        // One log row per metric of the block
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        assertEquals(1, writes.size());
+        assertEquals(Long.valueOf(BLOCK_START), writtenBlocks.get(0));
+        assertEquals(3, writtenColumns.get(0).get(m1).size());
+        assertEquals(1, writtenColumns.get(0).get(m2).size());
+
+        // Acknowledged only when the log write is done
+        first.assertNoTerminalEvent();
+        writes.get(0).onNext(2);
+        writes.get(0).onCompleted();
+
+        first.assertValue(2);
+        first.assertCompleted();
+        second.assertValue(1);
+        second.assertCompleted();
+    }
+
+    @Test
+    public void flushImmediatelyWhenFull() {
+        TestSubscriber<Integer> full = new TestSubscriber<>();
+        writeBuffer.append(metric(m1, BLOCK_START, BLOCK_START + BLOCK_SIZE)).subscribe();
+        writeBuffer.append(metric(m2, 1, 2, 3, 4, 5, 6, 7, 8)).subscribe(full);
+
+        // A write for each block of the full buffer, without waiting for the delay
+        assertEquals(3, writes.size());
+        writes.forEach(PublishSubject::onCompleted);
+        full.assertValue(8);
+
+        // The next points start a new buffer
+        TestSubscriber<Integer> next = new TestSubscriber<>();
+        writeBuffer.append(metric(m1, BLOCK_START + 5000)).subscribe(next);
+        assertEquals(3, writes.size());
+
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        assertEquals(4, writes.size());
+        writes.get(3).onCompleted();
+        next.assertValue(1);
+
+        // The timer of the flushed buffer does not write again
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        assertEquals(4, writes.size());
+    }
+
+    @Test
+    public void manualFlushAndErrors() {
+        TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        writeBuffer.append(metric(m1, BLOCK_START)).subscribe(subscriber);
+
+        writeBuffer.flush();
+        assertEquals(1, writes.size());
+
+        RuntimeException failure = new RuntimeException("write failed");
+        writes.get(0).onError(failure);
+        subscriber.assertError(failure);
+
+        subscriber.assertNoValues();
+
+        // Flushing an empty buffer does not write
+        writeBuffer.flush();
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        assertEquals(1, writes.size());
+    }
+
+    private Metric<Double> metric(MetricId<Double> id, long... timestamps) {
+        List<DataPoint<Double>> dataPoints = new ArrayList<>();
+        for (long timestamp : timestamps) {
+            dataPoints.add(new DataPoint<>(timestamp, 1.0));
+        }
+        return new Metric<>(id, dataPoints);
+    }
+}
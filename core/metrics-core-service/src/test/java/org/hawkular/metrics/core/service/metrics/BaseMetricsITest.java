@@ -24,7 +24,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.function.Function;
 import java.util.stream.IntStream;
 
 import org.apache.commons.math3.stat.descriptive.moment.Mean;
@@ -71,8 +70,6 @@ public abstract class BaseMetricsITest extends BaseITest {
 
     protected DataAccess dataAccess;
 
-    private Function<Double, PercentileWrapper> defaultCreatePercentile;
-
     @BeforeClass(alwaysRun = true)
     public void initClass() {
         this.dataAccess = TestDataAccessFactory.newInstance(session);
@@ -80,8 +77,6 @@ public abstract class BaseMetricsITest extends BaseITest {
         ConfigurationService configurationService = new ConfigurationService() ;
         configurationService.init(rxSession);
 
-        defaultCreatePercentile = NumericDataPointCollector.createPercentile;
-
         metricsService = new MetricsServiceImpl();
         metricsService.setDataAccess(this.dataAccess);
         metricsService.setConfigurationService(configurationService);
@@ -108,7 +103,10 @@ public abstract class BaseMetricsITest extends BaseITest {
             }
         }
 
-        NumericDataPointCollector.createPercentile = defaultCreatePercentile;
+        NumericDataPointCollector.setPercentileFactory(null);
+
+        // The tables were truncated under the tag index and the cached metric definitions
+        metricsService.invalidateCaches();
     }
 
     @AfterClass(alwaysRun = true)
@@ -126,7 +124,7 @@ public abstract class BaseMetricsITest extends BaseITest {
                 .max((x, y) -> Double.compare(x.getValue().doubleValue(), y.getValue().doubleValue()))
                 .get()
                 .getValue();
-        PercentileWrapper expectedMedian = NumericDataPointCollector.createPercentile.apply(50.0);
+        PercentileWrapper expectedMedian = NumericDataPointCollector.createPercentile(50.0);
         Mean expectedAverage = new Mean();
         Sum expectedSamples = new Sum();
         Sum expectedSum = new Sum();
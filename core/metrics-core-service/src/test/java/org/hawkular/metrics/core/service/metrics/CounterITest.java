@@ -42,9 +42,10 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import org.apache.commons.math3.stat.descriptive.rank.PSquarePercentile;
 import org.apache.commons.math3.stat.descriptive.summary.Sum;
 import org.hawkular.metrics.core.service.Order;
+import org.hawkular.metrics.core.service.PercentileWrapper;
+import org.hawkular.metrics.core.service.SketchPercentileWrapper;
 import org.hawkular.metrics.core.service.transformers.NumericDataPointCollector;
 import org.hawkular.metrics.model.Buckets;
 import org.hawkular.metrics.model.DataPoint;
@@ -202,11 +203,11 @@ public class CounterITest extends BaseMetricsITest {
         int testSize = 100;
         List<DataPoint<Long>> counterList = new ArrayList<>(testSize);
 
-        PSquarePercentile top = new PSquarePercentile(99.9);
+        PercentileWrapper top = new SketchPercentileWrapper(99.9);
 
         for (long i = 0; i < testSize; i++) {
             counterList.add(new DataPoint<>(now + 60000 + i, i));
-            top.increment(i);
+            top.addValue(i);
         }
 
         List<Percentile> percentiles = asList(new Percentile("50.0"), new Percentile("90.0"), new Percentile("99.0"),
@@ -303,7 +304,7 @@ public class CounterITest extends BaseMetricsITest {
     @Test
     public void findSimpleCounterStats() {
         //Setup the counter data
-        NumericDataPointCollector.createPercentile = InMemoryPercentileWrapper::new;
+        NumericDataPointCollector.setPercentileFactory(InMemoryPercentileWrapper::new);
 
         Random r = new Random(123);
         List<Long> randomList = new ArrayList<>();
@@ -28,26 +28,33 @@ import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.commons.math3.stat.descriptive.summary.Sum;
 import org.hawkular.metrics.core.service.Aggregate;
+import org.hawkular.metrics.core.service.DelegatingDataAccess;
+import org.hawkular.metrics.core.service.MetricsServiceImpl;
 import org.hawkular.metrics.core.service.Order;
 import org.hawkular.metrics.core.service.transformers.NumericDataPointCollector;
 import org.hawkular.metrics.model.Buckets;
 import org.hawkular.metrics.model.DataPoint;
 import org.hawkular.metrics.model.Metric;
 import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.NamedDataPoint;
 import org.hawkular.metrics.model.NumericBucketPoint;
 import org.hawkular.metrics.model.Tenant;
 import org.joda.time.DateTime;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.datastax.driver.core.Row;
 import com.google.common.collect.ImmutableMap;
 
 import rx.Observable;
@@ -185,7 +192,7 @@ public class GaugeITest extends BaseMetricsITest {
 
     @Test
     public void findStackedGaugeStatsByMetricNames() {
-        NumericDataPointCollector.createPercentile = InMemoryPercentileWrapper::new;
+        NumericDataPointCollector.setPercentileFactory(InMemoryPercentileWrapper::new);
 
         DateTime start = now().minusMinutes(10);
 
@@ -230,7 +237,7 @@ public class GaugeITest extends BaseMetricsITest {
 
     @Test
     public void findSimpleGaugeStatsByMetricNames() {
-        NumericDataPointCollector.createPercentile = InMemoryPercentileWrapper::new;
+        NumericDataPointCollector.setPercentileFactory(InMemoryPercentileWrapper::new);
 
         DateTime start = now().minusMinutes(10);
 
@@ -263,7 +270,7 @@ public class GaugeITest extends BaseMetricsITest {
 
     @Test
     public void findStackedGaugeStatsByTags() {
-        NumericDataPointCollector.createPercentile = InMemoryPercentileWrapper::new;
+        NumericDataPointCollector.setPercentileFactory(InMemoryPercentileWrapper::new);
 
         DateTime start = now().minusMinutes(10);
 
@@ -402,6 +409,57 @@ public class GaugeITest extends BaseMetricsITest {
 //        assertEquals(actual, expected);
     }
 
+    @Test
+    public void findDataPointsOfMultipleMetricsInMetricOrder() throws Exception {
+        DateTime start = now().minusMinutes(10);
+        List<MetricId<Double>> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            MetricId<Double> id = new MetricId<>(tenantId, GAUGE, "G" + i);
+            ids.add(id);
+            Metric<Double> metric = new Metric<>(id, asList(
+                    new DataPoint<>(start.getMillis(), (double) i),
+                    new DataPoint<>(start.plusMinutes(1).getMillis(), i + 0.5)));
+            doAction(() -> metricsService.addDataPoints(GAUGE, Observable.just(metric)));
+        }
+
+        // The earlier metrics are fetched slower, so their fetches complete after the later ones
+        List<String> completed = new CopyOnWriteArrayList<>();
+        metricsService.setDataAccess(new DelegatingDataAccess(dataAccess) {
+            @Override
+            public <T> Observable<Row> findTempData(MetricId<T> id, long startTime, long endTime, int limit,
+                    Order order, int pageSize) {
+                int index = Integer.parseInt(id.getName().substring(1));
+                return super.findTempData(id, startTime, endTime, limit, order, pageSize)
+                        .delaySubscription((5 - index) * 100, TimeUnit.MILLISECONDS)
+                        .doOnCompleted(() -> {
+                            if (!completed.contains(id.getName())) {
+                                completed.add(id.getName());
+                            }
+                        });
+            }
+        });
+        metricsService.setQueryConcurrency(4);
+        try {
+            List<NamedDataPoint<Double>> actual = toList(metricsService.findDataPoints(ids, start.getMillis(),
+                    start.plusMinutes(2).getMillis(), 0, Order.ASC));
+
+            assertTrue(completed.indexOf("G3") < completed.indexOf("G0"),
+                    "Expected the fetches to complete out of order: " + completed);
+            assertEquals(actual.stream().map(NamedDataPoint::getName).collect(Collectors.toList()),
+                    asList("G0", "G0", "G1", "G1", "G2", "G2", "G3", "G3", "G4", "G4"));
+            assertEquals(actual.get(0).getValue(), 0.0);
+            assertEquals(actual.get(9).getValue(), 4.5);
+        } finally {
+            metricsService.setDataAccess(dataAccess);
+            metricsService.setQueryConcurrency(MetricsServiceImpl.DEFAULT_QUERY_CONCURRENCY);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void doNotAllowQueryConcurrencyLessThanOne() {
+        metricsService.setQueryConcurrency(0);
+    }
+
     @SuppressWarnings("unchecked")
     private <T> List<DataPoint<T>> getDataPointList(String name, DateTime start) {
         switch (name) {
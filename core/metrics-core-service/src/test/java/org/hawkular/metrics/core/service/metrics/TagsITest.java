@@ -39,12 +39,15 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.hawkular.metrics.core.service.DelegatingDataAccess;
 import org.hawkular.metrics.core.service.Order;
+import org.hawkular.metrics.core.service.TagsUpdate;
 import org.hawkular.metrics.core.service.transformers.NumericDataPointCollector;
 import org.hawkular.metrics.core.service.transformers.TaggedDataPointCollector;
 import org.hawkular.metrics.model.AvailabilityType;
@@ -269,6 +272,46 @@ public class TagsITest extends BaseMetricsITest {
         assertMetricIndexMatches(metric.getMetricId().getTenantId(), GAUGE, singletonList(updatedMetric));
     }
 
+    @Test
+    public void bulkUpdateTagsChunkByChunk() throws Exception {
+        String tenantId = "bulk-tags-update";
+        List<Metric<?>> metrics = new ArrayList<>();
+        for (int i = 0; i < 1001; i++) {
+            metrics.add(new Metric<>(new MetricId<>(tenantId, GAUGE, "m" + i), ImmutableMap.of("a1", "1"),
+                    DEFAULT_TTL));
+        }
+
+        // The second chunk fails to write, the first one must be indexed nevertheless
+        List<Integer> chunks = new CopyOnWriteArrayList<>();
+        metricsService.setDataAccess(new DelegatingDataAccess(dataAccess) {
+            @Override
+            public Observable<Integer> updateTags(Observable<TagsUpdate> updates, int maxConcurrency) {
+                return updates.toList().flatMap(chunk -> {
+                    chunks.add(chunk.size());
+                    if (chunks.size() == 2) {
+                        return Observable.error(new RuntimeException("Writing the tags failed"));
+                    }
+                    return super.updateTags(Observable.from(chunk), maxConcurrency);
+                });
+            }
+        });
+        try {
+            TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+            metricsService.updateTags(Observable.from(metrics), ImmutableMap.of("a2", "2"), ImmutableSet.of("a1"))
+                    .subscribe(subscriber);
+            subscriber.awaitTerminalEvent(10, TimeUnit.SECONDS);
+            subscriber.assertError(RuntimeException.class);
+        } finally {
+            metricsService.setDataAccess(dataAccess);
+        }
+
+        assertEquals(chunks, asList(1000, 1));
+        List<Metric<Double>> updated = metricsService.<Double> findMetricsWithFilters(tenantId, GAUGE, "a2:2")
+                .toList().toBlocking().single();
+        assertEquals(updated.size(), 1000);
+        updated.forEach(metric -> assertEquals(metric.getTags(), ImmutableMap.of("a2", "2")));
+    }
+
     @SuppressWarnings("unchecked")
     protected List<Metric<?>> createTagMetrics(String tenantId) throws Exception {
         ImmutableList<MetricId<?>> ids = ImmutableList.of(
@@ -538,7 +581,7 @@ public class TagsITest extends BaseMetricsITest {
 
     @Test
     public void findSimpleGaugeStatsByTags() {
-        NumericDataPointCollector.createPercentile = InMemoryPercentileWrapper::new;
+        NumericDataPointCollector.setPercentileFactory(InMemoryPercentileWrapper::new);
 
         String tenantId = "findGaugeStatsByTags";
         DateTime start = now().minusMinutes(10);
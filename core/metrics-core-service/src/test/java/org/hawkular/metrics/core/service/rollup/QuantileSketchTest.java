@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.rollup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.rank.PSquarePercentile;
+import org.junit.Test;
+
+public class QuantileSketchTest {
+
+    private static final double[] QUANTILES = {0.01, 0.25, 0.5, 0.9, 0.99, 0.999};
+
+    private static double[] logNormalValues(int count, long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Math.exp(random.nextGaussian() * 2 + 3);
+        }
+        return values;
+    }
+
+    private static double exactQuantile(double[] sorted, double quantile) {
+        return sorted[(int) (quantile * (sorted.length - 1))];
+    }
+
+    @Test
+    public void quantilesWithinRelativeAccuracy() {
+        double[] values = logNormalValues(100000, 42);
+        QuantileSketch sketch = new QuantileSketch();
+        for (double value : values) {
+            sketch.add(value);
+        }
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        for (double quantile : QUANTILES) {
+            double exact = exactQuantile(sorted, quantile);
+            assertEquals("Quantile " + quantile, exact, sketch.getQuantile(quantile),
+                    exact * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        }
+        assertEquals(sorted[0], sketch.getQuantile(0), 0);
+        assertEquals(sorted[sorted.length - 1], sketch.getQuantile(1), 0);
+    }
+
+    @Test
+    public void moreAccurateThanPSquareOnSortedInput() {
+        // PSquarePercentile adapts its markers to the stream, sorted input (as read from the compressed blocks of
+        // a counter) is its worst case
+        double[] sorted = logNormalValues(10000, 7);
+        Arrays.sort(sorted);
+
+        QuantileSketch sketch = new QuantileSketch();
+        PSquarePercentile pSquare = new PSquarePercentile(99.0);
+        for (double value : sorted) {
+            sketch.add(value);
+            pSquare.increment(value);
+        }
+
+        double exact = exactQuantile(sorted, 0.99);
+        double sketchError = Math.abs(sketch.getQuantile(0.99) - exact) / exact;
+        double pSquareError = Math.abs(pSquare.getResult() - exact) / exact;
+        assertTrue(sketchError <= QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        assertTrue("Sketch error " + sketchError + ", P-square error " + pSquareError, sketchError <= pSquareError);
+    }
+
+    @Test
+    public void mergeEqualsSketchOfAllValues() {
+        double[] values = logNormalValues(20000, 1);
+        QuantileSketch all = new QuantileSketch();
+        QuantileSketch first = new QuantileSketch();
+        QuantileSketch second = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            all.add(values[i]);
+            (i % 3 == 0 ? first : second).add(values[i]);
+        }
+
+        first.merge(second);
+
+        assertEquals(all.getCount(), first.getCount());
+        for (double quantile : QUANTILES) {
+            assertEquals(all.getQuantile(quantile), first.getQuantile(quantile), 0);
+        }
+    }
+
+    @Test
+    public void resultDoesNotDependOnOrder() {
+        double[] values = logNormalValues(5000, 3);
+        QuantileSketch random = new QuantileSketch();
+        for (double value : values) {
+            random.add(value);
+        }
+        Arrays.sort(values);
+        QuantileSketch sorted = new QuantileSketch();
+        for (int i = values.length - 1; i >= 0; i--) {
+            sorted.add(values[i]);
+        }
+
+        for (double quantile : QUANTILES) {
+            assertEquals(random.getQuantile(quantile), sorted.getQuantile(quantile), 0);
+        }
+    }
+
+    @Test
+    public void serializationRoundTrip() {
+        QuantileSketch sketch = new QuantileSketch(0.02);
+        for (int i = -500; i <= 500; i++) {
+            sketch.add(i * 0.75);
+        }
+        sketch.add(1e12);
+
+        ByteBuffer serialized = sketch.serialize();
+        QuantileSketch deserialized = QuantileSketch.deserialize(serialized);
+
+        assertEquals(0, serialized.position());
+        assertEquals(sketch.getCount(), deserialized.getCount());
+        assertEquals(sketch.getRelativeAccuracy(), deserialized.getRelativeAccuracy(), 0);
+        assertEquals(sketch.getMin(), deserialized.getMin(), 0);
+        assertEquals(sketch.getMax(), deserialized.getMax(), 0);
+        for (double quantile : QUANTILES) {
+            assertEquals(sketch.getQuantile(quantile), deserialized.getQuantile(quantile), 0);
+        }
+        // Two stores of a few hundred counters and the fixed fields
+        assertTrue(serialized.remaining() < 1024);
+    }
+
+    @Test
+    public void emptySketch() {
+        QuantileSketch sketch = QuantileSketch.deserialize(new QuantileSketch().serialize());
+        assertTrue(sketch.isEmpty());
+        assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+        assertTrue(Double.isNaN(sketch.getMin()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeWithDifferentAccuracy() {
+        new QuantileSketch(0.01).merge(new QuantileSketch(0.05));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.rollup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.hawkular.metrics.core.service.compress.PointColumns;
+import org.hawkular.metrics.model.Buckets;
+import org.hawkular.metrics.model.NumericBucketPoint;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class RollupsTest {
+
+    private static final long BLOCK_START = 1483228800000L; // 2017-01-01T00:00:00Z
+    private static final long MINUTE = 60000;
+
+    @Test
+    public void computeAllResolutionsFromBlock() {
+        PointColumns columns = new PointColumns();
+        for (int i = 0; i < 120; i++) {
+            columns.add(BLOCK_START + i * MINUTE, i);
+        }
+
+        Map<RollupResolution, List<RollupPoint>> rollups = Rollups.compute(columns);
+
+        List<RollupPoint> fiveMinutes = rollups.get(RollupResolution.FIVE_MINUTES);
+        assertEquals(24, fiveMinutes.size());
+        assertEquals(BLOCK_START + 5 * MINUTE, fiveMinutes.get(1).getStart());
+        assertEquals(5.0, fiveMinutes.get(1).getMin(), 0);
+        assertEquals(9.0, fiveMinutes.get(1).getMax(), 0);
+        assertEquals(35.0, fiveMinutes.get(1).getSum(), 0);
+        assertEquals(5, fiveMinutes.get(1).getSamples());
+
+        List<RollupPoint> oneHour = rollups.get(RollupResolution.ONE_HOUR);
+        assertEquals(2, oneHour.size());
+        assertEquals(BLOCK_START + 60 * MINUTE, oneHour.get(1).getStart());
+        assertEquals(60.0, oneHour.get(1).getMin(), 0);
+        assertEquals(119.0, oneHour.get(1).getMax(), 0);
+
+        List<RollupPoint> twoHours = rollups.get(RollupResolution.TWO_HOURS);
+        assertEquals(1, twoHours.size());
+        assertEquals(120, twoHours.get(0).getSamples());
+        assertEquals(59.5, twoHours.get(0).getAvg(), 0);
+        assertEquals(59.5, twoHours.get(0).getSketch().getQuantile(0.5), 59.5 * 0.02);
+    }
+
+    @Test
+    public void chooseCoarsestResolution() {
+        assertEquals(Optional.of(RollupResolution.TWO_HOURS),
+                RollupResolution.forBuckets(Buckets.fromStep(BLOCK_START, BLOCK_START + 240 * MINUTE * 12,
+                        720 * MINUTE)));
+        assertEquals(Optional.of(RollupResolution.ONE_HOUR),
+                RollupResolution.forBuckets(Buckets.fromStep(BLOCK_START, BLOCK_START + 180 * MINUTE,
+                        180 * MINUTE)));
+        assertEquals(Optional.of(RollupResolution.FIVE_MINUTES),
+                RollupResolution.forBuckets(Buckets.fromStep(BLOCK_START, BLOCK_START + 100 * MINUTE,
+                        10 * MINUTE)));
+        assertFalse(RollupResolution.forBuckets(Buckets.fromStep(BLOCK_START, BLOCK_START + 100 * MINUTE,
+                MINUTE)).isPresent());
+    }
+
+    @Test
+    public void combineRollupsWithUnalignedEdges() {
+        // Four hours of data, the last hour is not compressed yet
+        PointColumns columns = new PointColumns();
+        for (int i = 0; i < 240; i++) {
+            columns.add(BLOCK_START + i * MINUTE, i % 7);
+        }
+        List<RollupPoint> rollups = Rollups.compute(columns).get(RollupResolution.FIVE_MINUTES);
+
+        long start = BLOCK_START + 3 * MINUTE;
+        long end = BLOCK_START + 240 * MINUTE;
+        Buckets buckets = Buckets.fromStep(start, end, 30 * MINUTE);
+        RollupStatsCollector collector = new RollupStatsCollector(buckets, Collections.emptyList(),
+                RollupResolution.FIVE_MINUTES, start, end, BLOCK_START, BLOCK_START + 180 * MINUTE);
+
+        assertTrue(collector.hasRollups());
+        assertEquals(BLOCK_START + 5 * MINUTE, collector.getRollupsStart());
+        assertEquals(BLOCK_START + 180 * MINUTE, collector.getRollupsEnd());
+
+        rollups.forEach(collector::increment);
+        for (Range<Long> range : collector.getRawRanges()) {
+            PointColumns raw = new PointColumns();
+            for (int i = 0; i < columns.size(); i++) {
+                if (range.contains(columns.getTimestamp(i))) {
+                    raw.add(columns.getTimestamp(i), columns.getValue(i));
+                }
+            }
+            collector.increment(raw);
+        }
+
+        List<NumericBucketPoint> points = collector.toBucketPoints();
+        assertEquals(buckets.getCount(), points.size());
+        for (int b = 0; b < buckets.getCount(); b++) {
+            long bucketStart = buckets.getBucketStart(b);
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            double sum = 0;
+            int samples = 0;
+            for (int i = 0; i < columns.size(); i++) {
+                long timestamp = columns.getTimestamp(i);
+                if (timestamp >= Math.max(bucketStart, start) && timestamp < bucketStart + buckets.getStep()
+                        && timestamp < end) {
+                    min = Math.min(min, columns.getValue(i));
+                    max = Math.max(max, columns.getValue(i));
+                    sum += columns.getValue(i);
+                    samples++;
+                }
+            }
+            NumericBucketPoint point = points.get(b);
+            assertEquals(bucketStart, point.getStart());
+            assertEquals(samples, point.getSamples().intValue());
+            assertEquals(min, point.getMin(), 0);
+            assertEquals(max, point.getMax(), 0);
+            assertEquals(sum, point.getSum(), 0.000001);
+        }
+    }
+
+    @Test
+    public void noRollupsAvailable() {
+        long start = BLOCK_START;
+        long end = BLOCK_START + 240 * MINUTE;
+        Buckets buckets = Buckets.fromStep(start, end, 60 * MINUTE);
+        RollupStatsCollector collector = new RollupStatsCollector(buckets, Collections.emptyList(),
+                RollupResolution.ONE_HOUR, start, end, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        assertFalse(collector.hasRollups());
+        assertEquals(Collections.singletonList(Range.closedOpen(start, end)), collector.getRawRanges());
+    }
+
+    @Test
+    public void sketchSerializationAndMerge() {
+        QuantileSketch first = new QuantileSketch();
+        QuantileSketch second = new QuantileSketch();
+        for (int i = 1; i <= 1000; i++) {
+            first.add(i);
+            second.add(-i);
+        }
+        second.add(0);
+
+        QuantileSketch merged = QuantileSketch.deserialize(first.serialize());
+        merged.merge(QuantileSketch.deserialize(second.serialize()));
+
+        assertEquals(2001, merged.getCount());
+        assertEquals(-1000, merged.getMin(), 0);
+        assertEquals(1000, merged.getMax(), 0);
+        assertEquals(0, merged.getQuantile(0.5), 0);
+        assertEquals(900, merged.getQuantile(0.95), 900 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        assertEquals(-900, merged.getQuantile(0.05), 900 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    }
+}
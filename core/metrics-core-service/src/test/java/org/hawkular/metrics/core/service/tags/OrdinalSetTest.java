@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.Test;
+
+public class OrdinalSetTest {
+
+    @Test
+    public void switchBetweenArrayAndBitmap() {
+        OrdinalSet set = new OrdinalSet();
+        for (int i = 127; i >= 0; i--) {
+            assertTrue(set.add(i));
+        }
+        assertFalse(set.add(5));
+        assertTrue(set.isBitmap());
+        assertEquals(128, set.size());
+
+        for (int i = 0; i <= 100; i++) {
+            assertTrue(set.remove(i));
+        }
+        assertFalse(set.remove(5));
+        assertFalse(set.isBitmap());
+        assertEquals(27, set.size());
+        assertTrue(set.contains(101));
+        assertFalse(set.contains(100));
+
+        BitSet bitmap = new BitSet();
+        set.addTo(bitmap);
+        assertEquals(101, bitmap.nextSetBit(0));
+        assertEquals(27, bitmap.cardinality());
+    }
+
+    @Test
+    public void keepSparseSetsAsArrays() {
+        OrdinalSet set = new OrdinalSet();
+        for (int i = 0; i < 1000; i++) {
+            set.add(i * 1000);
+        }
+        assertFalse(set.isBitmap());
+        assertTrue(set.contains(999000));
+        assertFalse(set.contains(999));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import static java.util.Arrays.asList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class RegexLiteralsTest {
+
+    @Test
+    public void literalAlternatives() {
+        assertEquals(asList("web01"), RegexLiterals.alternatives("web01"));
+        assertEquals(asList("a", "b.c", "d-e"), RegexLiterals.alternatives("a|b\\.c|d-e"));
+        assertNull(RegexLiterals.alternatives("web.*"));
+        assertNull(RegexLiterals.alternatives("(a|b)"));
+        assertNull(RegexLiterals.alternatives("a\\d"));
+    }
+
+    @Test
+    public void literalPrefix() {
+        assertEquals("pod-", RegexLiterals.prefix("pod-.*"));
+        assertEquals("pod-", RegexLiterals.prefix("^pod-[0-9]+"));
+        assertEquals("pod", RegexLiterals.prefix("pods?"));
+        assertEquals("a.", RegexLiterals.prefix("a\\.b*"));
+        assertEquals("", RegexLiterals.prefix("pod-a|pod-b"));
+        assertEquals("", RegexLiterals.prefix(".*"));
+        assertEquals("", RegexLiterals.prefix("(?i)pod"));
+    }
+
+    @Test
+    public void prefixUpperBound() {
+        assertEquals("poe", RegexLiterals.upperBound("pod"));
+        assertEquals("b", RegexLiterals.upperBound("a\uffff"));
+        assertEquals("a\ue000", RegexLiterals.upperBound("a\ud7ff"));
+        assertNull(RegexLiterals.upperBound(""));
+        assertNull(RegexLiterals.upperBound("\uffff"));
+    }
+}
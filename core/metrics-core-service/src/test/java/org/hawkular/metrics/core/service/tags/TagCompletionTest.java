@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import static java.util.Arrays.asList;
+
+import static org.hawkular.metrics.model.MetricType.COUNTER;
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableMap;
+
+import rx.Observable;
+
+public class TagCompletionTest {
+
+    private static final String TENANT = "tag-completion";
+
+    private DataAccess dataAccess;
+    private TagCompletion completion;
+
+    @Before
+    public void setUp() {
+        dataAccess = mock(DataAccess.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(dataAccess.insertTagCompletionName(anyString(), any(), anyString()))
+                .thenReturn(Observable.just(resultSet));
+        when(dataAccess.insertTagCompletionValue(anyString(), any(), anyString(), anyString()))
+                .thenReturn(Observable.just(resultSet));
+        when(dataAccess.deleteTagCompletionName(anyString(), any(), anyString(), anyLong()))
+                .thenReturn(Observable.just(resultSet));
+        when(dataAccess.deleteTagCompletionValue(anyString(), any(), anyString(), anyString(), anyLong()))
+                .thenReturn(Observable.just(resultSet));
+
+        completion = new TagCompletion(dataAccess, TagCompletion.DEFAULT_REFRESH_INTERVAL);
+    }
+
+    @Test
+    public void completeLoadedNamesAndValues() {
+        List<Row> names = asList(row(TagCompletion.INDEXED_MARKER, GAUGE), row("env", GAUGE), row("host", GAUGE),
+                row("host", COUNTER), row("hw", COUNTER));
+        List<Row> values = asList(row("db1", GAUGE), row("web1", GAUGE), row("web2", COUNTER), row("web3", GAUGE));
+        when(dataAccess.findTagCompletionNames(TENANT)).thenReturn(Observable.from(names));
+        when(dataAccess.findTagCompletionValues(TENANT, "host")).thenReturn(Observable.from(values));
+
+        assertEquals(asList("host", "hw"), names(null, "h", 0));
+        assertEquals(asList("host"), names(GAUGE, "h", 0));
+        assertEquals(asList("env", "host"), names(GAUGE, null, 0));
+        assertEquals(asList("env"), names(null, "", 1));
+
+        assertEquals(asList("web1", "web2"), values(null, "host", "web", 2));
+        assertEquals(asList("web1", "web3"), values(GAUGE, "host", "web", 0));
+        assertEquals(asList(), values(GAUGE, "host", "x", 0));
+
+        // Loaded names and values are served from memory
+        verify(dataAccess, times(1)).findTagCompletionNames(TENANT);
+        verify(dataAccess, times(1)).findTagCompletionValues(TENANT, "host");
+        verify(dataAccess, never()).findMetricsInMetricsIndex(anyString(), any());
+    }
+
+    @Test
+    public void indexTenantFromDefinitions() {
+        when(dataAccess.findTagCompletionNames(TENANT)).thenReturn(Observable.empty());
+        when(dataAccess.findMetricsInMetricsIndex(eq(TENANT), any())).thenReturn(Observable.empty());
+        List<Row> gauges = asList(definition(ImmutableMap.of("host", "web1", "env", "prod")),
+                definition(ImmutableMap.of("host", "web2")));
+        Row counter = definition(ImmutableMap.of("host", "web1"));
+        when(dataAccess.findMetricsInMetricsIndex(TENANT, GAUGE)).thenReturn(Observable.from(gauges));
+        when(dataAccess.findMetricsInMetricsIndex(TENANT, COUNTER)).thenReturn(Observable.just(counter));
+        when(dataAccess.findTagCompletionValues(TENANT, "host")).thenReturn(Observable.empty());
+
+        assertEquals(asList("env", "host"), names(null, null, 0));
+        assertEquals(asList("host"), names(COUNTER, null, 0));
+
+        verify(dataAccess).insertTagCompletionValue(TENANT, GAUGE, "host", "web1");
+        verify(dataAccess).insertTagCompletionValue(TENANT, COUNTER, "host", "web1");
+        verify(dataAccess).insertTagCompletionValue(TENANT, GAUGE, "host", "web2");
+        verify(dataAccess).insertTagCompletionValue(TENANT, GAUGE, "env", "prod");
+        verify(dataAccess).insertTagCompletionName(TENANT, GAUGE, "host");
+        verify(dataAccess).insertTagCompletionName(TENANT, COUNTER, "host");
+        verify(dataAccess).insertTagCompletionName(TENANT, GAUGE, "env");
+        verify(dataAccess).insertTagCompletionName(TENANT, GAUGE, TagCompletion.INDEXED_MARKER);
+    }
+
+    @Test
+    public void updateWrittenTags() {
+        List<Row> names = asList(row(TagCompletion.INDEXED_MARKER, GAUGE), row("host", GAUGE));
+        Row web1 = row("web1", GAUGE);
+        Row web3 = row("web3", COUNTER);
+        when(dataAccess.findTagCompletionNames(TENANT)).thenReturn(Observable.from(names));
+        when(dataAccess.findTagCompletionValues(TENANT, "host")).thenReturn(Observable.just(web1));
+        assertEquals(asList("web1"), values(GAUGE, "host", null, 0));
+
+        MetricId<Double> id = new MetricId<>(TENANT, GAUGE, "g1");
+        completion.addTags(id, ImmutableMap.of("host", "web2", "rack", "r1")).toBlocking().lastOrDefault(null);
+        verify(dataAccess).insertTagCompletionValue(TENANT, GAUGE, "rack", "r1");
+        verify(dataAccess).insertTagCompletionName(TENANT, GAUGE, "rack");
+        assertEquals(asList("host", "rack"), names(GAUGE, null, 0));
+        assertEquals(asList("web1", "web2"), values(GAUGE, "host", null, 0));
+
+        // web1 is still used by another metric, web2 was the last one and the remaining host value is a counter
+        when(dataAccess.hasTagValue(TENANT, GAUGE, "host", "web1")).thenReturn(Observable.just(true));
+        when(dataAccess.hasTagValue(TENANT, GAUGE, "host", "web2")).thenReturn(Observable.just(false));
+        when(dataAccess.findTagCompletionValues(TENANT, "host")).thenReturn(Observable.just(web3));
+        completion.deleteTags(id, ImmutableMap.of("host", "web1")).toBlocking().lastOrDefault(null);
+        verify(dataAccess, never()).deleteTagCompletionValue(anyString(), any(), anyString(), anyString(), anyLong());
+
+        completion.deleteTags(id, ImmutableMap.of("host", "web2")).toBlocking().lastOrDefault(null);
+        verify(dataAccess).deleteTagCompletionValue(eq(TENANT), eq(GAUGE), eq("host"), eq("web2"), anyLong());
+        verify(dataAccess).deleteTagCompletionName(eq(TENANT), eq(GAUGE), eq("host"), anyLong());
+        assertEquals(asList("web1"), values(GAUGE, "host", null, 0));
+        assertEquals(asList("rack"), names(GAUGE, null, 0));
+    }
+
+    private List<String> names(MetricType<?> type, String prefix, int limit) {
+        return completion.completeTagNames(TENANT, type, prefix, limit).toList().toBlocking().single();
+    }
+
+    private List<String> values(MetricType<?> type, String tagName, String prefix, int limit) {
+        return completion.completeTagValues(TENANT, type, tagName, prefix, limit).toList().toBlocking().single();
+    }
+
+    private static Row row(String key, MetricType<?> type) {
+        Row row = mock(Row.class);
+        when(row.getString(0)).thenReturn(key);
+        when(row.getByte(1)).thenReturn(type.getCode());
+        return row;
+    }
+
+    private static Row definition(Map<String, String> tags) {
+        Row row = mock(Row.class);
+        when(row.getMap(1, String.class, String.class)).thenReturn(tags);
+        return row;
+    }
+}
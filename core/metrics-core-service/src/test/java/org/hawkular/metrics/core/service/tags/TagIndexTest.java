@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import static java.util.stream.Collectors.toSet;
+
+import static org.hawkular.metrics.model.MetricType.COUNTER;
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.MetricType;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import rx.Observable;
+
+public class TagIndexTest {
+
+    private static final String TENANT = "tag-index";
+
+    private DataAccess dataAccess;
+    private MetricsService metricsService;
+    private TagIndex tagIndex;
+
+    private List<Row> hostRows = new ArrayList<>();
+    private List<Row> envRows = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        dataAccess = mock(DataAccess.class);
+        when(dataAccess.findMetricsByTagName(TENANT, "host")).thenAnswer(i -> Observable.from(hostRows));
+        when(dataAccess.findMetricsByTagName(TENANT, "env")).thenAnswer(i -> Observable.from(envRows));
+        when(dataAccess.findMetricsByTagName(TENANT, "missing")).thenReturn(Observable.empty());
+
+        metricsService = mock(MetricsService.class);
+        when(metricsService.findMetric(any())).thenAnswer(i -> Observable.just(new Metric<>(i.getArgumentAt(0,
+                MetricId.class))));
+
+        tagIndex = new TagIndex(dataAccess, TagIndex.DEFAULT_REFRESH_INTERVAL);
+
+        for (int i = 0; i < 10; i++) {
+            hostRows.add(row(GAUGE, "g" + i, "host" + (i % 3)));
+            envRows.add(row(GAUGE, "g" + i, i < 5 ? "prod" : "test"));
+        }
+        hostRows.add(row(COUNTER, "c0", "host0"));
+    }
+
+    @Test
+    public void evaluateExpressionsWithBitmaps() {
+        ExpressionTagQueryParser parser = new ExpressionTagQueryParser(dataAccess, metricsService, tagIndex);
+
+        assertEquals(ImmutableSet.of("g0", "g3"), query(parser, GAUGE, "host = host0 AND env = prod"));
+        assertEquals(ImmutableSet.of("g0", "g3", "g6", "g9", "c0"), query(parser, null, "host = host0"));
+        assertEquals(ImmutableSet.of("g5", "g6", "g8", "g9"),
+                query(parser, GAUGE, "(host = host0 OR host = host2) AND env != prod"));
+        assertEquals(ImmutableSet.of("g1", "g4", "g7"), query(parser, GAUGE, "host NOT IN ['host0', 'host2']"));
+        assertEquals(ImmutableSet.of("g1", "g2", "g4"), query(parser, GAUGE, "host !~ 'host0' AND env IN [prod]"));
+        assertEquals(ImmutableSet.of(), query(parser, GAUGE, "missing AND host"));
+        assertEquals(10, query(parser, GAUGE, "env").size());
+
+        // Each tag name is read from Cassandra only once
+        verify(dataAccess, times(1)).findMetricsByTagName(TENANT, "host");
+        verify(dataAccess, times(1)).findMetricsByTagName(TENANT, "env");
+    }
+
+    @Test
+    public void evaluateSimpleQueriesWithBitmaps() {
+        SimpleTagQueryParser parser = new SimpleTagQueryParser(dataAccess, metricsService, tagIndex);
+
+        Set<String> names = parser.findMetricsWithFilters(TENANT, GAUGE, ImmutableMap.of("host", "host1|host2",
+                "env", "!prod"))
+                .map(Metric::getId)
+                .toList().toBlocking().single().stream().collect(toSet());
+        assertEquals(ImmutableSet.of("g5", "g7", "g8"), names);
+    }
+
+    @Test
+    public void evaluateRegexesOncePerValue() {
+        ExpressionTagQueryParser parser = new ExpressionTagQueryParser(dataAccess, metricsService, tagIndex);
+
+        // Literal alternation and prefix range lookups
+        assertEquals(ImmutableSet.of("g0", "g1", "g3", "g4", "g6", "g7", "g9"),
+                query(parser, GAUGE, "host ~ 'host0|host1'"));
+        assertEquals(ImmutableSet.of("g2", "g5", "g8"), query(parser, GAUGE, "host ~ 'host[2-9]'"));
+        assertEquals(ImmutableSet.of(), query(parser, GAUGE, "host ~ 'hosts.*'"));
+        assertEquals(ImmutableSet.of("g0", "g3", "g6", "g9"), query(parser, GAUGE, "host IN ['host0', 'x.*']"));
+    }
+
+    @Test
+    public void lookupValuesWithoutIndex() {
+        Row prodRow = row(GAUGE, "g0", "prod");
+        Row host0 = row(GAUGE, "g0", "host0");
+        Row host1 = row(GAUGE, "g1", "host1");
+        when(dataAccess.findMetricsByTagNameValue(TENANT, "env", "prod")).thenReturn(Observable.just(prodRow));
+        when(dataAccess.findMetricsByTagNameValue(TENANT, "env", "test")).thenReturn(Observable.empty());
+        when(dataAccess.findMetricsByTagNameValueRange(TENANT, "host", "host", "hosu"))
+                .thenReturn(Observable.just(host0, host1));
+
+        ExpressionTagQueryParser parser = new ExpressionTagQueryParser(dataAccess, metricsService);
+
+        assertEquals(ImmutableSet.of("g0"), query(parser, GAUGE, "env ~ 'prod|test'"));
+        assertEquals(ImmutableSet.of("g1"), query(parser, GAUGE, "host ~ 'host[1-9]'"));
+        verify(dataAccess, times(0)).findMetricsByTagName(anyString(), anyString());
+    }
+
+    @Test
+    public void keepIndexCurrentWithTagUpdates() {
+        ExpressionTagQueryParser parser = new ExpressionTagQueryParser(dataAccess, metricsService, tagIndex);
+        assertEquals(ImmutableSet.of("g0", "g3", "g6", "g9"), query(parser, GAUGE, "host = host0"));
+
+        MetricId<Double> g1 = new MetricId<>(TENANT, GAUGE, "g1");
+        MetricId<Double> g10 = new MetricId<>(TENANT, GAUGE, "g10");
+        tagIndex.deleteTags(g1, ImmutableMap.of("host", "host1"));
+        tagIndex.addTags(g1, ImmutableMap.of("host", "host0"));
+        tagIndex.addTags(g10, ImmutableMap.of("host", "host0", "unloaded", "value"));
+        tagIndex.deleteTags(new MetricId<>(TENANT, GAUGE, "g3"), ImmutableMap.of("host", "host0"));
+
+        assertEquals(ImmutableSet.of("g0", "g1", "g6", "g9", "g10"), query(parser, GAUGE, "host = host0"));
+        assertEquals(ImmutableSet.of("g4", "g7"), query(parser, GAUGE, "host = host1"));
+        verify(dataAccess, times(1)).findMetricsByTagName(anyString(), anyString());
+
+        tagIndex.clear();
+        query(parser, GAUGE, "host = host0");
+        verify(dataAccess, times(2)).findMetricsByTagName(anyString(), anyString());
+    }
+
+    @Test
+    public void reuseOrdinalsOfRemovedMetrics() {
+        ExpressionTagQueryParser parser = new ExpressionTagQueryParser(dataAccess, metricsService, tagIndex);
+        query(parser, GAUGE, "host = host0");
+        TagIndex.Tenant tenant = tagIndex.load(TENANT, ImmutableSet.of()).toBlocking().single();
+        assertEquals(11, tenant.getOrdinals());
+
+        // The last ordinal is dropped, the ones in the middle are reused
+        tagIndex.deleteTags(new MetricId<>(TENANT, COUNTER, "c0"), ImmutableMap.of("host", "host0"));
+        tagIndex.deleteTags(new MetricId<>(TENANT, GAUGE, "g5"), ImmutableMap.of("host", "host2"));
+        assertEquals(10, tenant.getOrdinals());
+        tagIndex.addTags(new MetricId<>(TENANT, GAUGE, "g10"), ImmutableMap.of("host", "host1"));
+        assertEquals(10, tenant.getOrdinals());
+        assertEquals(ImmutableSet.of("g1", "g4", "g7", "g10"), query(parser, GAUGE, "host = host1"));
+        assertEquals(ImmutableSet.of("g2", "g8"), query(parser, GAUGE, "host = host2"));
+
+        // An old value left behind keeps the metric in the index until both values are deleted
+        MetricId<Double> g0 = new MetricId<>(TENANT, GAUGE, "g0");
+        tagIndex.addTags(g0, ImmutableMap.of("host", "host1"));
+        tagIndex.deleteTags(g0, ImmutableMap.of("host", "host0"));
+        assertEquals(ImmutableSet.of("g0", "g1", "g4", "g7", "g10"), query(parser, GAUGE, "host = host1"));
+        tagIndex.deleteTags(g0, ImmutableMap.of("host", "host1"));
+        assertEquals(ImmutableSet.of("g1", "g4", "g7", "g10"), query(parser, GAUGE, "host = host1"));
+        assertEquals(ImmutableSet.of("g1", "g2", "g3", "g4", "g6", "g7", "g8", "g9", "g10"),
+                query(parser, GAUGE, "host"));
+    }
+
+    private Set<String> query(ExpressionTagQueryParser parser, MetricType<?> type, String expression) {
+        return parser.parse(TENANT, type, expression)
+                .map(Metric::getId)
+                .toList().toBlocking().single().stream().collect(toSet());
+    }
+
+    private static Row row(MetricType<?> type, String metric, String tagValue) {
+        Row row = mock(Row.class);
+        when(row.getString(0)).thenReturn(TENANT);
+        when(row.getByte(1)).thenReturn(type.getCode());
+        when(row.getString(2)).thenReturn(metric);
+        when(row.getString(3)).thenReturn(tagValue);
+        return row;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.And;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Node;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Operator;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Or;
+import org.hawkular.metrics.core.service.tags.TagQueryPlan.Predicate;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+public class TagQueryPlanTest {
+
+    @Test
+    public void compileExpressionOrderedByCost() {
+        TagQueryPlan plan = ExpressionTagQueryParser.compile(
+                "a1 ~ 'x.*' AND NOT a2 AND a3 = 'y' AND (a4 OR a5 IN [b, c])");
+
+        assertEquals(TagQueryPlan.Syntax.EXPRESSION, plan.getSyntax());
+        assertEquals(ImmutableSet.of("a1", "a2", "a3", "a4", "a5"), plan.getTagNames());
+        assertTrue(plan.hasNonExistence());
+
+        // Nested ANDs are flattened and the operands ordered by their cost
+        List<Node> operands = ((And) plan.getRoot()).getOperands();
+        assertEquals(4, operands.size());
+        assertEquals(Operator.EQUAL, ((Predicate) operands.get(0)).getOperator());
+        assertTrue(operands.get(1) instanceof Or);
+        assertEquals(Operator.REGEX, ((Predicate) operands.get(2)).getOperator());
+        assertEquals(Operator.NOT_EXISTS, ((Predicate) operands.get(3)).getOperator());
+
+        Predicate in = (Predicate) ((Or) operands.get(1)).getOperands().get(1);
+        assertTrue(in.matches("c"));
+        assertFalse(in.matches("d"));
+    }
+
+    @Test
+    public void compileSimpleQuery() {
+        TagQueryPlan plan = SimpleTagQueryParser.compile(ImmutableMap.of("!a1", "*", "a2", "web.*", "a3", "!db01"));
+
+        assertEquals(TagQueryPlan.Syntax.SIMPLE, plan.getSyntax());
+        List<Node> operands = ((And) plan.getRoot()).getOperands();
+        Predicate notEqual = (Predicate) operands.get(0);
+        assertEquals(Operator.NOT_EQUAL, notEqual.getOperator());
+        assertEquals("db01", notEqual.getValue());
+        assertEquals(Operator.REGEX, ((Predicate) operands.get(1)).getOperator());
+        assertTrue(operands.get(1).getCost() < operands.get(2).getCost());
+        assertEquals("a1", ((Predicate) operands.get(2)).getTagName());
+    }
+
+    @Test
+    public void cachePlansAndCountHits() {
+        TagQueryPlanCache cache = new TagQueryPlanCache(2);
+        AtomicInteger compilations = new AtomicInteger();
+
+        TagQueryPlan plan = cache.get("t1", GAUGE, "a1 = 'x'", expression -> {
+            compilations.incrementAndGet();
+            return ExpressionTagQueryParser.compile(expression);
+        });
+        assertSame(plan, cache.get("t1", GAUGE, "a1 = 'x'", expression -> {
+            throw new AssertionError("Plan should have been cached");
+        }));
+        assertEquals(1, compilations.get());
+
+        // Key includes the tenant and type
+        cache.get("t2", GAUGE, "a1 = 'x'", ExpressionTagQueryParser::compile);
+        cache.get("t1", null, "a1 = 'x'", ExpressionTagQueryParser::compile);
+        assertEquals(2, cache.size());
+
+        // Failures are not cached
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("t1", GAUGE, "a1 = ", ExpressionTagQueryParser::compile);
+                fail("Invalid expression should fail to compile");
+            } catch (ParseCancellationException e) {
+                // Expected
+            }
+        }
+        assertEquals(2, cache.size());
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.tags;
+
+import static java.util.stream.Collectors.toSet;
+
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.core.service.MetricsService;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.hawkular.metrics.model.TagCardinality;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import rx.Observable;
+
+public class TagStatisticsTest {
+
+    private static final String TENANT = "tag-statistics";
+
+    private DataAccess dataAccess;
+    private MetricsService metricsService;
+    private TagStatistics statistics;
+
+    private List<Row> envRows = new ArrayList<>();
+    private List<Row> hostRows = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        // 100 metrics in the same environment, each on its own host
+        for (int i = 0; i < 100; i++) {
+            envRows.add(row("m" + i, "prod"));
+            hostRows.add(row("m" + i, "host" + i));
+        }
+
+        dataAccess = mock(DataAccess.class);
+        when(dataAccess.findMetricsByTagName(TENANT, "env")).thenAnswer(i -> Observable.from(envRows));
+        when(dataAccess.findMetricsByTagName(TENANT, "host")).thenAnswer(i -> Observable.from(hostRows));
+        when(dataAccess.findMetricsByTagNameValue(TENANT, "env", "prod")).thenAnswer(i -> Observable.from(envRows));
+        when(dataAccess.findMetricsByTagNameValue(TENANT, "host", "host7"))
+                .thenAnswer(i -> Observable.just(hostRows.get(7)));
+
+        metricsService = mock(MetricsService.class);
+        when(metricsService.findMetric(any())).thenAnswer(i -> {
+            MetricId<?> id = i.getArgumentAt(0, MetricId.class);
+            return Observable.just(new Metric<>(id, ImmutableMap.of("env", "prod",
+                    "host", "host" + id.getName().substring(1))));
+        });
+
+        statistics = new TagStatistics(dataAccess, TagStatistics.DEFAULT_REFRESH_INTERVAL);
+    }
+
+    @Test
+    public void loadCardinalities() {
+        assertEquals(new TagCardinality("env", 100, 1), statistics.load(TENANT, "env").toBlocking().single());
+        assertEquals(new TagCardinality("host", 100, 100), statistics.load(TENANT, "host").toBlocking().single());
+
+        // Loaded statistics are reused until the refresh interval has passed
+        statistics.load(TENANT, "env").toBlocking().single();
+        verify(dataAccess, times(1)).findMetricsByTagName(TENANT, "env");
+    }
+
+    @Test
+    public void loadCardinalitiesOfGivenTagNames() {
+        Set<TagCardinality> cardinalities = statistics.getCardinalities(TENANT, Observable.just("env", "host", "env"))
+                .toList().toBlocking().single().stream().collect(toSet());
+
+        assertEquals(ImmutableSet.of(new TagCardinality("env", 100, 1), new TagCardinality("host", 100, 100)),
+                cardinalities);
+        verify(dataAccess, never()).getTagNames();
+    }
+
+    @Test
+    public void countDistinctValuesOfLargeTags() {
+        // Many more values than the minimum width of the sketch
+        for (int i = 100; i < 5000; i++) {
+            hostRows.add(row("m" + i, "host" + i));
+        }
+        assertEquals(new TagCardinality("host", 5000, 5000), statistics.load(TENANT, "host").toBlocking().single());
+
+        for (int i = 5000; i < 5100; i++) {
+            statistics.addTags(new MetricId<>(TENANT, GAUGE, "m" + i), ImmutableMap.of("host", "host" + i));
+        }
+        long distinctValues = statistics.load(TENANT, "host").toBlocking().single().getDistinctValues();
+        assertTrue("Expected most of the added values to be counted", distinctValues > 5090);
+    }
+
+    @Test
+    public void sizeSketchFromDistinctValues() {
+        assertEquals(TagStatistics.FrequencySketch.MIN_WIDTH, new TagStatistics.FrequencySketch(0).getWidth());
+        assertEquals(TagStatistics.FrequencySketch.MIN_WIDTH, new TagStatistics.FrequencySketch(64).getWidth());
+        assertEquals(512, new TagStatistics.FrequencySketch(65).getWidth());
+        assertEquals(TagStatistics.FrequencySketch.MAX_WIDTH,
+                new TagStatistics.FrequencySketch(10000000).getWidth());
+
+        TagStatistics.FrequencySketch sketch = new TagStatistics.FrequencySketch(64);
+        assertFalse(sketch.isFull(64));
+        assertTrue(sketch.isFull(65));
+        assertFalse(new TagStatistics.FrequencySketch(10000000).isFull(20000000));
+    }
+
+    @Test
+    public void estimatePredicates() {
+        statistics.load(TENANT, "env").toBlocking().single();
+        statistics.load(TENANT, "host").toBlocking().single();
+
+        assertEquals(100, estimate("env = prod"));
+        assertEquals(0, estimate("env = test"));
+        assertEquals(0, estimate("env != prod"));
+        assertTrue(estimate("host = host7") >= 1 && estimate("host = host7") < 10);
+        assertEquals(100, estimate("host ~ 'host.*'"));
+        assertTrue(estimate("host = host7 AND env = prod") < 10);
+        assertEquals(TagStatistics.UNKNOWN, estimate("NOT missing"));
+        assertEquals(TagStatistics.UNKNOWN, estimate("env = prod OR missing = value"));
+    }
+
+    @Test
+    public void keepStatisticsCurrentWithTagUpdates() {
+        statistics.load(TENANT, "env").toBlocking().single();
+
+        statistics.addTags(new MetricId<>(TENANT, GAUGE, "m100"), ImmutableMap.of("env", "test", "other", "x"));
+        assertEquals(new TagCardinality("env", 101, 2), statistics.load(TENANT, "env").toBlocking().single());
+        assertEquals(1, estimate("env = test"));
+
+        statistics.deleteTags(new MetricId<>(TENANT, GAUGE, "m100"), ImmutableMap.of("env", "test"));
+        statistics.deleteTags(new MetricId<>(TENANT, GAUGE, "m101"), ImmutableMap.of("env", "unknown"));
+        assertEquals(new TagCardinality("env", 100, 1), statistics.load(TENANT, "env").toBlocking().single());
+    }
+
+    @Test
+    public void testSelectiveIntersectionsAgainstDefinitions() {
+        statistics.load(TENANT, "env").toBlocking().single();
+        statistics.load(TENANT, "host").toBlocking().single();
+
+        ExpressionTagQueryParser parser = new ExpressionTagQueryParser(dataAccess, metricsService, null,
+                statistics);
+        assertEquals(ImmutableSet.of("m7"), query(parser, "env = prod AND host = host7"));
+        assertEquals(ImmutableSet.of(), query(parser, "env != prod AND host = host7"));
+
+        // The host is the most selective and the only metric is tested for the environment
+        verify(dataAccess, never()).findMetricsByTagNameValue(TENANT, "env", "prod");
+        verify(dataAccess, never()).findMetricsByTagNameValueRange(anyString(), anyString(), anyString(),
+                anyString());
+
+        // Without the statistics both tags are read from the index
+        parser = new ExpressionTagQueryParser(dataAccess, metricsService);
+        assertEquals(ImmutableSet.of("m7"), query(parser, "env = prod AND host = host7"));
+        verify(dataAccess).findMetricsByTagNameValue(TENANT, "env", "prod");
+    }
+
+    @Test
+    public void orderSimpleFiltersByEstimates() {
+        statistics.load(TENANT, "env").toBlocking().single();
+        statistics.load(TENANT, "host").toBlocking().single();
+
+        SimpleTagQueryParser parser = new SimpleTagQueryParser(dataAccess, metricsService, null, statistics);
+        Set<String> names = parser.findMetricsWithFilters(TENANT, GAUGE, ImmutableMap.of("env", "prod",
+                "host", "host7"))
+                .map(Metric::getId)
+                .toList().toBlocking().single().stream().collect(toSet());
+
+        assertEquals(ImmutableSet.of("m7"), names);
+        verify(dataAccess, never()).findMetricsByTagNameValue(TENANT, "env", "prod");
+    }
+
+    private long estimate(String expression) {
+        return statistics.estimate(TENANT, ExpressionTagQueryParser.compile(expression).getRoot());
+    }
+
+    private Set<String> query(ExpressionTagQueryParser parser, String expression) {
+        return parser.parse(TENANT, GAUGE, expression)
+                .map(Metric::getId)
+                .toList().toBlocking().single().stream().collect(toSet());
+    }
+
+    private static Row row(String metric, String tagValue) {
+        Row row = mock(Row.class);
+        when(row.getString(0)).thenReturn(TENANT);
+        when(row.getByte(1)).thenReturn(GAUGE.getCode());
+        when(row.getString(2)).thenReturn(metric);
+        when(row.getString(3)).thenReturn(tagValue);
+        return row;
+    }
+}
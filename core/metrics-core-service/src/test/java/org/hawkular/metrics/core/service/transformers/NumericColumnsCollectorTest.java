@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014-2015 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.core.service.transformers;
+
+import static java.util.Collections.emptyList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.hawkular.metrics.core.service.compress.PointColumns;
+import org.hawkular.metrics.model.Buckets;
+import org.hawkular.metrics.model.NumericBucketPoint;
+import org.junit.Test;
+
+public class NumericColumnsCollectorTest {
+
+    @Test
+    public void blocksInsideAndAcrossBuckets() {
+        Buckets buckets = new Buckets(100, 100, 3);
+        NumericColumnsCollector collector = new NumericColumnsCollector(buckets, emptyList());
+
+        // Entirely inside the first bucket
+        PointColumns first = new PointColumns();
+        first.add(110, 1.0);
+        first.add(150, 3.0);
+        collector.increment(first);
+
+        // Spans the first and the last bucket, with points outside the buckets
+        PointColumns spanning = new PointColumns();
+        spanning.add(50, 100.0);
+        spanning.add(190, 5.0);
+        spanning.add(320, 7.0);
+        spanning.add(400, 100.0);
+        collector.increment(spanning);
+
+        List<NumericBucketPoint> points = collector.toBucketPoints();
+        assertEquals(3, points.size());
+
+        NumericBucketPoint bucket = points.get(0);
+        assertEquals(100, bucket.getStart());
+        assertEquals(3, bucket.getSamples().intValue());
+        assertEquals(1.0, bucket.getMin(), 0);
+        assertEquals(5.0, bucket.getMax(), 0);
+        assertEquals(9.0, bucket.getSum(), 0);
+        assertEquals(3.0, bucket.getAvg(), 0);
+
+        assertTrue(points.get(1).isEmpty());
+
+        bucket = points.get(2);
+        assertEquals(1, bucket.getSamples().intValue());
+        assertEquals(7.0, bucket.getMax(), 0);
+    }
+}
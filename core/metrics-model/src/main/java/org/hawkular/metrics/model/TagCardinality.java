@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.model;
+
+import java.util.Objects;
+
+import com.google.common.base.MoreObjects;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Cardinality statistics of a tag name within a tenant.
+ */
+public class TagCardinality {
+
+    private String tagName;
+
+    private long metrics;
+
+    private long distinctValues;
+
+    public TagCardinality() {
+    }
+
+    public TagCardinality(String tagName, long metrics, long distinctValues) {
+        this.tagName = tagName;
+        this.metrics = metrics;
+        this.distinctValues = distinctValues;
+    }
+
+    @ApiModelProperty("Name of the tag")
+    public String getTagName() {
+        return tagName;
+    }
+
+    public void setTagName(String tagName) {
+        this.tagName = tagName;
+    }
+
+    @ApiModelProperty("Amount of metrics having the tag, which is the amount of rows read by queries that can't "
+            + "look up the tag values directly")
+    public long getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(long metrics) {
+        this.metrics = metrics;
+    }
+
+    @ApiModelProperty("Amount of distinct values of the tag, the values of regular expression filters are tested "
+            + "against each of them")
+    public long getDistinctValues() {
+        return distinctValues;
+    }
+
+    public void setDistinctValues(long distinctValues) {
+        this.distinctValues = distinctValues;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TagCardinality that = (TagCardinality) o;
+        return metrics == that.metrics && distinctValues == that.distinctValues
+                && Objects.equals(tagName, that.tagName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tagName, metrics, distinctValues);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("tagName", tagName)
+                .add("metrics", metrics)
+                .add("distinctValues", distinctValues)
+                .toString();
+    }
+}
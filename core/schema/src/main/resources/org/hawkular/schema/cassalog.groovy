@@ -27,3 +27,4 @@ include '/org/hawkular/schema/updates/schema-0.20.0.groovy'
 include '/org/hawkular/schema/updates/schema-0.21.0.groovy'
 include '/org/hawkular/schema/updates/schema-0.23.0.groovy'
 include '/org/hawkular/schema/updates/schema-0.26.0.groovy'
+include '/org/hawkular/schema/updates/schema-0.28.0.groovy'
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+schemaChange {
+  version '8.0'
+  author 'burmanm'
+  tags '0.28.x'
+  cql """
+CREATE TABLE rollup_300 (
+    tenant_id text,
+    type tinyint,
+    metric text,
+    time timestamp,
+    min double,
+    max double,
+    sum double,
+    samples int,
+    sketch blob,
+    PRIMARY KEY ((tenant_id, type, metric), time)
+) WITH CLUSTERING ORDER BY (time DESC) AND compaction = {
+  'class': 'TimeWindowCompactionStrategy',
+  'compaction_window_unit': 'DAYS',
+  'compaction_window_size': '1'
+}
+"""
+  verify { tableExists(keyspace, 'rollup_300') }
+}
+
+schemaChange {
+  version '8.1'
+  author 'burmanm'
+  tags '0.28.x'
+  cql """
+CREATE TABLE rollup_3600 (
+    tenant_id text,
+    type tinyint,
+    metric text,
+    time timestamp,
+    min double,
+    max double,
+    sum double,
+    samples int,
+    sketch blob,
+    PRIMARY KEY ((tenant_id, type, metric), time)
+) WITH CLUSTERING ORDER BY (time DESC) AND compaction = {
+  'class': 'TimeWindowCompactionStrategy',
+  'compaction_window_unit': 'DAYS',
+  'compaction_window_size': '1'
+}
+"""
+  verify { tableExists(keyspace, 'rollup_3600') }
+}
+
+schemaChange {
+  version '8.2'
+  author 'burmanm'
+  tags '0.28.x'
+  cql """
+CREATE TABLE rollup_7200 (
+    tenant_id text,
+    type tinyint,
+    metric text,
+    time timestamp,
+    min double,
+    max double,
+    sum double,
+    samples int,
+    sketch blob,
+    PRIMARY KEY ((tenant_id, type, metric), time)
+) WITH CLUSTERING ORDER BY (time DESC) AND compaction = {
+  'class': 'TimeWindowCompactionStrategy',
+  'compaction_window_unit': 'DAYS',
+  'compaction_window_size': '1'
+}
+"""
+  verify { tableExists(keyspace, 'rollup_7200') }
+}
+
+schemaChange {
+  version '8.3'
+  author 'burmanm'
+  tags '0.28.x'
+  cql """
+CREATE TABLE metrics_idx_changes (
+    bucket timestamp,
+    time timeuuid,
+    tenant_id text,
+    type tinyint,
+    source uuid,
+    PRIMARY KEY (bucket, time)
+) WITH default_time_to_live = 3600 AND compaction = {
+  'class': 'TimeWindowCompactionStrategy',
+  'compaction_window_unit': 'HOURS',
+  'compaction_window_size': '1'
+}
+"""
+  verify { tableExists(keyspace, 'metrics_idx_changes') }
+}
+
+schemaChange {
+  version '8.4'
+  author 'burmanm'
+  tags '0.28.x'
+  cql """
+CREATE TABLE tag_names_idx (
+    tenant_id text,
+    tname text,
+    type tinyint,
+    PRIMARY KEY (tenant_id, tname, type)
+)
+"""
+  verify { tableExists(keyspace, 'tag_names_idx') }
+}
+
+schemaChange {
+  version '8.5'
+  author 'burmanm'
+  tags '0.28.x'
+  cql """
+CREATE TABLE tag_values_idx (
+    tenant_id text,
+    tname text,
+    tvalue text,
+    type tinyint,
+    PRIMARY KEY ((tenant_id, tname), tvalue, type)
+)
+"""
+  verify { tableExists(keyspace, 'tag_values_idx') }
+}
+
+schemaChange {
+  version '8.6'
+  author 'burmanm'
+  tags '0.28.x'
+  cql """
+CREATE TABLE metrics_expiration_buckets (
+    bucket timestamp,
+    shard int,
+    tenant_id text,
+    type tinyint,
+    metric text,
+    PRIMARY KEY ((bucket, shard), tenant_id, type, metric)
+)
+"""
+  verify { tableExists(keyspace, 'metrics_expiration_buckets') }
+}
+
+schemaChange {
+  version '8.7'
+  author 'burmanm'
+  tags '0.28.x'
+  cql """
+CREATE TABLE compressed_ranges (
+    time_slice timestamp,
+    phase tinyint,
+    token_range text,
+    PRIMARY KEY (time_slice, phase, token_range)
+) WITH default_time_to_live = 604800
+"""
+  verify { tableExists(keyspace, 'compressed_ranges') }
+}
+
+schemaChange {
+  version '8.8'
+  author 'burmanm'
+  tags '0.28.x'
+  description 'Version of the data_compressed rows that are rewritten with merged data points'
+  cql "ALTER TABLE data_compressed ADD version int"
+  verify { columnExists(keyspace, 'data_compressed', 'version') }
+}
+
+schemaChange {
+  version '8.9'
+  author 'burmanm'
+  tags '0.28.x'
+  description 'Completed token ranges of a block compression keyed by their start and end tokens'
+  cql """
+CREATE TABLE compressed_token_ranges (
+    time_slice timestamp,
+    phase tinyint,
+    start_token text,
+    end_token text,
+    PRIMARY KEY (time_slice, phase, start_token, end_token)
+) WITH default_time_to_live = 604800
+"""
+  verify { tableExists(keyspace, 'compressed_token_ranges') }
+}
+
+schemaChange {
+  version '8.10'
+  author 'burmanm'
+  tags '0.28.x'
+  description 'Ranges recorded by their string form are compressed again'
+  cql "DROP TABLE compressed_ranges"
+  verify { tableDoesNotExist(keyspace, 'compressed_ranges') }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.benchmark.jmh;
+
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hawkular.metrics.core.service.Order;
+import org.hawkular.metrics.core.service.compress.PointColumns;
+import org.hawkular.metrics.model.DataPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fi.iki.yak.ts.compression.gorilla.ByteBufferBitInput;
+import fi.iki.yak.ts.compression.gorilla.Decompressor;
+import fi.iki.yak.ts.compression.gorilla.Pair;
+
+/**
+ * Compares decoding data_compressed blocks with the previous DataPointDecompressTransformer algorithm (a DataPoint
+ * per pair, sorted through a Stream) against the primitive columns used now. Works on the c_value buffers directly,
+ * no Cassandra is needed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DecompressBenchmark {
+
+    private static final long BLOCK_SIZE = TimeUnit.HOURS.toMillis(2);
+
+    @Param({"84"}) // One week of blocks
+    public int blocks;
+
+    @Param({"720"}) // 10 second interval
+    public int pointsPerBlock;
+
+    private List<ByteBuffer> compressedBlocks;
+    private long[] blockStarts;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        long start = System.currentTimeMillis() / BLOCK_SIZE * BLOCK_SIZE - blocks * BLOCK_SIZE;
+        long interval = BLOCK_SIZE / pointsPerBlock;
+
+        compressedBlocks = new ArrayList<>(blocks);
+        blockStarts = new long[blocks];
+        for (int i = 0; i < blocks; i++) {
+            long blockStart = start + i * BLOCK_SIZE;
+            PointColumns columns = new PointColumns(pointsPerBlock);
+            for (int j = 0; j < pointsPerBlock; j++) {
+                columns.add(blockStart + j * interval, Math.sin(j / 10.0) * 100);
+            }
+            blockStarts[i] = blockStart;
+            compressedBlocks.add(columns.compress(blockStart).getValueBuffer());
+        }
+    }
+
+    @Benchmark
+    public void streamDecompressDesc(Blackhole bh) {
+        for (int i = blocks - 1; i >= 0; i--) {
+            ByteBuffer bb = compressedBlocks.get(i).duplicate();
+            bb.get();
+
+            Stream.Builder<DataPoint<Double>> builder = Stream.builder();
+            Decompressor d = new Decompressor(new ByteBufferBitInput(bb));
+            Pair pair;
+            while ((pair = d.readPair()) != null) {
+                builder.add(new DataPoint<>(pair.getTimestamp(), pair.getDoubleValue()));
+            }
+            List<DataPoint<Double>> dataPoints = builder.build()
+                    .sorted((d1, d2) -> (d1.getTimestamp() < d2.getTimestamp()) ? 1 : -1)
+                    .collect(Collectors.toList());
+            for (DataPoint<Double> dataPoint : dataPoints) {
+                bh.consume(dataPoint);
+            }
+        }
+    }
+
+    @Benchmark
+    public void columnarDecompressDesc(Blackhole bh) {
+        for (int i = blocks - 1; i >= 0; i--) {
+            PointColumns columns = PointColumns.decompress(compressedBlocks.get(i), null, blockStarts[i]);
+            for (DataPoint<Double> dataPoint : columns.dataPoints(GAUGE, Order.DESC)) {
+                bh.consume(dataPoint);
+            }
+        }
+    }
+
+    @Benchmark
+    public void columnarDecompressValues(Blackhole bh) {
+        double sum = 0;
+        for (int i = 0; i < blocks; i++) {
+            PointColumns columns = PointColumns.decompress(compressedBlocks.get(i), null, blockStarts[i]);
+            for (int j = 0; j < columns.size(); j++) {
+                sum += columns.getValue(j);
+            }
+        }
+        bh.consume(sum);
+    }
+}
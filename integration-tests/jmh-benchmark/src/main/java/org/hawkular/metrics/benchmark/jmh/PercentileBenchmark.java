@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.benchmark.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math3.stat.descriptive.rank.PSquarePercentile;
+import org.hawkular.metrics.core.service.rollup.QuantileSketch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the bucket percentile computation of the previous implementation (one PSquarePercentile per requested
+ * percentile and the median) against a single shared QuantileSketch. No Cassandra is needed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PercentileBenchmark {
+
+    private static final double[] PERCENTILES = {90.0, 95.0, 99.0, 50.0};
+
+    @Param({"720"}) // One block at 10 second interval
+    public int valuesPerBucket;
+
+    @Param({"100"})
+    public int buckets;
+
+    private double[] values;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        values = new double[valuesPerBucket * buckets];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(random.nextGaussian() + 3);
+        }
+    }
+
+    @Benchmark
+    public void pSquarePercentiles(Blackhole bh) {
+        for (int b = 0; b < buckets; b++) {
+            PSquarePercentile[] percentiles = new PSquarePercentile[PERCENTILES.length];
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                percentiles[p] = new PSquarePercentile(PERCENTILES[p]);
+            }
+            for (int i = b * valuesPerBucket; i < (b + 1) * valuesPerBucket; i++) {
+                for (PSquarePercentile percentile : percentiles) {
+                    percentile.increment(values[i]);
+                }
+            }
+            for (PSquarePercentile percentile : percentiles) {
+                bh.consume(percentile.getResult());
+            }
+        }
+    }
+
+    @Benchmark
+    public void sketchPercentiles(Blackhole bh) {
+        for (int b = 0; b < buckets; b++) {
+            QuantileSketch sketch = new QuantileSketch();
+            for (int i = b * valuesPerBucket; i < (b + 1) * valuesPerBucket; i++) {
+                sketch.add(values[i]);
+            }
+            for (double percentile : PERCENTILES) {
+                bh.consume(sketch.getQuantile(percentile / 100));
+            }
+        }
+    }
+
+    @Benchmark
+    public void mergeSketches(Blackhole bh) {
+        // Combining the per block sketches of the rollups to a single bucket
+        QuantileSketch merged = new QuantileSketch();
+        for (int b = 0; b < buckets; b++) {
+            QuantileSketch sketch = new QuantileSketch();
+            for (int i = b * valuesPerBucket; i < (b + 1) * valuesPerBucket; i++) {
+                sketch.add(values[i]);
+            }
+            merged.merge(QuantileSketch.deserialize(sketch.serialize()));
+        }
+        bh.consume(merged.getQuantile(0.99));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014-2017 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.metrics.benchmark.jmh;
+
+import static org.hawkular.metrics.model.MetricType.GAUGE;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hawkular.metrics.benchmark.jmh.util.LiveCassandraManager;
+import org.hawkular.metrics.benchmark.jmh.util.MetricServiceManager;
+import org.hawkular.metrics.core.service.DataAccess;
+import org.hawkular.metrics.core.service.DataAccessImpl;
+import org.hawkular.metrics.core.service.WriteBuffer;
+import org.hawkular.metrics.model.DataPoint;
+import org.hawkular.metrics.model.Metric;
+import org.hawkular.metrics.model.MetricId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import rx.Observable;
+
+/**
+ * Compares inserting data points to the temporary tables (one row per data point) against the in-memory write buffer
+ * which appends one write-ahead log row per metric on each flush.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class WriteBufferBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ServiceCreator {
+        private MetricServiceManager metricsManager;
+        private DataAccess dataAccess;
+        private WriteBuffer writeBuffer;
+
+        @Param({"100"})
+        public long flushDelay;
+
+        @Setup
+        public void setup() {
+            metricsManager = new MetricServiceManager(new LiveCassandraManager());
+
+            metricsManager.getSession().execute("ALTER KEYSPACE benchmark WITH replication = {'class': " +
+                    "'SimpleStrategy', 'replication_factor': 1" +
+                    "} AND durable_writes = false");
+
+            // Create the log table first, the DataAccessImpl prepares statements for existing tables at construction
+            new DataAccessImpl(metricsManager.getSession())
+                    .createWalTablesIfNotExists(Collections.singleton(System.currentTimeMillis()))
+                    .toBlocking().lastOrDefault(null);
+
+            dataAccess = new DataAccessImpl(metricsManager.getSession());
+            writeBuffer = new WriteBuffer(dataAccess, flushDelay, 10000);
+        }
+
+        @TearDown
+        public void shutdown() {
+            dataAccess.shutdown();
+            metricsManager.shutdown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class GaugeMetricCreator {
+
+        @Param({"10000"})
+        public int metrics;
+
+        @Param({"10"})
+        public int datapointsPerMetric;
+
+        private List<Metric<Double>> metricList;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            final long timestamp = System.currentTimeMillis();
+
+            List<Metric<Double>> metricList = new ArrayList<>(metrics);
+            for (int i = 0; i < metrics; i++) {
+                List<DataPoint<Double>> points = new ArrayList<>(datapointsPerMetric);
+                for (int j = 0; j < datapointsPerMetric; j++) {
+                    points.add(new DataPoint<>(timestamp + j, (double) j));
+                }
+                metricList.add(new Metric<>(new MetricId<>("b", GAUGE, "insert.metrics.test." + i), points));
+            }
+            this.metricList = metricList;
+        }
+
+        public Observable<Metric<Double>> getMetricObservable() {
+            return Observable.from(metricList);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100000) // Note, this is the amount of data points (metrics * datapointsPerMetric)
+    public void insertToTempTables(GaugeMetricCreator creator, ServiceCreator service, Blackhole bh) {
+        bh.consume(service.dataAccess.insertData(creator.getMetricObservable())
+                .toBlocking().lastOrDefault(null));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100000) // Note, this is the amount of data points (metrics * datapointsPerMetric)
+    public void insertToWriteBuffer(GaugeMetricCreator creator, ServiceCreator service, Blackhole bh) {
+        bh.consume(creator.getMetricObservable()
+                .flatMap(m -> service.writeBuffer.append(m))
+                .toBlocking().lastOrDefault(null));
+    }
+}
@@ -16,11 +16,15 @@
  */
 package org.hawkular.metrics.rest
 
+import groovyx.net.http.ContentType
+import org.hawkular.metrics.core.service.compress.PointColumns
 import org.hawkular.metrics.datetime.DateTimeService
 import org.joda.time.DateTime
+import org.joda.time.Duration
 import org.junit.Test
 
 import static java.lang.Double.NaN
+import static org.hawkular.metrics.model.MetricType.COUNTER
 import static org.joda.time.DateTime.now
 import static org.junit.Assert.*
 
@@ -38,6 +42,30 @@ class CountersITest extends RESTTest {
     }
   }
 
+  @Test
+  void shouldNotAddCompressedBlockWithNonIntegerValues() {
+    long blockStart = DateTimeService.getTimeSlice(getTime().minusHours(4).millis, Duration.standardHours(2))
+    PointColumns columns = new PointColumns()
+    columns.add(blockStart + 60000, 1.5)
+    // Non-integer values are compressed with Gorilla instead of the delta-of-delta codec
+    def valueBuffer = columns.compress(blockStart, COUNTER).valueBuffer
+    byte[] block = new byte[valueBuffer.remaining()]
+    valueBuffer.duplicate().get(block)
+
+    badPost(path: "counters/C1/raw/compressed", headers: [(tenantHeaderName): tenantId],
+        requestContentType: ContentType.BINARY, body: block) { exception ->
+      assertEquals(400, exception.response.status)
+    }
+  }
+
+  @Test
+  void shouldNotAddEmptyCompressedBlock() {
+    badPost(path: "counters/C1/raw/compressed", headers: [(tenantHeaderName): tenantId],
+        requestContentType: ContentType.BINARY, body: new byte[0]) { exception ->
+      assertEquals(400, exception.response.status)
+    }
+  }
+
   @Test
   void shouldNotAcceptInvalidBucketConfig() {
     badGet(path: "counters/test/raw", headers: [(tenantHeaderName): tenantId],
@@ -16,9 +16,15 @@
  */
 package org.hawkular.metrics.rest
 
+import groovyx.net.http.ContentType
+import org.hawkular.metrics.core.service.compress.PointColumns
+import org.hawkular.metrics.datetime.DateTimeService
 import org.joda.time.DateTime
+import org.joda.time.Duration
 import org.junit.Test
 
+import java.nio.ByteBuffer
+
 import static org.joda.time.DateTime.now
 import static org.junit.Assert.*
 /**
@@ -76,6 +82,52 @@ class GaugesITest extends RESTTest {
     }
   }
 
+  @Test
+  void shouldNotAddInvalidCompressedBlock() {
+    long blockStart = DateTimeService.getTimeSlice(getTime().minusHours(4).millis, Duration.standardHours(2))
+
+    badPost(path: "gauges/G1/raw/compressed", headers: [(tenantHeaderName): tenantId],
+        requestContentType: ContentType.BINARY, body: new byte[0]) { exception ->
+      assertEquals(400, exception.response.status)
+    }
+
+    // Too short to hold the block start
+    badPost(path: "gauges/G1/raw/compressed", headers: [(tenantHeaderName): tenantId],
+        requestContentType: ContentType.BINARY, body: [0x10] as byte[]) { exception ->
+      assertEquals(400, exception.response.status)
+    }
+
+    // Gorilla v2 is not a storage codec
+    byte[] unsupported = ByteBuffer.allocate(9).put((byte) 0x20).putLong(blockStart).array()
+    badPost(path: "gauges/G1/raw/compressed", headers: [(tenantHeaderName): tenantId],
+        requestContentType: ContentType.BINARY, body: unsupported) { exception ->
+      assertEquals(400, exception.response.status)
+    }
+
+    // Block start is not aligned to the two hour blocks
+    PointColumns columns = new PointColumns()
+    columns.add(blockStart + 60000, 1.5)
+    badPost(path: "gauges/G1/raw/compressed", headers: [(tenantHeaderName): tenantId],
+        requestContentType: ContentType.BINARY, body: toBytes(columns.compress(blockStart + 1).valueBuffer)) {
+      exception -> assertEquals(400, exception.response.status)
+    }
+
+    // Block is not complete yet
+    long currentBlock = DateTimeService.getTimeSlice(getTime().millis, Duration.standardHours(2))
+    columns = new PointColumns()
+    columns.add(currentBlock, 1.5)
+    badPost(path: "gauges/G1/raw/compressed", headers: [(tenantHeaderName): tenantId],
+        requestContentType: ContentType.BINARY, body: toBytes(columns.compress(currentBlock).valueBuffer)) {
+      exception -> assertEquals(400, exception.response.status)
+    }
+  }
+
+  static byte[] toBytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()]
+    buffer.duplicate().get(bytes)
+    return bytes
+  }
+
   @Test
   void shouldStoreLargePayloadSize() {
     checkLargePayload("gauges", tenantId, { points, i -> points.push([timestamp: i, value: (double) i]) })
@@ -668,6 +720,49 @@ Actual:   ${response.data}
     ]))
   }
 
+  @Test
+  void fetchMRawDataFromMultipleGaugesWithoutData() {
+    String tenantId = nextTenantId()
+
+    def response = hawkularMetrics.post(
+        path: "gauges/raw/query",
+        headers: [(tenantHeaderName): tenantId],
+        body: [ids: ['G1', 'G2']]
+    )
+    assertEquals(204, response.status)
+  }
+
+  @Test
+  void fetchMRawDataStreamedInSeveralBuffers() {
+    String tenantId = nextTenantId()
+    DateTime start = DateTime.now().minusHours(2)
+
+    // More points than the streaming response buffers at once
+    def data = (0..<600).collect { [timestamp: start.plusSeconds(it).millis, value: it as Double] }
+    def response = hawkularMetrics.post(
+        path: "gauges/raw",
+        headers: [(tenantHeaderName): tenantId],
+        body: [
+            [id: 'G1', data: data],
+            [id: 'G2', data: data]
+        ]
+    )
+    assertEquals(200, response.status)
+
+    response = hawkularMetrics.post(
+        path: "gauges/raw/query",
+        headers: [(tenantHeaderName): tenantId],
+        body: [ids: ['G1', 'G2'], start: start.millis, order: 'asc']
+    )
+    assertEquals(200, response.status)
+
+    assertEquals(2, response.data.size)
+    response.data.each { metric ->
+      assertEquals(600, metric.data.size)
+      assertEquals(data, metric.data.collect { [timestamp: it.timestamp, value: it.value as Double] })
+    }
+  }
+
   @Test
   void fetchMRawDataFromMultipleGaugesWithQueryParams() {
     String tenantId = nextTenantId()
@@ -1141,4 +1236,58 @@ Actual:   ${response.data}
     ]))
   }
 
+  @Test
+  void findGaugeDefinitionsPageByPage() {
+    String tenantId = nextTenantId()
+    def ids = (0..<5).collect { "G$it".toString() }
+    ids.each { id ->
+      def response = hawkularMetrics.post(path: "gauges", headers: [(tenantHeaderName): tenantId], body: [id: id])
+      assertEquals(201, response.status)
+    }
+
+    def found = []
+    def query = [limit: 2]
+    int pages = 0
+    while (query != null) {
+      def response = hawkularMetrics.get(path: "gauges", query: query, headers: [(tenantHeaderName): tenantId])
+      assertEquals(200, response.status)
+      assertTrue(response.data.size() <= 2)
+      found.addAll(response.data.collect { it.id })
+      pages++
+
+      def link = response.getFirstHeader('Link')
+      if (link == null) {
+        query = null
+      } else {
+        assertTrue(link.value.contains('rel="next"'))
+        def cursor = (link.value =~ /cursor=([^&>]+)/)[0][1]
+        query = [limit: 2, cursor: URLDecoder.decode(cursor as String, 'UTF-8')]
+      }
+    }
+
+    assertEquals(3, pages)
+    assertEquals(ids.sort(), found.sort())
+
+    badGet(path: "gauges", query: [limit: 2, cursor: 'invalid'], headers: [(tenantHeaderName): tenantId]) {
+      exception -> assertEquals(400, exception.response.status)
+    }
+  }
+
+  @Test
+  void streamGaugeDefinitionsBeyondBuffer() {
+    String tenantId = nextTenantId()
+    // More metrics than the streaming response buffers at once
+    def ids = (0..<600).collect { "G$it".toString() }
+    def response = hawkularMetrics.post(
+        path: "gauges/raw",
+        headers: [(tenantHeaderName): tenantId],
+        body: ids.collect { [id: it, data: [[timestamp: now().minusMinutes(1).millis, value: 1.1]]] }
+    )
+    assertEquals(200, response.status)
+
+    response = hawkularMetrics.get(path: "gauges", headers: [(tenantHeaderName): tenantId])
+    assertEquals(200, response.status)
+    assertEquals(ids.sort(), response.data.collect { it.id }.sort())
+  }
+
 }
@@ -44,7 +44,7 @@ import rx.Observable;
  * Locks can be explicitly released as well.
  * </p>
  * <p>
- * Note that this is still very much a work in progress. LockManager is currently used only by the job scheduler, but
+ * Note that this is still very much a work in progress. LockManager is used by the job scheduler and compression, but
  * could be used a general purpose distributed locking service. Failure situations are not yet handled. For example,
  * suppose renewing a lock fails because the CQL query to renew it times out. We simply stop trying to renew the lock,
  * allowing it to expire. There needs to be some sort of notification mechanism to inform a lock holder when renewal
@@ -56,7 +56,7 @@ import rx.Observable;
  *
  * @author jsanda
  */
-class LockManager {
+public class LockManager {
 
     private static Logger logger = Logger.getLogger(LockManager.class);
 